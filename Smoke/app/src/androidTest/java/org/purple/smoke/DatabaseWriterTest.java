@@ -0,0 +1,92 @@
+/*
+** Copyright (c) Alexis Megas.
+** All rights reserved.
+**
+** Redistribution and use in source and binary forms, with or without
+** modification, are permitted provided that the following conditions
+** are met:
+** 1. Redistributions of source code must retain the above copyright
+**    notice, this list of conditions and the following disclaimer.
+** 2. Redistributions in binary form must reproduce the above copyright
+**    notice, this list of conditions and the following disclaimer in the
+**    documentation and/or other materials provided with the distribution.
+** 3. The name of the author may not be used to endorse or promote products
+**    derived from Smoke without specific prior written permission.
+**
+** SMOKE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+** IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+** OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+** IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+** INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+** NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+** DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+** THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+** (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+** SMOKE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package org.purple.smoke;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.runner.AndroidJUnit4;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class DatabaseWriterTest
+{
+    private static ContentValues values(String value)
+    {
+	ContentValues values = new ContentValues();
+
+	values.put("value", value);
+	return values;
+    }
+
+    @Test
+    public void failedCommandIsRolledBackAlone()
+    {
+	/*
+	** The commands are submitted within the latency so that they
+	** share a batch.
+	*/
+
+	SQLiteDatabase db = SQLiteDatabase.create(null);
+
+	db.execSQL("CREATE TABLE t (value TEXT NOT NULL)");
+
+	DatabaseWriter writer = new DatabaseWriter(db, 1000, 128);
+	Future<Boolean> first = writer.insert("t", values("a"));
+	Future<Boolean> second = writer.submit(new DatabaseWriter.Command()
+	{
+	    @Override
+	    public boolean execute(SQLiteDatabase db)
+	    {
+		db.insert("t", null, values("b"));
+		return false;
+	    }
+	});
+	Future<Boolean> third = writer.delete
+	    ("t", "value = ?", new String[] {"z"});
+	Future<Boolean> fourth = writer.insert("t", values("c"));
+
+	assertTrue(DatabaseWriter.await(first));
+	assertFalse(DatabaseWriter.await(second));
+	assertFalse(DatabaseWriter.await(third));
+	assertTrue(DatabaseWriter.await(fourth));
+	assertTrue(writer.flush());
+	assertEquals(2, DatabaseUtils.queryNumEntries(db, "t"));
+	assertEquals
+	    (0,
+	     DatabaseUtils.queryNumEntries(db, "t", "value = ?",
+					   new String[] {"b"}));
+	db.close();
+    }
+}
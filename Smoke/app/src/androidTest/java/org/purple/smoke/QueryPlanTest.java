@@ -0,0 +1,95 @@
+/*
+** Copyright (c) Alexis Megas.
+** All rights reserved.
+**
+** Redistribution and use in source and binary forms, with or without
+** modification, are permitted provided that the following conditions
+** are met:
+** 1. Redistributions of source code must retain the above copyright
+**    notice, this list of conditions and the following disclaimer.
+** 2. Redistributions in binary form must reproduce the above copyright
+**    notice, this list of conditions and the following disclaimer in the
+**    documentation and/or other materials provided with the distribution.
+** 3. The name of the author may not be used to endorse or promote products
+**    derived from Smoke without specific prior written permission.
+**
+** SMOKE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+** IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+** OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+** IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+** INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+** NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+** DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+** THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+** (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+** SMOKE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package org.purple.smoke;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import java.util.HashSet;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class QueryPlanTest
+{
+    /*
+    ** Hot queries which may scan a table or an index in its entirety.
+    ** Every entry requires a justification.
+    */
+
+    private final static HashSet<String> SCANS_ALLOWED = new HashSet<> ();
+
+    @Test
+    public void hotQueriesUseIndexes()
+    {
+	SQLiteDatabase db = Database.getInstance
+	    (InstrumentationRegistry.getTargetContext()).getReadableDatabase();
+
+	for(String query : Database.HOT_QUERIES)
+	{
+	    Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + query, null);
+
+	    try
+	    {
+		int column = cursor.getColumnIndexOrThrow("detail");
+
+		assertTrue(query, cursor.moveToFirst());
+
+		while(!cursor.isAfterLast())
+		{
+		    /*
+		    ** A SCAN reads an entire table or an entire index,
+		    ** even if the index covers the query. The constant
+		    ** row of a SELECT without a table is not a scan.
+		    */
+
+		    String detail = cursor.getString(column).trim();
+
+		    assertFalse
+			(detail + " (" + query + ")",
+			 detail.contains("TEMP B-TREE"));
+
+		    if(!SCANS_ALLOWED.contains(query))
+			assertFalse
+			    (detail + " (" + query + ")",
+			     detail.startsWith("SCAN") &&
+			     !detail.equals("SCAN CONSTANT ROW"));
+		    cursor.moveToNext();
+		}
+	    }
+	    finally
+	    {
+		cursor.close();
+	    }
+	}
+    }
+}
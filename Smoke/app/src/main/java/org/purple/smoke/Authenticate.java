@@ -30,6 +30,7 @@ package org.purple.smoke;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Base64;
 import android.view.Menu;
@@ -40,11 +41,14 @@ import android.widget.Button;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import javax.crypto.SecretKey;
 
 public class Authenticate extends AppCompatActivity
 {
     private Database m_databaseHelper = null;
+    private Repository m_repository = null;
     private final static Cryptography s_cryptography =
 	Cryptography.getInstance();
 
@@ -60,7 +64,7 @@ public class Authenticate extends AppCompatActivity
 		    return;
 
 		byte encryptionSalt[] = Base64.decode
-		    (m_databaseHelper.
+		    (m_repository.
 		     readSetting(null, "encryptionSalt").getBytes(),
 		     Base64.DEFAULT);
 		final TextView textView1 = (TextView) findViewById
@@ -78,7 +82,7 @@ public class Authenticate extends AppCompatActivity
 		}
 
 		byte macSalt[] = Base64.decode
-		    (m_databaseHelper.readSetting(null, "macSalt").getBytes(),
+		    (m_repository.readSetting(null, "macSalt").getBytes(),
 		     Base64.DEFAULT);
 
 		if(macSalt == null)
@@ -104,18 +108,8 @@ public class Authenticate extends AppCompatActivity
 		    return;
 		}
 
-		int iterationCount = 1000;
-
-		try
-		{
-		    iterationCount = Integer.parseInt
-			(m_databaseHelper.
-			 readSetting(null, "iterationCount"));
-		}
-		catch(Exception exception)
-		{
-		    iterationCount = -1;
-		}
+		int iterationCount = m_repository.readSettingInt
+		    (null, "iterationCount", -1);
 
 		if(iterationCount == -1)
 		{
@@ -126,7 +120,7 @@ public class Authenticate extends AppCompatActivity
 		    return;
 		}
 
-		if(!Cryptography.memcmp(m_databaseHelper.
+		if(!Cryptography.memcmp(m_repository.
 					readSetting(null,"saltedPassword").
 					getBytes(),
 					Base64.encode(saltedPassword,
@@ -173,74 +167,91 @@ public class Authenticate extends AppCompatActivity
 		    @Override
 		    public void run()
 		    {
+			KeyDerivationService service =
+			    KeyDerivationService.getInstance();
 			SecretKey encryptionKey = null;
 			SecretKey macKey = null;
+			long timestamps[] = new long[4];
 
 			try
 			{
-			    encryptionKey = Cryptography.generateEncryptionKey
-				(m_encryptionSalt,
-				 m_password.toCharArray(),
-				 m_iterationCount);
+			    /*
+			    ** The encryption and MAC keys are independent.
+			    ** Derive them concurrently.
+			    */
+
+			    timestamps[0] = SystemClock.elapsedRealtime();
+
+			    Future<SecretKey> future = service.submit
+				(new Callable<SecretKey> ()
+			    {
+				@Override
+				public SecretKey call()
+				{
+				    return Cryptography.generateEncryptionKey
+					(m_encryptionSalt,
+					 m_password.toCharArray(),
+					 m_iterationCount);
+				}
+			    });
+
 			    macKey = Cryptography.generateMacKey
 				(m_macSalt,
 				 m_password.toCharArray(),
 				 m_iterationCount);
+			    encryptionKey = future.get();
+			    timestamps[1] = SystemClock.elapsedRealtime();
 
 			    if(encryptionKey != null && macKey != null)
 			    {
 				s_cryptography.setEncryptionKey(encryptionKey);
 				s_cryptography.setMacKey(macKey);
 
-				String algorithm = "";
-				byte identity[] = Base64.decode
-				    (m_databaseHelper.
-				     readSetting(s_cryptography,
-						 "identity").
-				     getBytes(), Base64.DEFAULT);
-				byte ozoneKeyStream[] = Base64.decode
-				    (m_databaseHelper.
-				     readSetting(s_cryptography,
-						 "ozone_address_stream").
-						 getBytes(), Base64.DEFAULT);
-				byte privateBytes[] = Base64.decode
-				    (m_databaseHelper.
-				     readSetting(s_cryptography,
-						 "pki_chat_encryption_" +
-						 "private_key").
-				     getBytes(), Base64.DEFAULT);
-				byte publicBytes[] = Base64.decode
-				    (m_databaseHelper.
-				     readSetting(s_cryptography,
-						 "pki_chat_encryption_" +
-						 "public_key").
-				     getBytes(), Base64.DEFAULT);
-
-				algorithm = m_databaseHelper.
+				/*
+				** The settings are read with a single query
+				** and decrypted in a single pass. The
+				** remaining reads are served from memory.
+				*/
+
+				m_databaseHelper.loadSettings(s_cryptography);
+
+				byte identity[] = m_databaseHelper.
+				    readSettingBytes(s_cryptography,
+						     "identity");
+				byte ozoneKeyStream[] = m_databaseHelper.
+				    readSettingBytes(s_cryptography,
+						     "ozone_address_stream");
+				final String encryptionAlgorithm =
+				    m_databaseHelper.
 				    readSetting(s_cryptography,
 						"pki_chat_encryption_" +
 						"algorithm");
-				s_cryptography.setIdentity(identity);
-				s_cryptography.setChatEncryptionPublicKeyPair
-				    (algorithm, privateBytes, publicBytes);
-				privateBytes = Base64.decode
-				    (m_databaseHelper.
-				     readSetting(s_cryptography,
-						 "pki_chat_signature_" +
-						 "private_key").
-				     getBytes(), Base64.DEFAULT);
-				publicBytes = Base64.decode
-				    (m_databaseHelper.
-				     readSetting(s_cryptography,
-						 "pki_chat_signature_" +
-						 "public_key").
-				     getBytes(), Base64.DEFAULT);
-				algorithm = m_databaseHelper.
+				final byte encryptionPrivateBytes[] =
+				    m_databaseHelper.
+				    readSettingBytes(s_cryptography,
+						     "pki_chat_encryption_" +
+						     "private_key");
+				final byte encryptionPublicBytes[] =
+				    m_databaseHelper.
+				    readSettingBytes(s_cryptography,
+						     "pki_chat_encryption_" +
+						     "public_key");
+				String signatureAlgorithm = m_databaseHelper.
 				    readSetting(s_cryptography,
 						"pki_chat_signature_" +
 						"algorithm");
-				s_cryptography.setChatSignaturePublicKeyPair
-				    (algorithm, privateBytes, publicBytes);
+				byte signaturePrivateBytes[] =
+				    m_databaseHelper.
+				    readSettingBytes(s_cryptography,
+						     "pki_chat_signature_" +
+						     "private_key");
+				byte signaturePublicBytes[] = m_databaseHelper.
+				    readSettingBytes(s_cryptography,
+						     "pki_chat_signature_" +
+						     "public_key");
+
+				timestamps[2] = SystemClock.elapsedRealtime();
+				s_cryptography.setIdentity(identity);
 
 				if(ozoneKeyStream != null &&
 				   ozoneKeyStream.length == 96)
@@ -261,11 +272,55 @@ public class Authenticate extends AppCompatActivity
 				    s_cryptography.setOzoneMacKey(null);
 				}
 
+				/*
+				** The key pairs are independent of each other.
+				*/
+
+				Future<?> keyPair = service.submit
+				    (new Runnable()
+				{
+				    @Override
+				    public void run()
+				    {
+					s_cryptography.
+					    setChatEncryptionPublicKeyPair
+					    (encryptionAlgorithm,
+					     encryptionPrivateBytes,
+					     encryptionPublicBytes);
+				    }
+				});
+
+				s_cryptography.setChatSignaturePublicKeyPair
+				    (signatureAlgorithm,
+				     signaturePrivateBytes,
+				     signaturePublicBytes);
+				keyPair.get();
+
+				/*
+				** The SipHash identity requires the key pairs.
+				** The participant directory does not.
+				*/
+
+				Future<?> directory = service.submit
+				    (new Runnable()
+				{
+				    @Override
+				    public void run()
+				    {
+					m_databaseHelper.
+					    loadParticipantDirectory
+					    (s_cryptography);
+				    }
+				});
+
 				boolean e1 = s_cryptography.
 				    prepareSipHashIds();
 				boolean e2 = s_cryptography.
 				    prepareSipHashKeys();
 
+				directory.get();
+				timestamps[3] = SystemClock.elapsedRealtime();
+
 				if(!e1 || !e2 ||
 				   s_cryptography.
 				   chatEncryptionKeyPair() == null ||
@@ -294,6 +349,26 @@ public class Authenticate extends AppCompatActivity
 				    m_error = m_error.trim();
 				    s_cryptography.reset();
 				}
+				else
+				{
+				    StringBuilder stringBuilder =
+					new StringBuilder();
+
+				    stringBuilder.append
+					("Authenticate::SingleShot::run(): ");
+				    stringBuilder.append("derivation ");
+				    stringBuilder.append
+					(timestamps[1] - timestamps[0]);
+				    stringBuilder.append(" ms, settings ");
+				    stringBuilder.append
+					(timestamps[2] - timestamps[1]);
+				    stringBuilder.append(" ms, preparation ");
+				    stringBuilder.append
+					(timestamps[3] - timestamps[2]);
+				    stringBuilder.append(" ms.");
+				    m_databaseHelper.writeLog
+					(stringBuilder.toString());
+				}
 			    }
 			    else
 			    {
@@ -351,7 +426,7 @@ public class Authenticate extends AppCompatActivity
 					textView1.setEnabled(false);
 					textView1.setText("");
 
-					String str = m_databaseHelper.
+					String str = m_repository.
 					    readSetting(null, "lastActivity");
 
 					switch(str)
@@ -364,11 +439,11 @@ public class Authenticate extends AppCompatActivity
 					    break;
 					case "MemberChat":
 					    String oid =
-						m_databaseHelper.
+						m_repository.
 						readSetting(s_cryptography,
 							    "member_chat_oid");
 					    String sipHashId =
-						m_databaseHelper.
+						m_repository.
 						readSetting(s_cryptography,
 							    "member_chat_" +
 							    "siphash_id");
@@ -387,11 +462,11 @@ public class Authenticate extends AppCompatActivity
 					    }
 					    else
 					    {
-						m_databaseHelper.writeSetting
+						m_repository.writeSetting
 						    (s_cryptography,
 						     "member_chat_oid",
 						     "");
-						m_databaseHelper.writeSetting
+						m_repository.writeSetting
 						    (s_cryptography,
 						     "member_chat_siphash_id",
 						     "");
@@ -433,14 +508,22 @@ public class Authenticate extends AppCompatActivity
 		       equals("true"))
 		    {
 			State.getInstance().reset();
-			m_databaseHelper.resetAndDrop();
-			s_cryptography.reset();
-
-			Intent intent = new Intent
-			    (Authenticate.this, Settings.class);
-
-			startActivity(intent);
-			finish();
+			m_repository.resetAndDrop
+			    (Authenticate.this,
+			     new Repository.Callback<Void> ()
+			     {
+				 @Override
+				 public void onResult(Void result)
+				 {
+				     s_cryptography.reset();
+
+				     Intent intent = new Intent
+					 (Authenticate.this, Settings.class);
+
+				     startActivity(intent);
+				     finish();
+				 }
+			     });
 		    }
 		}
 	    };
@@ -497,12 +580,13 @@ public class Authenticate extends AppCompatActivity
     {
 	super.onCreate(savedInstanceState);
 	m_databaseHelper = Database.getInstance(getApplicationContext());
-	m_databaseHelper.cleanDanglingOutboundQueued();
-	m_databaseHelper.cleanDanglingParticipants();
+	m_repository = Repository.getInstance();
+	m_repository.cleanDanglingOutboundQueued();
+	m_repository.cleanDanglingParticipants();
         setContentView(R.layout.activity_authenticate);
 	State.getInstance().setNeighborsEcho
-	    (m_databaseHelper.readSetting(null,
-					  "neighbors_echo").equals("true"));
+	    (m_repository.readSetting(null,
+				      "neighbors_echo").equals("true"));
 	prepareListeners();
 
 	boolean isAuthenticated = State.getInstance().isAuthenticated();
@@ -532,15 +616,15 @@ public class Authenticate extends AppCompatActivity
 	    switch(itemId)
 	    {
 	    case R.id.action_chat:
-		m_databaseHelper.writeSetting(null, "lastActivity", "Chat");
+		m_repository.writeSetting(null, "lastActivity", "Chat");
 		showChatActivity();
 		return true;
 	    case R.id.action_fire:
-		m_databaseHelper.writeSetting(null, "lastActivity", "Fire");
+		m_repository.writeSetting(null, "lastActivity", "Fire");
 		showFireActivity();
 		return true;
 	    case R.id.action_settings:
-		m_databaseHelper.writeSetting(null, "lastActivity", "Settings");
+		m_repository.writeSetting(null, "lastActivity", "Settings");
 		showSettingsActivity();
 		return true;
 	    }
@@ -558,11 +642,11 @@ public class Authenticate extends AppCompatActivity
 		("member_chat_oid", String.valueOf(itemId));
 	    State.getInstance().setString
 		("member_chat_siphash_id", sipHashId);
-	    m_databaseHelper.writeSetting
+	    m_repository.writeSetting
 		(null, "lastActivity", "MemberChat");
-	    m_databaseHelper.writeSetting
+	    m_repository.writeSetting
 		(s_cryptography, "member_chat_oid", String.valueOf(itemId));
-	    m_databaseHelper.writeSetting
+	    m_repository.writeSetting
 		(s_cryptography, "member_chat_siphash_id", sipHashId);
 	    showMemberChatActivity();
 	}
@@ -575,7 +659,7 @@ public class Authenticate extends AppCompatActivity
     {
 	boolean isAuthenticated = State.getInstance().isAuthenticated();
 
-	if(!m_databaseHelper.accountPrepared())
+	if(!m_repository.accountPrepared())
 	    /*
 	    ** The database may have been modified or removed.
 	    */
@@ -62,8 +62,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Locale;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 public class Chat extends AppCompatActivity
@@ -71,6 +69,7 @@ public class Chat extends AppCompatActivity
     private final SimpleDateFormat m_simpleDateFormat = new
 	SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault());
     private Database m_databaseHelper = null;
+    private Repository m_repository = null;
 
     private class ChatBroadcastReceiver extends BroadcastReceiver
     {
@@ -123,8 +122,8 @@ public class Chat extends AppCompatActivity
     }
 
     private ChatBroadcastReceiver m_receiver = null;
-    private ScheduledExecutorService m_connectionStatusScheduler = null;
-    private ScheduledExecutorService m_statusScheduler = null;
+    private TimingWheel.Task m_connectionStatusScheduler = null;
+    private TimingWheel.Task m_statusScheduler = null;
     private boolean m_receiverRegistered = false;
     private final static Cryptography s_cryptography =
 	Cryptography.getInstance();
@@ -167,6 +166,42 @@ public class Chat extends AppCompatActivity
 	}
     }
 
+    private static String optionalSignatures(String options, boolean checked)
+    {
+	StringBuilder stringBuilder = new StringBuilder(options);
+	String strings[] = stringBuilder.toString().split(";");
+
+	if(strings == null || strings.length == 0)
+	{
+	    if(checked)
+		stringBuilder.append("optional_signatures = true");
+	    else
+		stringBuilder.append("optional_signatures = false");
+	}
+	else
+	{
+	    stringBuilder.setLength(0);
+
+	    for(int i = 0; i < strings.length; i++)
+		if(!(strings[i].equals("optional_signatures = false") ||
+		     strings[i].equals("optional_signatures = true")))
+		{
+		    stringBuilder.append(strings[i]);
+
+		    if(i != strings.length - 1)
+			stringBuilder.append(";");
+		}
+
+	    if(stringBuilder.length() > 0)
+		stringBuilder.append(";");
+
+	    stringBuilder.append("optional_signatures = ");
+	    stringBuilder.append(checked ? "true" : "false");
+	}
+
+	return stringBuilder.toString();
+    }
+
     private void appendMessage(String message,
 			       String name,
 			       String sipHashId,
@@ -251,7 +286,7 @@ public class Chat extends AppCompatActivity
 	    textView1.append("\n\n");
 	}
 
-	if(m_databaseHelper.readSetting(null, "show_chat_icons").equals("true"))
+	if(m_repository.readSetting(null, "show_chat_icons").equals("true"))
 	{
 	    CheckBox checkBox1 = findViewById
 		(R.id.participants).findViewWithTag(sipHashId);
@@ -416,8 +451,22 @@ public class Chat extends AppCompatActivity
 
     private void populateParticipants()
     {
-	ArrayList<ParticipantElement> arrayList =
-	    m_databaseHelper.readParticipants(s_cryptography, "");
+	m_repository.readParticipants
+	    (Chat.this,
+	     "",
+	     new Repository.Callback<ArrayList<ParticipantElement>> ()
+	     {
+		 @Override
+		 public void onResult(ArrayList<ParticipantElement> arrayList)
+		 {
+		     populateParticipants(arrayList);
+		 }
+	     });
+    }
+
+    private void populateParticipants
+	(ArrayList<ParticipantElement> arrayList)
+    {
 	Button button1 = (Button) findViewById(R.id.call);
 	Button button2 = (Button) findViewById(R.id.send_chat_message);
 	TableLayout tableLayout = (TableLayout) findViewById
@@ -435,9 +484,9 @@ public class Chat extends AppCompatActivity
 	tableLayout.removeAllViews();
 
 	StringBuilder stringBuilder = new StringBuilder();
-	boolean showDetails = m_databaseHelper.readSetting
+	boolean showDetails = m_repository.readSetting
 	    (null, "show_chat_details").equals("true");
-	boolean showIcons = m_databaseHelper.readSetting
+	boolean showIcons = m_repository.readSetting
 	    (null, "show_chat_icons").equals("true");
 	int i = 0;
 
@@ -654,26 +703,15 @@ public class Chat extends AppCompatActivity
         });
     }
 
-    private void refreshCheckBox(String sipHashId)
+    private void refreshCheckBox(ParticipantElement participantElement)
     {
 	CheckBox checkBox1 = findViewById(R.id.participants).findViewWithTag
-	    (sipHashId);
+	    (participantElement.m_sipHashId);
 
 	if(checkBox1 == null)
 	    return;
 
-	ArrayList<ParticipantElement> arrayList =
-	    m_databaseHelper.readParticipants(s_cryptography, sipHashId);
-
-	if(arrayList == null || arrayList.isEmpty())
-	    return;
-
-	ParticipantElement participantElement = arrayList.get(0);
-
-	if(participantElement == null)
-	    return;
-
-	if(m_databaseHelper.readSetting(null, "show_chat_details").
+	if(m_repository.readSetting(null, "show_chat_details").
 	   equals("true"))
 	{
 	    StringBuilder stringBuilder = new StringBuilder();
@@ -713,7 +751,7 @@ public class Chat extends AppCompatActivity
 	    checkBox1.setText(stringBuilder);
 	}
 
-	if(m_databaseHelper.readSetting(null, "show_chat_icons").equals("true"))
+	if(m_repository.readSetting(null, "show_chat_icons").equals("true"))
 	{
 	    if(participantElement.m_keyStream == null ||
 	       participantElement.m_keyStream.length != 96)
@@ -730,8 +768,33 @@ public class Chat extends AppCompatActivity
 
 	    checkBox1.setCompoundDrawablePadding(5);
 	}
+    }
 
-	arrayList.clear();
+    private void refreshCheckBox(String sipHashId)
+    {
+	/*
+	** The participants are read by the repository. An empty
+	** SipHash ID refreshes every participant.
+	*/
+
+	m_repository.readParticipants
+	    (Chat.this,
+	     sipHashId,
+	     new Repository.Callback<ArrayList<ParticipantElement>> ()
+	     {
+		 @Override
+		 public void onResult(ArrayList<ParticipantElement> arrayList)
+		 {
+		     if(arrayList == null)
+			 return;
+
+		     for(ParticipantElement participantElement : arrayList)
+			 if(participantElement != null)
+			     refreshCheckBox(participantElement);
+
+		     arrayList.clear();
+		 }
+	     });
     }
 
     private void requestMessages()
@@ -795,6 +858,25 @@ public class Chat extends AppCompatActivity
 	});
     }
 
+    private void setParticipantKeyStream(byte keyStream[],
+					 int oid,
+					 final String sipHashId)
+    {
+	m_repository.setParticipantKeyStream
+	    (Chat.this,
+	     keyStream,
+	     oid,
+	     new Repository.Callback<Boolean> ()
+	     {
+		 @Override
+		 public void onResult(Boolean ok)
+		 {
+		     if(ok != null && ok)
+			 refreshCheckBox(sipHashId);
+		 }
+	     });
+    }
+
     private void showMemberChatActivity()
     {
 	saveState();
@@ -809,9 +891,8 @@ public class Chat extends AppCompatActivity
     protected void onCreate(Bundle savedInstanceState)
     {
 	super.onCreate(savedInstanceState);
-	m_connectionStatusScheduler = Executors.
-	    newSingleThreadScheduledExecutor();
-	m_connectionStatusScheduler.scheduleAtFixedRate(new Runnable()
+	m_connectionStatusScheduler = TimingWheel.getInstance().
+	    scheduleAtFixedRate(new Runnable()
         {
 	    @Override
 	    public void run()
@@ -851,43 +932,21 @@ public class Chat extends AppCompatActivity
 	    }
 	}, 1500, CONNECTION_STATUS_INTERVAL, TimeUnit.MILLISECONDS);
 	m_databaseHelper = Database.getInstance(getApplicationContext());
+	m_repository = Repository.getInstance();
 	m_receiver = new ChatBroadcastReceiver();
-	m_statusScheduler = Executors.newSingleThreadScheduledExecutor();
-	m_statusScheduler.scheduleAtFixedRate(new Runnable()
+	m_statusScheduler = TimingWheel.getInstance().
+	    scheduleAtFixedRate(new Runnable()
         {
 	    @Override
 	    public void run()
 	    {
 		try
 		{
-		    if(!m_databaseHelper.readSetting(null, "show_chat_icons").
+		    if(!m_repository.readSetting(null, "show_chat_icons").
 		       equals("true"))
 			return;
 
-		    ArrayList<String> arrayList =
-			m_databaseHelper.readSipHashIdStrings(s_cryptography);
-
-		    if(arrayList == null || arrayList.isEmpty())
-			return;
-
-		    for(String string : arrayList)
-		    {
-			if(Thread.currentThread().isInterrupted())
-			    return;
-
-			final String sipHashId = string;
-
-			Chat.this.runOnUiThread(new Runnable()
-			{
-			    @Override
-			    public void run()
-			    {
-				refreshCheckBox(sipHashId);
-			    }
-		        });
-		    }
-
-		    arrayList.clear();
+		    refreshCheckBox("");
 		}
 		catch(Exception exception)
 		{
@@ -970,6 +1029,8 @@ public class Chat extends AppCompatActivity
 		    str += new String(a);
 		}
 
+		final String message = str;
+
 		for(int i = 0; i < tableLayout.getChildCount(); i++)
 		{
 		    TableRow row = (TableRow) tableLayout.getChildAt(i);
@@ -984,15 +1045,28 @@ public class Chat extends AppCompatActivity
 		       !checkBox1.isChecked())
 			continue;
 
-		    String sipHashId = checkBox1.getTag().toString();
-		    byte keyStream[] = m_databaseHelper.participantKeyStream
-			(s_cryptography, sipHashId);
-
-		    if(keyStream == null || keyStream.length != 96)
-			continue;
-
-		    Kernel.getInstance().enqueueChatMessage
-			(str, sipHashId, keyStream);
+		    final String sipHashId = checkBox1.getTag().toString();
+
+		    /*
+		    ** Key streams are decrypted by the repository.
+		    */
+
+		    m_repository.participantKeyStream
+			(null,
+			 sipHashId,
+			 new Repository.Callback<byte[]> ()
+			 {
+			     @Override
+			     public void onResult(byte keyStream[])
+			     {
+				 if(keyStream == null ||
+				    keyStream.length != 96)
+				     return;
+
+				 Kernel.getInstance().enqueueChatMessage
+				     (message, sipHashId, keyStream);
+			     }
+			 });
 		}
 
 		scrollMessagesView();
@@ -1088,11 +1162,8 @@ public class Chat extends AppCompatActivity
 					 1,
 					 96 * 8); // AES-256, SHA-512
 
-				if(m_databaseHelper.
-				   setParticipantKeyStream(s_cryptography,
-							   bytes,
-							   itemId))
-				    refreshCheckBox(sipHashId);
+				setParticipantKeyStream
+				    (bytes, itemId, sipHashId);
 			    }
 			    catch(Exception exception)
 			    {
@@ -1103,11 +1174,8 @@ public class Chat extends AppCompatActivity
 			case 3: // Purge Session
 			    if(State.getInstance().getString("dialog_accepted").
 			       equals("true"))
-				if(m_databaseHelper.
-				   setParticipantKeyStream(s_cryptography,
-							   null,
-							   itemId))
-				    refreshCheckBox(sipHashId);
+				setParticipantKeyStream
+				    (null, itemId, sipHashId);
 
 			    break;
 			}
@@ -1132,55 +1200,34 @@ public class Chat extends AppCompatActivity
 		    ("member_chat_oid", String.valueOf(itemId));
 		State.getInstance().setString
 		    ("member_chat_siphash_id", sipHashId);
-		m_databaseHelper.writeSetting
+		m_repository.writeSetting
 		    (null, "lastActivity", "MemberChat");
-		m_databaseHelper.writeSetting
+		m_repository.writeSetting
 		    (s_cryptography, "member_chat_oid", String.valueOf(itemId));
-		m_databaseHelper.writeSetting
+		m_repository.writeSetting
 		    (s_cryptography, "member_chat_siphash_id", sipHashId);
 		showMemberChatActivity();
 		break;
 	    case 2:
 		menuItem.setChecked(!menuItem.isChecked());
+		final boolean checked = menuItem.isChecked();
 
-		String strings[] = null;
-		StringBuilder stringBuilder = new StringBuilder
-		    (m_databaseHelper.
-		     readParticipantOptions(s_cryptography, sipHashId));
-
-		strings = stringBuilder.toString().split(";");
-
-		if(strings == null || strings.length == 0)
-		{
-		    if(menuItem.isChecked())
-			stringBuilder.append("optional_signatures = true");
-		    else
-			stringBuilder.append("optional_signatures = false");
-		}
-		else
-		{
-		    stringBuilder.setLength(0);
-
-		    for(int i = 0; i < strings.length; i++)
-			if(!(strings[i].equals("optional_signatures = false") ||
-			     strings[i].equals("optional_signatures = true")))
-			{
-			    stringBuilder.append(strings[i]);
-
-			    if(i != strings.length - 1)
-				stringBuilder.append(";");
-			}
-
-		    if(stringBuilder.length() > 0)
-			stringBuilder.append(";");
-
-		    stringBuilder.append("optional_signatures = ");
-		    stringBuilder.append
-			(menuItem.isChecked() ? "true" : "false");
-		}
-
-		m_databaseHelper.writeParticipantOptions
-		    (s_cryptography, stringBuilder.toString(), sipHashId);
+		m_repository.readParticipantOptions
+		    (null,
+		     sipHashId,
+		     new Repository.Callback<String> ()
+		     {
+			 @Override
+			 public void onResult(String options)
+			 {
+			     if(options == null)
+				 return;
+
+			     m_repository.writeParticipantOptions
+				 (optionalSignatures(options, checked),
+				  sipHashId);
+			 }
+		     });
 		break;
 	    case 3:
 		Miscellaneous.showPromptDialog
@@ -1205,7 +1252,7 @@ public class Chat extends AppCompatActivity
 		break;
 	    case 2: // Show Details
 		menuItem.setChecked(!menuItem.isChecked());
-		m_databaseHelper.writeSetting
+		m_repository.writeSetting
 		    (null,
 		     "show_chat_details",
 		     menuItem.isChecked() ? "true" : "false");
@@ -1213,7 +1260,7 @@ public class Chat extends AppCompatActivity
 		break;
 	    case 3: // Show Icons
 		menuItem.setChecked(!menuItem.isChecked());
-		m_databaseHelper.writeSetting
+		m_repository.writeSetting
 		    (null,
 		     "show_chat_icons",
 		     menuItem.isChecked() ? "true" : "false");
@@ -1272,11 +1319,23 @@ public class Chat extends AppCompatActivity
 			       replace(":", ""), '-', 4).
 		 toUpperCase() +
 		 ")").setCheckable(true);
-	    menuItem.setChecked
-		(m_databaseHelper.
-		 readParticipantOptions(s_cryptography, view.getTag().
-					toString()).
-		 contains("optional_signatures = true"));
+
+	    final MenuItem item = menuItem;
+
+	    m_repository.readParticipantOptions
+		(Chat.this,
+		 view.getTag().toString(),
+		 new Repository.Callback<String> ()
+		 {
+		     @Override
+		     public void onResult(String options)
+		     {
+			 if(options != null)
+			     item.setChecked
+				 (options.
+				  contains("optional_signatures = true"));
+		     }
+		 });
 	    menu.add
 		(3,
 		 view.getId(),
@@ -1293,15 +1352,15 @@ public class Chat extends AppCompatActivity
 	menuItem = menu.add(1, -1, 0, "Retrieve Messages");
 	menuItem.setEnabled
 	    (Kernel.getInstance().isConnected() &&
-	     !m_databaseHelper.readSetting(s_cryptography, "ozone_address").
+	     !m_repository.readSetting(s_cryptography, "ozone_address").
 	     isEmpty());
 	menuItem = menu.add(2, -1, 0, "Show Details").setCheckable(true);
 	menuItem.setChecked
-	    (m_databaseHelper.
+	    (m_repository.
 	     readSetting(null, "show_chat_details").equals("true"));
 	menuItem = menu.add(3, -1, 0, "Show Icons").setCheckable(true);
 	menuItem.setChecked
-	    (m_databaseHelper.
+	    (m_repository.
 	     readSetting(null, "show_chat_icons").equals("true"));
     }
 
@@ -1316,7 +1375,7 @@ public class Chat extends AppCompatActivity
 	    if(itemId == R.id.action_fire)
 	    {
 		saveState();
-		m_databaseHelper.writeSetting(null, "lastActivity", "Fire");
+		m_repository.writeSetting(null, "lastActivity", "Fire");
 
 		Intent intent = new Intent(Chat.this, Fire.class);
 
@@ -1327,7 +1386,7 @@ public class Chat extends AppCompatActivity
 	    else if(itemId == R.id.action_settings)
 	    {
 		saveState();
-		m_databaseHelper.writeSetting(null, "lastActivity", "Settings");
+		m_repository.writeSetting(null, "lastActivity", "Settings");
 
 		Intent intent = new Intent(Chat.this, Settings.class);
 
@@ -1351,11 +1410,11 @@ public class Chat extends AppCompatActivity
 		("member_chat_oid", String.valueOf(itemId));
 	    State.getInstance().setString
 		("member_chat_siphash_id", sipHashId);
-	    m_databaseHelper.writeSetting
+	    m_repository.writeSetting
 		(null, "lastActivity", "MemberChat");
-	    m_databaseHelper.writeSetting
+	    m_repository.writeSetting
 		(s_cryptography, "member_chat_oid", String.valueOf(itemId));
-	    m_databaseHelper.writeSetting
+	    m_repository.writeSetting
 		(s_cryptography, "member_chat_siphash_id", sipHashId);
 	    showMemberChatActivity();
 	}
@@ -1368,7 +1427,7 @@ public class Chat extends AppCompatActivity
     {
 	boolean isAuthenticated = State.getInstance().isAuthenticated();
 
-	if(!m_databaseHelper.accountPrepared())
+	if(!m_repository.accountPrepared())
 	    /*
 	    ** The database may have been modified or removed.
 	    */
@@ -0,0 +1,235 @@
+/*
+** Copyright (c) Alexis Megas.
+** All rights reserved.
+**
+** Redistribution and use in source and binary forms, with or without
+** modification, are permitted provided that the following conditions
+** are met:
+** 1. Redistributions of source code must retain the above copyright
+**    notice, this list of conditions and the following disclaimer.
+** 2. Redistributions in binary form must reproduce the above copyright
+**    notice, this list of conditions and the following disclaimer in the
+**    documentation and/or other materials provided with the distribution.
+** 3. The name of the author may not be used to endorse or promote products
+**    derived from Smoke without specific prior written permission.
+**
+** SMOKE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+** IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+** OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+** IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+** INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+** NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+** DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+** THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+** (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+** SMOKE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package org.purple.smoke;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+** Per-thread caches of Cipher and Mac objects. A Mac is stored
+** already initialized with its key. A Cipher only saves the provider
+** lookup, since every use needs a fresh IV. Mac and Cipher objects
+** are not thread-safe, so each thread keeps its own. Nothing is
+** shared between threads except the counters and the generation.
+*/
+
+public class CipherPool
+{
+    private static class MacEntry
+    {
+	public Mac m_mac = null;
+	public SecretKey m_secretKey = null;
+	public String m_algorithm = "";
+	public byte m_keyBytes[] = null;
+	public long m_used = 0;
+    }
+
+    private static class Slots
+    {
+	public HashMap<String, Cipher> m_ciphers = new HashMap<> ();
+	public MacEntry m_macs[] = new MacEntry[MAXIMUM_MACS];
+	public long m_clock = 0;
+	public long m_generation = 0;
+
+	public void clear()
+	{
+	    m_ciphers.clear();
+
+	    for(int i = 0; i < m_macs.length; i++)
+		if(m_macs[i] != null)
+		{
+		    if(m_macs[i].m_keyBytes != null)
+			Arrays.fill(m_macs[i].m_keyBytes, (byte) 0);
+
+		    m_macs[i] = null;
+		}
+
+	    m_generation = s_generation.get();
+	}
+    }
+
+    private final static AtomicLong s_generation = new AtomicLong(0);
+    private final static AtomicLong s_hits = new AtomicLong(0);
+    private final static AtomicLong s_misses = new AtomicLong(0);
+    private final static ThreadLocal<Slots> s_slots =
+	new ThreadLocal<Slots> ()
+	{
+	    @Override
+	    protected Slots initialValue()
+	    {
+		return new Slots();
+	    }
+	};
+    private final static int MAXIMUM_MACS = 8;
+
+    private CipherPool()
+    {
+    }
+
+    private static Mac mac(String algorithm,
+			   SecretKey secretKey,
+			   String keyAlgorithm,
+			   byte keyBytes[]) throws Exception
+    {
+	/*
+	** Instance keys are matched by identity, raw keys by content.
+	*/
+
+	Slots slots = slots();
+	int lru = 0;
+
+	for(int i = 0; i < slots.m_macs.length; i++)
+	{
+	    MacEntry entry = slots.m_macs[i];
+
+	    if(entry == null)
+	    {
+		lru = i;
+		break;
+	    }
+
+	    if(entry.m_algorithm.equals(algorithm) &&
+	       (secretKey != null ?
+		entry.m_secretKey == secretKey :
+		Arrays.equals(entry.m_keyBytes, keyBytes)))
+	    {
+		entry.m_mac.reset();
+		entry.m_used = ++slots.m_clock;
+		s_hits.getAndIncrement();
+		return entry.m_mac;
+	    }
+
+	    if(slots.m_macs[lru] != null &&
+	       entry.m_used < slots.m_macs[lru].m_used)
+		lru = i;
+	}
+
+	s_misses.getAndIncrement();
+
+	MacEntry entry = new MacEntry();
+
+	entry.m_algorithm = algorithm;
+	entry.m_mac = Mac.getInstance(algorithm);
+
+	if(secretKey != null)
+	{
+	    entry.m_mac.init(secretKey);
+	    entry.m_secretKey = secretKey;
+	}
+	else
+	{
+	    entry.m_keyBytes = Arrays.copyOf(keyBytes, keyBytes.length);
+	    entry.m_mac.init(new SecretKeySpec(keyBytes, keyAlgorithm));
+	}
+
+	if(slots.m_macs[lru] != null &&
+	   slots.m_macs[lru].m_keyBytes != null)
+	    Arrays.fill(slots.m_macs[lru].m_keyBytes, (byte) 0);
+
+	entry.m_used = ++slots.m_clock;
+	slots.m_macs[lru] = entry;
+	return entry.m_mac;
+    }
+
+    private static Slots slots()
+    {
+	Slots slots = s_slots.get();
+
+	if(slots.m_generation != s_generation.get())
+	    slots.clear();
+
+	return slots;
+    }
+
+    public static Cipher cipher(String transformation) throws Exception
+    {
+	/*
+	** The caller must initialize the returned Cipher.
+	*/
+
+	Slots slots = slots();
+	Cipher cipher = slots.m_ciphers.get(transformation);
+
+	if(cipher != null)
+	{
+	    s_hits.getAndIncrement();
+	    return cipher;
+	}
+
+	s_misses.getAndIncrement();
+	cipher = Cipher.getInstance(transformation);
+	slots.m_ciphers.put(transformation, cipher);
+	return cipher;
+    }
+
+    public static Mac mac(String algorithm, SecretKey secretKey)
+	throws Exception
+    {
+	return mac(algorithm, secretKey, "", null);
+    }
+
+    public static Mac mac(String algorithm,
+			  String keyAlgorithm,
+			  byte keyBytes[]) throws Exception
+    {
+	return mac(algorithm, null, keyAlgorithm, keyBytes);
+    }
+
+    public static double hitRatio()
+    {
+	long hits = s_hits.get();
+	long total = hits + s_misses.get();
+
+	return total == 0 ? 0.0 : (double) hits / (double) total;
+    }
+
+    public static long hits()
+    {
+	return s_hits.get();
+    }
+
+    public static long misses()
+    {
+	return s_misses.get();
+    }
+
+    public static void invalidate()
+    {
+	/*
+	** Every thread discards its objects on its next request.
+	*/
+
+	s_generation.getAndIncrement();
+    }
+}
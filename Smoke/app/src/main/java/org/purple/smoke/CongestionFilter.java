@@ -0,0 +1,244 @@
+/*
+** Copyright (c) Alexis Megas.
+** All rights reserved.
+**
+** Redistribution and use in source and binary forms, with or without
+** modification, are permitted provided that the following conditions
+** are met:
+** 1. Redistributions of source code must retain the above copyright
+**    notice, this list of conditions and the following disclaimer.
+** 2. Redistributions in binary form must reproduce the above copyright
+**    notice, this list of conditions and the following disclaimer in the
+**    documentation and/or other materials provided with the distribution.
+** 3. The name of the author may not be used to endorse or promote products
+**    derived from Smoke without specific prior written permission.
+**
+** SMOKE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+** IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+** OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+** IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+** INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+** NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+** DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+** THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+** (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+** SMOKE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package org.purple.smoke;
+
+import java.util.Arrays;
+
+public class CongestionFilter
+{
+    /*
+    ** A set of congestion digests divided into generations of time.
+    ** A digest is present if any generation contains it. Generations
+    ** are recycled as they expire. Digests are distributed among
+    ** stripes so that insertions rarely contend.
+    */
+
+    private class Stripe
+    {
+	private boolean m_containsZero[] = null;
+	private int m_current = 0;
+	private int m_sizes[] = null;
+	private long m_generationTime = 0;
+	private long m_tables[][] = null;
+
+	private Stripe()
+	{
+	    m_containsZero = new boolean[GENERATIONS];
+	    m_generationTime = System.nanoTime();
+	    m_sizes = new int[GENERATIONS];
+	    m_tables = new long[GENERATIONS][INITIAL_CAPACITY];
+	}
+
+	private boolean contains(int generation, long value)
+	{
+	    if(value == 0)
+		return m_containsZero[generation];
+
+	    long table[] = m_tables[generation];
+	    int mask = table.length - 1;
+
+	    for(int i = index(value, mask); ; i = (i + 1) & mask)
+		if(table[i] == 0)
+		    return false;
+		else if(table[i] == value)
+		    return true;
+	}
+
+	private void insert(long value)
+	{
+	    if(value == 0)
+	    {
+		m_containsZero[m_current] = true;
+		return;
+	    }
+
+	    if(2 * (m_sizes[m_current] + 1) > m_tables[m_current].length)
+	    {
+		/*
+		** Maintain a load factor of at most one half.
+		*/
+
+		long table[] = m_tables[m_current];
+
+		m_tables[m_current] = new long[2 * table.length];
+
+		for(long v : table)
+		    if(v != 0)
+			put(m_tables[m_current], v);
+	    }
+
+	    put(m_tables[m_current], value);
+	    m_sizes[m_current] += 1;
+	}
+
+	private void rotate()
+	{
+	    long now = System.nanoTime();
+
+	    while(now - m_generationTime >= m_generationInterval)
+	    {
+		m_current = (m_current + 1) % GENERATIONS;
+		m_containsZero[m_current] = false;
+		m_generationTime += m_generationInterval;
+		m_sizes[m_current] = 0;
+
+		if(m_tables[m_current].length > INITIAL_CAPACITY)
+		    m_tables[m_current] = new long[INITIAL_CAPACITY];
+		else
+		    Arrays.fill(m_tables[m_current], 0);
+
+		if(now - m_generationTime >=
+		   GENERATIONS * m_generationInterval)
+		    m_generationTime = now - m_generationInterval;
+	    }
+	}
+
+	public synchronized boolean add(long value)
+	{
+	    rotate();
+
+	    for(int i = 0; i < GENERATIONS; i++)
+		if(contains(i, value))
+		    return false;
+
+	    insert(value);
+	    return true;
+	}
+
+	public synchronized boolean contains(long value)
+	{
+	    rotate();
+
+	    for(int i = 0; i < GENERATIONS; i++)
+		if(contains(i, value))
+		    return true;
+
+	    return false;
+	}
+    }
+
+    private Stripe m_stripes[] = null;
+    private volatile boolean m_persistent = false;
+    private final Object m_pendingMutex = new Object();
+    private final static int GENERATIONS = 4;
+    private final static int INITIAL_CAPACITY = 256;
+    private final static int MAXIMUM_PENDING = 65536;
+    private final static int STRIPES = 16;
+    private int m_pendingCount = 0;
+    private long m_generationInterval = 0;
+    private long m_pending[] = null;
+
+    private static int index(long value, int mask)
+    {
+	/*
+	** The digests are SipHash values. Mix them anyway.
+	*/
+
+	value ^= value >>> 33;
+	value *= 0xff51afd7ed558ccdL;
+	value ^= value >>> 33;
+	return (int) value & mask;
+    }
+
+    private static void put(long table[], long value)
+    {
+	int mask = table.length - 1;
+	int i = index(value, mask);
+
+	while(table[i] != 0)
+	    i = (i + 1) & mask;
+
+	table[i] = value;
+    }
+
+    public CongestionFilter(int lifetime)
+    {
+	/*
+	** A digest survives for at least lifetime seconds.
+	*/
+
+	m_generationInterval = 1000000000L * Math.max(1, lifetime) /
+	    (GENERATIONS - 1);
+	m_pending = new long[0];
+	m_stripes = new Stripe[STRIPES];
+
+	for(int i = 0; i < m_stripes.length; i++)
+	    m_stripes[i] = new Stripe();
+    }
+
+    public boolean add(long value)
+    {
+	/*
+	** Returns true if the value was not present.
+	*/
+
+	if(!m_stripes[(int) (value >>> 60) & (STRIPES - 1)].add(value))
+	    return false;
+
+	if(m_persistent)
+	    synchronized(m_pendingMutex)
+	    {
+		if(m_pendingCount < m_pending.length)
+		    m_pending[m_pendingCount++] = value;
+	    }
+
+	return true;
+    }
+
+    public boolean contains(long value)
+    {
+	return m_stripes[(int) (value >>> 60) & (STRIPES - 1)].
+	    contains(value);
+    }
+
+    public long[] drainPending()
+    {
+	/*
+	** Digests which have not been persisted.
+	*/
+
+	synchronized(m_pendingMutex)
+	{
+	    long pending[] = Arrays.copyOf(m_pending, m_pendingCount);
+
+	    m_pendingCount = 0;
+	    return pending;
+	}
+    }
+
+    public void setPersistent(boolean persistent)
+    {
+	synchronized(m_pendingMutex)
+	{
+	    m_pending = new long[persistent ? MAXIMUM_PENDING : 0];
+	    m_pendingCount = 0;
+	    m_persistent = persistent;
+	}
+    }
+}
@@ -52,6 +52,7 @@ import javax.crypto.KeyGenerator;
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -101,6 +102,8 @@ public class Cryptography
     private final ReentrantReadWriteLock m_sipHashMacKeyMutex =
 	new ReentrantReadWriteLock();
     private final static String FIRE_HASH_ALGORITHM = "SHA-384";
+    private final static String AEAD_CIPHER_TRANSFORMATION =
+	"AES/GCM/NoPadding";
     private final static String FIRE_HMAC_ALGORITHM = "HmacSHA384";
     private final static String FIRE_SYMMETRIC_ALGORITHM = "AES";
     private final static String FIRE_SYMMETRIC_CIPHER_TRANSFORMATION =
@@ -120,6 +123,9 @@ public class Cryptography
     private final static String SYMMETRIC_ALGORITHM = "AES";
     private final static String SYMMETRIC_CIPHER_TRANSFORMATION =
 	"AES/CBC/PKCS7Padding";
+    private final static byte AT_REST_FORMAT_AEAD = 1;
+    private final static int AEAD_NONCE_LENGTH = 12;
+    private final static int AEAD_TAG_LENGTH = 128; // Bits
     private final static int FIRE_STREAM_CREATION_ITERATION_COUNT = 10000;
     private final static int MCELIECE_M = 11;
     private final static int MCELIECE_T = 50;
@@ -390,30 +396,27 @@ public class Cryptography
     {
 	try
 	{
+	    String sipHashId = null;
 	    byte bytes[] = null;
-	    byte salt[] = null;
-	    byte temporary[] = null;
 
 	    m_sipHashIdMutex.readLock().lock();
 
 	    try
 	    {
-		salt = sha512(m_sipHashId.getBytes("UTF-8"));
-		temporary = pbkdf2(salt,
-				   m_sipHashId.toCharArray(),
-				   SIPHASH_STREAM_CREATION_ITERATION_COUNT,
-				   160); // SHA-1
+		sipHashId = m_sipHashId;
 	    }
 	    finally
 	    {
 		m_sipHashIdMutex.readLock().unlock();
 	    }
 
-	    if(temporary != null)
-		bytes = pbkdf2(salt,
-			       new String(temporary).toCharArray(),
-			       1,
-			       768); // 8 * (32 + 64) Bits
+	    /*
+	    ** The derivation is completed without the lock.
+	    */
+
+	    if(sipHashId != null)
+		bytes = KeyDerivationService.getInstance().
+		    sipHashStream(this, sipHashId);
 
 	    if(bytes != null)
 	    {
@@ -438,6 +441,8 @@ public class Cryptography
 		{
 		    m_sipHashMacKeyMutex.writeLock().unlock();
 		}
+
+		CipherPool.invalidate();
 	    }
 	    else
 		return false;
@@ -490,12 +495,11 @@ public class Cryptography
 		    (m_sipHashEncryptionKey, SYMMETRIC_ALGORITHM);
 		byte iv[] = Arrays.copyOf(data, 16);
 
-		cipher = Cipher.getInstance(SYMMETRIC_CIPHER_TRANSFORMATION);
+		cipher = CipherPool.cipher(SYMMETRIC_CIPHER_TRANSFORMATION);
 		cipher.init(Cipher.DECRYPT_MODE,
 			    secretKey,
 			    new IvParameterSpec(iv));
-		bytes = cipher.doFinal
-		    (Arrays.copyOfRange(data, 16, data.length));
+		bytes = cipher.doFinal(data, 16, data.length - 16);
 	    }
 	    finally
 	    {
@@ -510,7 +514,75 @@ public class Cryptography
 	return bytes;
     }
 
-    public byte[] etm(byte data[]) // Encrypt-Then-MAC
+    private byte[] aeadDecrypt(byte data[])
+    {
+	if(!isAead(data))
+	    return null;
+
+	m_encryptionKeyMutex.readLock().lock();
+
+	try
+	{
+	    if(m_encryptionKey == null)
+		return null;
+
+	    Cipher cipher = CipherPool.cipher(AEAD_CIPHER_TRANSFORMATION);
+
+	    cipher.init(Cipher.DECRYPT_MODE,
+			m_encryptionKey,
+			new GCMParameterSpec(AEAD_TAG_LENGTH,
+					     data,
+					     1,
+					     AEAD_NONCE_LENGTH));
+	    cipher.updateAAD(data, 0, 1);
+	    return cipher.doFinal
+		(data, 1 + AEAD_NONCE_LENGTH, data.length - 1 -
+		 AEAD_NONCE_LENGTH);
+	}
+	catch(Exception exception)
+	{
+	    return null;
+	}
+	finally
+	{
+	    m_encryptionKeyMutex.readLock().unlock();
+	}
+    }
+
+    private byte[] aeadEncrypt(byte data[])
+    {
+	prepareSecureRandom();
+	m_encryptionKeyMutex.readLock().lock();
+
+	try
+	{
+	    if(m_encryptionKey == null)
+		return null;
+
+	    Cipher cipher = CipherPool.cipher(AEAD_CIPHER_TRANSFORMATION);
+	    byte bytes[] = null;
+	    byte format[] = new byte[] {AT_REST_FORMAT_AEAD};
+	    byte nonce[] = new byte[AEAD_NONCE_LENGTH];
+
+	    s_secureRandom.nextBytes(nonce);
+	    cipher.init(Cipher.ENCRYPT_MODE,
+			m_encryptionKey,
+			new GCMParameterSpec(AEAD_TAG_LENGTH, nonce));
+	    cipher.updateAAD(format);
+	    bytes = cipher.doFinal(data);
+	    return Miscellaneous.joinByteArrays(format, nonce, bytes);
+	}
+	catch(Exception exception)
+	{
+	    return null;
+	}
+	finally
+	{
+	    m_encryptionKeyMutex.readLock().unlock();
+	}
+    }
+
+    private byte[] etmLegacy(byte data[])
     {
 	/*
 	** Encrypt-then-MAC.
@@ -559,7 +631,7 @@ public class Cryptography
 		Cipher cipher = null;
 		byte iv[] = new byte[16];
 
-		cipher = Cipher.getInstance(SYMMETRIC_CIPHER_TRANSFORMATION);
+		cipher = CipherPool.cipher(SYMMETRIC_CIPHER_TRANSFORMATION);
 		s_secureRandom.nextBytes(iv);
 		cipher.init(Cipher.ENCRYPT_MODE,
 			    m_encryptionKey,
@@ -581,8 +653,7 @@ public class Cryptography
 
 		Mac mac = null;
 
-		mac = Mac.getInstance(HMAC_ALGORITHM);
-		mac.init(m_macKey);
+		mac = CipherPool.mac(HMAC_ALGORITHM, m_macKey);
 		bytes = Miscellaneous.joinByteArrays(bytes, mac.doFinal(bytes));
 	    }
 	    finally
@@ -598,6 +669,26 @@ public class Cryptography
 	return bytes;
     }
 
+    public byte[] etm(byte data[])
+    {
+	/*
+	** At-rest format. New values are written as
+	** format (1) || nonce (12) || AES-GCM ciphertext || tag (16).
+	** The format byte is authenticated. If AES-GCM is not
+	** available, the legacy encrypt-then-MAC format is written.
+	*/
+
+	if(data == null || data.length < 0)
+	    return null;
+
+	byte bytes[] = aeadEncrypt(data);
+
+	if(bytes == null)
+	    bytes = etmLegacy(data);
+
+	return bytes;
+    }
+
     public byte[] generateFireDigestKeyStream(String digest)
     {
 	byte salt[] = null;
@@ -622,8 +713,9 @@ public class Cryptography
 
 	try
 	{
-	    stream = pbkdf2
-		(salt,
+	    stream = KeyDerivationService.getInstance().derive
+		(this,
+		 salt,
 		 new String(digest.getBytes("UTF-8")).toCharArray(),
 		 FIRE_STREAM_CREATION_ITERATION_COUNT,
 		 896);
@@ -690,8 +782,9 @@ public class Cryptography
 
 	try
 	{
-	    key = pbkdf2
-		(s,
+	    key = KeyDerivationService.getInstance().derive
+		(this,
+		 s,
 		 new String(new String(Miscellaneous.
 				       joinByteArrays(c, aes256, sha384)).
 			    getBytes("UTF-8")).toCharArray(),
@@ -727,8 +820,7 @@ public class Cryptography
 	    {
 		Mac mac = null;
 
-		mac = Mac.getInstance(HMAC_ALGORITHM);
-		mac.init(m_macKey);
+		mac = CipherPool.mac(HMAC_ALGORITHM, m_macKey);
 		bytes = mac.doFinal(data);
 	    }
 	    catch(Exception exception)
@@ -765,7 +857,7 @@ public class Cryptography
 	}
     }
 
-    public byte[] mtd(byte data[]) // MAC-Then-Decrypt
+    private byte[] mtdLegacy(byte data[])
     {
 	/*
 	** MAC-then-decrypt.
@@ -818,10 +910,9 @@ public class Cryptography
 
 		Mac mac = null;
 
-		mac = Mac.getInstance(HMAC_ALGORITHM);
-		mac.init(m_macKey);
-		digest2 = mac.doFinal
-		    (Arrays.copyOf(data, data.length - 512 / 8));
+		mac = CipherPool.mac(HMAC_ALGORITHM, m_macKey);
+		mac.update(data, 0, data.length - 512 / 8);
+		digest2 = mac.doFinal();
 	    }
 	    finally
 	    {
@@ -850,12 +941,12 @@ public class Cryptography
 		Cipher cipher = null;
 		byte iv[] = Arrays.copyOf(data, 16);
 
-		cipher = Cipher.getInstance(SYMMETRIC_CIPHER_TRANSFORMATION);
+		cipher = CipherPool.cipher(SYMMETRIC_CIPHER_TRANSFORMATION);
 		cipher.init(Cipher.DECRYPT_MODE,
 			    m_encryptionKey,
 			    new IvParameterSpec(iv));
 		bytes = cipher.doFinal
-		    (Arrays.copyOfRange(data, 16, data.length - 512 / 8));
+		    (data, 16, data.length - 16 - 512 / 8);
 	    }
 	    finally
 	    {
@@ -870,6 +961,25 @@ public class Cryptography
 	return bytes;
     }
 
+    public byte[] mtd(byte data[])
+    {
+	/*
+	** Reads both at-rest formats. A legacy value may begin
+	** with the format byte of the AEAD format. Such a value
+	** fails authentication and is then read as a legacy value.
+	*/
+
+	if(data == null || data.length < 0)
+	    return null;
+
+	byte bytes[] = aeadDecrypt(data);
+
+	if(bytes == null)
+	    bytes = mtdLegacy(data);
+
+	return bytes;
+    }
+
     public byte[] ozoneEncryptionKey()
     {
 	m_ozoneEncryptionKeyMutex.readLock().lock();
@@ -1256,6 +1366,13 @@ public class Cryptography
 	    return fingerPrint(publicKey.getEncoded());
     }
 
+    public static boolean isAead(byte data[])
+    {
+	return data != null &&
+	    data.length >= 1 + AEAD_NONCE_LENGTH + AEAD_TAG_LENGTH / 8 &&
+	    data[0] == AT_REST_FORMAT_AEAD;
+    }
+
     public static boolean memcmp(byte a[], byte b[])
     {
 	if(a == null || a.length < 0 || b == null || b.length < 0)
@@ -1336,12 +1453,11 @@ public class Cryptography
 		(keyBytes, SYMMETRIC_ALGORITHM);
 	    byte iv[] = Arrays.copyOf(data, 16);
 
-	    cipher = Cipher.getInstance(SYMMETRIC_CIPHER_TRANSFORMATION);
+	    cipher = CipherPool.cipher(SYMMETRIC_CIPHER_TRANSFORMATION);
 	    cipher.init(Cipher.DECRYPT_MODE,
 			secretKey,
 			new IvParameterSpec(iv));
-	    bytes = cipher.doFinal
-		(Arrays.copyOfRange(data, 16, data.length));
+	    bytes = cipher.doFinal(data, 16, data.length - 16);
 	}
 	catch(Exception exception)
 	{
@@ -1368,12 +1484,11 @@ public class Cryptography
 		(keyBytes, FIRE_SYMMETRIC_ALGORITHM);
 	    byte iv[] = Arrays.copyOf(data, 16);
 
-	    cipher = Cipher.getInstance(FIRE_SYMMETRIC_CIPHER_TRANSFORMATION);
+	    cipher = CipherPool.cipher(FIRE_SYMMETRIC_CIPHER_TRANSFORMATION);
 	    cipher.init(Cipher.DECRYPT_MODE,
 			secretKey,
 			new IvParameterSpec(iv));
-	    bytes = cipher.doFinal
-		(Arrays.copyOfRange(data, 16, data.length));
+	    bytes = cipher.doFinal(data, 16, data.length - 16);
 	}
 	catch(Exception exception)
 	{
@@ -1402,7 +1517,7 @@ public class Cryptography
 		(keyBytes, SYMMETRIC_ALGORITHM);
 	    byte iv[] = new byte[16];
 
-	    cipher = Cipher.getInstance(SYMMETRIC_CIPHER_TRANSFORMATION);
+	    cipher = CipherPool.cipher(SYMMETRIC_CIPHER_TRANSFORMATION);
 	    s_secureRandom.nextBytes(iv);
 	    cipher.init(Cipher.ENCRYPT_MODE,
 			secretKey,
@@ -1437,7 +1552,7 @@ public class Cryptography
 		(keyBytes, FIRE_SYMMETRIC_ALGORITHM);
 	    byte iv[] = new byte[16];
 
-	    cipher = Cipher.getInstance(FIRE_SYMMETRIC_CIPHER_TRANSFORMATION);
+	    cipher = CipherPool.cipher(FIRE_SYMMETRIC_CIPHER_TRANSFORMATION);
 	    s_secureRandom.nextBytes(iv);
 	    cipher.init(Cipher.ENCRYPT_MODE,
 			secretKey,
@@ -1484,11 +1599,9 @@ public class Cryptography
 
 	try
 	{
-	    Mac mac = null;
-	    SecretKey key = new SecretKeySpec(keyBytes, HASH_ALGORITHM);
+	    Mac mac = CipherPool.mac
+		(HMAC_ALGORITHM, HASH_ALGORITHM, keyBytes);
 
-	    mac = Mac.getInstance(HMAC_ALGORITHM);
-	    mac.init(key);
 	    bytes = mac.doFinal(data);
 	}
 	catch(Exception exception)
@@ -1499,6 +1612,52 @@ public class Cryptography
 	return bytes;
     }
 
+    public static Mac chatMac(byte keyBytes[])
+    {
+	/*
+	** Returns a Mac which has been keyed for hmac(data, keyBytes).
+	*/
+
+	if(keyBytes == null || keyBytes.length < 0)
+	    return null;
+
+	try
+	{
+	    Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+
+	    mac.init(new SecretKeySpec(keyBytes, HASH_ALGORITHM));
+	    return mac;
+	}
+	catch(Exception exception)
+	{
+	}
+
+	return null;
+    }
+
+    public static Mac fireMac(byte keyBytes[])
+    {
+	/*
+	** Returns a Mac which has been keyed for Fire digests.
+	*/
+
+	if(keyBytes == null || keyBytes.length < 0)
+	    return null;
+
+	try
+	{
+	    Mac mac = Mac.getInstance(FIRE_HMAC_ALGORITHM);
+
+	    mac.init(new SecretKeySpec(keyBytes, FIRE_HASH_ALGORITHM));
+	    return mac;
+	}
+	catch(Exception exception)
+	{
+	}
+
+	return null;
+    }
+
     public static byte[] hmacFire(byte data[], byte keyBytes[])
     {
 	if(data == null ||
@@ -1511,11 +1670,9 @@ public class Cryptography
 
 	try
 	{
-	    Mac mac = null;
-	    SecretKey key = new SecretKeySpec(keyBytes, FIRE_HASH_ALGORITHM);
+	    Mac mac = CipherPool.mac
+		(FIRE_HMAC_ALGORITHM, FIRE_HASH_ALGORITHM, keyBytes);
 
-	    mac = Mac.getInstance(FIRE_HMAC_ALGORITHM);
-	    mac.init(key);
 	    bytes = mac.doFinal(data);
 	}
 	catch(Exception exception)
@@ -1687,7 +1844,12 @@ public class Cryptography
 
 	    if(bytes != null)
 	    {
-		byte key[] = keyForSipHash(bytes);
+		byte key[] = KeyDerivationService.getInstance().derive
+		    (this,
+		     sha512(bytes),
+		     Miscellaneous.byteArrayAsHexString(bytes).toCharArray(),
+		     SIPHASH_STREAM_CREATION_ITERATION_COUNT,
+		     8 * SipHash.KEY_LENGTH);
 
 		if(key == null || key.length < 0)
 		    return false;
@@ -1877,6 +2039,11 @@ public class Cryptography
 	{
 	    m_sipHashMacKeyMutex.writeLock().unlock();
 	}
+
+	CipherPool.invalidate();
+	KeyStreamRing.getInstance().invalidate();
+	ParticipantDirectory.getInstance().invalidate();
+	SettingsCache.getInstance().invalidateEncrypted();
     }
 
     public void setChatEncryptionPublicKeyPair(KeyPair keyPair)
@@ -1953,6 +2120,11 @@ public class Cryptography
 	{
 	    m_encryptionKeyMutex.writeLock().unlock();
 	}
+
+	CipherPool.invalidate();
+	KeyStreamRing.getInstance().invalidate();
+	ParticipantDirectory.getInstance().invalidate();
+	SettingsCache.getInstance().invalidateEncrypted();
     }
 
     public void setIdentity(byte identity[])
@@ -1981,6 +2153,11 @@ public class Cryptography
 	{
 	    m_macKeyMutex.writeLock().unlock();
 	}
+
+	CipherPool.invalidate();
+	KeyStreamRing.getInstance().invalidate();
+	ParticipantDirectory.getInstance().invalidate();
+	SettingsCache.getInstance().invalidateEncrypted();
     }
 
     public void setOzoneEncryptionKey(byte bytes[])
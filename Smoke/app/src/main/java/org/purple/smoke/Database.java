@@ -31,8 +31,13 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteProgram;
+import android.database.sqlite.SQLiteQuery;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Base64;
 import android.util.Patterns;
 import android.util.SparseArray;
@@ -44,12 +49,20 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.HashMap;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 
 public class Database extends SQLiteOpenHelper
 {
+    private DatabaseWriter m_writer = null;
+    private KeyStreamRing m_keyStreamRing = null;
+    private ParticipantDirectory m_participantDirectory = null;
     private SQLiteDatabase m_db = null;
+    private SettingsCache m_settingsCache = null;
+    private final Object m_writerMutex = new Object();
+    private int m_atRestMigrationTable = 0;
+    private long m_atRestMigrationOid = 0;
     private final static Comparator<FireElement>
 	s_readFiresComparator = new Comparator<FireElement> ()
 	{
@@ -132,10 +145,108 @@ public class Database extends SQLiteOpenHelper
 		return e1.m_sipHashId.compareTo(e2.m_sipHashId);
 	    }
 	};
-    private final static ReentrantReadWriteLock s_congestionControlMutex =
-	new ReentrantReadWriteLock();
+    private final static String AT_REST_COLUMNS[][] =
+    {
+	/*
+	** The table followed by its encrypted columns.
+	*/
+
+	{"derived_keys", "value"},
+	{"fire", "name", "stream"},
+	{"neighbors", "bytes_read", "bytes_written", "echo_queue_size",
+	 "ip_version", "last_error", "local_ip_address", "local_port",
+	 "proxy_ip_address", "proxy_port", "proxy_type",
+	 "remote_certificate", "remote_ip_address", "remote_port",
+	 "remote_scope_id", "session_cipher", "status", "status_control",
+	 "transport", "uptime"},
+	{"participants", "encryption_public_key", "identity", "keystream",
+	 "last_status_timestamp", "options", "signature_public_key",
+	 "siphash_id", "special_value_a", "special_value_b",
+	 "special_value_c", "special_value_d", "special_value_e"},
+	{"participants_keys", "keystream"},
+	{"participants_messages", "attachment", "from_smokestack", "message"},
+	{"settings", "name", "value"},
+	{"siphash_ids", "name", "siphash_id", "stream"}
+    };
+    private final static String DIGEST_COLUMNS[][] =
+    {
+	/*
+	** The table followed by its digest columns.
+	*/
+
+	{"congestion_control", "digest"},
+	{"derived_keys", "digest"},
+	{"fire", "name_digest", "stream_digest"},
+	{"neighbors", "local_ip_address_digest", "local_port_digest",
+	 "remote_ip_address_digest", "remote_port_digest",
+	 "transport_digest", "user_defined_digest"},
+	{"participants", "encryption_public_key_digest", "function_digest",
+	 "signature_public_key_digest", "siphash_id_digest"},
+	{"participants_keys", "keystream_digest", "siphash_id_digest"},
+	{"participants_messages", "message_digest", "siphash_id_digest"},
+	{"settings", "name_digest"},
+	{"siphash_ids", "siphash_id_digest"}
+    };
     private final static String DATABASE_NAME = "smoke.db";
-    private final static int DATABASE_VERSION = 1;
+    final static String HOT_QUERIES[] =
+    {
+	/*
+	** Statements which must not scan entire tables or sort with
+	** temporary trees. Verified by QueryPlanTest.
+	*/
+
+	"SELECT digest FROM congestion_control WHERE timestamp " +
+	"BETWEEN DATETIME('now', ?) AND DATETIME('now', ?)",
+	"DELETE FROM congestion_control WHERE " +
+	"timestamp < DATETIME('now', ?) OR timestamp > DATETIME('now', ?)",
+	"SELECT value FROM derived_keys WHERE digest = ?",
+	"SELECT keystream FROM participants WHERE siphash_id_digest = ?",
+	"SELECT EXISTS(SELECT 1 FROM participants WHERE " +
+	"signature_public_key_digest = ?)",
+	"SELECT keystream FROM participants_keys " +
+	"WHERE siphash_id_digest = " +
+	"(SELECT siphash_id_digest FROM participants WHERE " +
+	"encryption_public_key_digest = ?) ORDER BY timestamp DESC",
+	"DELETE FROM participants_keys WHERE " +
+	"timestamp < DATETIME('now', ?) OR timestamp > DATETIME('now', ?)",
+	"SELECT COUNT(*) FROM participants_messages " +
+	"WHERE siphash_id_digest = ?",
+	"SELECT from_smokestack, message, timestamp, oid " +
+	"FROM participants_messages WHERE siphash_id_digest = ? " +
+	"AND (timestamp > ? OR (timestamp = ? AND oid > ?)) " +
+	"ORDER BY timestamp, oid LIMIT ?",
+	"SELECT value FROM settings WHERE name_digest = ?",
+	"SELECT name FROM siphash_ids WHERE siphash_id_digest = ?"
+    };
+    private final static String INDEXES[] =
+    {
+	/*
+	** The name, the table, and the columns of each index.
+	*/
+
+	"congestion_control_timestamp ON congestion_control " +
+	"(timestamp, digest)",
+	"participants_keys_siphash_id_digest ON participants_keys " +
+	"(siphash_id_digest, timestamp)",
+	"participants_keys_timestamp ON participants_keys (timestamp)",
+	"participants_messages_timestamp ON participants_messages " +
+	"(siphash_id_digest, timestamp)",
+	"participants_signature_public_key_digest ON participants " +
+	"(signature_public_key_digest)",
+	"participants_siphash_id_digest ON participants (siphash_id_digest)"
+    };
+    private final static String OUTBOUND_MESSAGES_TABLE =
+	"CREATE TABLE IF NOT EXISTS outbound_messages (" +
+	"message BLOB NOT NULL, " +
+	"timestamp DATETIME DEFAULT CURRENT_TIMESTAMP)";
+    private final static String OUTBOUND_QUEUE_TABLE =
+	"CREATE TABLE IF NOT EXISTS outbound_queue (" +
+	"message_oid INTEGER NOT NULL, " +
+	"neighbor_oid INTEGER NOT NULL, " +
+	"PRIMARY KEY (neighbor_oid, message_oid))";
+    private final static int DATABASE_VERSION = 6;
+    private final static int WRITER_LATENCY = 5; // 5 Milliseconds
+    private final static int WRITER_MAXIMUM_ROWS = 128;
     private final static int WRITE_PARTICIPANT_TIME_DELTA = 60000; // 60 Seconds
     private static Database s_instance = null;
     public final static int SIPHASH_STREAM_CREATION_ITERATION_COUNT = 4096;
@@ -143,6 +254,635 @@ public class Database extends SQLiteOpenHelper
     private Database(Context context)
     {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+	m_keyStreamRing = KeyStreamRing.getInstance();
+	m_participantDirectory = ParticipantDirectory.getInstance();
+	m_settingsCache = SettingsCache.getInstance();
+    }
+
+    private ArrayList<ParticipantElement> participantsFromDirectory
+	(String sipHashId)
+    {
+	ArrayList<ParticipantDirectory.Entry> entries = null;
+
+	if(sipHashId.isEmpty())
+	    entries = m_participantDirectory.entries();
+	else
+	{
+	    ParticipantDirectory.Entry entry = m_participantDirectory.
+		findBySipHashId(sipHashId);
+
+	    entries = new ArrayList<> ();
+
+	    if(entry != null)
+		entries.add(entry);
+	}
+
+	if(entries.isEmpty())
+	    return null;
+
+	ArrayList<ParticipantElement> arrayList = new ArrayList<> ();
+
+	for(ParticipantDirectory.Entry entry : entries)
+	{
+	    if(entry.m_name == null)
+		/*
+		** A dangling participant.
+		*/
+
+		continue;
+
+	    ParticipantElement participantElement = new ParticipantElement();
+
+	    participantElement.m_keyStream = Miscellaneous.deepCopy
+		(entry.m_keyStream);
+	    participantElement.m_lastStatusTimestamp =
+		entry.m_lastStatusTimestamp;
+	    participantElement.m_name = entry.m_name;
+	    participantElement.m_oid = entry.m_oid;
+	    participantElement.m_sipHashId = entry.m_sipHashId;
+	    arrayList.add(participantElement);
+	}
+
+	if(arrayList.size() > 1)
+	    Collections.sort(arrayList, s_readParticipantsComparator);
+
+	return arrayList;
+    }
+
+    private ParticipantDirectory.Entry participantDirectoryEntry
+	(Cryptography cryptography, Cursor cursor)
+    {
+	/*
+	** The columns are described in loadParticipantDirectory().
+	*/
+
+	ParticipantDirectory.Entry entry = new ParticipantDirectory.Entry();
+
+	try
+	{
+	    byte bytes[] = null;
+
+	    if(!cursor.isNull(0))
+	    {
+		bytes = cryptography.mtd(cursor.getBlob(0));
+
+		if(bytes == null)
+		    return null;
+
+		entry.m_name = new String(bytes);
+	    }
+
+	    for(int i = 1; i < cursor.getColumnCount() - 1; i++)
+	    {
+		if(i == 2 || i == 7)
+		    bytes = cursor.getBlob(i);
+		else
+		    bytes = cryptography.mtd(cursor.getBlob(i));
+
+		if(bytes == null)
+		    return null;
+
+		switch(i)
+		{
+		case 1:
+		    entry.m_encryptionKey = Cryptography.publicKeyFromBytes
+			(bytes);
+
+		    if(entry.m_encryptionKey == null)
+			return null;
+
+		    break;
+		case 2:
+		    entry.m_encryptionKeyDigest = bytes;
+		    break;
+		case 3:
+		    entry.m_keyStream = bytes;
+		    break;
+		case 4:
+		    entry.m_lastStatusTimestamp = Miscellaneous.
+			byteArrayToLong(bytes);
+		    break;
+		case 5:
+		    entry.m_options = new String(bytes);
+		    entry.m_signaturesRequired = ParticipantDirectory.
+			signaturesRequired(entry.m_options);
+		    break;
+		case 6:
+		    entry.m_signatureKey = signatureKeyFromBytes(bytes);
+		    break;
+		case 7:
+		    entry.m_signatureKeyDigest = bytes;
+		    break;
+		case 8:
+		    entry.m_sipHashId = new String(bytes, "UTF-8");
+		    break;
+		}
+	    }
+
+	    entry.m_oid = cursor.getInt(cursor.getColumnCount() - 1);
+	}
+	catch(Exception exception)
+	{
+	    return null;
+	}
+
+	return entry;
+    }
+
+    private boolean prepareKeyStreamRing(Cryptography cryptography)
+    {
+	if(!m_keyStreamRing.isLoaded() &&
+	   State.getInstance().isAuthenticated())
+	    loadKeyStreamRing(cryptography);
+
+	return m_keyStreamRing.isLoaded();
+    }
+
+    private boolean prepareParticipantDirectory(Cryptography cryptography)
+    {
+	/*
+	** Returns true if the participant directory may be consulted.
+	** Misses are authoritative only if the directory is complete.
+	*/
+
+	if(!m_participantDirectory.isLoaded() &&
+	   State.getInstance().isAuthenticated())
+	    loadParticipantDirectory(cryptography);
+
+	return m_participantDirectory.isLoaded();
+    }
+
+    private boolean prepareSettingsCache(Cryptography cryptography)
+    {
+	/*
+	** Encrypted settings are loaded once the user has been
+	** authenticated or by an explicit loadSettings().
+	*/
+
+	boolean encrypted = cryptography != null;
+
+	if(!m_settingsCache.isLoaded(encrypted))
+	    if(!encrypted || State.getInstance().isAuthenticated())
+		loadSettings(cryptography);
+
+	return m_settingsCache.isLoaded(encrypted);
+    }
+
+    private DatabaseWriter writer()
+    {
+	/*
+	** The writer is prepared once the database has been opened.
+	*/
+
+	prepareDb();
+
+	if(m_db == null)
+	    return null;
+
+	synchronized(m_writerMutex)
+	{
+	    if(m_writer == null)
+		m_writer = new DatabaseWriter
+		    (m_db,
+		     readSettingInt(null,
+				    "database_writer_latency",
+				    WRITER_LATENCY),
+		     readSettingInt(null,
+				    "database_writer_maximum_rows",
+				    WRITER_MAXIMUM_ROWS));
+
+	    return m_writer;
+	}
+    }
+
+    private static PublicKey signatureKeyFromBytes(byte bytes[])
+    {
+	for(int i = 0; i < 2; i++)
+	    try
+	    {
+		if(i == 0)
+		    return KeyFactory.getInstance("EC").generatePublic
+			(new X509EncodedKeySpec(bytes));
+		else
+		    return KeyFactory.getInstance("RSA").generatePublic
+			(new X509EncodedKeySpec(bytes));
+	    }
+	    catch(Exception exception)
+	    {
+	    }
+
+	return null;
+    }
+
+    private Cursor rawQuery(String sql, final Object args[])
+    {
+	/*
+	** SQLiteDatabase.rawQuery() binds its arguments as strings.
+	** Digests are BLOBs.
+	*/
+
+	return m_db.rawQueryWithFactory(new SQLiteDatabase.CursorFactory()
+	{
+	    @Override
+	    public Cursor newCursor(SQLiteDatabase db,
+				    SQLiteCursorDriver driver,
+				    String editTable,
+				    SQLiteQuery query)
+	    {
+		bind(query, args);
+		return new SQLiteCursor(driver, editTable, query);
+	    }
+	}, sql, null, null);
+    }
+
+    private int delete(String table, String whereClause, Object whereArgs[])
+    {
+	SQLiteStatement statement = m_db.compileStatement
+	    ("DELETE FROM " + table + " WHERE " + whereClause);
+
+	try
+	{
+	    bind(statement, whereArgs);
+	    return statement.executeUpdateDelete();
+	}
+	finally
+	{
+	    statement.close();
+	}
+    }
+
+    private int update(String table,
+		       ContentValues values,
+		       String whereClause,
+		       Object whereArgs[])
+    {
+	ArrayList<Object> arrayList = new ArrayList<> ();
+	StringBuilder stringBuilder = new StringBuilder();
+
+	stringBuilder.append("UPDATE ");
+	stringBuilder.append(table);
+	stringBuilder.append(" SET ");
+
+	for(String key : values.keySet())
+	{
+	    if(!arrayList.isEmpty())
+		stringBuilder.append(", ");
+
+	    stringBuilder.append(key);
+	    stringBuilder.append(" = ?");
+	    arrayList.add(values.get(key));
+	}
+
+	stringBuilder.append(" WHERE ");
+	stringBuilder.append(whereClause);
+	arrayList.addAll(Arrays.asList(whereArgs));
+
+	SQLiteStatement statement = m_db.compileStatement
+	    (stringBuilder.toString());
+
+	try
+	{
+	    bind(statement, arrayList.toArray());
+	    return statement.executeUpdateDelete();
+	}
+	finally
+	{
+	    statement.close();
+	}
+    }
+
+    private static void bind(SQLiteProgram program, Object args[])
+    {
+	if(args == null)
+	    return;
+
+	for(int i = 0; i < args.length; i++)
+	    if(args[i] == null)
+		program.bindNull(i + 1);
+	    else if(args[i] instanceof byte[])
+		program.bindBlob(i + 1, (byte[]) args[i]);
+	    else if(args[i] instanceof Number)
+		program.bindLong(i + 1, ((Number) args[i]).longValue());
+	    else
+		program.bindString(i + 1, args[i].toString());
+    }
+
+    private static void decodeBase64Columns(SQLiteDatabase db,
+					    String columns[])
+    {
+	/*
+	** Versions prior to 3 stored ciphertexts and digests as
+	** base-64 text. Plaintext settings remain text.
+	*/
+
+	Cursor cursor = null;
+	SQLiteStatement statement = null;
+
+	try
+	{
+	    StringBuilder select = new StringBuilder();
+	    StringBuilder update = new StringBuilder();
+
+	    select.append("SELECT OID");
+	    update.append("UPDATE ");
+	    update.append(columns[0]);
+	    update.append(" SET ");
+
+	    for(int i = 1; i < columns.length; i++)
+	    {
+		select.append(", ");
+		select.append(columns[i]);
+
+		if(i > 1)
+		    update.append(", ");
+
+		update.append(columns[i]);
+		update.append(" = ?");
+	    }
+
+	    select.append(" FROM ");
+	    select.append(columns[0]);
+
+	    if(columns[0].equals("settings"))
+		select.append(" WHERE name <> name_digest");
+
+	    update.append(" WHERE OID = ?");
+	    cursor = db.rawQuery(select.toString(), null);
+	    statement = db.compileStatement(update.toString());
+
+	    if(cursor != null && cursor.moveToFirst())
+		while(!cursor.isAfterLast())
+		{
+		    statement.clearBindings();
+
+		    for(int i = 1; i < columns.length; i++)
+			if(cursor.getType(i) == Cursor.FIELD_TYPE_STRING)
+			    try
+			    {
+				statement.bindBlob
+				    (i, Base64.decode(cursor.getString(i),
+						      Base64.DEFAULT));
+			    }
+			    catch(Exception exception)
+			    {
+				statement.bindString(i, cursor.getString(i));
+			    }
+			else if(cursor.isNull(i))
+			    statement.bindNull(i);
+			else
+			    statement.bindBlob(i, cursor.getBlob(i));
+
+		    statement.bindLong(columns.length, cursor.getLong(0));
+		    statement.executeUpdateDelete();
+		    cursor.moveToNext();
+		}
+	}
+	catch(Exception exception)
+	{
+	}
+	finally
+	{
+	    if(cursor != null)
+		cursor.close();
+
+	    if(statement != null)
+		statement.close();
+	}
+    }
+
+    private static void createIndexes(SQLiteDatabase db)
+    {
+	for(String index : INDEXES)
+	    try
+	    {
+		db.execSQL("CREATE INDEX IF NOT EXISTS " + index);
+	    }
+	    catch(Exception exception)
+	    {
+	    }
+    }
+
+    private static void migrate(SQLiteDatabase db, int version)
+    {
+	/*
+	** Migrate a database to the specified version from the
+	** previous version.
+	*/
+
+	switch(version)
+	{
+	case 3:
+	    /*
+	    ** Ciphertexts and digests are stored as BLOBs.
+	    */
+
+	    for(String columns[] : AT_REST_COLUMNS)
+		decodeBase64Columns(db, columns);
+
+	    for(String columns[] : DIGEST_COLUMNS)
+		decodeBase64Columns(db, columns);
+
+	    decodeBase64Columns
+		(db, new String[] {"outbound_queue", "message"});
+	    break;
+	case 4:
+	    /*
+	    ** Indexes for the hot queries.
+	    */
+
+	    createIndexes(db);
+	    break;
+	case 5:
+	    /*
+	    ** Outbound messages are stored once. The outbound_queue
+	    ** table lists the neighbors which have yet to send them.
+	    ** The oids of the legacy entries are preserved.
+	    */
+
+	    try
+	    {
+		db.execSQL
+		    ("ALTER TABLE outbound_queue RENAME TO " +
+		     "outbound_queue_legacy");
+	    }
+	    catch(Exception exception)
+	    {
+		break;
+	    }
+
+	    migrateLegacyOutboundQueue(db);
+	    break;
+	case 6:
+	    /*
+	    ** The outbound log replaces the outbound_messages and
+	    ** outbound_queue tables. The legacy table must have been
+	    ** migrated first.
+	    */
+
+	    if(!tableExists(db, "outbound_queue_legacy"))
+		migrateOutboundQueue(db);
+
+	    break;
+	default:
+	    break;
+	}
+    }
+
+    private static boolean migrateLegacyOutboundQueue(SQLiteDatabase db)
+    {
+	/*
+	** The statements stop at the first failure. The legacy table
+	** is dropped only after its entries have been copied. Otherwise,
+	** onOpen() resumes the migration. A failed statement does not
+	** leave partial rows and the copies ignore existing oids.
+	*/
+
+	String strings[] = new String[]
+	    {OUTBOUND_MESSAGES_TABLE,
+	     OUTBOUND_QUEUE_TABLE,
+	     "INSERT OR IGNORE INTO outbound_messages (oid, message) " +
+	     "SELECT oid, message FROM outbound_queue_legacy",
+	     "INSERT OR IGNORE INTO outbound_queue " +
+	     "(message_oid, neighbor_oid) " +
+	     "SELECT oid, neighbor_oid FROM outbound_queue_legacy",
+	     "DROP TABLE outbound_queue_legacy"};
+
+	for(String string : strings)
+	    try
+	    {
+		db.execSQL(string);
+	    }
+	    catch(Exception exception)
+	    {
+		return false;
+	    }
+
+	return true;
+    }
+
+    private static boolean migrateOutboundQueue(SQLiteDatabase db)
+    {
+	/*
+	** Appended messages are deleted from the tables. The tables
+	** are dropped only if every message was appended. Otherwise,
+	** onOpen() resumes the migration.
+	*/
+
+	ArrayList<Long> migrated = new ArrayList<> ();
+	Cursor cursor = null;
+	boolean ok = true;
+
+	try
+	{
+	    cursor = db.rawQuery
+		("SELECT m.message, q.message_oid, q.neighbor_oid " +
+		 "FROM outbound_queue q, outbound_messages m " +
+		 "WHERE m.oid = q.message_oid ORDER BY q.message_oid",
+		 null);
+
+	    if(cursor != null && cursor.moveToFirst())
+	    {
+		ArrayList<Integer> oids = new ArrayList<> ();
+		OutboundLog outboundLog = OutboundLog.getInstance();
+		byte bytes[] = null;
+		long oid = -1;
+
+		while(true)
+		{
+		    if(cursor.isAfterLast() || oid != cursor.getLong(1))
+		    {
+			if(bytes != null)
+			{
+			    if(!outboundLog.append(bytes, oids))
+			    {
+				ok = false;
+				break;
+			    }
+
+			    migrated.add(oid);
+			}
+
+			if(cursor.isAfterLast())
+			    break;
+
+			bytes = cursor.getBlob(0);
+			oid = cursor.getLong(1);
+			oids.clear();
+		    }
+
+		    oids.add(cursor.getInt(2));
+		    cursor.moveToNext();
+		}
+	    }
+	}
+	catch(Exception exception)
+	{
+	    ok = false;
+	}
+	finally
+	{
+	    if(cursor != null)
+		cursor.close();
+	}
+
+	if(!ok)
+	{
+	    for(long oid : migrated)
+		try
+		{
+		    db.execSQL
+			("DELETE FROM outbound_queue WHERE message_oid = ?",
+			 new Object[] {oid});
+		    db.execSQL("DELETE FROM outbound_messages WHERE oid = ?",
+			       new Object[] {oid});
+		}
+		catch(Exception exception)
+		{
+		}
+
+	    return false;
+	}
+
+	String strings[] = new String[]
+	    {"DROP TABLE IF EXISTS outbound_messages",
+	     "DROP TABLE IF EXISTS outbound_queue"};
+
+	for(String string : strings)
+	    try
+	    {
+		db.execSQL(string);
+	    }
+	    catch(Exception exception)
+	    {
+	    }
+
+	return true;
+    }
+
+    private static boolean tableExists(SQLiteDatabase db, String name)
+    {
+	Cursor cursor = null;
+	boolean exists = false;
+
+	try
+	{
+	    cursor = db.rawQuery
+		("SELECT EXISTS(SELECT 1 FROM sqlite_master " +
+		 "WHERE name = ? AND type = 'table')",
+		 new String[] {name});
+	    exists = cursor != null && cursor.moveToFirst() &&
+		cursor.getInt(0) == 1;
+	}
+	catch(Exception exception)
+	{
+	}
+	finally
+	{
+	    if(cursor != null)
+		cursor.close();
+	}
+
+	return exists;
     }
 
     private void prepareDb()
@@ -157,6 +897,52 @@ public class Database extends SQLiteOpenHelper
 	    }
     }
 
+    public ArrayList<Long> readCongestionDigests(int lifetime)
+    {
+	prepareDb();
+
+	if(m_db == null)
+	    return null;
+
+	ArrayList<Long> arrayList = null;
+	Cursor cursor = null;
+
+	try
+	{
+	    cursor = m_db.rawQuery
+		("SELECT digest FROM congestion_control WHERE timestamp " +
+		 "BETWEEN DATETIME('now', ?) AND DATETIME('now', ?)",
+		 new String[] {"-" + lifetime + " seconds",
+			       "+" + lifetime + " seconds"});
+
+	    if(cursor != null && cursor.moveToFirst())
+	    {
+		arrayList = new ArrayList<> ();
+
+		while(!cursor.isAfterLast())
+		{
+		    byte bytes[] = cursor.getBlob(0);
+
+		    if(bytes != null && bytes.length == 8)
+			arrayList.add(Miscellaneous.byteArrayToLong(bytes));
+
+		    cursor.moveToNext();
+		}
+	    }
+	}
+	catch(Exception exception)
+	{
+	    arrayList = null;
+	}
+	finally
+	{
+	    if(cursor != null)
+		cursor.close();
+	}
+
+	return arrayList;
+    }
+
     public ArrayList<FireElement> readFires(Cryptography cryptography)
     {
 	prepareDb();
@@ -188,9 +974,7 @@ public class Database extends SQLiteOpenHelper
 			    continue;
 			}
 
-			byte bytes[] = cryptography.mtd
-			    (Base64.decode(cursor.getString(i).getBytes(),
-					   Base64.DEFAULT));
+			byte bytes[] = cryptography.mtd(cursor.getBlob(i));
 
 			if(bytes == null)
 			{
@@ -240,6 +1024,101 @@ public class Database extends SQLiteOpenHelper
 	return arrayList;
     }
 
+    public ArrayList<MemberChatElement> readMemberChats
+	(Cryptography cryptography,
+	 String sipHashId,
+	 MemberChatElement key,
+	 boolean after,
+	 int offset,
+	 int limit)
+    {
+	/*
+	** Messages are ordered by (timestamp, oid). If key is provided,
+	** read at most limit messages which follow or precede key.
+	** Otherwise, seek to offset. The messages are returned in
+	** ascending order.
+	*/
+
+	prepareDb();
+
+	if(cryptography == null || limit <= 0 || m_db == null)
+	    return null;
+
+	ArrayList<MemberChatElement> arrayList = null;
+	Cursor cursor = null;
+
+	try
+	{
+	    StringBuilder stringBuilder = new StringBuilder();
+	    byte digest[] = cryptography.hmac
+		(sipHashId.toLowerCase().trim().getBytes("UTF-8"));
+
+	    stringBuilder.append("SELECT from_smokestack, ");
+	    stringBuilder.append("message, ");
+	    stringBuilder.append("timestamp, ");
+	    stringBuilder.append("oid ");
+	    stringBuilder.append("FROM participants_messages ");
+	    stringBuilder.append("WHERE siphash_id_digest = ? ");
+
+	    if(key == null)
+	    {
+		stringBuilder.append("ORDER BY timestamp, oid ");
+		stringBuilder.append("LIMIT ? OFFSET ?");
+		cursor = rawQuery
+		    (stringBuilder.toString(),
+		     new Object[] {digest, limit, Math.max(0, offset)});
+	    }
+	    else
+	    {
+		if(after)
+		    stringBuilder.append
+			("AND (timestamp > ? OR " +
+			 "(timestamp = ? AND oid > ?)) " +
+			 "ORDER BY timestamp, oid LIMIT ?");
+		else
+		    stringBuilder.append
+			("AND (timestamp < ? OR " +
+			 "(timestamp = ? AND oid < ?)) " +
+			 "ORDER BY timestamp DESC, oid DESC LIMIT ?");
+
+		cursor = rawQuery
+		    (stringBuilder.toString(),
+		     new Object[] {digest,
+				   key.m_timestamp,
+				   key.m_timestamp,
+				   key.m_oid,
+				   limit});
+	    }
+
+	    if(cursor != null && cursor.moveToFirst())
+	    {
+		arrayList = new ArrayList<> ();
+
+		while(!cursor.isAfterLast())
+		{
+		    arrayList.add(memberChatElement(cryptography, cursor));
+		    cursor.moveToNext();
+		}
+
+		if(key != null && !after)
+		    Collections.reverse(arrayList);
+	    }
+	    else if(cursor != null)
+		arrayList = new ArrayList<> ();
+	}
+	catch(Exception exception)
+	{
+	    arrayList = null;
+	}
+	finally
+	{
+	    if(cursor != null)
+		cursor.close();
+	}
+
+	return arrayList;
+    }
+
     public ArrayList<NeighborElement> readNeighborOids
 	(Cryptography cryptography)
     {
@@ -273,9 +1152,7 @@ public class Database extends SQLiteOpenHelper
 			    continue;
 			}
 
-			byte bytes[] = cryptography.mtd
-			    (Base64.decode(cursor.getString(i).getBytes(),
-					   Base64.DEFAULT));
+			byte bytes[] = cryptography.mtd(cursor.getBlob(i));
 
 			if(bytes == null)
 			{
@@ -340,8 +1217,6 @@ public class Database extends SQLiteOpenHelper
 	{
 	    cursor = m_db.rawQuery
 		("SELECT " +
-		 "(SELECT COUNT(*) FROM outbound_queue o WHERE " +
-		 "o.neighbor_oid = n.oid), " +
 		 "n.bytes_read, " +
 		 "n.bytes_written, " +
 		 "n.echo_queue_size, " +
@@ -381,14 +1256,9 @@ public class Database extends SQLiteOpenHelper
 			    continue;
 			}
 
-			byte bytes[] = null;
-
-			if(i != 0)
-			    bytes = cryptography.mtd
-				(Base64.decode(cursor.getString(i).getBytes(),
-					       Base64.DEFAULT));
+			byte bytes[] = cryptography.mtd(cursor.getBlob(i));
 
-			if(bytes == null && i != 0)
+			if(bytes == null)
 			{
 			    StringBuilder stringBuilder = new StringBuilder();
 
@@ -402,10 +1272,6 @@ public class Database extends SQLiteOpenHelper
 			switch(i)
 			{
 			case 0:
-			    neighborElement.m_outboundQueued =
-				cursor.getInt(i);
-			    break;
-			case 1:
 			    if(bytes != null)
 				neighborElement.m_bytesRead = new String(bytes);
 			    else
@@ -413,7 +1279,7 @@ public class Database extends SQLiteOpenHelper
 				    "error (" + oid + ")";
 
 			    break;
-			case 2:
+			case 1:
 			    if(bytes != null)
 				neighborElement.m_bytesWritten =
 				    new String(bytes);
@@ -422,7 +1288,7 @@ public class Database extends SQLiteOpenHelper
 				    "error (" + oid + ")";
 
 			    break;
-			case 3:
+			case 2:
 			    if(bytes != null)
 				neighborElement.m_echoQueueSize =
 				    new String(bytes);
@@ -431,7 +1297,7 @@ public class Database extends SQLiteOpenHelper
 				    "error (" + oid + ")";
 
 			    break;
-			case 4:
+			case 3:
 			    if(bytes != null)
 				neighborElement.m_ipVersion = new String(bytes);
 			    else
@@ -439,14 +1305,14 @@ public class Database extends SQLiteOpenHelper
 				    "error (" + oid + ")";
 
 			    break;
-			case 5:
+			case 4:
 			    if(bytes != null)
 				neighborElement.m_error = new String(bytes);
 			    else
 				neighborElement.m_error = "error (" + oid + ")";
 
 			    break;
-			case 6:
+			case 5:
 			    if(bytes != null)
 				neighborElement.m_localIpAddress =
 				    new String(bytes);
@@ -455,7 +1321,7 @@ public class Database extends SQLiteOpenHelper
 				    "error (" + oid + ")";
 
 			    break;
-			case 7:
+			case 6:
 			    if(bytes != null)
 				neighborElement.m_localPort = new String(bytes);
 			    else
@@ -463,7 +1329,7 @@ public class Database extends SQLiteOpenHelper
 				    "error (" + oid + ")";
 
 			    break;
-			case 8:
+			case 7:
 			    if(bytes != null)
 				neighborElement.m_proxyIpAddress =
 				    new String(bytes);
@@ -472,7 +1338,7 @@ public class Database extends SQLiteOpenHelper
 				    "error (" + oid + ")";
 
 			    break;
-			case 9:
+			case 8:
 			    if(bytes != null)
 				neighborElement.m_proxyPort = new String(bytes);
 			    else
@@ -480,7 +1346,7 @@ public class Database extends SQLiteOpenHelper
 				    "error (" + oid + ")";
 
 			    break;
-			case 10:
+			case 9:
 			    if(bytes != null)
 				neighborElement.m_proxyType = new String(bytes);
 			    else
@@ -488,13 +1354,13 @@ public class Database extends SQLiteOpenHelper
 				    "error (" + oid + ")";
 
 			    break;
-			case 11:
+			case 10:
 			    if(bytes != null)
 				neighborElement.m_remoteCertificate =
 				    Miscellaneous.deepCopy(bytes);
 
 			    break;
-			case 12:
+			case 11:
 			    if(bytes != null)
 				neighborElement.m_remoteIpAddress =
 				    new String(bytes);
@@ -503,7 +1369,7 @@ public class Database extends SQLiteOpenHelper
 				    "error (" + oid + ")";
 
 			    break;
-			case 13:
+			case 12:
 			    if(bytes != null)
 				neighborElement.m_remotePort =
 				    new String(bytes);
@@ -512,7 +1378,7 @@ public class Database extends SQLiteOpenHelper
 				    "error (" + oid + ")";
 
 			    break;
-			case 14:
+			case 13:
 			    if(bytes != null)
 				neighborElement.m_remoteScopeId =
 				    new String(bytes);
@@ -521,7 +1387,7 @@ public class Database extends SQLiteOpenHelper
 				    "error (" + oid + ")";
 
 			    break;
-			case 15:
+			case 14:
 			    if(bytes != null)
 				neighborElement.m_sessionCipher =
 				    new String(bytes);
@@ -530,7 +1396,7 @@ public class Database extends SQLiteOpenHelper
 				    "error (" + oid + ")";
 
 			    break;
-			case 16:
+			case 15:
 			    if(bytes != null)
 				neighborElement.m_status = new String(bytes);
 			    else
@@ -538,7 +1404,7 @@ public class Database extends SQLiteOpenHelper
 				    "error (" + oid + ")";
 
 			    break;
-			case 17:
+			case 16:
 			    if(bytes != null)
 				neighborElement.m_statusControl =
 				    new String(bytes);
@@ -547,7 +1413,7 @@ public class Database extends SQLiteOpenHelper
 				    "error (" + oid + ")";
 
 			    break;
-			case 18:
+			case 17:
 			    if(bytes != null)
 				neighborElement.m_transport = new String(bytes);
 			    else
@@ -555,7 +1421,7 @@ public class Database extends SQLiteOpenHelper
 				    "error (" + oid + ")";
 
 			    break;
-			case 19:
+			case 18:
 			    if(bytes != null)
 				neighborElement.m_uptime = new String(bytes);
 			    else
@@ -566,6 +1432,8 @@ public class Database extends SQLiteOpenHelper
 			}
 		    }
 
+		    neighborElement.m_outboundQueued =
+			OutboundLog.getInstance().pending(oid);
 		    arrayList.add(neighborElement);
 		    cursor.moveToNext();
 		}
@@ -619,9 +1487,7 @@ public class Database extends SQLiteOpenHelper
 
 		    for(int i = 0; i < cursor.getColumnCount(); i++)
 		    {
-			byte bytes[] = cryptography.mtd
-			    (Base64.decode(cursor.getString(i).getBytes(),
-					   Base64.DEFAULT));
+			byte bytes[] = cryptography.mtd(cursor.getBlob(i));
 
 			if(bytes == null)
 			{
@@ -685,6 +1551,10 @@ public class Database extends SQLiteOpenHelper
 	if(cryptography == null || m_db == null)
 	    return null;
 
+	if(prepareParticipantDirectory(cryptography) &&
+	   m_participantDirectory.isComplete())
+	    return participantsFromDirectory(sipHashId);
+
 	Cursor cursor = null;
 	ArrayList<ParticipantElement> arrayList = null;
 
@@ -702,7 +1572,7 @@ public class Database extends SQLiteOpenHelper
 		     "p.oid " +
 		     "FROM participants p", null);
 	    else
-		cursor = m_db.rawQuery
+		cursor = rawQuery
 		    ("SELECT " +
 		     "(SELECT s.name FROM siphash_ids s " +
 		     "WHERE p.siphash_id_digest = s.siphash_id_digest) " +
@@ -712,12 +1582,9 @@ public class Database extends SQLiteOpenHelper
 		     "p.siphash_id, " +
 		     "p.oid " +
 		     "FROM participants p WHERE p.siphash_id_digest = ?",
-		     new String[] {Base64.
-				   encodeToString(cryptography.
-						  hmac(sipHashId.toLowerCase().
-						       trim().
-						       getBytes("UTF-8")),
-						  Base64.DEFAULT)});
+		     new Object[] {cryptography.
+				   hmac(sipHashId.toLowerCase().trim().
+					getBytes("UTF-8"))});
 
 	    if(cursor != null && cursor.moveToFirst())
 	    {
@@ -737,9 +1604,7 @@ public class Database extends SQLiteOpenHelper
 			    continue;
 			}
 
-			byte bytes[] = cryptography.mtd
-			    (Base64.decode(cursor.getString(i).getBytes(),
-					   Base64.DEFAULT));
+			byte bytes[] = cryptography.mtd(cursor.getBlob(i));
 
 			if(bytes == null)
 			{
@@ -824,34 +1689,43 @@ public class Database extends SQLiteOpenHelper
 
 	try
 	{
+	    /*
+	    ** A participant whose key digests are both digests of
+	    ** the empty string has not completed EPKS.
+	    */
+
+	    byte empty[] = Cryptography.sha512("".getBytes());
+
 	    if(sipHashId.isEmpty())
-		cursor = m_db.rawQuery
+		cursor = rawQuery
 		    ("SELECT " +
-		     "(SELECT p.encryption_public_key_digest || " +
-		     "p.signature_public_key_digest FROM participants p " +
+		     "(SELECT NOT (p.encryption_public_key_digest = ? AND " +
+		     "p.signature_public_key_digest = ?) " +
+		     "FROM participants p " +
 		     "WHERE p.siphash_id_digest = s.siphash_id_digest) AS a, " +
 		     "s.name, " +
 		     "s.siphash_id, " +
 		     "s.stream, " +
 		     "s.oid " +
-		     "FROM siphash_ids s ORDER BY s.oid", null);
+		     "FROM siphash_ids s ORDER BY s.oid",
+		     new Object[] {empty, empty});
 	    else
-		cursor = m_db.rawQuery
+		cursor = rawQuery
 		    ("SELECT " +
-		     "(SELECT p.encryption_public_key_digest || " +
-		     "p.signature_public_key_digest FROM participants p " +
+		     "(SELECT NOT (p.encryption_public_key_digest = ? AND " +
+		     "p.signature_public_key_digest = ?) " +
+		     "FROM participants p " +
 		     "WHERE p.siphash_id_digest = s.siphash_id_digest) AS a, " +
 		     "s.name, " +
 		     "s.siphash_id, " +
 		     "s.stream, " +
 		     "s.oid " +
 		     "FROM siphash_ids s WHERE s.siphash_id_digest = ?",
-		     new String[] {Base64.
-				   encodeToString(cryptography.
-						  hmac(sipHashId.toLowerCase().
-						       trim().
-						       getBytes("UTF-8")),
-						  Base64.DEFAULT)});
+		     new Object[] {empty,
+				   empty,
+				   cryptography.
+				   hmac(sipHashId.toLowerCase().trim().
+					getBytes("UTF-8"))});
 
 	    if(cursor != null && cursor.moveToFirst())
 	    {
@@ -866,21 +1740,12 @@ public class Database extends SQLiteOpenHelper
 		    {
 			if(i == 0)
 			{
-			    if(cursor.isNull(i) ||
-			       cursor.getString(i).isEmpty())
-			    {
+			    if(cursor.isNull(i))
 				sipHashIdElement.m_epksCompleted = false;
-				continue;
-			    }
-
-			    String string_a = cursor.getString(i);
-			    String string_b = Base64.encodeToString
-				(Cryptography.sha512("".getBytes()),
-				 Base64.DEFAULT);
+			    else
+				sipHashIdElement.m_epksCompleted =
+				    cursor.getInt(i) != 0;
 
-			    string_b += string_b;
-			    sipHashIdElement.m_epksCompleted =
-				!string_a.equals(string_b);
 			    continue;
 			}
 			else if(i == cursor.getColumnCount() - 1)
@@ -889,9 +1754,7 @@ public class Database extends SQLiteOpenHelper
 			    continue;
 			}
 
-			byte bytes[] = cryptography.mtd
-			    (Base64.decode(cursor.getString(i).getBytes(),
-					   Base64.DEFAULT));
+			byte bytes[] = cryptography.mtd(cursor.getBlob(i));
 
 			if(bytes == null)
 			{
@@ -980,9 +1843,7 @@ public class Database extends SQLiteOpenHelper
 		{
 		    for(int i = 0; i < cursor.getColumnCount(); i++)
 		    {
-			byte bytes[] = cryptography.mtd
-			    (Base64.decode(cursor.getString(i).getBytes(),
-					   Base64.DEFAULT));
+			byte bytes[] = cryptography.mtd(cursor.getBlob(i));
 
 			if(bytes == null)
 			{
@@ -1020,6 +1881,123 @@ public class Database extends SQLiteOpenHelper
 	return arrayList;
     }
 
+    public Future<Boolean> writeParticipantMessage
+	(Cryptography cryptography,
+	 String fromSmokeStack,
+	 String message,
+	 String sipHashId,
+	 byte attachment[],
+	 long timestamp)
+    {
+	/*
+	** The future completes once the message has been committed.
+	*/
+
+	if(cryptography == null)
+	    return null;
+
+	DatabaseWriter writer = writer();
+
+	if(writer == null)
+	    return null;
+
+	try
+	{
+	    ContentValues values = new ContentValues();
+
+	    if(attachment == null)
+		values.put("attachment", cryptography.etm(new byte[] {0}));
+	    else
+		values.put("attachment", cryptography.etm(attachment));
+
+	    values.put
+		("from_smokestack",
+		 cryptography.etm(fromSmokeStack.getBytes()));
+	    values.put("message", cryptography.etm(message.getBytes()));
+	    values.put
+		("message_digest",
+		 /*
+		 ** It's very possible that a message
+		 ** sent by one device will be identical
+		 ** to the message sent by another
+		 ** device.
+		 */
+
+		 cryptography.hmac((message +
+				    sipHashId +
+				    timestamp).getBytes()));
+	    values.put
+		("siphash_id_digest",
+		 cryptography.hmac(sipHashId.toLowerCase().trim().
+				   getBytes("UTF-8")));
+
+	    /*
+	    ** We want to preserve the order of the time values.
+	    ** That is, if t_a < t_b, then E(t_a) < E(t_b) must
+	    ** also be true. Or, H(t_a) < H(t_b).
+	    */
+
+	    values.put("timestamp", timestamp);
+	    return writer.insert("participants_messages", values);
+	}
+	catch(Exception exception)
+	{
+	    return null;
+	}
+    }
+
+    private MemberChatElement memberChatElement(Cryptography cryptography,
+						Cursor cursor)
+    {
+	/*
+	** The columns are from_smokestack, message, timestamp, and oid.
+	*/
+
+	MemberChatElement memberChatElement = new MemberChatElement();
+	int oid = cursor.getInt(3);
+
+	memberChatElement.m_oid = oid;
+	memberChatElement.m_timestamp = cursor.getLong(2);
+
+	for(int i = 0; i < 2; i++)
+	{
+	    byte bytes[] = cryptography.mtd(cursor.getBlob(i));
+
+	    if(bytes == null)
+	    {
+		StringBuilder stringBuilder = new StringBuilder();
+
+		stringBuilder.append("Database::readMemberChat(): ");
+		stringBuilder.append("error on column ");
+		stringBuilder.append(cursor.getColumnName(i));
+		stringBuilder.append(".");
+		writeLog(stringBuilder.toString());
+	    }
+
+	    switch(i)
+	    {
+	    case 0:
+		if(bytes != null)
+		    memberChatElement.m_fromSmokeStack =
+			new String(bytes).trim();
+		else
+		    memberChatElement.m_fromSmokeStack =
+			"error (" + oid + ")";
+
+		break;
+	    case 1:
+		if(bytes != null)
+		    memberChatElement.m_message = new String(bytes);
+		else
+		    memberChatElement.m_message = "error (" + oid + ")";
+
+		break;
+	    }
+	}
+
+	return memberChatElement;
+    }
+
     public MemberChatElement readMemberChat
 	(Cryptography cryptography, String sipHashId, int position)
     {
@@ -1033,78 +2011,20 @@ public class Database extends SQLiteOpenHelper
 
 	try
 	{
-	    cursor = m_db.rawQuery
+	    cursor = rawQuery
 		("SELECT from_smokestack, " +
 		 "message, " +
 		 "timestamp, " +
 		 "oid " +
 		 "FROM participants_messages WHERE siphash_id_digest = ? " +
-		 "ORDER BY timestamp LIMIT 1 OFFSET CAST(? AS INTEGER)",
-		 new String[] {Base64.
-			       encodeToString(cryptography.
-					      hmac(sipHashId.toLowerCase().
-						   trim().getBytes("UTF-8")),
-					      Base64.DEFAULT),
-			       String.valueOf(position)});
+		 "ORDER BY timestamp, oid LIMIT 1 OFFSET ?",
+		 new Object[] {cryptography.
+			       hmac(sipHashId.toLowerCase().trim().
+				    getBytes("UTF-8")),
+			       position});
 
 	    if(cursor != null && cursor.moveToFirst())
-	    {
-		memberChatElement = new MemberChatElement();
-
-		int oid = cursor.getInt(cursor.getColumnCount() - 1);
-
-		for(int i = 0; i < cursor.getColumnCount(); i++)
-		{
-		    if(i == cursor.getColumnCount() - 1)
-		    {
-			memberChatElement.m_oid = cursor.getInt(i);
-			continue;
-		    }
-		    else if(i == 2)
-		    {
-			memberChatElement.m_timestamp = cursor.getLong(i);
-			continue;
-		    }
-
-		    byte bytes[] = cryptography.mtd
-			(Base64.decode(cursor.getString(i).getBytes(),
-				       Base64.DEFAULT));
-
-		    if(bytes == null)
-		    {
-			StringBuilder stringBuilder = new StringBuilder();
-
-			stringBuilder.append
-			    ("Database::readMemberChat(): ");
-			stringBuilder.append("error on column ");
-			stringBuilder.append(cursor.getColumnName(i));
-			stringBuilder.append(".");
-			writeLog(stringBuilder.toString());
-		    }
-
-		    switch(i)
-		    {
-		    case 0:
-			if(bytes != null)
-			    memberChatElement.m_fromSmokeStack =
-				new String(bytes).trim();
-			else
-			    memberChatElement.m_fromSmokeStack =
-				"error (" + oid + ")";
-
-			break;
-		    case 1:
-			if(bytes != null)
-			    memberChatElement.m_message =
-				new String(bytes);
-			else
-			    memberChatElement.m_message =
-				"error (" + oid + ")";
-
-			break;
-		    }
-		}
-	    }
+		memberChatElement = memberChatElement(cryptography, cursor);
 	}
 	catch(Exception exception)
 	{
@@ -1127,26 +2047,33 @@ public class Database extends SQLiteOpenHelper
 	if(cryptography == null || m_db == null)
 	    return null;
 
+	if(prepareParticipantDirectory(cryptography))
+	{
+	    ParticipantDirectory.Entry entry = m_participantDirectory.
+		findBySipHashId(sipHashId);
+
+	    if(entry != null)
+		return entry.m_encryptionKey;
+	    else if(m_participantDirectory.isComplete())
+		return null;
+	}
+
 	Cursor cursor = null;
 	PublicKey publicKey = null;
 
 	try
 	{
-	    cursor = m_db.rawQuery
+	    cursor = rawQuery
 		("SELECT " +
 		 "encryption_public_key " +
 		 "FROM participants WHERE siphash_id_digest = ?",
-		 new String[] {Base64.
-			       encodeToString(cryptography.
-					      hmac(sipHashId.toLowerCase().
-						   trim().getBytes("UTF-8")),
-					      Base64.DEFAULT)});
+		 new Object[] {cryptography.
+			       hmac(sipHashId.toLowerCase().trim().
+				    getBytes("UTF-8"))});
 
 	    if(cursor != null && cursor.moveToFirst())
 	    {
-		byte bytes[] = cryptography.mtd
-		    (Base64.decode(cursor.getString(0).getBytes(),
-				   Base64.DEFAULT));
+		byte bytes[] = cryptography.mtd(cursor.getBlob(0));
 
 		if(bytes != null)
 		    publicKey = Cryptography.publicKeyFromBytes(bytes);
@@ -1176,41 +2103,34 @@ public class Database extends SQLiteOpenHelper
 	   m_db == null)
 	    return null;
 
+	if(prepareParticipantDirectory(cryptography))
+	{
+	    ParticipantDirectory.Entry entry = m_participantDirectory.
+		findByEncryptionKeyDigest(digest);
+
+	    if(entry != null)
+		return entry.m_signatureKey;
+	    else if(m_participantDirectory.isComplete())
+		return null;
+	}
+
 	Cursor cursor = null;
 	PublicKey publicKey = null;
 
 	try
 	{
-	    cursor = m_db.rawQuery
+	    cursor = rawQuery
 		("SELECT " +
 		 "signature_public_key " +
 		 "FROM participants WHERE encryption_public_key_digest = ?",
-		 new String[] {Base64.encodeToString(digest, Base64.DEFAULT)});
+		 new Object[] {digest});
 
 	    if(cursor != null && cursor.moveToFirst())
 	    {
-		byte bytes[] = cryptography.mtd
-		    (Base64.decode(cursor.getString(0).getBytes(),
-				   Base64.DEFAULT));
+		byte bytes[] = cryptography.mtd(cursor.getBlob(0));
 
 		if(bytes != null)
-		    for(int i = 0; i < 2; i++)
-			try
-			{
-			    if(i == 0)
-				publicKey = KeyFactory.getInstance("EC").
-				    generatePublic
-				    (new X509EncodedKeySpec(bytes));
-			    else
-				publicKey = KeyFactory.getInstance("RSA").
-				    generatePublic
-				    (new X509EncodedKeySpec(bytes));
-
-			    break;
-			}
-			catch(Exception exception)
-			{
-			}
+		    publicKey = signatureKeyFromBytes(bytes);
 	    }
 	}
 	catch(Exception exception)
@@ -1265,9 +2185,7 @@ public class Database extends SQLiteOpenHelper
 			continue;
 		    }
 
-		    byte bytes[] = cryptography.mtd
-			(Base64.decode(cursor.getString(i).getBytes(),
-				       Base64.DEFAULT));
+		    byte bytes[] = cryptography.mtd(cursor.getBlob(i));
 
 		    if(bytes == null)
 		    {
@@ -1334,19 +2252,15 @@ public class Database extends SQLiteOpenHelper
 
 	try
 	{
-	    cursor = m_db.rawQuery
+	    cursor = rawQuery
 		("SELECT name FROM siphash_ids WHERE siphash_id_digest = ?",
-		 new String[] {Base64.
-			       encodeToString(cryptography.
-					      hmac(sipHashId.toLowerCase().
-						   trim().getBytes("UTF-8")),
-					      Base64.DEFAULT)});
+		 new Object[] {cryptography.
+			       hmac(sipHashId.toLowerCase().trim().
+				    getBytes("UTF-8"))});
 
 	    if(cursor != null && cursor.moveToFirst())
 	    {
-		byte bytes[] = cryptography.mtd
-		    (Base64.decode(cursor.getString(0).getBytes(),
-				   Base64.DEFAULT));
+		byte bytes[] = cryptography.mtd(cursor.getBlob(0));
 
 		if(bytes != null)
 		    name = new String(bytes);
@@ -1382,9 +2296,7 @@ public class Database extends SQLiteOpenHelper
 
 	    if(cursor != null && cursor.moveToFirst())
 	    {
-		byte bytes[] = cryptography.mtd
-		    (Base64.decode(cursor.getString(0).getBytes(),
-				   Base64.DEFAULT));
+		byte bytes[] = cryptography.mtd(cursor.getBlob(0));
 
 		if(bytes != null)
 		    status = new String(bytes);
@@ -1410,26 +2322,32 @@ public class Database extends SQLiteOpenHelper
 	if(m_db == null)
 	    return "";
 
+	if(prepareParticipantDirectory(cryptography))
+	{
+	    ParticipantDirectory.Entry entry = m_participantDirectory.
+		findBySipHashId(sipHashId);
+
+	    if(entry != null)
+		return entry.m_options;
+	    else if(m_participantDirectory.isComplete())
+		return "";
+	}
+
 	Cursor cursor = null;
 	String string = "";
 
 	try
 	{
-	    cursor = m_db.rawQuery
+	    cursor = rawQuery
 		("SELECT options " +
 		 "FROM participants WHERE siphash_id_digest = ?",
-		 new String[] {Base64.
-			       encodeToString(cryptography.
-					      hmac(sipHashId.toLowerCase().
-						   trim().
-						   getBytes("UTF-8")),
-					      Base64.DEFAULT)});
+		 new Object[] {cryptography.
+			       hmac(sipHashId.toLowerCase().trim().
+				    getBytes("UTF-8"))});
 
 	    if(cursor != null && cursor.moveToFirst())
 	    {
-		byte bytes[] = cryptography.mtd
-		    (Base64.decode(cursor.getString(0).getBytes(),
-				   Base64.DEFAULT));
+		byte bytes[] = cryptography.mtd(cursor.getBlob(0));
 
 		if(bytes != null)
 		    string = new String(bytes);
@@ -1448,6 +2366,18 @@ public class Database extends SQLiteOpenHelper
 	return string;
     }
 
+    private static String settingOrDefault(String name, String str)
+    {
+	/*
+	** Default values.
+	*/
+
+	if(name.equals("show_chat_icons") && str.isEmpty())
+	    return "true";
+
+	return str;
+    }
+
     public String readSetting(Cryptography cryptography, String name)
     {
 	prepareDb();
@@ -1455,24 +2385,37 @@ public class Database extends SQLiteOpenHelper
 	if(m_db == null)
 	    return "";
 
+	if(prepareSettingsCache(cryptography))
+	{
+	    String str = m_settingsCache.value(cryptography != null, name);
+
+	    if(str != null)
+		return settingOrDefault(name, str);
+	    else if(m_settingsCache.isComplete(cryptography != null))
+		return settingOrDefault(name, "");
+	}
+
 	Cursor cursor = null;
 	String str = "";
 
 	try
 	{
 	    if(cryptography == null)
+		/*
+		** The names of plaintext settings are also their digests.
+		*/
+
 		cursor = m_db.rawQuery
-		    ("SELECT value FROM settings WHERE name = ?",
+		    ("SELECT value FROM settings WHERE name_digest = ?",
 		     new String[] {name});
 	    else
 	    {
 		byte bytes[] = cryptography.hmac(name.getBytes());
 
 		if(bytes != null)
-		    cursor = m_db.rawQuery
+		    cursor = rawQuery
 			("SELECT value FROM settings WHERE name_digest = ?",
-			 new String[] {Base64.encodeToString(bytes,
-							     Base64.DEFAULT)});
+			 new Object[] {bytes});
 		else
 		    str = "An error occurred (hmac() failure).";
 	    }
@@ -1482,9 +2425,7 @@ public class Database extends SQLiteOpenHelper
 		    str = cursor.getString(0);
 		else
 		{
-		    byte bytes[] = cryptography.mtd
-			(Base64.decode(cursor.getString(0).getBytes(),
-				       Base64.DEFAULT));
+		    byte bytes[] = cryptography.mtd(cursor.getBlob(0));
 
 		    if(bytes != null)
 			str = new String(bytes);
@@ -1504,14 +2445,7 @@ public class Database extends SQLiteOpenHelper
 		cursor.close();
 	}
 
-	/*
-	** Default values.
-	*/
-
-	if(name.equals("show_chat_icons") && str.isEmpty())
-	    return "true";
-
-	return str;
+	return settingOrDefault(name, str);
     }
 
     public String readSipHashIdString(Cryptography cryptography,
@@ -1532,9 +2466,7 @@ public class Database extends SQLiteOpenHelper
 
 	    if(cursor != null && cursor.moveToFirst())
 	    {
-		byte bytes[] = cryptography.mtd
-		    (Base64.decode(cursor.getString(0).getBytes(),
-				   Base64.DEFAULT));
+		byte bytes[] = cryptography.mtd(cursor.getBlob(0));
 
 		if(bytes != null)
 		    return new String(bytes, "UTF-8");
@@ -1565,8 +2497,10 @@ public class Database extends SQLiteOpenHelper
 
 	ContentValues values = null;
 	Cursor cursor = null;
+	ParticipantDirectory.Entry entry = null;
 	String sipHashId = "";
 	boolean exists = false;
+	long oid = -1;
 
 	try
 	{
@@ -1612,18 +2546,13 @@ public class Database extends SQLiteOpenHelper
 		    ii += 1;
 		    break;
 		case 2:
-		    cursor = m_db.rawQuery
+		    cursor = rawQuery
 			("SELECT EXISTS(SELECT 1 " +
 			 "FROM participants WHERE " +
 			 "encryption_public_key_digest = ?)",
-			 new String[] {Base64.
-				       encodeToString(Cryptography.
-						      sha512(Base64.
-							     decode(string.
-								    getBytes(),
-								    Base64.
-								    NO_WRAP)),
-						      Base64.DEFAULT)});
+			 new Object[] {Cryptography.
+				       sha512(Base64.decode(string.getBytes(),
+							    Base64.NO_WRAP))});
 
 		    if(cursor != null && cursor.moveToFirst())
 			if(cursor.getInt(0) == 1)
@@ -1660,18 +2589,13 @@ public class Database extends SQLiteOpenHelper
 		    ii += 1;
 		    break;
 		case 4:
-		    cursor = m_db.rawQuery
+		    cursor = rawQuery
 			("SELECT EXISTS(SELECT 1 " +
 			 "FROM participants WHERE " +
 			 "signature_public_key_digest = ?)",
-			 new String[] {Base64.
-				       encodeToString(Cryptography.
-						      sha512(Base64.
-							     decode(string.
-								    getBytes(),
-								    Base64.
-								    NO_WRAP)),
-						      Base64.DEFAULT)});
+			 new Object[] {Cryptography.
+				       sha512(Base64.decode(string.getBytes(),
+							    Base64.NO_WRAP))});
 
 		    if(cursor != null && cursor.moveToFirst())
 			if(cursor.getInt(0) == 1)
@@ -1719,9 +2643,23 @@ public class Database extends SQLiteOpenHelper
 						 signatureKey.getEncoded())).
 		toLowerCase();
 
-	    if(nameFromSipHashId(cryptography, sipHashId).isEmpty())
+	    String name = nameFromSipHashId(cryptography, sipHashId);
+
+	    if(name.isEmpty())
 		return "";
 
+	    entry = new ParticipantDirectory.Entry();
+	    entry.m_encryptionKey = publicKey;
+	    entry.m_encryptionKeyDigest = Cryptography.sha512
+		(publicKey.getEncoded());
+	    entry.m_keyStream = new byte[0];
+	    entry.m_name = name;
+	    entry.m_options = "optional_signatures = false";
+	    entry.m_signatureKey = signatureKey;
+	    entry.m_signatureKeyDigest = Cryptography.sha512
+		(signatureKey.getEncoded());
+	    entry.m_signaturesRequired = true;
+	    entry.m_sipHashId = sipHashId;
 	    values = new ContentValues();
 
 	    SparseArray<String> sparseArray = new SparseArray<> ();
@@ -1783,8 +2721,7 @@ public class Database extends SQLiteOpenHelper
 		if(bytes == null)
 		    return "";
 
-		values.put(sparseArray.get(i),
-			   Base64.encodeToString(bytes, Base64.DEFAULT));
+		values.put(sparseArray.get(i), bytes);
 	    }
 	}
 	catch(Exception exception)
@@ -1804,7 +2741,7 @@ public class Database extends SQLiteOpenHelper
 
 	try
 	{
-	    if(m_db.replace("participants", null, values) <= 0)
+	    if((oid = m_db.replace("participants", null, values)) <= 0)
 		sipHashId = "";
 
 	    m_db.setTransactionSuccessful();
@@ -1818,6 +2755,12 @@ public class Database extends SQLiteOpenHelper
 	    m_db.endTransaction();
 	}
 
+	if(!sipHashId.isEmpty())
+	{
+	    entry.m_oid = (int) oid;
+	    m_participantDirectory.put(entry);
+	}
+
 	return sipHashId;
     }
 
@@ -1832,31 +2775,43 @@ public class Database extends SQLiteOpenHelper
 	   m_db == null)
 	    return null;
 
+	if(prepareParticipantDirectory(cryptography))
+	{
+	    ParticipantDirectory.Entry entry = m_participantDirectory.
+		findByEncryptionKeyDigest(digest);
+
+	    if(entry != null)
+	    {
+		if(entry.m_name == null)
+		    return null;
+
+		return new String[] {entry.m_name, entry.m_sipHashId};
+	    }
+	    else if(m_participantDirectory.isComplete())
+		return null;
+	}
+
 	Cursor cursor = null;
 	String array[] = null;
 
 	try
 	{
-	    cursor = m_db.rawQuery
+	    cursor = rawQuery
 		("SELECT name, siphash_id " +
 		 "FROM siphash_ids WHERE siphash_id_digest IN " +
 		 "(SELECT siphash_id_digest FROM participants " +
 		 "WHERE encryption_public_key_digest = ?)",
-		 new String[] {Base64.encodeToString(digest, Base64.DEFAULT)});
+		 new Object[] {digest});
 
 	    if(cursor != null && cursor.moveToFirst())
 	    {
-		byte bytes[] = cryptography.mtd
-		    (Base64.decode(cursor.getString(0).getBytes(),
-				   Base64.DEFAULT));
+		byte bytes[] = cryptography.mtd(cursor.getBlob(0));
 
 		if(bytes != null)
 		{
 		    array = new String[2];
 		    array[0] = new String(bytes);
-		    bytes = cryptography.mtd
-			(Base64.decode(cursor.getString(1).getBytes(),
-				       Base64.DEFAULT));
+		    bytes = cryptography.mtd(cursor.getBlob(1));
 
 		    if(bytes != null)
 			array[1] = new String(bytes, "UTF-8");
@@ -1878,33 +2833,39 @@ public class Database extends SQLiteOpenHelper
 	return array;
     }
 
-    public String[] readOutboundMessage(int oid)
+    public boolean accountPrepared()
+    {
+	return !readSetting(null, "encryptionSalt").isEmpty() &&
+	    !readSetting(null, "macSalt").isEmpty() &&
+	    !readSetting(null, "saltedPassword").isEmpty();
+    }
+
+    public boolean containsParticipant(Cryptography cryptography,
+				       String sipHashId)
     {
 	prepareDb();
 
-	if(m_db == null)
-	    return null;
+	if(cryptography == null || m_db == null)
+	    return false;
 
 	Cursor cursor = null;
-	String array[] = null;
+	boolean contains = false;
 
 	try
 	{
-	    cursor = m_db.rawQuery
-		("SELECT message, oid FROM outbound_queue " +
-		 "WHERE neighbor_oid = ? ORDER BY oid LIMIT 1",
-		 new String[] {String.valueOf(oid)});
+	    cursor = rawQuery
+		("SELECT EXISTS(SELECT 1 " +
+		 "FROM participants WHERE " +
+		 "siphash_id_digest = ?)",
+		 new Object[] {cryptography.
+			       hmac(sipHashId.toLowerCase().trim().
+				    getBytes("UTF-8"))});
 
 	    if(cursor != null && cursor.moveToFirst())
-	    {
-		array = new String[2];
-		array[0] = cursor.getString(0);
-		array[1] = String.valueOf(cursor.getInt(1));
-	    }
+		contains = cursor.getInt(0) == 1;
 	}
 	catch(Exception exception)
 	{
-	    array = null;
 	}
 	finally
 	{
@@ -1912,125 +2873,198 @@ public class Database extends SQLiteOpenHelper
 		cursor.close();
 	}
 
-	return array;
+	return contains;
     }
 
-    public boolean accountPrepared()
+    public boolean deleteEntry(String oid, String table)
     {
-	return !readSetting(null, "encryptionSalt").isEmpty() &&
-	    !readSetting(null, "macSalt").isEmpty() &&
-	    !readSetting(null, "saltedPassword").isEmpty();
+	DatabaseWriter writer = writer();
+
+	if(writer == null)
+	    return false;
+
+	boolean ok = DatabaseWriter.await
+	    (writer.delete(table, "oid = ?", new String[] {oid}));
+
+	if(ok)
+	    if(table.equals("participants") || table.equals("siphash_ids"))
+	    {
+		m_keyStreamRing.invalidate();
+		m_participantDirectory.invalidate();
+	    }
+
+	return ok;
     }
 
-    public boolean containsCongestionDigest(long value)
+    public synchronized boolean migrateAtRestFormat
+	(Cryptography cryptography, int limit)
     {
+	/*
+	** Rewrites a batch of legacy values in the current at-rest
+	** format. Each batch is a single transaction. A batch which
+	** fails is attempted again. Returns true after all of the tables
+	** have been visited.
+	*/
+
 	prepareDb();
 
-	if(m_db == null)
+	if(cryptography == null || limit <= 0 || m_db == null)
 	    return false;
 
-	boolean contains = false;
+	if(m_atRestMigrationTable >= AT_REST_COLUMNS.length)
+	    return true;
+
+	Cursor cursor = null;
+	String columns[] = AT_REST_COLUMNS[m_atRestMigrationTable];
+	boolean ok = true;
+	int count = 0;
+	long oid = m_atRestMigrationOid;
 
-	s_congestionControlMutex.readLock().lock();
+	m_db.beginTransactionNonExclusive();
 
 	try
 	{
-	    Cursor cursor = null;
+	    StringBuilder stringBuilder = new StringBuilder();
 
-	    try
-	    {
-		cursor = m_db.rawQuery
-		    ("SELECT EXISTS(SELECT 1 FROM " +
-		     "congestion_control WHERE digest = ?)",
-		     new String[] {Base64.
-				   encodeToString(Miscellaneous.
-						  longToByteArray(value),
-						  Base64.DEFAULT)});
-
-		if(cursor != null && cursor.moveToFirst())
-		    contains = cursor.getInt(0) == 1;
-	    }
-	    catch(Exception exception)
-	    {
-	    }
-	    finally
+	    stringBuilder.append("SELECT OID");
+
+	    for(int i = 1; i < columns.length; i++)
 	    {
-		if(cursor != null)
-		    cursor.close();
+		stringBuilder.append(", ");
+		stringBuilder.append(columns[i]);
 	    }
-	}
-	finally
-	{
-	    s_congestionControlMutex.readLock().unlock();
-	}
 
-	return contains;
-    }
+	    stringBuilder.append(" FROM ");
+	    stringBuilder.append(columns[0]);
+	    stringBuilder.append(" WHERE OID > ?");
+
+	    if(columns[0].equals("settings"))
+		/*
+		** Plaintext settings.
+		*/
+
+		stringBuilder.append(" AND name <> name_digest");
+
+	    stringBuilder.append(" ORDER BY OID LIMIT ?");
+	    cursor = m_db.rawQuery
+		(stringBuilder.toString(),
+		 new String[] {String.valueOf(oid), String.valueOf(limit)});
+
+	    if(cursor != null && cursor.moveToFirst())
+		while(!cursor.isAfterLast())
+		{
+		    ContentValues values = new ContentValues();
+
+		    oid = cursor.getLong(0);
 
-    public boolean containsParticipant(Cryptography cryptography,
-				       String sipHashId)
-    {
-	prepareDb();
+		    for(int i = 1; i < columns.length; i++)
+		    {
+			if(cursor.isNull(i))
+			    continue;
 
-	if(cryptography == null || m_db == null)
-	    return false;
+			byte bytes[] = cursor.getBlob(i);
 
-	Cursor cursor = null;
-	boolean contains = false;
+			/*
+			** A legacy value which resembles the current
+			** format is not rewritten. It remains readable.
+			*/
 
-	try
-	{
-	    cursor = m_db.rawQuery
-		("SELECT EXISTS(SELECT 1 " +
-		 "FROM participants WHERE " +
-		 "siphash_id_digest = ?)",
-		 new String[] {Base64.
-			       encodeToString(cryptography.
-					      hmac(sipHashId.toLowerCase().
-						   trim().getBytes("UTF-8")),
-					      Base64.DEFAULT)});
+			if(Cryptography.isAead(bytes))
+			    continue;
 
-	    if(cursor != null && cursor.moveToFirst())
-		contains = cursor.getInt(0) == 1;
+			bytes = cryptography.etm(cryptography.mtd(bytes));
+
+			if(Cryptography.isAead(bytes))
+			    values.put(columns[i], bytes);
+		    }
+
+		    if(values.size() > 0)
+			m_db.update(columns[0],
+				    values,
+				    "OID = ?",
+				    new String[] {String.valueOf(oid)});
+
+		    count += 1;
+		    cursor.moveToNext();
+		}
+
+	    m_db.setTransactionSuccessful();
 	}
 	catch(Exception exception)
 	{
+	    ok = false;
 	}
 	finally
 	{
 	    if(cursor != null)
 		cursor.close();
+
+	    m_db.endTransaction();
 	}
 
-	return contains;
+	if(!ok)
+	    /*
+	    ** The transaction was rolled back. The same batch will be
+	    ** attempted again.
+	    */
+
+	    return false;
+
+	if(count < limit)
+	{
+	    /*
+	    ** The table is exhausted.
+	    */
+
+	    m_atRestMigrationOid = 0;
+	    m_atRestMigrationTable += 1;
+	}
+	else
+	    m_atRestMigrationOid = oid;
+
+	return m_atRestMigrationTable >= AT_REST_COLUMNS.length;
     }
 
-    public boolean deleteEntry(String oid, String table)
+    public boolean participantSignaturesRequired(Cryptography cryptography,
+						 String sipHashId)
     {
+	/*
+	** Equivalent to readParticipantOptions(...).
+	** contains("optional_signatures = false").
+	*/
+
 	prepareDb();
 
-	if(m_db == null)
+	if(cryptography == null || m_db == null)
 	    return false;
 
-	boolean ok = false;
-
-	m_db.beginTransactionNonExclusive();
-
-	try
-	{
-	    ok = m_db.delete(table, "oid = ?", new String[] {oid}) > 0;
-	    m_db.setTransactionSuccessful();
-	}
-	catch(Exception exception)
-	{
-	    ok = false;
-	}
-	finally
+	if(prepareParticipantDirectory(cryptography))
 	{
-	    m_db.endTransaction();
+	    ParticipantDirectory.Entry entry = m_participantDirectory.
+		findBySipHashId(sipHashId);
+
+	    if(entry != null)
+		return entry.m_signaturesRequired;
+	    else if(m_participantDirectory.isComplete())
+		return false;
 	}
 
-	return ok;
+	return ParticipantDirectory.signaturesRequired
+	    (readParticipantOptions(cryptography, sipHashId));
+    }
+
+    public boolean readSettingBoolean(Cryptography cryptography,
+				      String name,
+				      boolean defaultValue)
+    {
+	String str = readSetting(cryptography, name);
+
+	if(str.equals("false"))
+	    return false;
+	else if(str.equals("true"))
+	    return true;
+	else
+	    return defaultValue;
     }
 
     public boolean setParticipantKeyStream(Cryptography cryptography,
@@ -2049,15 +3083,9 @@ public class Database extends SQLiteOpenHelper
 	    ContentValues values = new ContentValues();
 
 	    if(keyStream == null || keyStream.length < 0)
-		values.put
-		    ("keystream",
-		     Base64.encodeToString(cryptography.etm("".getBytes()),
-					   Base64.DEFAULT));
+		values.put("keystream", cryptography.etm("".getBytes()));
 	    else
-		values.put
-		    ("keystream",
-		     Base64.encodeToString(cryptography.etm(keyStream),
-					   Base64.DEFAULT));
+		values.put("keystream", cryptography.etm(keyStream));
 
 	    m_db.update("participants", values, "oid = ?",
 			new String[] {String.valueOf(oid)});
@@ -2072,52 +3100,10 @@ public class Database extends SQLiteOpenHelper
 	    m_db.endTransaction();
 	}
 
+	m_participantDirectory.setKeyStream(oid, keyStream);
 	return true;
     }
 
-    public boolean writeCongestionDigest(long value)
-    {
-	prepareDb();
-
-	if(m_db == null)
-	    return false;
-
-	s_congestionControlMutex.writeLock().lock();
-
-	try
-	{
-	    m_db.beginTransactionNonExclusive();
-
-	    try
-	    {
-		ContentValues values = new ContentValues();
-
-		values.put
-		    ("digest",
-		     Base64.encodeToString(Miscellaneous.
-					   longToByteArray(value),
-					   Base64.DEFAULT));
-		m_db.insertOrThrow("congestion_control", null, values);
-		m_db.setTransactionSuccessful();
-	    }
-	    catch(Exception exception)
-	    {
-		if(exception.getMessage().toLowerCase().contains("unique"))
-		    return true;
-	    }
-	    finally
-	    {
-		m_db.endTransaction();
-	    }
-	}
-	finally
-	{
-	    s_congestionControlMutex.writeLock().unlock();
-	}
-
-	return false;
-    }
-
     public boolean writeNeighbor(Cryptography cryptography,
 				 String proxyIpAddress,
 				 String proxyPort,
@@ -2294,9 +3280,7 @@ public class Database extends SQLiteOpenHelper
 		    throw new Exception();
 		}
 
-		String str = Base64.encodeToString(bytes, Base64.DEFAULT);
-
-		values.put(sparseArray.get(i), str);
+		values.put(sparseArray.get(i), bytes);
 	    }
 	}
 	catch(Exception exception)
@@ -2345,10 +3329,7 @@ public class Database extends SQLiteOpenHelper
 	{
 	    ContentValues values = new ContentValues();
 
-	    values.put
-		("name",
-		 Base64.encodeToString(cryptography.etm(name.trim().getBytes()),
-				       Base64.DEFAULT));
+	    values.put("name", cryptography.etm(name.trim().getBytes()));
 	    m_db.update("siphash_ids", values, "oid = ?",
 			new String[] {String.valueOf(oid)});
 	    m_db.setTransactionSuccessful();
@@ -2362,6 +3343,11 @@ public class Database extends SQLiteOpenHelper
 	    m_db.endTransaction();
 	}
 
+	/*
+	** The directory is not indexed by the oids of siphash_ids.
+	*/
+
+	m_participantDirectory.invalidate();
 	return true;
     }
 
@@ -2425,22 +3411,9 @@ public class Database extends SQLiteOpenHelper
 			(sipHashId.trim().getBytes("UTF-8"));
 		    break;
 		default:
-		    byte salt[] = Cryptography.sha512
-			(sipHashId.trim().getBytes("UTF-8"));
-		    byte temporary[] = Cryptography.
-			pbkdf2(salt,
-			       sipHashId.toCharArray(),
-			       SIPHASH_STREAM_CREATION_ITERATION_COUNT,
-			       160); // SHA-1
-
-		    if(temporary != null)
-			bytes = cryptography.etm
-			    (Cryptography.
-			     pbkdf2(salt,
-				    new String(temporary).toCharArray(),
-				    1,
-				    768)); // 8 * (32 + 64) Bits
-
+		    bytes = cryptography.etm
+			(KeyDerivationService.getInstance().
+			 sipHashStream(cryptography, sipHashId));
 		    break;
 		}
 
@@ -2456,9 +3429,7 @@ public class Database extends SQLiteOpenHelper
 		    throw new Exception();
 		}
 
-		String str = Base64.encodeToString(bytes, Base64.DEFAULT);
-
-		values.put(sparseArray.get(i), str);
+		values.put(sparseArray.get(i), bytes);
 	    }
 
 	    sparseArray.clear();
@@ -2474,17 +3445,12 @@ public class Database extends SQLiteOpenHelper
 	{
 	    if(ok)
 	    {
-		if(m_db.
-		   update("siphash_ids",
+		if(update("siphash_ids",
 			  values,
 			  "siphash_id_digest = ?",
-			  new String[] {Base64.
-					encodeToString(cryptography.
-						       hmac(sipHashId.
-							    toLowerCase().
-							    trim().
-							    getBytes("UTF-8")),
-						       Base64.DEFAULT)}) <= 0)
+			  new Object[] {cryptography.
+					hmac(sipHashId.toLowerCase().trim().
+					     getBytes("UTF-8"))}) <= 0)
 		{
 		    if(m_db.replace("siphash_ids", null, values) == -1)
 			ok = false;
@@ -2502,6 +3468,9 @@ public class Database extends SQLiteOpenHelper
 	    m_db.endTransaction();
 	}
 
+	if(ok)
+	    m_participantDirectory.setName(sipHashId, name);
+
 	return ok;
     }
 
@@ -2515,17 +3484,45 @@ public class Database extends SQLiteOpenHelper
 
 	try
 	{
-	    cursor = m_db.rawQuery
+	    cursor = rawQuery
 		("SELECT stream FROM fire WHERE name_digest = ?",
-		 new String[] {Base64.
-			       encodeToString(cryptography.
-					      hmac(name.getBytes("ISO-8859-1")),
-					      Base64.DEFAULT)});
+		 new Object[] {cryptography.
+			       hmac(name.getBytes("ISO-8859-1"))});
+
+	    if(cursor != null && cursor.moveToFirst())
+		bytes = cryptography.mtd(cursor.getBlob(0));
+	}
+	catch(Exception exception)
+	{
+	    bytes = null;
+	}
+	finally
+	{
+	    if(cursor != null)
+		cursor.close();
+	}
+
+	return bytes;
+    }
+
+    public byte[] readDerivedKey(Cryptography cryptography, byte digest[])
+    {
+	prepareDb();
+
+	if(cryptography == null || digest == null || m_db == null)
+	    return null;
+
+	Cursor cursor = null;
+	byte bytes[] = null;
+
+	try
+	{
+	    cursor = rawQuery
+		("SELECT value FROM derived_keys WHERE digest = ?",
+		 new Object[] {digest});
 
 	    if(cursor != null && cursor.moveToFirst())
-		bytes = cryptography.mtd
-		    (Base64.decode(cursor.getString(0).getBytes(),
-				   Base64.DEFAULT));
+		bytes = cryptography.mtd(cursor.getBlob(0));
 	}
 	catch(Exception exception)
 	{
@@ -2558,9 +3555,7 @@ public class Database extends SQLiteOpenHelper
 		 new String[] {String.valueOf(oid)});
 
 	    if(cursor != null && cursor.moveToFirst())
-		bytes = cryptography.mtd
-		    (Base64.decode(cursor.getString(0).getBytes(),
-				   Base64.DEFAULT));
+		bytes = cryptography.mtd(cursor.getBlob(0));
 	}
 	catch(Exception exception)
 	{
@@ -2583,24 +3578,31 @@ public class Database extends SQLiteOpenHelper
 	if(cryptography == null || m_db == null)
 	    return null;
 
+	if(prepareParticipantDirectory(cryptography))
+	{
+	    ParticipantDirectory.Entry entry = m_participantDirectory.
+		findBySipHashId(sipHashId);
+
+	    if(entry != null)
+		return entry.m_keyStream;
+	    else if(m_participantDirectory.isComplete())
+		return null;
+	}
+
 	Cursor cursor = null;
 	byte bytes[] = null;
 
 	try
 	{
-	    cursor = m_db.rawQuery
+	    cursor = rawQuery
 		("SELECT keystream FROM participants " +
 		 "WHERE siphash_id_digest = ?",
-		 new String[] {Base64.
-			       encodeToString(cryptography.
-					      hmac(sipHashId.toLowerCase().
-						   trim().getBytes("UTF-8")),
-					      Base64.DEFAULT)});
+		 new Object[] {cryptography.
+			       hmac(sipHashId.toLowerCase().trim().
+				    getBytes("UTF-8"))});
 
 	    if(cursor != null && cursor.moveToFirst())
-		bytes = cryptography.mtd
-		    (Base64.decode(cursor.getString(0).getBytes(),
-				   Base64.DEFAULT));
+		bytes = cryptography.mtd(cursor.getBlob(0));
 	}
 	catch(Exception exception)
 	{
@@ -2626,20 +3628,29 @@ public class Database extends SQLiteOpenHelper
 	   m_db == null)
 	    return null;
 
+	if(prepareParticipantDirectory(cryptography))
+	{
+	    ParticipantDirectory.Entry entry = m_participantDirectory.
+		findByEncryptionKeyDigest(digest);
+
+	    if(entry != null)
+		return entry.m_keyStream;
+	    else if(m_participantDirectory.isComplete())
+		return null;
+	}
+
 	Cursor cursor = null;
 	byte bytes[] = null;
 
 	try
 	{
-	    cursor = m_db.rawQuery
+	    cursor = rawQuery
 		("SELECT keystream FROM participants " +
 		 "WHERE encryption_public_key_digest = ?",
-		 new String[] {Base64.encodeToString(digest, Base64.DEFAULT)});
+		 new Object[] {digest});
 
 	    if(cursor != null && cursor.moveToFirst())
-		bytes = cryptography.mtd
-		    (Base64.decode(cursor.getString(0).getBytes(),
-				   Base64.DEFAULT));
+		bytes = cryptography.mtd(cursor.getBlob(0));
 	}
 	catch(Exception exception)
 	{
@@ -2671,24 +3682,32 @@ public class Database extends SQLiteOpenHelper
 	   m_db == null)
 	    return null;
 
+	if(prepareKeyStreamRing(cryptography))
+	{
+	    byte keyStream[] = m_keyStreamRing.match
+		(digest, bytes, 0, bytes.length - 128, array);
+
+	    if(keyStream != null || m_keyStreamRing.isComplete(digest))
+		return keyStream;
+	}
+
 	Cursor cursor = null;
 	byte keyStream[] = null;
 
 	try
 	{
-	    cursor = m_db.rawQuery
+	    cursor = rawQuery
 		("SELECT keystream FROM participants_keys " +
-		 "WHERE siphash_id_digest IN " +
+		 "WHERE siphash_id_digest = " +
 		 "(SELECT siphash_id_digest FROM participants WHERE " +
 		 "encryption_public_key_digest = ?) ORDER BY timestamp DESC",
-		 new String[] {Base64.encodeToString(digest, Base64.DEFAULT)});
+		 new Object[] {digest});
 
 	    if(cursor != null && cursor.moveToFirst())
 		while(!cursor.isAfterLast())
 		{
-		    keyStream = cryptography.mtd
-			(Base64.decode(cursor.getString(0).getBytes(),
-				       Base64.DEFAULT));
+		    keyStream = cryptography.mtd(cursor.getBlob(0));
+		    cursor.moveToNext();
 
 		    if(keyStream == null)
 			continue;
@@ -2700,7 +3719,7 @@ public class Database extends SQLiteOpenHelper
 		    if(Cryptography.memcmp(array, sha512))
 			break;
 
-		    cursor.moveToNext();
+		    keyStream = null;
 		}
 	}
 	catch(Exception exception)
@@ -2716,6 +3735,37 @@ public class Database extends SQLiteOpenHelper
 	return keyStream;
     }
 
+    public byte[] readSettingBytes(Cryptography cryptography, String name)
+    {
+	/*
+	** The value must be encoded in base-64.
+	*/
+
+	try
+	{
+	    return Base64.decode(readSetting(cryptography, name).getBytes(),
+				 Base64.DEFAULT);
+	}
+	catch(Exception exception)
+	{
+	    return null;
+	}
+    }
+
+    public int readSettingInt(Cryptography cryptography,
+			      String name,
+			      int defaultValue)
+    {
+	try
+	{
+	    return Integer.parseInt(readSetting(cryptography, name));
+	}
+	catch(Exception exception)
+	{
+	    return defaultValue;
+	}
+    }
+
     public long count(String table)
     {
 	prepareDb();
@@ -2766,13 +3816,11 @@ public class Database extends SQLiteOpenHelper
 
 	    stringBuilder.append("SELECT COUNT(*) FROM participants_messages ");
 	    stringBuilder.append("WHERE siphash_id_digest = ?");
-	    cursor = m_db.rawQuery
+	    cursor = rawQuery
 		(stringBuilder.toString(),
-		 new String[] {Base64.
-			       encodeToString(cryptography.
-					      hmac(sipHashId.toLowerCase().
-						   trim().getBytes("UTF-8")),
-					      Base64.DEFAULT)});
+		 new Object[] {cryptography.
+			       hmac(sipHashId.toLowerCase().trim().
+				    getBytes("UTF-8"))});
 
 	    if(cursor != null && cursor.moveToFirst())
 		count = cursor.getLong(0);
@@ -2810,28 +3858,31 @@ public class Database extends SQLiteOpenHelper
 	if(m_db == null)
 	    return;
 
+	ArrayList<Integer> oids = new ArrayList<> ();
 	Cursor cursor = null;
 
-	m_db.beginTransactionNonExclusive();
-
 	try
 	{
-	    cursor = m_db.rawQuery
-		("DELETE FROM outbound_queue WHERE neighbor_oid " +
-		 "NOT IN (SELECT oid FROM neighbors)",
-		 null);
-	    m_db.setTransactionSuccessful();
+	    cursor = m_db.rawQuery("SELECT oid FROM neighbors", null);
+
+	    if(cursor != null && cursor.moveToFirst())
+		while(!cursor.isAfterLast())
+		{
+		    oids.add(cursor.getInt(0));
+		    cursor.moveToNext();
+		}
 	}
 	catch(Exception exception)
         {
+	    return;
 	}
 	finally
 	{
 	    if(cursor != null)
 		cursor.close();
-
-	    m_db.endTransaction();
 	}
+
+	OutboundLog.getInstance().retain(oids);
     }
 
     public void cleanDanglingParticipants()
@@ -2863,6 +3914,9 @@ public class Database extends SQLiteOpenHelper
 
 	    m_db.endTransaction();
 	}
+
+	m_keyStreamRing.invalidate();
+	m_participantDirectory.invalidate();
     }
 
     public void cleanNeighborStatistics(Cryptography cryptography)
@@ -2909,6 +3963,14 @@ public class Database extends SQLiteOpenHelper
 	{
 	    m_db.endTransaction();
 	}
+
+	if(table.equals("participants") ||
+	   table.equals("participants_keys") ||
+	   table.equals("siphash_ids"))
+	{
+	    m_keyStreamRing.invalidate();
+	    m_participantDirectory.invalidate();
+	}
     }
 
     public void deleteParticipantMessage(Cryptography cryptography,
@@ -2924,14 +3986,40 @@ public class Database extends SQLiteOpenHelper
 
 	try
 	{
-	    m_db.delete
+	    delete
 		("participants_messages", "oid = ? AND siphash_id_digest = ?",
-		 new String[] {String.valueOf(oid),
-			       Base64.encodeToString(cryptography.
-						     hmac(sipHashId.
-							  toLowerCase().trim().
-							  getBytes("UTF-8")),
-						     Base64.DEFAULT)});
+		 new Object[] {oid,
+			       cryptography.
+			       hmac(sipHashId.toLowerCase().trim().
+				    getBytes("UTF-8"))});
+	    m_db.setTransactionSuccessful();
+	}
+	catch(Exception exception)
+	{
+	}
+	finally
+	{
+	    m_db.endTransaction();
+	}
+    }
+
+    public void deleteParticipantMessages(Cryptography cryptography,
+					  String sipHashId)
+    {
+	prepareDb();
+
+	if(cryptography == null || m_db == null)
+	    return;
+
+	m_db.beginTransactionNonExclusive();
+
+	try
+	{
+	    delete
+		("participants_messages", "siphash_id_digest = ?",
+		 new Object[] {cryptography.
+			       hmac(sipHashId.toLowerCase().trim().
+				    getBytes("UTF-8"))});
 	    m_db.setTransactionSuccessful();
 	}
 	catch(Exception exception)
@@ -2939,70 +4027,203 @@ public class Database extends SQLiteOpenHelper
 	}
 	finally
 	{
-	    m_db.endTransaction();
+	    m_db.endTransaction();
+	}
+    }
+
+    public void loadKeyStreamRing(Cryptography cryptography)
+    {
+	prepareDb();
+
+	if(cryptography == null || m_db == null)
+	    return;
+
+	if(!m_keyStreamRing.beginLoad())
+	    return;
+
+	Cursor cursor = null;
+	byte digests[][] = null;
+	byte keyStreams[][] = null;
+	long generation = m_keyStreamRing.generation();
+	long timestamps[] = null;
+
+	try
+	{
+	    cursor = m_db.rawQuery
+		("SELECT p.encryption_public_key_digest, " +
+		 "k.keystream, " +
+		 "STRFTIME('%s', k.timestamp) " +
+		 "FROM participants_keys k, participants p " +
+		 "WHERE k.siphash_id_digest = p.siphash_id_digest " +
+		 "ORDER BY k.timestamp", null);
+
+	    if(cursor != null)
+	    {
+		digests = new byte[cursor.getCount()][];
+		keyStreams = new byte[cursor.getCount()][];
+		timestamps = new long[cursor.getCount()];
+
+		int i = 0;
+
+		if(cursor.moveToFirst())
+		    while(!cursor.isAfterLast() && i < digests.length)
+		    {
+			digests[i] = cursor.getBlob(0);
+			keyStreams[i] = cryptography.mtd(cursor.getBlob(1));
+			timestamps[i] = 1000L * cursor.getLong(2);
+			cursor.moveToNext();
+			i += 1;
+		    }
+	    }
+	}
+	catch(Exception exception)
+	{
+	    digests = null;
+	}
+	finally
+	{
+	    if(cursor != null)
+		cursor.close();
+
+	    m_keyStreamRing.endLoad
+		(digests, keyStreams, timestamps, generation);
 	}
     }
 
-    public void deleteParticipantMessages(Cryptography cryptography,
-					  String sipHashId)
+    public void loadSettings(Cryptography cryptography)
     {
+	/*
+	** Load every setting. Encrypted settings are loaded only if
+	** cryptography is provided.
+	*/
+
 	prepareDb();
 
-	if(cryptography == null || m_db == null)
+	if(m_db == null)
 	    return;
 
-	m_db.beginTransactionNonExclusive();
+	if(!m_settingsCache.beginLoad())
+	    return;
+
+	Cursor cursor = null;
+	HashMap<String, String> encrypted = null;
+	HashMap<String, String> plaintext = new HashMap<> ();
+	boolean complete = true;
+	long generation = m_settingsCache.generation();
+
+	if(cryptography != null)
+	    encrypted = new HashMap<> ();
 
 	try
 	{
-	    m_db.delete
-		("participants_messages", "siphash_id_digest = ?",
-		 new String[] {Base64.
-			       encodeToString(cryptography.
-					      hmac(sipHashId.
-						   toLowerCase().trim().
-						   getBytes("UTF-8")),
-					      Base64.DEFAULT)});
-	    m_db.setTransactionSuccessful();
+	    cursor = m_db.rawQuery
+		("SELECT name, name_digest, value FROM settings", null);
+
+	    if(cursor != null && cursor.moveToFirst())
+		while(!cursor.isAfterLast())
+		{
+		    /*
+		    ** Plaintext settings are stored as TEXT.
+		    */
+
+		    if(cursor.getType(0) == Cursor.FIELD_TYPE_STRING &&
+		       cursor.getString(0).equals(cursor.getString(1)))
+			plaintext.put
+			    (cursor.getString(0), cursor.getString(2));
+		    else if(encrypted != null)
+			try
+			{
+			    byte a[] = cryptography.mtd(cursor.getBlob(0));
+			    byte b[] = cryptography.mtd(cursor.getBlob(2));
+
+			    if(a != null && b != null)
+				encrypted.put(new String(a), new String(b));
+			    else
+				complete = false;
+			}
+			catch(Exception exception)
+			{
+			    complete = false;
+			}
+
+		    cursor.moveToNext();
+		}
 	}
 	catch(Exception exception)
 	{
+	    plaintext = null;
 	}
 	finally
 	{
-	    m_db.endTransaction();
+	    if(cursor != null)
+		cursor.close();
+
+	    m_settingsCache.endLoad
+		(plaintext, encrypted, complete, generation);
 	}
     }
 
-    public void enqueueOutboundMessage(Cryptography cryptography,
-				       String message,
-				       int oid)
+    public void loadParticipantDirectory(Cryptography cryptography)
     {
 	prepareDb();
 
-	if(cryptography == null || m_db == null || message.trim().isEmpty())
+	if(cryptography == null || m_db == null)
 	    return;
 
-	m_db.beginTransactionNonExclusive();
+	if(!m_participantDirectory.beginLoad())
+	    /*
+	    ** Another thread is loading the directory.
+	    */
+
+	    return;
+
+	ArrayList<ParticipantDirectory.Entry> arrayList = null;
+	Cursor cursor = null;
+	boolean complete = true;
+	long generation = m_participantDirectory.generation();
 
 	try
 	{
-	    ContentValues values = new ContentValues();
+	    cursor = m_db.rawQuery
+		("SELECT " +
+		 "(SELECT s.name FROM siphash_ids s " +
+		 "WHERE p.siphash_id_digest = s.siphash_id_digest), " +
+		 "p.encryption_public_key, " +
+		 "p.encryption_public_key_digest, " +
+		 "p.keystream, " +
+		 "p.last_status_timestamp, " +
+		 "p.options, " +
+		 "p.signature_public_key, " +
+		 "p.signature_public_key_digest, " +
+		 "p.siphash_id, " +
+		 "p.oid " +
+		 "FROM participants p", null);
+	    arrayList = new ArrayList<> ();
 
-	    values.put
-		("message",
-		 Base64.encodeToString(cryptography.etm(message.getBytes()),
-				       Base64.DEFAULT));
-	    values.put("neighbor_oid", oid);
-	    m_db.insert("outbound_queue", null, values);
-	    m_db.setTransactionSuccessful();
+	    if(cursor != null && cursor.moveToFirst())
+		while(!cursor.isAfterLast())
+		{
+		    ParticipantDirectory.Entry entry =
+			participantDirectoryEntry(cryptography, cursor);
+
+		    if(entry != null)
+			arrayList.add(entry);
+		    else
+			complete = false;
+
+		    cursor.moveToNext();
+		}
 	}
 	catch(Exception exception)
-        {
+	{
+	    arrayList = null;
 	}
 	finally
 	{
-	    m_db.endTransaction();
+	    if(cursor != null)
+		cursor.close();
+
+	    m_participantDirectory.endLoad(arrayList, complete, generation);
 	}
     }
 
@@ -3023,9 +4244,7 @@ public class Database extends SQLiteOpenHelper
 
 	    values.put
 		("status_control",
-		 Base64.encodeToString(cryptography.
-				       etm(controlStatus.trim().getBytes()),
-				       Base64.DEFAULT));
+		 cryptography.etm(controlStatus.trim().getBytes()));
 	    m_db.update("neighbors", values, "oid = ?", new String[] {oid});
 	    m_db.setTransactionSuccessful();
 	}
@@ -3055,14 +4274,10 @@ public class Database extends SQLiteOpenHelper
 
 	    if(certificate == null)
 		values.put
-		    ("remote_certificate",
-		     Base64.encodeToString(cryptography.etm("".getBytes()),
-					   Base64.DEFAULT));
+		    ("remote_certificate", cryptography.etm("".getBytes()));
 	    else
 		values.put
-		    ("remote_certificate",
-		     Base64.encodeToString(cryptography.etm(certificate),
-					   Base64.DEFAULT));
+		    ("remote_certificate", cryptography.etm(certificate));
 
 	    m_db.update("neighbors", values, "oid = ?", new String[] {oid});
 	    m_db.setTransactionSuccessful();
@@ -3147,6 +4362,23 @@ public class Database extends SQLiteOpenHelper
 	{
 	}
 
+	/*
+	** Create the derived_keys table.
+	*/
+
+	str = "CREATE TABLE IF NOT EXISTS derived_keys (" +
+	    "digest TEXT NOT NULL PRIMARY KEY, " +
+	    "timestamp DATETIME DEFAULT CURRENT_TIMESTAMP, " +
+	    "value TEXT NOT NULL)";
+
+	try
+	{
+	    db.execSQL(str);
+	}
+	catch(Exception exception)
+	{
+	}
+
 	/*
 	** Create the fire table.
 	*/
@@ -3223,25 +4455,6 @@ public class Database extends SQLiteOpenHelper
 	{
 	}
 
-	/*
-	** Create the outbound_queue table.
-	** A foreign-key constraint on the oid of the neighbors
-	** table cannot be assigned.
-	*/
-
-	str = "CREATE TABLE IF NOT EXISTS outbound_queue (" +
-	    "message TEXT NOT NULL, " +
-	    "neighbor_oid INTEGER NOT NULL, " +
-	    "PRIMARY KEY (message, neighbor_oid))";
-
-	try
-	{
-	    db.execSQL(str);
-	}
-	catch(Exception exception)
-	{
-	}
-
 	/*
 	** Create the participants table.
 	*/
@@ -3338,6 +4551,8 @@ public class Database extends SQLiteOpenHelper
 	catch(Exception exception)
 	{
 	}
+
+	createIndexes(db);
     }
 
     @Override
@@ -3346,9 +4561,32 @@ public class Database extends SQLiteOpenHelper
         onUpgrade(db, oldVersion, newVersion);
     }
 
+    @Override
+    public void onOpen(SQLiteDatabase db)
+    {
+	/*
+	** Resume an incomplete migration of the outbound queue.
+	*/
+
+	if(tableExists(db, "outbound_queue_legacy") &&
+	   !migrateLegacyOutboundQueue(db))
+	    return;
+
+	if(tableExists(db, "outbound_queue"))
+	    migrateOutboundQueue(db);
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
     {
+	/*
+	** Apply each migration in order. onCreate() then creates
+	** the missing tables. SQLiteOpenHelper provides the transaction.
+	*/
+
+	for(int version = oldVersion + 1; version <= newVersion; version++)
+	    migrate(db, version);
+
         onCreate(db);
     }
 
@@ -3364,14 +4602,16 @@ public class Database extends SQLiteOpenHelper
 	try
 	{
 	    /*
-	    ** The bound string value must be cast to an integer.
+	    ** The timestamp is compared directly so that the index
+	    ** may be used.
 	    */
 
 	    m_db.delete
 		("congestion_control",
-		 "ABS(STRFTIME('%s', 'now') - STRFTIME('%s', timestamp)) > " +
-		 "CAST(? AS INTEGER)",
-		 new String[] {String.valueOf(lifetime)});
+		 "timestamp < DATETIME('now', ?) OR " +
+		 "timestamp > DATETIME('now', ?)",
+		 new String[] {"-" + lifetime + " seconds",
+			       "+" + lifetime + " seconds"});
 	    m_db.setTransactionSuccessful();
 	}
 	catch(Exception exception)
@@ -3385,25 +4625,12 @@ public class Database extends SQLiteOpenHelper
 
     public void purgeNeighborQueue(String oid)
     {
-	prepareDb();
-
-	if(m_db == null)
-	    return;
-
-	m_db.beginTransactionNonExclusive();
-
 	try
 	{
-	    m_db.delete
-		("outbound_queue", "neighbor_oid = ?", new String[] {oid});
-	    m_db.setTransactionSuccessful();
+	    OutboundLog.getInstance().remove(Integer.parseInt(oid));
 	}
 	catch(Exception exception)
-        {
-	}
-	finally
 	{
-	    m_db.endTransaction();
 	}
     }
 
@@ -3419,14 +4646,16 @@ public class Database extends SQLiteOpenHelper
 	try
 	{
 	    /*
-	    ** The bound string value must be cast to an integer.
+	    ** The timestamp is compared directly so that the index
+	    ** may be used.
 	    */
 
 	    m_db.delete
 		("participants_keys",
-		 "ABS(STRFTIME('%s', 'now') - STRFTIME('%s', timestamp)) > " +
-		 "CAST(? AS INTEGER)",
-		 new String[] {String.valueOf(lifetime)});
+		 "timestamp < DATETIME('now', ?) OR " +
+		 "timestamp > DATETIME('now', ?)",
+		 new String[] {"-" + lifetime + " seconds",
+			       "+" + lifetime + " seconds"});
 	    m_db.setTransactionSuccessful();
 	}
 	catch(Exception exception)
@@ -3436,24 +4665,32 @@ public class Database extends SQLiteOpenHelper
 	{
 	    m_db.endTransaction();
 	}
+
+	m_keyStreamRing.evict(System.currentTimeMillis() - 1000L * lifetime);
     }
 
     public void reset()
     {
-	prepareDb();
+	DatabaseWriter writer = writer();
 
-	if(m_db == null)
+	if(writer == null)
 	    return;
 
+	/*
+	** Apply the pending writes before the tables are cleared.
+	*/
+
+	writer.flush();
+
 	m_db.beginTransactionNonExclusive();
 
 	try
 	{
 	    m_db.delete("congestion_control", null, null);
+	    m_db.delete("derived_keys", null, null);
 	    m_db.delete("fire", null, null);
 	    m_db.delete("log", null, null);
 	    m_db.delete("neighbors", null, null);
-	    m_db.delete("outbound_queue", null, null);
 	    m_db.delete("participants", null, null);
 	    m_db.delete("participants_keys", null, null);
 	    m_db.delete("participants_messages", null, null);
@@ -3468,6 +4705,17 @@ public class Database extends SQLiteOpenHelper
 	{
 	    m_db.endTransaction();
 	}
+
+	OutboundLog.getInstance().clear();
+	m_keyStreamRing.invalidate();
+	m_participantDirectory.invalidate();
+	m_settingsCache.invalidate();
+
+	synchronized(this)
+	{
+	    m_atRestMigrationOid = 0;
+	    m_atRestMigrationTable = 0;
+	}
     }
 
     public void resetAndDrop()
@@ -3479,10 +4727,10 @@ public class Database extends SQLiteOpenHelper
 
 	String strings[] = new String[]
 	    {"DROP TABLE IF EXISTS congestion_control",
+	     "DROP TABLE IF EXISTS derived_keys",
 	     "DROP TABLE IF EXISTS fire",
 	     "DROP TABLE IF EXISTS log",
 	     "DROP TABLE IF EXISTS neighbors",
-	     "DROP TABLE IF EXISTS outbound_queue",
 	     "DROP TABLE IF EXISTS participants",
 	     "DROP TABLE IF EXISTS participants_keys",
 	     "DROP TABLE IF EXISTS participants_messages",
@@ -3525,24 +4773,12 @@ public class Database extends SQLiteOpenHelper
 	    byte bytes[] = Miscellaneous.joinByteArrays
 		(encryptionKey, keyStream);
 
-	    values.put
-		("name",
-		 Base64.encodeToString(cryptography.
-				       etm(name.getBytes("ISO-8859-1")),
-				       Base64.DEFAULT));
+	    values.put("name", cryptography.etm(name.getBytes("ISO-8859-1")));
 	    values.put
 		("name_digest",
-		 Base64.encodeToString(cryptography.
-				       hmac(name.getBytes("ISO-8859-1")),
-				       Base64.DEFAULT));
-	    values.put
-		("stream",
-		 Base64.encodeToString(cryptography.etm(bytes),
-				       Base64.DEFAULT));
-	    values.put
-		("stream_digest",
-		 Base64.encodeToString(cryptography.hmac(bytes),
-				       Base64.DEFAULT));
+		 cryptography.hmac(name.getBytes("ISO-8859-1")));
+	    values.put("stream", cryptography.etm(bytes));
+	    values.put("stream_digest", cryptography.hmac(bytes));
 	    m_db.insert("fire", null, values);
 	    m_db.setTransactionSuccessful();
 	}
@@ -3567,12 +4803,13 @@ public class Database extends SQLiteOpenHelper
 					String uptime,
 					String oid)
     {
-	prepareDb();
-
-	if(cryptography == null || m_db == null)
+	if(cryptography == null)
 	    return;
 
-	m_db.beginTransactionNonExclusive();
+	DatabaseWriter writer = writer();
+
+	if(writer == null)
+	    return;
 
 	try
 	{
@@ -3590,69 +4827,33 @@ public class Database extends SQLiteOpenHelper
 		uptime = "";
 	    }
 
+	    values.put("bytes_read", cryptography.etm(bytesRead.getBytes()));
 	    values.put
-		("bytes_read",
-		 Base64.encodeToString(cryptography.etm(bytesRead.getBytes()),
-				       Base64.DEFAULT));
-	    values.put
-		("bytes_written",
-		 Base64.encodeToString(cryptography.etm(bytesWritten.
-							getBytes()),
-				       Base64.DEFAULT));
+		("bytes_written", cryptography.etm(bytesWritten.getBytes()));
 	    values.put
 		("echo_queue_size",
-		 Base64.encodeToString(cryptography.etm(echoQueueSize.
-							getBytes()),
-				       Base64.DEFAULT));
-	    values.put
-		("last_error",
-		 Base64.encodeToString(cryptography.etm(error.getBytes()),
-				       Base64.DEFAULT));
+		 cryptography.etm(echoQueueSize.getBytes()));
+	    values.put("last_error", cryptography.etm(error.getBytes()));
 	    values.put
 		("local_ip_address",
-		 Base64.encodeToString(cryptography.
-				       etm(ipAddress.trim().getBytes()),
-				       Base64.DEFAULT));
+		 cryptography.etm(ipAddress.trim().getBytes()));
 	    values.put
 		("local_ip_address_digest",
-		 Base64.encodeToString(cryptography.
-				       hmac(ipAddress.trim().getBytes()),
-				       Base64.DEFAULT));
+		 cryptography.hmac(ipAddress.trim().getBytes()));
 	    values.put
-		("local_port",
-		 Base64.encodeToString(cryptography.
-				       etm(ipPort.trim().getBytes()),
-				       Base64.DEFAULT));
+		("local_port", cryptography.etm(ipPort.trim().getBytes()));
 	    values.put
 		("local_port_digest",
-		 Base64.encodeToString(cryptography.
-				       hmac(ipPort.trim().getBytes()),
-				       Base64.DEFAULT));
-	    values.put
-		("session_cipher",
-		 Base64.encodeToString(cryptography.etm(sessionCipher.
-							getBytes()),
-				       Base64.DEFAULT));
+		 cryptography.hmac(ipPort.trim().getBytes()));
 	    values.put
-		("status",
-		 Base64.encodeToString(cryptography.
-				       etm(status.trim().getBytes()),
-				       Base64.DEFAULT));
-	    values.put
-		("uptime",
-		 Base64.encodeToString(cryptography.
-				       etm(uptime.trim().getBytes()),
-				       Base64.DEFAULT));
-	    m_db.update("neighbors", values, "oid = ?", new String[] {oid});
-	    m_db.setTransactionSuccessful();
+		("session_cipher", cryptography.etm(sessionCipher.getBytes()));
+	    values.put("status", cryptography.etm(status.trim().getBytes()));
+	    values.put("uptime", cryptography.etm(uptime.trim().getBytes()));
+	    writer.update("neighbors", values, "oid = ?", new String[] {oid});
 	}
 	catch(Exception exception)
 	{
 	}
-	finally
-	{
-	    m_db.endTransaction();
-	}
     }
 
     public void updateParticipantLastTimestamp(Cryptography cryptography,
@@ -3663,6 +4864,9 @@ public class Database extends SQLiteOpenHelper
 	if(cryptography == null || m_db == null)
 	    return;
 
+	boolean ok = false;
+	long timestamp = System.currentTimeMillis();
+
 	m_db.beginTransactionNonExclusive();
 
 	try
@@ -3671,20 +4875,13 @@ public class Database extends SQLiteOpenHelper
 
 	    values.put
 		("last_status_timestamp",
-		 Base64.
-		 encodeToString(cryptography.
-				etm(Miscellaneous.
-				    longToByteArray(System.
-						    currentTimeMillis())),
-				Base64.DEFAULT));
-	    m_db.update("participants", values, "siphash_id_digest = ?",
-			new String[] {Base64.
-				      encodeToString(cryptography.
-						     hmac(sipHashId.
-							  toLowerCase().trim().
-							  getBytes("UTF-8")),
-						     Base64.DEFAULT)});
+		 cryptography.etm(Miscellaneous.longToByteArray(timestamp)));
+	    update("participants", values, "siphash_id_digest = ?",
+		   new Object[] {cryptography.
+				 hmac(sipHashId.toLowerCase().trim().
+				      getBytes("UTF-8"))});
 	    m_db.setTransactionSuccessful();
+	    ok = true;
 	}
 	catch(Exception exception)
         {
@@ -3693,6 +4890,10 @@ public class Database extends SQLiteOpenHelper
 	{
 	    m_db.endTransaction();
 	}
+
+	if(ok)
+	    m_participantDirectory.setLastStatusTimestamp
+		(sipHashId, timestamp);
     }
 
     public void updateParticipantLastTimestamp(Cryptography cryptography,
@@ -3706,6 +4907,9 @@ public class Database extends SQLiteOpenHelper
 	   m_db == null)
 	    return;
 
+	boolean ok = false;
+	long timestamp = System.currentTimeMillis();
+
 	m_db.beginTransactionNonExclusive();
 
 	try
@@ -3714,18 +4918,13 @@ public class Database extends SQLiteOpenHelper
 
 	    values.put
 		("last_status_timestamp",
-		 Base64.
-		 encodeToString(cryptography.
-				etm(Miscellaneous.
-				    longToByteArray(System.
-						    currentTimeMillis())),
-				Base64.DEFAULT));
-	    m_db.update("participants",
-			values,
-			"encryption_public_key_digest = ?",
-			new String[] {Base64.encodeToString(digest,
-							    Base64.DEFAULT)});
+		 cryptography.etm(Miscellaneous.longToByteArray(timestamp)));
+	    update("participants",
+		   values,
+		   "encryption_public_key_digest = ?",
+		   new Object[] {digest});
 	    m_db.setTransactionSuccessful();
+	    ok = true;
 	}
 	catch(Exception exception)
         {
@@ -3734,6 +4933,9 @@ public class Database extends SQLiteOpenHelper
 	{
 	    m_db.endTransaction();
 	}
+
+	if(ok)
+	    m_participantDirectory.setLastStatusTimestamp(digest, timestamp);
     }
 
     public void writeCallKeys(Cryptography cryptography,
@@ -3748,45 +4950,33 @@ public class Database extends SQLiteOpenHelper
 	   m_db == null)
 	    return;
 
+	boolean ok = false;
+	long timestamp = System.currentTimeMillis();
+
 	m_db.beginTransactionNonExclusive();
 
 	try
 	{
 	    ContentValues values = new ContentValues();
 
-	    values.put
-		("keystream",
-		 Base64.encodeToString(cryptography.etm(keyStream),
-				       Base64.DEFAULT));
+	    values.put("keystream", cryptography.etm(keyStream));
 	    values.put
 		("last_status_timestamp",
-		 Base64.
-		 encodeToString(cryptography.
-				etm(Miscellaneous.
-				    longToByteArray(System.
-						    currentTimeMillis())),
-				Base64.DEFAULT));
-	    m_db.update("participants", values, "siphash_id_digest = ?",
-			new String[] {Base64.
-				      encodeToString(cryptography.
-						     hmac(sipHashId.
-							  toLowerCase().trim().
-							  getBytes("UTF-8")),
-						     Base64.DEFAULT)});
+		 cryptography.etm(Miscellaneous.longToByteArray(timestamp)));
+	    update("participants", values, "siphash_id_digest = ?",
+		   new Object[] {cryptography.
+				 hmac(sipHashId.toLowerCase().trim().
+				      getBytes("UTF-8"))});
 	    values.clear();
-	    values.put("keystream",
-		       Base64.encodeToString(cryptography.etm(keyStream),
-					     Base64.DEFAULT));
-	    values.put("keystream_digest",
-		       Base64.encodeToString(cryptography.hmac(keyStream),
-					     Base64.DEFAULT));
-	    values.put("siphash_id_digest",
-		       Base64.encodeToString(cryptography.
-					     hmac(sipHashId.toLowerCase().
-						  trim().getBytes("UTF-8")),
-					     Base64.DEFAULT));
+	    values.put("keystream", cryptography.etm(keyStream));
+	    values.put("keystream_digest", cryptography.hmac(keyStream));
+	    values.put
+		("siphash_id_digest",
+		 cryptography.hmac(sipHashId.toLowerCase().trim().
+				   getBytes("UTF-8")));
 	    m_db.insert("participants_keys", null, values);
 	    m_db.setTransactionSuccessful();
+	    ok = true;
 	}
 	catch(Exception exception)
         {
@@ -3795,44 +4985,69 @@ public class Database extends SQLiteOpenHelper
 	{
 	    m_db.endTransaction();
 	}
+
+	if(ok)
+	{
+	    ParticipantDirectory.Entry entry = m_participantDirectory.
+		findBySipHashId(sipHashId);
+
+	    if(entry != null)
+		m_keyStreamRing.add
+		    (entry.m_encryptionKeyDigest, keyStream, timestamp);
+	    else
+		m_keyStreamRing.invalidate();
+
+	    m_participantDirectory.setKeyStream
+		(sipHashId, keyStream, timestamp);
+	}
     }
 
-    public void writeLog(String event)
+    public void writeCongestionDigests(final long values[])
     {
-	prepareDb();
-
-	if(m_db == null)
+	if(values == null || values.length == 0)
 	    return;
 
-	m_db.beginTransactionNonExclusive();
+	DatabaseWriter writer = writer();
 
-	try
-	{
-	    ContentValues values = new ContentValues();
+	if(writer == null)
+	    return;
 
-	    values.put("event", event.trim());
-	    m_db.insert("log", null, values);
-	    m_db.setTransactionSuccessful();
-	}
-	catch(Exception exception)
-        {
-	}
-	finally
+	writer.submit(new DatabaseWriter.Command()
 	{
-	    m_db.endTransaction();
-	}
+	    @Override
+	    public boolean execute(SQLiteDatabase db)
+	    {
+		SQLiteStatement statement = db.compileStatement
+		    ("INSERT OR IGNORE INTO congestion_control (digest) " +
+		     "VALUES (?)");
+
+		try
+		{
+		    for(long value : values)
+		    {
+			statement.bindBlob
+			    (1, Miscellaneous.longToByteArray(value));
+			statement.executeInsert();
+		    }
+		}
+		finally
+		{
+		    statement.close();
+		}
+
+		return true;
+	    }
+	});
     }
 
-    public void writeParticipantMessage(Cryptography cryptography,
-					String fromSmokeStack,
-					String message,
-					String sipHashId,
-					byte attachment[],
-					long timestamp)
+    public void writeDerivedKey(Cryptography cryptography,
+				byte digest[],
+				byte key[])
     {
 	prepareDb();
 
-	if(cryptography == null || m_db == null)
+	if(cryptography == null || digest == null || key == null ||
+	   m_db == null)
 	    return;
 
 	m_db.beginTransactionNonExclusive();
@@ -3840,55 +5055,14 @@ public class Database extends SQLiteOpenHelper
 	try
 	{
 	    ContentValues values = new ContentValues();
+	    byte bytes[] = cryptography.etm(key);
 
-	    if(attachment == null)
-		values.put
-		    ("attachment",
-		     Base64.encodeToString(cryptography.etm(new byte[] {0}),
-					   Base64.DEFAULT));
-	    else
-		values.put
-		    ("attachment",
-		     Base64.encodeToString(cryptography.etm(attachment),
-					   Base64.DEFAULT));
-
-	    values.put
-		("from_smokestack",
-		 Base64.encodeToString(cryptography.etm(fromSmokeStack.
-							getBytes()),
-				       Base64.DEFAULT));
-	    values.put
-		("message",
-		 Base64.encodeToString(cryptography.etm(message.getBytes()),
-				       Base64.DEFAULT));
-	    values.put
-		("message_digest",
-		 Base64.encodeToString(cryptography.
-				       /*
-				       ** It's very possible that a message
-				       ** sent by one device will be identical
-				       ** to the message sent by another
-				       ** device.
-				       */
-				       hmac((message +
-					     sipHashId +
-					     timestamp).getBytes()),
-				       Base64.DEFAULT));
-	    values.put
-		("siphash_id_digest",
-		 Base64.encodeToString(cryptography.
-				       hmac(sipHashId.toLowerCase().
-					    trim().getBytes("UTF-8")),
-				       Base64.DEFAULT));
-
-	    /*
-	    ** We want to preserve the order of the time values.
-	    ** That is, if t_a < t_b, then E(t_a) < E(t_b) must
-	    ** also be true. Or, H(t_a) < H(t_b).
-	    */
+	    if(bytes == null)
+		return;
 
-	    values.put("timestamp", timestamp);
-	    m_db.insert("participants_messages", null, values);
+	    values.put("digest", digest);
+	    values.put("value", bytes);
+	    m_db.replace("derived_keys", null, values);
 	    m_db.setTransactionSuccessful();
 	}
 	catch(Exception exception)
@@ -3900,6 +5074,19 @@ public class Database extends SQLiteOpenHelper
 	}
     }
 
+    public void writeLog(String event)
+    {
+	DatabaseWriter writer = writer();
+
+	if(event == null || writer == null)
+	    return;
+
+	ContentValues values = new ContentValues();
+
+	values.put("event", event.trim());
+	writer.insert("log", values);
+    }
+
     public void writeParticipantOptions(Cryptography cryptography,
 					String options,
 					String sipHashId)
@@ -3909,26 +5096,23 @@ public class Database extends SQLiteOpenHelper
 	if(cryptography == null || m_db == null)
 	    return;
 
+	boolean ok = false;
+
 	m_db.beginTransactionNonExclusive();
 
 	try
 	{
 	    ContentValues values = new ContentValues();
 
-	    values.put
-		("options",
-		 Base64.encodeToString(cryptography.etm(options.getBytes()),
-				       Base64.DEFAULT));
-	    m_db.update("participants",
-			values,
-			"siphash_id_digest = ?",
-			new String[] {Base64.
-				      encodeToString(cryptography.
-						     hmac(sipHashId.
-							  toLowerCase().trim().
-							  getBytes("UTF-8")),
-						     Base64.DEFAULT)});
+	    values.put("options", cryptography.etm(options.getBytes()));
+	    update("participants",
+		   values,
+		   "siphash_id_digest = ?",
+		   new Object[] {cryptography.
+				 hmac(sipHashId.toLowerCase().trim().
+				      getBytes("UTF-8"))});
 	    m_db.setTransactionSuccessful();
+	    ok = true;
 	}
 	catch(Exception exception)
         {
@@ -3937,6 +5121,9 @@ public class Database extends SQLiteOpenHelper
 	{
 	    m_db.endTransaction();
 	}
+
+	if(ok)
+	    m_participantDirectory.setOptions(sipHashId, options);
     }
 
     public void writeSetting(Cryptography cryptography,
@@ -3948,49 +5135,35 @@ public class Database extends SQLiteOpenHelper
 	if(m_db == null)
 	    return;
 
+	boolean ok = false;
+
 	m_db.beginTransactionNonExclusive();
 
 	try
 	{
-	    String a = name.trim();
-	    String b = name.trim();
-	    String c = value; // Do not trim.
+	    ContentValues values = new ContentValues();
 
 	    if(cryptography != null)
 	    {
-		byte bytes[] = null;
-
-		bytes = cryptography.etm(a.getBytes());
-
-		if(bytes != null)
-		    a = Base64.encodeToString(bytes, Base64.DEFAULT);
-		else
-		    a = "";
-
-		bytes = cryptography.hmac(b.getBytes());
-
-		if(bytes != null)
-		    b = Base64.encodeToString(bytes, Base64.DEFAULT);
-		else
-		    b = "";
-
-		bytes = cryptography.etm(c.getBytes());
-
-		if(bytes != null)
-		    c = Base64.encodeToString(bytes, Base64.DEFAULT);
-		else
-		    c = "";
+		byte a[] = cryptography.etm(name.trim().getBytes());
+		byte b[] = cryptography.hmac(name.trim().getBytes());
+		byte c[] = cryptography.etm(value.getBytes()); // Do not trim.
 
-		if(a.isEmpty() || b.isEmpty() || c.isEmpty())
+		if(a == null || b == null || c == null)
 		    throw new Exception();
-	    }
 
-	    ContentValues values = new ContentValues();
+		values.put("name", a);
+		values.put("name_digest", b);
+		values.put("value", c);
+	    }
+	    else
+	    {
+		values.put("name", name.trim());
+		values.put("name_digest", name.trim());
+		values.put("value", value); // Do not trim.
+	    }
 
-	    values.put("name", a);
-	    values.put("name_digest", b);
-	    values.put("value", c);
-	    m_db.replace("settings", null, values);
+	    ok = m_db.replace("settings", null, values) != -1;
 	    m_db.setTransactionSuccessful();
 	}
 	catch(Exception exception)
@@ -4000,5 +5173,8 @@ public class Database extends SQLiteOpenHelper
 	{
 	    m_db.endTransaction();
 	}
+
+	if(ok)
+	    m_settingsCache.put(cryptography != null, name, value);
     }
 }
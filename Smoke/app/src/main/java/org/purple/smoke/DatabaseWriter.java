@@ -0,0 +1,292 @@
+/*
+** Copyright (c) Alexis Megas.
+** All rights reserved.
+**
+** Redistribution and use in source and binary forms, with or without
+** modification, are permitted provided that the following conditions
+** are met:
+** 1. Redistributions of source code must retain the above copyright
+**    notice, this list of conditions and the following disclaimer.
+** 2. Redistributions in binary form must reproduce the above copyright
+**    notice, this list of conditions and the following disclaimer in the
+**    documentation and/or other materials provided with the distribution.
+** 3. The name of the author may not be used to endorse or promote products
+**    derived from Smoke without specific prior written permission.
+**
+** SMOKE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+** IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+** OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+** IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+** INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+** NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+** DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+** THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+** (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+** SMOKE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package org.purple.smoke;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class DatabaseWriter
+{
+    /*
+    ** A single thread which applies write commands in batches. A batch
+    ** is committed as one transaction once it holds the maximum number
+    ** of commands or once its first command has waited for the
+    ** latency. The future of a command completes after its batch has
+    ** been committed or rolled back. A command which fails or returns
+    ** false is rolled back alone.
+    */
+
+    public interface Command
+    {
+	boolean execute(SQLiteDatabase db) throws Exception;
+    }
+
+    private class Entry implements Callable<Boolean>
+    {
+	public Command m_command = null;
+	public FutureTask<Boolean> m_future = null;
+	public boolean m_result = false;
+
+	public Entry(Command command)
+	{
+	    m_command = command;
+	    m_future = new FutureTask<> (this);
+	}
+
+	@Override
+	public Boolean call()
+	{
+	    return m_result;
+	}
+    }
+
+    private LinkedBlockingQueue<Entry> m_queue = null;
+    private SQLiteDatabase m_db = null;
+    private Thread m_thread = null;
+    private final static int QUEUE_CAPACITY = 4096;
+    private int m_maximumRows = 128;
+    private long m_latency = 5; // Milliseconds.
+
+    public DatabaseWriter(SQLiteDatabase db, int latency, int maximumRows)
+    {
+	m_db = db;
+	m_latency = Math.max(0, latency);
+	m_maximumRows = Math.max(1, maximumRows);
+	m_queue = new LinkedBlockingQueue<> (QUEUE_CAPACITY);
+	m_thread = new Thread(new Runnable()
+	{
+	    @Override
+	    public void run()
+	    {
+		ArrayList<Entry> batch = new ArrayList<> ();
+
+		while(true)
+		    try
+		    {
+			batch.add(m_queue.take());
+
+			long deadline = System.nanoTime() +
+			    TimeUnit.MILLISECONDS.toNanos(m_latency);
+
+			while(batch.size() < m_maximumRows)
+			{
+			    Entry entry = m_queue.poll
+				(deadline - System.nanoTime(),
+				 TimeUnit.NANOSECONDS);
+
+			    if(entry == null)
+				break;
+
+			    batch.add(entry);
+			}
+
+			commit(batch);
+		    }
+		    catch(Exception exception)
+		    {
+		    }
+		    finally
+		    {
+			for(Entry entry : batch)
+			    entry.m_future.run();
+
+			batch.clear();
+		    }
+	    }
+	}, "DatabaseWriter");
+	m_thread.setDaemon(true);
+	m_thread.start();
+    }
+
+    private void commit(ArrayList<Entry> batch)
+    {
+	/*
+	** Every command executes within a savepoint. The writes of a
+	** command which fails are undone and the remaining commands are
+	** committed.
+	*/
+
+	boolean committed = false;
+
+	m_db.beginTransactionNonExclusive();
+
+	try
+	{
+	    for(Entry entry : batch)
+	    {
+		m_db.execSQL("SAVEPOINT command");
+
+		try
+		{
+		    entry.m_result = entry.m_command.execute(m_db);
+		}
+		catch(Exception exception)
+		{
+		    entry.m_result = false;
+		}
+
+		if(!entry.m_result)
+		    /*
+		    ** Android 4.1 through 8.1 treat a statement which
+		    ** begins with ROLLBACK as the end of the transaction.
+		    ** The semicolon conceals the statement's type.
+		    */
+
+		    m_db.execSQL(";ROLLBACK TO command");
+
+		m_db.execSQL("RELEASE command");
+	    }
+
+	    m_db.setTransactionSuccessful();
+	    committed = true;
+	}
+	finally
+	{
+	    m_db.endTransaction();
+
+	    if(!committed)
+		for(Entry entry : batch)
+		    entry.m_result = false;
+	}
+    }
+
+    public Future<Boolean> delete(final String table,
+				  final String whereClause,
+				  final String whereArgs[])
+    {
+	return submit(new Command()
+	{
+	    @Override
+	    public boolean execute(SQLiteDatabase db)
+	    {
+		return db.delete(table, whereClause, whereArgs) > 0;
+	    }
+	});
+    }
+
+    public Future<Boolean> insert(final String table,
+				  final ContentValues values)
+    {
+	return submit(new Command()
+	{
+	    @Override
+	    public boolean execute(SQLiteDatabase db)
+	    {
+		return db.insert(table, null, values) != -1;
+	    }
+	});
+    }
+
+    public Future<Boolean> submit(Command command)
+    {
+	Entry entry = new Entry(command);
+
+	if(Thread.currentThread() == m_thread)
+	{
+	    /*
+	    ** A command which writes. Join the current batch.
+	    */
+
+	    try
+	    {
+		entry.m_result = command.execute(m_db);
+	    }
+	    catch(Exception exception)
+	    {
+		entry.m_result = false;
+	    }
+
+	    entry.m_future.run();
+	    return entry.m_future;
+	}
+
+	try
+	{
+	    m_queue.put(entry);
+	}
+	catch(Exception exception)
+	{
+	    entry.m_future.run();
+	}
+
+	return entry.m_future;
+    }
+
+    public Future<Boolean> update(final String table,
+				  final ContentValues values,
+				  final String whereClause,
+				  final String whereArgs[])
+    {
+	return submit(new Command()
+	{
+	    @Override
+	    public boolean execute(SQLiteDatabase db)
+	    {
+		return db.update(table, values, whereClause, whereArgs) > 0;
+	    }
+	});
+    }
+
+    public boolean flush()
+    {
+	/*
+	** Wait for the commands which have been submitted.
+	*/
+
+	return await(submit(new Command()
+	{
+	    @Override
+	    public boolean execute(SQLiteDatabase db)
+	    {
+		return true;
+	    }
+	}));
+    }
+
+    public static boolean await(Future<Boolean> future)
+    {
+	if(future == null)
+	    return false;
+
+	try
+	{
+	    return future.get();
+	}
+	catch(Exception exception)
+	{
+	    return false;
+	}
+    }
+}
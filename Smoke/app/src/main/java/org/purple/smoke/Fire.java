@@ -63,6 +63,7 @@ import java.util.Map;
 public class Fire extends AppCompatActivity
 {
     private Database m_databaseHelper = null;
+    private Repository m_repository = null;
 
     private class FireBroadcastReceiver extends BroadcastReceiver
     {
@@ -147,9 +148,19 @@ public class Fire extends AppCompatActivity
 		{
 		    if(State.getInstance().
 		       getString("dialog_accepted").equals("true"))
-			if(m_databaseHelper.
-			   deleteEntry(String.valueOf(oid.intValue()), "fire"))
-			    populateFires();
+			m_repository.deleteEntry
+			    (Fire.this,
+			     String.valueOf(oid.intValue()),
+			     "fire",
+			     new Repository.Callback<Boolean> ()
+			     {
+				 @Override
+				 public void onResult(Boolean ok)
+				 {
+				     if(ok != null && ok)
+					 populateFires();
+				 }
+			     });
 	        }
 	    };
 
@@ -200,8 +211,20 @@ public class Fire extends AppCompatActivity
 
     private void populateFires()
     {
-	ArrayList<FireElement> arrayList =
-	    m_databaseHelper.readFires(s_cryptography);
+	m_repository.readFires
+	    (Fire.this,
+	     new Repository.Callback<ArrayList<FireElement>> ()
+	     {
+		 @Override
+		 public void onResult(ArrayList<FireElement> arrayList)
+		 {
+		     populateFires(arrayList);
+		 }
+	     });
+    }
+
+    private void populateFires(ArrayList<FireElement> arrayList)
+    {
 	Spinner spinner = (Spinner) findViewById(R.id.fires);
 
 	m_fireHash.clear();
@@ -358,6 +381,9 @@ public class Fire extends AppCompatActivity
 				    @Override
 				    public void run()
 				    {
+					if(Fire.this.isFinishing())
+					    return;
+
 					bar.setVisibility
 					    (ProgressBar.INVISIBLE);
 					getWindow().clearFlags
@@ -370,9 +396,8 @@ public class Fire extends AppCompatActivity
 					if(m_encryptionKey != null &&
 					   m_keyStream != null)
 					{
-					    m_databaseHelper.saveFireChannel
-						(s_cryptography,
-						 channel,
+					    m_repository.saveFireChannel
+						(channel,
 						 m_encryptionKey,
 						 m_keyStream);
 					    populateFires();
@@ -444,7 +469,7 @@ public class Fire extends AppCompatActivity
 	    {
 		TextView textView1 = (TextView) findViewById(R.id.name);
 
-		m_databaseHelper.writeSetting
+		m_repository.writeSetting
 		    (s_cryptography,
 		     "fire_user_name",
 		     textView1.getText().toString().trim());
@@ -477,10 +502,10 @@ public class Fire extends AppCompatActivity
 		    showFireDetails(isChecked);
 
 		    if(isChecked)
-			m_databaseHelper.writeSetting
+			m_repository.writeSetting
 			    (null, "fire_show_details", "true");
 		    else
-			m_databaseHelper.writeSetting
+			m_repository.writeSetting
 			    (null, "fire_show_details", "false");
 		}
 	    });
@@ -528,8 +553,9 @@ public class Fire extends AppCompatActivity
     {
 	super.onCreate(savedInstanceState);
 	m_databaseHelper = Database.getInstance(getApplicationContext());
-	m_databaseHelper.cleanDanglingOutboundQueued();
-	m_databaseHelper.cleanDanglingParticipants();
+	m_repository = Repository.getInstance();
+	m_repository.cleanDanglingOutboundQueued();
+	m_repository.cleanDanglingParticipants();
 	m_receiver = new FireBroadcastReceiver();
         setContentView(R.layout.activity_fire);
 
@@ -539,12 +565,12 @@ public class Fire extends AppCompatActivity
 	CheckBox checkBox1 = (CheckBox) findViewById(R.id.show_details);
 
 	checkBox1.setChecked
-	    (m_databaseHelper.readSetting(null, "fire_show_details").
+	    (m_repository.readSetting(null, "fire_show_details").
 	     equals("true"));
 	prepareAutoFill();
 	prepareListeners();
 	showFireDetails
-	    (m_databaseHelper.readSetting(null, "fire_show_details").
+	    (m_repository.readSetting(null, "fire_show_details").
 	     equals("true"));
 
 	Map<String, FireChannel> map = State.getInstance().fireChannels();
@@ -586,7 +612,7 @@ public class Fire extends AppCompatActivity
 			       InputType.TYPE_TEXT_VARIATION_VISIBLE_PASSWORD);
 	textView1 = (TextView) findViewById(R.id.name);
 	textView1.setText
-	    (m_databaseHelper.
+	    (m_repository.
 	     readSetting(s_cryptography, "fire_user_name").trim());
 	textView1 = (TextView) findViewById(R.id.salt);
 	textView1.setInputType(InputType.TYPE_TEXT_FLAG_NO_SUGGESTIONS |
@@ -611,13 +637,13 @@ public class Fire extends AppCompatActivity
 	{
 	    if(itemId == R.id.action_chat)
 	    {
-		m_databaseHelper.writeSetting(null, "lastActivity", "Chat");
+		m_repository.writeSetting(null, "lastActivity", "Chat");
 		showChatActivity();
 		return true;
 	    }
 	    else if(itemId == R.id.action_settings)
 	    {
-		m_databaseHelper.writeSetting(null, "lastActivity", "Settings");
+		m_repository.writeSetting(null, "lastActivity", "Settings");
 		showSettingsActivity();
 		return true;
 	    }
@@ -637,11 +663,11 @@ public class Fire extends AppCompatActivity
 		("member_chat_oid", String.valueOf(itemId));
 	    State.getInstance().setString
 		("member_chat_siphash_id", sipHashId);
-	    m_databaseHelper.writeSetting
+	    m_repository.writeSetting
 		(null, "lastActivity", "MemberChat");
-	    m_databaseHelper.writeSetting
+	    m_repository.writeSetting
 		(s_cryptography, "member_chat_oid", String.valueOf(itemId));
-	    m_databaseHelper.writeSetting
+	    m_repository.writeSetting
 		(s_cryptography, "member_chat_siphash_id", sipHashId);
 	    showMemberChatActivity();
 	}
@@ -667,7 +693,7 @@ public class Fire extends AppCompatActivity
     {
 	boolean isAuthenticated = State.getInstance().isAuthenticated();
 
-	if(!m_databaseHelper.accountPrepared())
+	if(!m_repository.accountPrepared())
 	    /*
 	    ** The database may have been modified or removed.
 	    */
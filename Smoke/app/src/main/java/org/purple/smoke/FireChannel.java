@@ -50,8 +50,6 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.Hashtable;
 import java.util.Locale;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 public class FireChannel extends View
@@ -77,8 +75,8 @@ public class FireChannel extends View
     private Context m_context = null;
     private Hashtable<String, Participant> m_participants = new Hashtable<> ();
     private LayoutInflater m_inflater = null;
-    private ScheduledExecutorService m_connectionStatusScheduler = null;
-    private ScheduledExecutorService m_statusScheduler = null;
+    private TimingWheel.Task m_connectionStatusScheduler = null;
+    private TimingWheel.Task m_statusScheduler = null;
     private String m_id = "";
     private String m_name = "";
     private View m_view = null;
@@ -92,8 +90,8 @@ public class FireChannel extends View
     {
 	if(m_statusScheduler == null)
 	{
-	    m_statusScheduler = Executors.newSingleThreadScheduledExecutor();
-	    m_statusScheduler.scheduleAtFixedRate(new Runnable()
+	    m_statusScheduler = TimingWheel.getInstance().
+		scheduleAtFixedRate(new Runnable()
 	    {
 		@Override
 		public void run()
@@ -272,38 +270,14 @@ public class FireChannel extends View
 
 		if(m_connectionStatusScheduler != null)
 	        {
-		    m_connectionStatusScheduler.shutdown();
-
-		    try
-		    {
-			m_connectionStatusScheduler.awaitTermination
-			    (60, TimeUnit.SECONDS);
-		    }
-		    catch(Exception exception)
-		    {
-		    }
-		    finally
-		    {
-			m_connectionStatusScheduler = null;
-		    }
+		    m_connectionStatusScheduler.cancel();
+		    m_connectionStatusScheduler = null;
 		}
 
 		if(m_statusScheduler != null)
 	        {
-		    m_statusScheduler.shutdown();
-
-		    try
-		    {
-			m_statusScheduler.awaitTermination
-			    (60, TimeUnit.SECONDS);
-		    }
-		    catch(Exception exception)
-		    {
-		    }
-		    finally
-		    {
-			m_statusScheduler = null;
-		    }
+		    m_statusScheduler.cancel();
+		    m_statusScheduler = null;
 		}
 
 		ViewGroup parent = (ViewGroup) m_view.getParent();
@@ -428,9 +402,8 @@ public class FireChannel extends View
 	if(m_view == null)
 	{
 	    m_view = m_inflater.inflate(R.layout.fire_channel, m_parent, false);
-	    m_connectionStatusScheduler = Executors.
-		newSingleThreadScheduledExecutor();
-	    m_connectionStatusScheduler.scheduleAtFixedRate(new Runnable()
+	    m_connectionStatusScheduler = TimingWheel.getInstance().
+		scheduleAtFixedRate(new Runnable()
 	    {
 		@Override
 		public void run()
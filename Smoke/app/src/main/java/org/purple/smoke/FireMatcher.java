@@ -0,0 +1,377 @@
+/*
+** Copyright (c) Alexis Megas.
+** All rights reserved.
+**
+** Redistribution and use in source and binary forms, with or without
+** modification, are permitted provided that the following conditions
+** are met:
+** 1. Redistributions of source code must retain the above copyright
+**    notice, this list of conditions and the following disclaimer.
+** 2. Redistributions in binary form must reproduce the above copyright
+**    notice, this list of conditions and the following disclaimer in the
+**    documentation and/or other materials provided with the distribution.
+** 3. The name of the author may not be used to endorse or promote products
+**    derived from Smoke without specific prior written permission.
+**
+** SMOKE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+** IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+** OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+** IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+** INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+** NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+** DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+** THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+** (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+** SMOKE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package org.purple.smoke;
+
+import android.util.Base64;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.crypto.Mac;
+
+public class FireMatcher
+{
+    /*
+    ** Matches inbound frames against the lit Fire channels. Readers
+    ** use an immutable snapshot of the channels which writers replace,
+    ** so matching never waits on a lock. Every channel keeps a keyed
+    ** Mac per thread. If many channels are lit, the channels are
+    ** examined in parallel.
+    */
+
+    public static class Match
+    {
+	public String m_channel = "";
+	public byte m_aes256[] = null;
+	public byte m_keyStream[] = null;
+    }
+
+    private static class Channel
+    {
+	private String m_name = "";
+	private ThreadLocal<Mac> m_mac = null;
+	private byte m_keyStream[] = null;
+
+	private Channel(String name, byte keyStream[])
+	{
+	    final byte key[] = Arrays.copyOfRange(keyStream, 32, 80);
+
+	    m_keyStream = keyStream;
+	    m_mac = new ThreadLocal<Mac> ()
+	    {
+		@Override
+		protected Mac initialValue()
+		{
+		    return Cryptography.fireMac(key);
+		}
+	    };
+	    m_name = name;
+	}
+    }
+
+    private final static ThreadLocal<byte[]> s_digests =
+	new ThreadLocal<byte[]> ()
+	{
+	    @Override
+	    protected byte[] initialValue()
+	    {
+		return new byte[SHA384_LENGTH];
+	    }
+	};
+    private final static ThreadPoolExecutor s_executor;
+    private final static byte CONTENT[] = "content=".getBytes();
+    private final static int PARALLEL_CHANNELS = 16; /*
+						     ** Channels per
+						     ** task.
+						     */
+    private final static int SHA384_BASE64_LENGTH = 64;
+    private final static int SHA384_LENGTH = 48;
+    private volatile Channel m_channels[] = new Channel[0];
+
+    static
+    {
+	int workers = Math.max
+	    (1, Runtime.getRuntime().availableProcessors() - 1);
+
+	s_executor = new ThreadPoolExecutor
+	    (workers,
+	     workers,
+	     60,
+	     TimeUnit.SECONDS,
+	     new LinkedBlockingQueue<Runnable> (),
+	     new ThreadFactory()
+	     {
+		 @Override
+		 public Thread newThread(Runnable runnable)
+		 {
+		     Thread thread = new Thread(runnable);
+
+		     thread.setDaemon(true);
+		     return thread;
+		 }
+	     });
+	s_executor.allowCoreThreadTimeOut(true);
+    }
+
+    private static boolean matches(Channel channel,
+				   byte aes256[],
+				   byte sha384[])
+    {
+	Mac mac = channel.m_mac.get();
+
+	if(mac == null)
+	    return false;
+
+	byte digest[] = s_digests.get();
+
+	try
+	{
+	    mac.update(aes256);
+	    mac.doFinal(digest, 0);
+	}
+	catch(Exception exception)
+	{
+	    mac.reset();
+	    return false;
+	}
+
+	return Cryptography.memcmp(digest, sha384);
+    }
+
+    private static int indexOf(byte bytes[], byte pattern[])
+    {
+	for(int i = 0; i <= bytes.length - pattern.length; i++)
+	{
+	    int j = 0;
+
+	    while(j < pattern.length && bytes[i + j] == pattern[j])
+		j += 1;
+
+	    if(j == pattern.length)
+		return i;
+	}
+
+	return -1;
+    }
+
+    private static void search(Channel channels[],
+			       int from,
+			       int to,
+			       byte aes256[],
+			       byte sha384[],
+			       AtomicReference<Channel> found)
+    {
+	for(int i = from; i < to && found.get() == null; i++)
+	    if(matches(channels[i], aes256, sha384))
+	    {
+		found.compareAndSet(null, channels[i]);
+		return;
+	    }
+    }
+
+    private static int find(Channel channels[], String name)
+    {
+	for(int i = 0; i < channels.length; i++)
+	    if(channels[i].m_name.equals(name))
+		return i;
+
+	return -1;
+    }
+
+    public ArrayList<byte[]> keyStreams()
+    {
+	Channel channels[] = m_channels;
+	ArrayList<byte[]> arrayList = new ArrayList<> (channels.length);
+
+	for(Channel channel : channels)
+	    arrayList.add(channel.m_keyStream);
+
+	return arrayList;
+    }
+
+    public Match match(byte frame[])
+    {
+	/*
+	** A Fire message consists of Base64(AES-256) \n
+	** Base64(SHA-384) \n Base64(Destination). The frame's layout
+	** is examined in place. Frames whose second line is not
+	** a Base64 SHA-384 digest are rejected without computing
+	** digests.
+	*/
+
+	final Channel channels[] = m_channels;
+
+	if(channels.length == 0 || frame == null)
+	    return null;
+
+	int start = indexOf(frame, CONTENT);
+
+	start = start >= 0 ? start + CONTENT.length : 0;
+
+	while(start < frame.length && frame[start] <= ' ')
+	    start += 1;
+
+	int newline = start;
+
+	while(newline < frame.length && frame[newline] != '\n')
+	    newline += 1;
+
+	int end = newline + 1 + SHA384_BASE64_LENGTH;
+
+	if(end > frame.length)
+	    return null;
+	else if(end < frame.length &&
+		!(frame[end] == '\n' || frame[end] == '\r'))
+	    return null;
+
+	for(int i = newline + 1; i < end; i++)
+	    if(frame[i] == '\n' || frame[i] == '\r')
+		return null;
+
+	final byte aes256[];
+	final byte sha384[];
+
+	try
+	{
+	    aes256 = Base64.decode
+		(frame, start, newline - start, Base64.NO_WRAP);
+	    sha384 = Base64.decode
+		(frame, newline + 1, SHA384_BASE64_LENGTH, Base64.NO_WRAP);
+	}
+	catch(Exception exception)
+	{
+	    return null;
+	}
+
+	final AtomicReference<Channel> found = new AtomicReference<> ();
+	int tasks = Math.min
+	    (s_executor.getMaximumPoolSize() + 1,
+	     (channels.length + PARALLEL_CHANNELS - 1) / PARALLEL_CHANNELS);
+
+	if(tasks <= 1)
+	    search(channels, 0, channels.length, aes256, sha384, found);
+	else
+	{
+	    /*
+	    ** The calling thread examines the first portion.
+	    */
+
+	    ArrayList<Future<?>> futures = new ArrayList<> ();
+	    final int size = (channels.length + tasks - 1) / tasks;
+
+	    for(int i = 1; i < tasks; i++)
+	    {
+		final int from = i * size;
+		Runnable runnable = new Runnable()
+		{
+		    @Override
+		    public void run()
+		    {
+			search(channels,
+			       from,
+			       Math.min(channels.length, from + size),
+			       aes256,
+			       sha384,
+			       found);
+		    }
+		};
+
+		try
+		{
+		    futures.add(s_executor.submit(runnable));
+		}
+		catch(Exception exception)
+		{
+		    runnable.run();
+		}
+	    }
+
+	    search(channels, 0, size, aes256, sha384, found);
+
+	    for(Future<?> future : futures)
+		try
+		{
+		    future.get();
+		}
+		catch(Exception exception)
+		{
+		}
+	}
+
+	Channel channel = found.get();
+
+	if(channel == null)
+	    return null;
+
+	Match match = new Match();
+
+	match.m_aes256 = aes256;
+	match.m_channel = channel.m_name;
+	match.m_keyStream = channel.m_keyStream;
+	return match;
+    }
+
+    public boolean contains(String name)
+    {
+	return find(m_channels, name) >= 0;
+    }
+
+    public boolean isEmpty()
+    {
+	return m_channels.length == 0;
+    }
+
+    public byte[] keyStream(String name)
+    {
+	Channel channels[] = m_channels;
+	int i = find(channels, name);
+
+	return i >= 0 ? channels[i].m_keyStream : null;
+    }
+
+    public synchronized boolean ignite(String name, byte keyStream[])
+    {
+	if(find(m_channels, name) >= 0 || keyStream == null)
+	    return false;
+
+	try
+	{
+	    Channel channels[] = Arrays.copyOf
+		(m_channels, m_channels.length + 1);
+
+	    channels[channels.length - 1] = new Channel(name, keyStream);
+	    m_channels = channels;
+	    return true;
+	}
+	catch(Exception exception)
+	{
+	}
+
+	return false;
+    }
+
+    public synchronized void extinguish(String name)
+    {
+	int i = find(m_channels, name);
+
+	if(i < 0)
+	    return;
+
+	Channel channels[] = new Channel[m_channels.length - 1];
+
+	System.arraycopy(m_channels, 0, channels, 0, i);
+	System.arraycopy
+	    (m_channels, i + 1, channels, i, m_channels.length - i - 1);
+	m_channels = channels;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+** Copyright (c) Alexis Megas.
+** All rights reserved.
+**
+** Redistribution and use in source and binary forms, with or without
+** modification, are permitted provided that the following conditions
+** are met:
+** 1. Redistributions of source code must retain the above copyright
+**    notice, this list of conditions and the following disclaimer.
+** 2. Redistributions in binary form must reproduce the above copyright
+**    notice, this list of conditions and the following disclaimer in the
+**    documentation and/or other materials provided with the distribution.
+** 3. The name of the author may not be used to endorse or promote products
+**    derived from Smoke without specific prior written permission.
+**
+** SMOKE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+** IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+** OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+** IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+** INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+** NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+** DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+** THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+** (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+** SMOKE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package org.purple.smoke;
+
+public class FireTimestamp
+{
+    /*
+    ** Fire messages carry UTC timestamps of the form MMddyyyyHHmmss.
+    ** The shared SimpleDateFormat objects which used to handle them
+    ** are neither thread-safe nor cheap. These routines operate on
+    ** ASCII digits directly and allocate nothing.
+    */
+
+    private final static long DAY = 86400000L;
+    public final static int LENGTH = 14;
+    public final static long INVALID = Long.MIN_VALUE;
+
+    private FireTimestamp()
+    {
+    }
+
+    private static int digits(byte bytes[], int offset, int count)
+    {
+	int value = 0;
+
+	for(int i = offset; i < offset + count; i++)
+	{
+	    if(bytes[i] < '0' || bytes[i] > '9')
+		return -1;
+
+	    value = 10 * value + bytes[i] - '0';
+	}
+
+	return value;
+    }
+
+    private static long daysFromCivil(long year, int month, int day)
+    {
+	/*
+	** Days since 1970-01-01 of the proleptic Gregorian calendar.
+	*/
+
+	year -= month <= 2 ? 1 : 0;
+
+	long era = (year >= 0 ? year : year - 399) / 400;
+	long yoe = year - era * 400;
+	long doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+	long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+
+	return era * 146097 + doe - 719468;
+    }
+
+    private static void put(byte bytes[], int offset, int count, long value)
+    {
+	for(int i = offset + count - 1; i >= offset; i--)
+	{
+	    bytes[i] = (byte) ('0' + value % 10);
+	    value /= 10;
+	}
+    }
+
+    public static int encode(long milliseconds, byte bytes[], int offset)
+    {
+	/*
+	** Returns the number of bytes written or -1.
+	*/
+
+	if(bytes == null || offset < 0 || bytes.length - offset < LENGTH)
+	    return -1;
+
+	long days = milliseconds / DAY;
+	long remainder = milliseconds % DAY;
+
+	if(remainder < 0)
+	{
+	    days -= 1;
+	    remainder += DAY;
+	}
+
+	long seconds = remainder / 1000;
+	long z = days + 719468;
+	long era = (z >= 0 ? z : z - 146096) / 146097;
+	long doe = z - era * 146097;
+	long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+	long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+	long mp = (5 * doy + 2) / 153;
+	long day = doy - (153 * mp + 2) / 5 + 1;
+	long month = mp < 10 ? mp + 3 : mp - 9;
+	long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+
+	if(year < 0 || year > 9999)
+	    return -1;
+
+	put(bytes, offset, 2, month);
+	put(bytes, offset + 2, 2, day);
+	put(bytes, offset + 4, 4, year);
+	put(bytes, offset + 8, 2, seconds / 3600);
+	put(bytes, offset + 10, 2, (seconds / 60) % 60);
+	put(bytes, offset + 12, 2, seconds % 60);
+	return LENGTH;
+    }
+
+    public static long decode(byte bytes[], int offset, int length)
+    {
+	/*
+	** Returns the milliseconds since the epoch or INVALID.
+	*/
+
+	if(bytes == null ||
+	   length != LENGTH ||
+	   offset < 0 ||
+	   offset > bytes.length - length)
+	    return INVALID;
+
+	int month = digits(bytes, offset, 2);
+	int day = digits(bytes, offset + 2, 2);
+	int year = digits(bytes, offset + 4, 4);
+	int hour = digits(bytes, offset + 8, 2);
+	int minute = digits(bytes, offset + 10, 2);
+	int second = digits(bytes, offset + 12, 2);
+
+	if(month < 1 || month > 12 ||
+	   day < 1 || day > 31 ||
+	   year < 0 ||
+	   hour < 0 || hour > 23 ||
+	   minute < 0 || minute > 59 ||
+	   second < 0 || second > 59)
+	    return INVALID;
+
+	return daysFromCivil(year, month, day) * DAY +
+	    1000L * (3600L * hour + 60L * minute + second);
+    }
+
+    public static byte[] encode(long milliseconds)
+    {
+	byte bytes[] = new byte[LENGTH];
+
+	if(encode(milliseconds, bytes, 0) != LENGTH)
+	    return null;
+
+	return bytes;
+    }
+}
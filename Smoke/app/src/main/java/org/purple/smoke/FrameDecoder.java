@@ -0,0 +1,264 @@
+/*
+** Copyright (c) Alexis Megas.
+** All rights reserved.
+**
+** Redistribution and use in source and binary forms, with or without
+** modification, are permitted provided that the following conditions
+** are met:
+** 1. Redistributions of source code must retain the above copyright
+**    notice, this list of conditions and the following disclaimer.
+** 2. Redistributions in binary form must reproduce the above copyright
+**    notice, this list of conditions and the following disclaimer in the
+**    documentation and/or other materials provided with the distribution.
+** 3. The name of the author may not be used to endorse or promote products
+**    derived from Smoke without specific prior written permission.
+**
+** SMOKE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+** IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+** OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+** IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+** INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+** NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+** DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+** THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+** (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+** SMOKE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package org.purple.smoke;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class FrameDecoder
+{
+    /*
+    ** A ring buffer of raw bytes which extracts frames terminated
+    ** by Messages.EOM. The search for a delimiter resumes where the
+    ** previous search ended.
+    */
+
+    private AtomicLong m_oversizeFrames = null;
+    private AtomicLong m_truncatedFrames = null;
+    private boolean m_discarding = false;
+    private byte m_ring[] = null;
+    private final static byte EOM[] = Messages.EOM.getBytes();
+    private final static int INITIAL_CAPACITY = 64 * 1024; // 64 KiB
+    private int m_gap = -1;
+    private int m_head = 0;
+    private int m_length = 0;
+    private int m_maximumCapacity = 0;
+    private int m_maximumFrameSize = 0;
+    private int m_scanned = 0;
+
+    private boolean grow(int length)
+    {
+	if(m_ring.length - m_length >= length)
+	    return true;
+	else if(m_ring.length >= m_maximumCapacity)
+	    return false;
+
+	int capacity = m_ring.length;
+
+	while(capacity - m_length < length && capacity < m_maximumCapacity)
+	    capacity = (int) Math.min((long) capacity * 2, m_maximumCapacity);
+
+	byte ring[] = new byte[capacity];
+
+	copy(0, ring, m_length);
+	m_head = 0;
+	m_ring = ring;
+	return m_ring.length - m_length >= length;
+    }
+
+    private int indexOfEOM()
+    {
+	/*
+	** Returns the offset, relative to the head, of the byte
+	** which follows the first delimiter, or -1.
+	*/
+
+	for(int i = m_scanned; i <= m_length - EOM.length; i++)
+	{
+	    int j = 0;
+
+	    for(; j < EOM.length; j++)
+		if(m_ring[(m_head + i + j) % m_ring.length] != EOM[j])
+		    break;
+
+	    if(j == EOM.length)
+		return i + EOM.length;
+	}
+
+	m_scanned = Math.max(0, m_length - EOM.length + 1);
+	return -1;
+    }
+
+    private void copy(int offset, byte bytes[], int length)
+    {
+	int start = (m_head + offset) % m_ring.length;
+	int first = Math.min(length, m_ring.length - start);
+
+	System.arraycopy(m_ring, start, bytes, 0, first);
+
+	if(first < length)
+	    System.arraycopy(m_ring, 0, bytes, first, length - first);
+    }
+
+    private void skip(int length)
+    {
+	m_head = (m_head + length) % m_ring.length;
+	m_length -= length;
+	m_scanned = Math.max(0, m_scanned - length);
+
+	if(m_gap >= 0)
+	    m_gap = m_gap < length ? -1 : m_gap - length;
+
+	if(m_length == 0)
+	    m_head = 0;
+    }
+
+    public FrameDecoder(int maximumCapacity, int maximumFrameSize)
+    {
+	/*
+	** The maximum frame size is smaller than the capacity so that
+	** a full buffer always holds an oversized frame.
+	*/
+
+	m_maximumCapacity = Math.max(maximumCapacity, 2 * EOM.length);
+	m_maximumFrameSize = Math.min
+	    (Math.max(maximumFrameSize, EOM.length), m_maximumCapacity - 1);
+	m_oversizeFrames = new AtomicLong(0);
+	m_ring = new byte[Math.min(INITIAL_CAPACITY, m_maximumCapacity)];
+	m_truncatedFrames = new AtomicLong(0);
+    }
+
+    public synchronized int available()
+    {
+	/*
+	** The number of bytes which may be written without loss.
+	*/
+
+	return m_maximumCapacity - m_length;
+    }
+
+    public long oversizeFrames()
+    {
+	return m_oversizeFrames.get();
+    }
+
+    public long truncatedFrames()
+    {
+	return m_truncatedFrames.get();
+    }
+
+    public synchronized byte[] next()
+    {
+	/*
+	** Returns the next complete frame, including its delimiter,
+	** or null if a complete frame is not available.
+	*/
+
+	while(m_length > 0)
+	{
+	    int length = indexOfEOM();
+
+	    if(length < 0)
+	    {
+		if(m_discarding ||
+		   m_length > m_maximumFrameSize ||
+		   m_length >= m_maximumCapacity)
+		{
+		    /*
+		    ** Discard the partial frame but retain the bytes
+		    ** which may begin a delimiter. The decoder resumes
+		    ** after the next delimiter.
+		    */
+
+		    if(!m_discarding)
+			m_oversizeFrames.getAndIncrement();
+
+		    m_discarding = true;
+		    skip(m_scanned);
+		}
+
+		return null;
+	    }
+
+	    if(m_discarding)
+	    {
+		m_discarding = false;
+		skip(length);
+		continue;
+	    }
+	    else if(length > m_maximumFrameSize)
+	    {
+		m_oversizeFrames.getAndIncrement();
+		skip(length);
+		continue;
+	    }
+	    else if(m_gap >= 0 && m_gap < length)
+	    {
+		/*
+		** Bytes were lost within this frame.
+		*/
+
+		m_truncatedFrames.getAndIncrement();
+		skip(length);
+		continue;
+	    }
+
+	    byte bytes[] = new byte[length];
+
+	    copy(0, bytes, length);
+	    skip(length);
+	    return bytes;
+	}
+
+	return null;
+    }
+
+    public synchronized void clear()
+    {
+	m_discarding = false;
+	m_gap = -1;
+	m_head = 0;
+	m_length = 0;
+	m_scanned = 0;
+
+	if(m_ring.length > INITIAL_CAPACITY)
+	    m_ring = new byte[INITIAL_CAPACITY];
+    }
+
+    public synchronized void write(byte bytes[], int offset, int length)
+    {
+	if(bytes == null || length <= 0)
+	    return;
+
+	if(!grow(length))
+	{
+	    /*
+	    ** The buffer is full. Record the position of the lost
+	    ** bytes so that the affected frame is discarded.
+	    */
+
+	    if(m_gap < 0)
+		m_gap = m_length;
+
+	    length = m_ring.length - m_length;
+
+	    if(length <= 0)
+		return;
+	}
+
+	int tail = (m_head + m_length) % m_ring.length;
+	int first = Math.min(length, m_ring.length - tail);
+
+	System.arraycopy(bytes, offset, m_ring, tail, first);
+
+	if(first < length)
+	    System.arraycopy(bytes, offset + first, m_ring, 0, length - first);
+
+	m_length += length;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+** Copyright (c) Alexis Megas.
+** All rights reserved.
+**
+** Redistribution and use in source and binary forms, with or without
+** modification, are permitted provided that the following conditions
+** are met:
+** 1. Redistributions of source code must retain the above copyright
+**    notice, this list of conditions and the following disclaimer.
+** 2. Redistributions in binary form must reproduce the above copyright
+**    notice, this list of conditions and the following disclaimer in the
+**    documentation and/or other materials provided with the distribution.
+** 3. The name of the author may not be used to endorse or promote products
+**    derived from Smoke without specific prior written permission.
+**
+** SMOKE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+** IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+** OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+** IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+** INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+** NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+** DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+** THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+** (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+** SMOKE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package org.purple.smoke;
+
+public class FrameEncoder
+{
+    /*
+    ** Writes the header, the Content-Length, the body, and the
+    ** end-of-message marker of a Smoke message directly into a single
+    ** array whose size is computed in advance. The header portions
+    ** are prepared once.
+    */
+
+    private byte m_prefix[] = null;
+    private byte m_suffix[] = null;
+    private final static byte BASE64[] =
+	("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/").
+	getBytes();
+    private final static byte HEADER[] =
+	("POST HTTP/1.1\r\n" +
+	 "Content-Type: application/x-www-form-urlencoded\r\n" +
+	 "Content-Length: ").getBytes();
+    private final static byte SEPARATOR[] = "\r\n\r\n".getBytes();
+    private final static int ENCODING_BASE64 = 0;
+    private final static int ENCODING_BASE64_DEFAULT = 1; /*
+							  ** Similar to
+							  ** Base64.DEFAULT.
+							  */
+    private final static int ENCODING_NONE = 2;
+    private final static int LINE_GROUPS = 19; // 76 Characters
+    private int m_encoding = ENCODING_BASE64;
+    public final static FrameEncoder CAPABILITIES = new FrameEncoder
+	("type=0014&content=", Messages.EOM, ENCODING_BASE64_DEFAULT);
+    public final static FrameEncoder CONTENT = new FrameEncoder
+	("content=", Messages.EOM, ENCODING_BASE64);
+    public final static FrameEncoder CONTENT_NON_BASE64 = new FrameEncoder
+	("content=", Messages.EOM, ENCODING_NONE);
+    public final static FrameEncoder IDENTITY = new FrameEncoder
+	("type=0095a&content=", ";sha-512" + Messages.EOM, ENCODING_BASE64);
+
+    private FrameEncoder(String prefix, String suffix, int encoding)
+    {
+	m_encoding = encoding;
+	m_prefix = prefix.getBytes();
+	m_suffix = suffix.getBytes();
+    }
+
+    private int encodedLength(int length)
+    {
+	if(m_encoding == ENCODING_NONE)
+	    return length;
+
+	int groups = (length + 2) / 3;
+
+	if(m_encoding == ENCODING_BASE64_DEFAULT)
+	    return 4 * groups + (groups + LINE_GROUPS - 1) / LINE_GROUPS;
+	else
+	    return 4 * groups;
+    }
+
+    private static int digits(int value)
+    {
+	int digits = 1;
+
+	while(value >= 10)
+	{
+	    digits += 1;
+	    value /= 10;
+	}
+
+	return digits;
+    }
+
+    private void encodeBase64(byte data[], byte frame[], int offset)
+    {
+	int count = LINE_GROUPS;
+	int i = 0;
+
+	for(; i + 3 <= data.length; i += 3)
+	{
+	    int v = ((data[i] & 0xff) << 16) |
+		((data[i + 1] & 0xff) << 8) |
+		(data[i + 2] & 0xff);
+
+	    frame[offset++] = BASE64[(v >> 18) & 0x3f];
+	    frame[offset++] = BASE64[(v >> 12) & 0x3f];
+	    frame[offset++] = BASE64[(v >> 6) & 0x3f];
+	    frame[offset++] = BASE64[v & 0x3f];
+
+	    if(m_encoding == ENCODING_BASE64_DEFAULT && --count == 0)
+	    {
+		count = LINE_GROUPS;
+		frame[offset++] = '\n';
+	    }
+	}
+
+	int remaining = data.length - i;
+
+	if(remaining > 0)
+	{
+	    int v = (data[i] & 0xff) << 16;
+
+	    if(remaining == 2)
+		v |= (data[i + 1] & 0xff) << 8;
+
+	    frame[offset++] = BASE64[(v >> 18) & 0x3f];
+	    frame[offset++] = BASE64[(v >> 12) & 0x3f];
+	    frame[offset++] = remaining == 2 ?
+		BASE64[(v >> 6) & 0x3f] : (byte) '=';
+	    frame[offset++] = '=';
+	}
+
+	if(m_encoding == ENCODING_BASE64_DEFAULT &&
+	   (remaining > 0 || count != LINE_GROUPS))
+	    frame[offset] = '\n';
+    }
+
+    public byte[] encode(byte data[])
+    {
+	if(data == null || data.length <= 0)
+	    return null;
+
+	int contentLength = m_prefix.length +
+	    encodedLength(data.length) +
+	    m_suffix.length;
+	int digits = digits(contentLength);
+	byte frame[] = new byte
+	    [HEADER.length + digits + SEPARATOR.length + contentLength];
+	int offset = 0;
+
+	System.arraycopy(HEADER, 0, frame, offset, HEADER.length);
+	offset += HEADER.length;
+
+	for(int i = digits - 1, v = contentLength; i >= 0; i--, v /= 10)
+	    frame[offset + i] = (byte) ('0' + v % 10);
+
+	offset += digits;
+	System.arraycopy(SEPARATOR, 0, frame, offset, SEPARATOR.length);
+	offset += SEPARATOR.length;
+	System.arraycopy(m_prefix, 0, frame, offset, m_prefix.length);
+	offset += m_prefix.length;
+
+	if(m_encoding == ENCODING_NONE)
+	    System.arraycopy(data, 0, frame, offset, data.length);
+	else
+	    encodeBase64(data, frame, offset);
+
+	offset += encodedLength(data.length);
+	System.arraycopy(m_suffix, 0, frame, offset, m_suffix.length);
+	return frame;
+    }
+}
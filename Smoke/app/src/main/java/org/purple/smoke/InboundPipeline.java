@@ -0,0 +1,452 @@
+/*
+** Copyright (c) Alexis Megas.
+** All rights reserved.
+**
+** Redistribution and use in source and binary forms, with or without
+** modification, are permitted provided that the following conditions
+** are met:
+** 1. Redistributions of source code must retain the above copyright
+**    notice, this list of conditions and the following disclaimer.
+** 2. Redistributions in binary form must reproduce the above copyright
+**    notice, this list of conditions and the following disclaimer in the
+**    documentation and/or other materials provided with the distribution.
+** 3. The name of the author may not be used to endorse or promote products
+**    derived from Smoke without specific prior written permission.
+**
+** SMOKE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+** IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+** OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+** IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+** INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+** NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+** DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+** THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+** (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+** SMOKE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package org.purple.smoke;
+
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class InboundPipeline
+{
+    /*
+    ** Inbound messages travel through the following stages:
+    **
+    ** 1. Framing, performed by each neighbor's FrameDecoder.
+    ** 2. Deduplication, performed on the neighbor's parsing thread.
+    ** 3. Destination, which tries the Fire channels and the
+    **    destination digests.
+    ** 4. Decryption of the private-key portion.
+    ** 5. Verification and persistence.
+    ** 6. The echo decision.
+    **
+    ** Stages 3 and 4 execute on a pool which is sized to the number
+    ** of processors. Every neighbor owns a lane. Stages 5 and 6
+    ** consume a lane strictly in arrival order, so the messages of
+    ** a sender are never reordered, while one expensive decryption
+    ** does not prevent the frames which follow it from progressing.
+    **
+    ** A neighbor stops parsing, and eventually reading, while its
+    ** lane or the persistence stage is full. The lane resumes its
+    ** neighbor after it has drained to half of its capacity.
+    */
+
+    public static class Lane
+    {
+	private ArrayDeque<Message> m_messages = new ArrayDeque<>
+	    (LANE_CAPACITY);
+	private Neighbor m_neighbor = null;
+	private boolean m_draining = false;
+
+	public Lane(Neighbor neighbor)
+	{
+	    m_neighbor = neighbor;
+	}
+
+	public boolean full()
+	{
+	    synchronized(this)
+	    {
+		return m_messages.size() >= LANE_CAPACITY;
+	    }
+	}
+
+	public int size()
+	{
+	    synchronized(this)
+	    {
+		return m_messages.size();
+	    }
+	}
+    }
+
+    public static class Message
+    {
+	public String m_buffer = "";
+	public String m_fireChannel = null;
+	public String m_fireStrings[] = null;
+	public Timestamp m_fireTimestamp = null;
+	public boolean m_epks = false;
+	public boolean m_viaTemporaryIdentity = false;
+	public byte m_array1[] = null;
+	public byte m_array2[] = null;
+	public byte m_bytes[] = null;
+	public byte m_frame[] = null;
+	public byte m_pk[] = null;
+	private Lane m_lane = null;
+	private int m_rc = CONTINUE;
+	private long m_enqueued = 0;
+	private volatile boolean m_ready = false;
+
+	private Message(Lane lane, String buffer, byte frame[])
+	{
+	    m_buffer = buffer;
+	    m_frame = frame;
+	    m_lane = lane;
+	}
+    }
+
+    private class Stage
+    {
+	private AtomicInteger m_depth = null;
+	private AtomicLong m_latency = null;
+	private AtomicLong m_maximumLatency = null;
+	private AtomicLong m_processed = null;
+	private String m_name = "";
+	private int m_capacity = 0;
+
+	private Stage(String name, int capacity)
+	{
+	    m_capacity = capacity;
+	    m_depth = new AtomicInteger(0);
+	    m_latency = new AtomicLong(0);
+	    m_maximumLatency = new AtomicLong(0);
+	    m_name = name;
+	    m_processed = new AtomicLong(0);
+	}
+
+	private boolean enter()
+	{
+	    /*
+	    ** Returns false if the stage's queue is full.
+	    */
+
+	    if(m_depth.incrementAndGet() > m_capacity)
+		return false;
+
+	    return true;
+	}
+
+	private void leave(long start)
+	{
+	    long latency = System.nanoTime() - start;
+
+	    if(latency > m_maximumLatency.get())
+		m_maximumLatency.set(latency);
+
+	    m_depth.decrementAndGet();
+	    m_latency.getAndAdd(latency);
+	    m_processed.getAndIncrement();
+	}
+
+	public long averageLatency()
+	{
+	    long processed = m_processed.get();
+
+	    return processed > 0 ? m_latency.get() / processed : 0;
+	}
+
+	public boolean full()
+	{
+	    return m_depth.get() >= m_capacity;
+	}
+
+	public int depth()
+	{
+	    return m_depth.get();
+	}
+
+	@Override
+	public String toString()
+	{
+	    return m_name +
+		" depth: " + depth() +
+		", processed: " + m_processed.get() +
+		", average: " + averageLatency() / 1000 + " us" +
+		", maximum: " + m_maximumLatency.get() / 1000 + " us";
+	}
+    }
+
+    private Stage m_decryptStage = null;
+    private Stage m_deduplicateStage = null;
+    private Stage m_destinationStage = null;
+    private Stage m_echoStage = null;
+    private Stage m_persistStage = null;
+    private ThreadPoolExecutor m_executor = null;
+    private final static int LANE_CAPACITY = 256;
+    private final static int PERSIST_CAPACITY = 1024;
+    private final static int STAGE_CAPACITY = 256;
+    private static InboundPipeline s_instance = null;
+
+    /*
+    ** Kernel's stages return CONTINUE in order to advance a message.
+    ** Otherwise, 0 echoes the message, 1 absorbs it, and 2 echoes it
+    ** even if echoing is disabled.
+    */
+
+    public final static int CONTINUE = -1;
+
+    private InboundPipeline()
+    {
+	int workers = Math.max
+	    (1, Runtime.getRuntime().availableProcessors());
+
+	m_decryptStage = new Stage("decrypt", STAGE_CAPACITY);
+	m_deduplicateStage = new Stage("deduplicate", STAGE_CAPACITY);
+	m_destinationStage = new Stage("destination", STAGE_CAPACITY);
+	m_echoStage = new Stage("echo", STAGE_CAPACITY);
+	m_persistStage = new Stage("persist", PERSIST_CAPACITY);
+	m_executor = new ThreadPoolExecutor
+	    (workers,
+	     workers,
+	     60,
+	     TimeUnit.SECONDS,
+	     new LinkedBlockingQueue<Runnable> (2 * STAGE_CAPACITY),
+	     new ThreadFactory()
+	     {
+		 @Override
+		 public Thread newThread(Runnable runnable)
+		 {
+		     Thread thread = new Thread(runnable);
+
+		     thread.setDaemon(true);
+		     return thread;
+		 }
+	     });
+	m_executor.allowCoreThreadTimeOut(true);
+    }
+
+    private void decrypt(final Message message)
+    {
+	if(message.m_rc != CONTINUE)
+	{
+	    ready(message);
+	    return;
+	}
+
+	final long start = System.nanoTime();
+	Runnable runnable = new Runnable()
+	{
+	    @Override
+	    public void run()
+	    {
+		try
+		{
+		    message.m_rc = Kernel.getInstance().inboundDecrypt
+			(message);
+		}
+		catch(Exception exception)
+		{
+		    message.m_rc = 0;
+		}
+
+		m_decryptStage.leave(start);
+		ready(message);
+	    }
+	};
+
+	execute(m_decryptStage, runnable);
+    }
+
+    private void drain(Lane lane)
+    {
+	/*
+	** A single thread drains a lane at a time.
+	*/
+
+	synchronized(lane)
+	{
+	    if(lane.m_draining)
+		return;
+
+	    lane.m_draining = true;
+	}
+
+	while(true)
+	{
+	    Message message = null;
+	    boolean resume = false;
+
+	    synchronized(lane)
+	    {
+		message = lane.m_messages.peek();
+
+		if(message == null || !message.m_ready)
+		{
+		    lane.m_draining = false;
+		    return;
+		}
+
+		lane.m_messages.poll();
+		resume = lane.m_messages.size() == LANE_CAPACITY / 2;
+	    }
+
+	    if(resume)
+		lane.m_neighbor.resumeParsing();
+
+	    if(message.m_rc == CONTINUE)
+		try
+		{
+		    message.m_rc = Kernel.getInstance().inboundPersist
+			(message);
+		}
+		catch(Exception exception)
+		{
+		    message.m_rc = 0;
+		}
+
+	    m_persistStage.leave(message.m_enqueued);
+
+	    long start = System.nanoTime();
+
+	    m_echoStage.enter();
+
+	    try
+	    {
+		if(message.m_rc == 0)
+		    lane.m_neighbor.echo(message.m_buffer);
+		else if(message.m_rc == 2)
+		    lane.m_neighbor.echoForce(message.m_buffer);
+	    }
+	    catch(Exception exception)
+	    {
+	    }
+
+	    m_echoStage.leave(start);
+	}
+    }
+
+    private void execute(Stage stage, Runnable runnable)
+    {
+	/*
+	** The caller performs the work itself if the stage is full.
+	** A neighbor's parsing thread is thereby slowed and the
+	** pressure propagates to its socket.
+	*/
+
+	if(stage.enter())
+	    try
+	    {
+		m_executor.execute(runnable);
+		return;
+	    }
+	    catch(Exception exception)
+	    {
+	    }
+
+	runnable.run();
+    }
+
+    private void ready(Message message)
+    {
+	/*
+	** The persistence stage's latency includes the time which
+	** a message waits for its predecessors.
+	*/
+
+	message.m_enqueued = System.nanoTime();
+	m_persistStage.enter();
+	message.m_ready = true;
+	drain(message.m_lane);
+    }
+
+    public boolean accepts(Lane lane)
+    {
+	/*
+	** Returns false if the neighbor should stop submitting.
+	*/
+
+	return lane != null && !lane.full() && !m_persistStage.full();
+    }
+
+    public ArrayList<String> statistics()
+    {
+	ArrayList<String> arrayList = new ArrayList<> ();
+
+	arrayList.add(m_deduplicateStage.toString());
+	arrayList.add(m_destinationStage.toString());
+	arrayList.add(m_decryptStage.toString());
+	arrayList.add(m_persistStage.toString());
+	arrayList.add(m_echoStage.toString());
+	return arrayList;
+    }
+
+    public static synchronized InboundPipeline getInstance()
+    {
+	if(s_instance == null)
+	    s_instance = new InboundPipeline();
+
+	return s_instance;
+    }
+
+    public void submit(Lane lane, String buffer, byte frame[])
+    {
+	/*
+	** Called by the neighbor's parsing thread.
+	*/
+
+	if(lane == null || buffer == null || frame == null)
+	    return;
+
+	final Message message = new Message(lane, buffer, frame);
+	long start = System.nanoTime();
+
+	m_deduplicateStage.enter();
+
+	boolean unique = Kernel.getInstance().inboundDeduplicate(message);
+
+	m_deduplicateStage.leave(start);
+
+	if(!unique)
+	    return;
+
+	synchronized(lane)
+	{
+	    lane.m_messages.add(message);
+	}
+
+	final long destination = System.nanoTime();
+	Runnable runnable = new Runnable()
+	{
+	    @Override
+	    public void run()
+	    {
+		try
+		{
+		    message.m_rc = Kernel.getInstance().inboundDestination
+			(message);
+		}
+		catch(Exception exception)
+		{
+		    message.m_rc = 0;
+		}
+
+		m_destinationStage.leave(destination);
+		decrypt(message);
+	    }
+	};
+
+	execute(m_destinationStage, runnable);
+    }
+}
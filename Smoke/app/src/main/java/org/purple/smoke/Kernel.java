@@ -41,16 +41,10 @@ import android.util.SparseArray;
 import java.net.InetAddress;
 import java.security.PublicKey;
 import java.sql.Timestamp;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.Hashtable;
 import java.util.Iterator;
-import java.util.Locale;
-import java.util.TimeZone;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -59,15 +53,18 @@ public class Kernel
 {
     private ArrayList<MessageElement> m_messagesToSend = null;
     private AtomicLong m_chatTemporaryIdentityLastTick = null;
+    private FireMatcher m_fireMatcher = null;
     private Hashtable<String, ParticipantCall> m_callQueue = null;
-    private Hashtable<String, byte[]> m_fireStreams = null;
-    private ScheduledExecutorService m_callScheduler = null;
-    private ScheduledExecutorService m_chatTemporaryIdentityScheduler = null;
-    private ScheduledExecutorService m_messagesToSendScheduler = null;
-    private ScheduledExecutorService m_neighborsScheduler = null;
-    private ScheduledExecutorService m_publishKeysScheduler = null;
-    private ScheduledExecutorService m_purgeScheduler = null;
-    private ScheduledExecutorService m_statusScheduler = null;
+    private KeyPairPool m_callKeyPairPool = null;
+    private TimingWheel.Task m_atRestMigrationScheduler = null;
+    private TimingWheel.Task m_callScheduler = null;
+    private TimingWheel.Task m_chatTemporaryIdentityScheduler = null;
+    private TimingWheel.Task m_messagesToSendScheduler = null;
+    private TimingWheel.Task m_neighborsScheduler = null;
+    private TimingWheel.Task m_publishKeysScheduler = null;
+    private TimingWheel.Task m_purgeScheduler = null;
+    private TimingWheel.Task m_statisticsScheduler = null;
+    private TimingWheel.Task m_statusScheduler = null;
     private WakeLock m_wakeLock = null;
     private WifiLock m_wifiLock = null;
     private byte m_chatMessageRetrievalIdentity[] = null;
@@ -75,8 +72,6 @@ public class Kernel
 	new ReentrantReadWriteLock();
     private final ReentrantReadWriteLock m_chatMessageRetrievalIdentityMutex =
 	new ReentrantReadWriteLock();
-    private final ReentrantReadWriteLock m_fireStreamsMutex =
-	new ReentrantReadWriteLock();
     private final ReentrantReadWriteLock m_messagesToSendMutex =
 	new ReentrantReadWriteLock();
     private final ReentrantReadWriteLock m_neighborsMutex =
@@ -85,11 +80,13 @@ public class Kernel
     private final static Cryptography s_cryptography =
 	Cryptography.getInstance();
     private final static Database s_databaseHelper = Database.getInstance();
-    private final static SimpleDateFormat s_fireSimpleDateFormat =
-	new SimpleDateFormat("MMddyyyyHHmmss", Locale.getDefault());
-    private final static SipHash s_congestionSipHash = new SipHash
-	(Cryptography.randomBytes(SipHash.KEY_LENGTH));
+    private final static OutboundLog s_outboundLog =
+	OutboundLog.getInstance();
+    private final static int AT_REST_MIGRATION_BATCH_SIZE = 64;
+    private final static int AT_REST_MIGRATION_INTERVAL =
+	5000; // 5 Seconds
     private final static int CALL_INTERVAL = 250; // 0.250 Seconds
+    private final static int CALL_KEY_PAIR_POOL_DEPTH = 2;
     private final static int CHAT_TEMPORARY_IDENTITY_INTERVAL =
 	5000; // 5 Seconds
     private final static int CONGESTION_LIFETIME = 60; // Seconds
@@ -103,6 +100,7 @@ public class Kernel
 	864000; // Seconds in ten days.
     private final static int PUBLISH_KEYS_INTERVAL = 15000; // 15 Seconds
     private final static int PURGE_INTERVAL = 30000; // 30 Seconds
+    private final static int STATISTICS_INTERVAL = 300000; // 5 Minutes
     private final static int STATUS_INTERVAL = 15000; /*
 						      ** Should be less than
 						      ** Chat.STATUS_WINDOW.
@@ -110,14 +108,22 @@ public class Kernel
     private final static long CALL_LIFETIME = 30000; // 30 Seconds
     private final static long CHAT_TEMPORARY_IDENTITY_LIFETIME =
 	60000; // 60 Seconds
+    private final static CongestionFilter s_congestionFilter =
+	new CongestionFilter(CONGESTION_LIFETIME);
     private static Kernel s_instance = null;
+    private static volatile SipHash s_congestionSipHash = new SipHash
+	(Cryptography.randomBytes(SipHash.KEY_LENGTH));
 
     private Kernel()
     {
+	int depth = s_databaseHelper.readSettingInt
+	    (null, "call_key_pair_pool_depth", CALL_KEY_PAIR_POOL_DEPTH);
+
+	m_callKeyPairPool = new KeyPairPool("RSA", 2048, depth, depth / 2);
 	m_callQueue = new Hashtable<> ();
 	m_chatTemporaryIdentityLastTick = new AtomicLong
 	    (System.currentTimeMillis());
-	m_fireStreams = new Hashtable<> ();
+	m_fireMatcher = new FireMatcher();
 	m_messagesToSend = new ArrayList<> ();
 
 	try
@@ -140,8 +146,69 @@ public class Kernel
 	{
 	}
 
+	if(s_databaseHelper.readSettingBoolean(null,
+					       "congestion_persistence",
+					       false))
+	    prepareCongestionPersistence();
+
 	prepareSchedulers();
-	s_fireSimpleDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    private void prepareCongestionPersistence()
+    {
+	/*
+	** Persisted digests are meaningful only if the congestion key
+	** survives the process. The key is stored as an encrypted setting.
+	*/
+
+	byte key[] = null;
+
+	try
+	{
+	    key = Base64.decode
+		(s_databaseHelper.
+		 readSetting(s_cryptography, "congestion_siphash_key"),
+		 Base64.NO_WRAP);
+	}
+	catch(Exception exception)
+	{
+	    key = null;
+	}
+
+	if(key != null && key.length == SipHash.KEY_LENGTH)
+	{
+	    s_congestionSipHash = new SipHash(key);
+
+	    /*
+	    ** Restore recent digests. Digests are written behind.
+	    */
+
+	    ArrayList<Long> digests = s_databaseHelper.
+		readCongestionDigests(CONGESTION_LIFETIME);
+
+	    if(digests != null)
+		for(Long digest : digests)
+		    s_congestionFilter.add(digest);
+	}
+	else
+	{
+	    /*
+	    ** Digests of a previous key cannot be matched.
+	    */
+
+	    key = Cryptography.randomBytes(SipHash.KEY_LENGTH);
+
+	    if(key == null || s_cryptography.hmac(key) == null)
+		return;
+
+	    s_databaseHelper.writeSetting
+		(s_cryptography,
+		 "congestion_siphash_key",
+		 Base64.encodeToString(key, Base64.NO_WRAP));
+	    s_congestionSipHash = new SipHash(key);
+	}
+
+	s_congestionFilter.setPersistent(true);
     }
 
     private void prepareNeighbors()
@@ -174,6 +241,12 @@ public class Kernel
 		   neighborElement.m_statusControl.toLowerCase().
 		   equals("disconnect"))
 		{
+		    /*
+		    ** The neighbor's queued messages are discarded.
+		    */
+
+		    s_outboundLog.remove(neighborElement.m_oid);
+
 		    if(neighborElement.m_statusControl.toLowerCase().
 		       equals("disconnect"))
 			s_databaseHelper.saveNeighborInformation
@@ -252,10 +325,47 @@ public class Kernel
 
     private void prepareSchedulers()
     {
+	TimingWheel timingWheel = TimingWheel.getInstance();
+
+	if(m_atRestMigrationScheduler == null &&
+	   !s_databaseHelper.readSettingBoolean(null,
+						"at_rest_format_migrated",
+						false))
+	{
+	    /*
+	    ** Rewrite legacy at-rest values in small batches.
+	    */
+
+	    m_atRestMigrationScheduler = timingWheel.scheduleAtFixedRate
+		(new Runnable()
+	    {
+		@Override
+		public void run()
+		{
+		    try
+		    {
+			if(!State.getInstance().isAuthenticated())
+			    return;
+
+			if(!s_databaseHelper.
+			   migrateAtRestFormat(s_cryptography,
+					       AT_REST_MIGRATION_BATCH_SIZE))
+			    return;
+
+			s_databaseHelper.writeSetting
+			    (null, "at_rest_format_migrated", "true");
+			m_atRestMigrationScheduler.cancel();
+		    }
+		    catch(Exception exception)
+		    {
+		    }
+		}
+	    }, 15000, AT_REST_MIGRATION_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
 	if(m_callScheduler == null)
 	{
-	    m_callScheduler = Executors.newSingleThreadScheduledExecutor();
-	    m_callScheduler.scheduleAtFixedRate(new Runnable()
+	    m_callScheduler = timingWheel.scheduleAtFixedRate(new Runnable()
 	    {
 		@Override
 		public void run()
@@ -267,8 +377,8 @@ public class Kernel
 
 			/*
 			** Allow the UI to respond to calling requests
-			** while the kernel attempts to generate
-			** ephemeral RSA keys.
+			** while the kernel acquires ephemeral RSA keys.
+			** The keys are usually pooled.
 			*/
 
 			m_callQueueMutex.writeLock().lock();
@@ -332,7 +442,8 @@ public class Kernel
 			if(participantCall == null)
 			    return;
 			else
-			    participantCall.preparePrivatePublicKey();
+			    participantCall.preparePrivatePublicKey
+				(m_callKeyPairPool);
 
 			m_callQueueMutex.writeLock().lock();
 
@@ -377,9 +488,8 @@ public class Kernel
 
 	if(m_chatTemporaryIdentityScheduler == null)
 	{
-	    m_chatTemporaryIdentityScheduler = Executors.
-		newSingleThreadScheduledExecutor();
-	    m_chatTemporaryIdentityScheduler.scheduleAtFixedRate(new Runnable()
+	    m_chatTemporaryIdentityScheduler = timingWheel.
+		scheduleAtFixedRate(new Runnable()
 	    {
 		@Override
 		public void run()
@@ -404,9 +514,8 @@ public class Kernel
 
 	if(m_messagesToSendScheduler == null)
 	{
-	    m_messagesToSendScheduler = Executors.
-		newSingleThreadScheduledExecutor();
-	    m_messagesToSendScheduler.scheduleAtFixedRate(new Runnable()
+	    m_messagesToSendScheduler = timingWheel.
+		scheduleAtFixedRate(new Runnable()
 	    {
 		@Override
 		public void run()
@@ -451,13 +560,14 @@ public class Kernel
 				     State.getInstance().
 				     chatSequence(messageElement.m_id),
 				     timestamp);
-				s_databaseHelper.writeParticipantMessage
-				    (s_cryptography,
-				     "local",
-				     messageElement.m_message,
-				     messageElement.m_id,
-				     null,
-				     timestamp);
+				DatabaseWriter.await
+				    (s_databaseHelper.writeParticipantMessage
+				     (s_cryptography,
+				      "local",
+				      messageElement.m_message,
+				      messageElement.m_id,
+				      null,
+				      timestamp));
 
 				Intent intent = new Intent
 				    ("org.purple.smoke.chat_local_message");
@@ -577,8 +687,8 @@ public class Kernel
 
 	if(m_neighborsScheduler == null)
 	{
-	    m_neighborsScheduler = Executors.newSingleThreadScheduledExecutor();
-	    m_neighborsScheduler.scheduleAtFixedRate(new Runnable()
+	    m_neighborsScheduler = timingWheel.
+		scheduleAtFixedRate(new Runnable()
 	    {
 		@Override
 		public void run()
@@ -596,9 +706,8 @@ public class Kernel
 
 	if(m_publishKeysScheduler == null)
 	{
-	    m_publishKeysScheduler = Executors.
-		newSingleThreadScheduledExecutor();
-	    m_publishKeysScheduler.scheduleAtFixedRate(new Runnable()
+	    m_publishKeysScheduler = timingWheel.
+		scheduleAtFixedRate(new Runnable()
 	    {
 		private byte m_state = 0x00;
 
@@ -698,15 +807,15 @@ public class Kernel
 
 	if(m_purgeScheduler == null)
 	{
-	    m_purgeScheduler = Executors.
-		newSingleThreadScheduledExecutor();
-	    m_purgeScheduler.scheduleAtFixedRate(new Runnable()
+	    m_purgeScheduler = timingWheel.scheduleAtFixedRate(new Runnable()
 	    {
 		@Override
 		public void run()
 		{
 		    try
 		    {
+			s_databaseHelper.writeCongestionDigests
+			    (s_congestionFilter.drainPending());
 			s_databaseHelper.purgeCongestion(CONGESTION_LIFETIME);
 			s_databaseHelper.purgeParticipantsKeyStreams
 			    (PARTICIPANTS_KEYSTREAMS_LIFETIME);
@@ -720,8 +829,7 @@ public class Kernel
 
 	if(m_statusScheduler == null)
 	{
-	    m_statusScheduler = Executors.newSingleThreadScheduledExecutor();
-	    m_statusScheduler.scheduleAtFixedRate(new Runnable()
+	    m_statusScheduler = timingWheel.scheduleAtFixedRate(new Runnable()
 	    {
 		@Override
 		public void run()
@@ -759,6 +867,33 @@ public class Kernel
 		}
 	    }, 1500, STATUS_INTERVAL, TimeUnit.MILLISECONDS);
 	}
+
+	if(m_statisticsScheduler == null &&
+	   s_databaseHelper.readSettingBoolean(null,
+					       "debug_log_statistics",
+					       false))
+	{
+	    /*
+	    ** The log is not purged. Statistics are recorded only
+	    ** while debugging.
+	    */
+
+	    m_statisticsScheduler = timingWheel.scheduleAtFixedRate
+		(new Runnable()
+	    {
+		@Override
+		public void run()
+		{
+		    try
+		    {
+			writeStatistics();
+		    }
+		    catch(Exception exception)
+		    {
+		    }
+		}
+	    }, 60000, STATISTICS_INTERVAL, TimeUnit.MILLISECONDS);
+	}
     }
 
     private void purge()
@@ -810,6 +945,33 @@ public class Kernel
 	}
     }
 
+    private void writeStatistics()
+    {
+	/*
+	** Record the pools, the pipeline, and the timing wheel.
+	*/
+
+	StringBuilder stringBuilder = new StringBuilder();
+
+	stringBuilder.append("Kernel::writeStatistics(): ");
+	stringBuilder.append(m_callKeyPairPool.statistics());
+	s_databaseHelper.writeLog(stringBuilder.toString());
+	stringBuilder.setLength(0);
+	stringBuilder.append("Kernel::writeStatistics(): cipher pool hits: ");
+	stringBuilder.append(CipherPool.hits());
+	stringBuilder.append(", misses: ");
+	stringBuilder.append(CipherPool.misses());
+	stringBuilder.append(", ratio: ");
+	stringBuilder.append(String.format("%.2f", CipherPool.hitRatio()));
+	s_databaseHelper.writeLog(stringBuilder.toString());
+
+	for(String string : InboundPipeline.getInstance().statistics())
+	    s_databaseHelper.writeLog("Kernel::writeStatistics(): " + string);
+
+	for(String string : TimingWheel.getInstance().statistics())
+	    s_databaseHelper.writeLog("Kernel::writeStatistics(): " + string);
+    }
+
     public ArrayList<NeighborElement> purgeDeletedNeighbors()
     {
 	ArrayList<NeighborElement> neighbors =
@@ -861,45 +1023,27 @@ public class Kernel
 
     public String fireIdentities()
     {
-	try
-	{
-	    m_fireStreamsMutex.readLock().lock();
-
-	    if(!m_fireStreams.isEmpty())
-	    {
-		StringBuilder stringBuilder = new StringBuilder();
+	if(m_fireMatcher.isEmpty())
+	    return "";
 
-		for(Hashtable.Entry<String, byte[]> entry :
-			m_fireStreams.entrySet())
-		{
-		    if(entry.getValue() == null)
-			continue;
+	StringBuilder stringBuilder = new StringBuilder();
 
-		    stringBuilder.append
-			(Messages.
-			 identityMessage(Cryptography.
-					 sha512(Arrays.
-						copyOfRange(entry.getValue(),
-							    80,
-							    entry.getValue().
-							    length))));
-		}
+	for(byte keyStream[] : m_fireMatcher.keyStreams())
+	    stringBuilder.append
+		(Messages.
+		 identityMessage(Cryptography.
+				 sha512(Arrays.copyOfRange(keyStream,
+							   80,
+							   keyStream.
+							   length))));
 
-		return stringBuilder.toString();
-	    }
-	}
-	finally
-	{
-	    m_fireStreamsMutex.readLock().unlock();
-	}
-
-	return "";
+	return stringBuilder.toString();
     }
 
     public boolean call(int participantOid, String sipHashId)
     {
 	/*
-	** Calling messages are not placed in the outbound_queue
+	** Calling messages are not placed in the outbound log
 	** as they are considered temporary.
 	*/
 
@@ -918,6 +1062,13 @@ public class Kernel
 	    m_callQueueMutex.writeLock().unlock();
 	}
 
+	/*
+	** Do not wait for the next interval.
+	*/
+
+	if(m_callScheduler != null)
+	    m_callScheduler.trigger();
+
 	return true;
     }
 
@@ -932,40 +1083,26 @@ public class Kernel
 	if(arrayList == null || arrayList.isEmpty())
 	    return false;
 
+	ArrayList<Integer> oids = new ArrayList<> ();
+
 	for(int i = 0; i < arrayList.size(); i++)
 	    if(arrayList.get(i) != null &&
 	       arrayList.get(i).m_statusControl.toLowerCase().equals("connect"))
-		s_databaseHelper.enqueueOutboundMessage
-		    (s_cryptography, message, arrayList.get(i).m_oid);
+		oids.add(arrayList.get(i).m_oid);
+
+	boolean ok = s_outboundLog.append(s_cryptography, message, oids);
 
 	arrayList.clear();
-	return true;
+	return ok;
     }
 
     public boolean igniteFire(String name)
     {
-	m_fireStreamsMutex.writeLock().lock();
-
-	try
-	{
-	    if(!m_fireStreams.containsKey(name))
-	    {
-		byte bytes[] = s_databaseHelper.fireStream
-		    (s_cryptography, name);
-
-		if(bytes != null)
-		{
-		    m_fireStreams.put(name, bytes);
-		    return true;
-		}
-	    }
-	}
-	finally
-	{
-	    m_fireStreamsMutex.writeLock().unlock();
-	}
+	if(m_fireMatcher.contains(name))
+	    return false;
 
-	return false;
+	return m_fireMatcher.ignite
+	    (name, s_databaseHelper.fireStream(s_cryptography, name));
     }
 
     public boolean isConnected()
@@ -1047,137 +1184,174 @@ public class Kernel
 	}
     }
 
-    public int ourMessage(String buffer)
+    public long[] neighborDiscardedFrames(int oid)
     {
-	long value = s_congestionSipHash.hmac(buffer.getBytes());
+	/*
+	** Oversize and truncated frames.
+	*/
 
-	if(s_databaseHelper.containsCongestionDigest(value))
-	    return 1;
-	else if(s_databaseHelper.writeCongestionDigest(value))
-	    return 1;
+	m_neighborsMutex.readLock().lock();
 
 	try
 	{
-	    m_fireStreamsMutex.readLock().lock();
+	    Neighbor neighbor = m_neighbors.get(oid);
 
-	    try
+	    if(neighbor != null)
+		return new long[] {neighbor.oversizeFrames(),
+				   neighbor.truncatedFrames()};
+	}
+	finally
+	{
+	    m_neighborsMutex.readLock().unlock();
+	}
+
+	return null;
+    }
+
+    public long[] neighborThroughput(int oid)
+    {
+	/*
+	** Frames and bytes per second.
+	*/
+
+	m_neighborsMutex.readLock().lock();
+
+	try
+	{
+	    Neighbor neighbor = m_neighbors.get(oid);
+
+	    if(neighbor != null)
+		return new long[] {neighbor.framesPerSecond(),
+				   neighbor.bytesPerSecond()};
+	}
+	finally
+	{
+	    m_neighborsMutex.readLock().unlock();
+	}
+
+	return null;
+    }
+
+    public boolean inboundDeduplicate(InboundPipeline.Message inbound)
+    {
+	return s_congestionFilter.add
+	    (s_congestionSipHash.hmac(inbound.m_frame));
+    }
+
+    public int inboundDecrypt(InboundPipeline.Message inbound)
+    {
+	if(inbound.m_fireChannel != null)
+	    return InboundPipeline.CONTINUE;
+
+	try
+	{
+	    byte bytes[] = inbound.m_bytes;
+
+	    if(s_cryptography.
+	       isValidSipHashMac(inbound.m_array1, inbound.m_array2))
+	    {
+		/*
+		** EPKS
+		*/
+
+		inbound.m_array1 = s_cryptography.decryptWithSipHashKey
+		    (inbound.m_array1);
+		inbound.m_epks = true;
+		return InboundPipeline.CONTINUE;
+	    }
+
+	    byte pk[] = null;
+
+	    if(s_cryptography.chatEncryptionPublicKeyAlgorithm().
+	       equals("McEliece-CCA2"))
 	    {
-		if(!m_fireStreams.isEmpty())
+		for(int i = 0; i < 2; i++)
 		{
-		    String strings[] = Messages.stripMessage(buffer).
-			split("\\n");
+		    if(i == 0)
+			pk = s_cryptography.pkiDecrypt
+			    (Arrays.copyOfRange(bytes,
+						0,
+						MCELIECE_OUTPUT_SIZE_CHAT));
+		    else
+			pk = s_cryptography.pkiDecrypt
+			    (Arrays.copyOfRange(bytes,
+						0,
+						MCELIECE_OUTPUT_SIZE_CALL_A));
 
-		    if(strings != null && strings.length >= 2)
-		    {
-			byte aes256[] = Base64.decode
-			    (strings[0], Base64.NO_WRAP);
-			byte sha384[] = Base64.decode
-			    (strings[1], Base64.NO_WRAP);
+		    if(pk != null)
+			break;
+		}
+	    }
+	    else
+		pk = s_cryptography.pkiDecrypt
+		    (Arrays.
+		     copyOfRange(bytes,
+				 0,
+				 Settings.PKI_ENCRYPTION_KEY_SIZES[0] / 8));
 
-			for(Hashtable.Entry<String, byte[]> entry :
-				m_fireStreams.entrySet())
-			{
-			    if(entry.getValue() == null)
-				continue;
-
-			    if(Cryptography.
-			       memcmp(Cryptography.
-				      hmacFire(aes256,
-					       Arrays.
-					       copyOfRange(entry.getValue(),
-							   32,
-							   80)),
-				      sha384))
-			    {
-				aes256 = Cryptography.decryptFire
-				    (aes256,
-				     Arrays.copyOfRange(entry.getValue(),
-							0,
-							32));
+	    if(pk == null)
+		return 1;
 
-				if(aes256 == null)
-				    return 1;
+	    inbound.m_pk = pk;
+	}
+	catch(Exception exception)
+	{
+	    return 0;
+	}
 
-				aes256 = Arrays.copyOfRange
+	return InboundPipeline.CONTINUE;
+    }
 
-				    /*
-				    ** Remove the size information of the
-				    ** original data.
-				    */
+    public int inboundDestination(InboundPipeline.Message inbound)
+    {
+	String buffer = inbound.m_buffer;
 
-				    (aes256, 0, aes256.length - 4);
-				strings = new String(aes256).split("\\n");
+	try
+	{
+	    FireMatcher.Match match = m_fireMatcher.match(inbound.m_frame);
 
-				if(!(strings.length == 4 ||
-				     strings.length == 5))
-				    return 1;
+	    if(match != null)
+	    {
+		byte aes256[] = Cryptography.decryptFire
+		    (match.m_aes256,
+		     Arrays.copyOfRange(match.m_keyStream, 0, 32));
 
-				strings[strings.length - 1] = new
-				    String(Base64.
-					   decode(strings[strings.length - 1],
-						  Base64.NO_WRAP));
+		if(aes256 == null)
+		    return 1;
 
-				Date date = s_fireSimpleDateFormat.parse
-				    (strings[strings.length - 1]);
-				Timestamp timestamp = new Timestamp
-				    (date.getTime());
-				long current = System.currentTimeMillis();
+		aes256 = Arrays.copyOfRange
 
-				if(Math.abs(current - timestamp.getTime()) >
-				   FIRE_TIME_DELTA)
-				    return 1;
+		    /*
+		    ** Remove the size information of the original data.
+		    */
 
-				for(int i = 0; i < strings.length - 1; i++)
-				    strings[i] = new String
-					(Base64.decode(strings[i],
-						       Base64.NO_WRAP),
-					 "UTF-8");
+		    (aes256, 0, aes256.length - 4);
 
-				value = s_congestionSipHash.hmac
-				    (("fire" +
-				      entry.getKey() +
-				      strings[2] +
-				      strings[3] +
-				      timestamp).getBytes());
+		String strings[] = new String(aes256).split("\\n");
 
-				if(s_databaseHelper.
-				   writeCongestionDigest(value))
-				    return 1;
+		if(!(strings.length == 4 || strings.length == 5))
+		    return 1;
 
-				Intent intent = new Intent
-				    ("org.purple.smoke.fire_message");
+		byte timestamp[] = Base64.decode
+		    (strings[strings.length - 1], Base64.NO_WRAP);
+		long current = System.currentTimeMillis();
+		long time = FireTimestamp.decode
+		    (timestamp, 0, timestamp.length);
 
-				intent.putExtra
-				    ("org.purple.smoke.channel",
-				     entry.getKey());
-				intent.putExtra
-				    ("org.purple.smoke.id", strings[2]);
-				intent.putExtra
-				    ("org.purple.smoke.message_type",
-				     strings[0]);
-				intent.putExtra
-				    ("org.purple.smoke.name", strings[1]);
+		if(time == FireTimestamp.INVALID ||
+		   Math.abs(current - time) > FIRE_TIME_DELTA)
+		    return 1;
 
-				if(strings[0].
-				   equals(Messages.FIRE_CHAT_MESSAGE_TYPE))
-				    intent.putExtra
-					("org.purple.smoke.message",
-					 strings[3]);
+		strings[strings.length - 1] = new String(timestamp);
 
-				LocalBroadcastManager localBroadcastManager =
-				    LocalBroadcastManager.getInstance
-				    (Smoke.getApplication());
+		for(int i = 0; i < strings.length - 1; i++)
+		    strings[i] = new String
+			(Base64.decode(strings[i], Base64.NO_WRAP), "UTF-8");
 
-				localBroadcastManager.sendBroadcast(intent);
-				return 2; // Echo Fire!
-			    }
-			}
-		    }
-		}
-	    }
-	    finally
-	    {
-		m_fireStreamsMutex.readLock().unlock();
+		inbound.m_fireChannel = match.m_channel;
+		inbound.m_fireStrings = strings;
+		inbound.m_fireTimestamp = new Timestamp(time);
+		return InboundPipeline.CONTINUE;
 	    }
 
 	    byte bytes[] =
@@ -1230,14 +1404,77 @@ public class Kernel
 				     array3))
 		    return 0;
 
-	    if(s_cryptography.isValidSipHashMac(array1, array2))
+	    inbound.m_array1 = array1;
+	    inbound.m_array2 = array2;
+	    inbound.m_bytes = bytes;
+	    inbound.m_viaTemporaryIdentity =
+		ourMessageViaChatTemporaryIdentity;
+	}
+	catch(Exception exception)
+	{
+	    return 0;
+	}
+
+	return InboundPipeline.CONTINUE;
+    }
+
+    public int inboundPersist(InboundPipeline.Message inbound)
+    {
+	try
+	{
+	    if(inbound.m_fireChannel != null)
+	    {
+		long value = s_congestionSipHash.hmac
+		    (("fire" +
+		      inbound.m_fireChannel +
+		      inbound.m_fireStrings[2] +
+		      inbound.m_fireStrings[3] +
+		      inbound.m_fireTimestamp).getBytes());
+
+		if(!s_congestionFilter.add(value))
+		    return 1;
+
+		Intent intent = new Intent
+		    ("org.purple.smoke.fire_message");
+
+		intent.putExtra
+		    ("org.purple.smoke.channel", inbound.m_fireChannel);
+		intent.putExtra
+		    ("org.purple.smoke.id", inbound.m_fireStrings[2]);
+		intent.putExtra
+		    ("org.purple.smoke.message_type",
+		     inbound.m_fireStrings[0]);
+		intent.putExtra
+		    ("org.purple.smoke.name", inbound.m_fireStrings[1]);
+
+		if(inbound.m_fireStrings[0].
+		   equals(Messages.FIRE_CHAT_MESSAGE_TYPE))
+		    intent.putExtra
+			("org.purple.smoke.message",
+			 inbound.m_fireStrings[3]);
+
+		LocalBroadcastManager localBroadcastManager =
+		    LocalBroadcastManager.getInstance
+		    (Smoke.getApplication());
+
+		localBroadcastManager.sendBroadcast(intent);
+		return 2; // Echo Fire!
+	    }
+
+	    boolean ourMessageViaChatTemporaryIdentity =
+		inbound.m_viaTemporaryIdentity;
+	    byte array1[] = inbound.m_array1;
+	    byte array2[] = inbound.m_array2;
+	    byte bytes[] = inbound.m_bytes;
+	    byte pk[] = inbound.m_pk;
+	    long value = 0;
+
+	    if(inbound.m_epks)
 	    {
 		/*
 		** EPKS
 		*/
 
-		array1 = s_cryptography.decryptWithSipHashKey(array1);
-
 		String sipHashId = s_databaseHelper.writeParticipant
 		    (s_cryptography, array1);
 
@@ -1256,73 +1493,36 @@ public class Kernel
 		    localBroadcastManager.sendBroadcast(intent);
 
 		    /*
-		    ** Response-share.
+		    ** Response-share. The derivation is expensive and
+		    ** is therefore completed by the key-derivation service.
 		    */
 
-		    byte salt[] = Cryptography.sha512
-			(sipHashId.trim().getBytes("UTF-8"));
-		    byte temporary[] = Cryptography.
-			pbkdf2(salt,
-			       sipHashId.toCharArray(),
-			       Database.
-			       SIPHASH_STREAM_CREATION_ITERATION_COUNT,
-			       160); // SHA-1
-
-		    if(temporary != null)
-			bytes = Cryptography.
-			    pbkdf2(salt,
-				   new String(temporary).toCharArray(),
-				   1,
-				   768); // 8 * (32 + 64) Bits
-		    else
-			bytes = null;
-
-		    if(bytes != null)
-			bytes = Messages.epksMessage
-			    (s_cryptography,
-			     sipHashId,
-			     bytes,
-			     Messages.CHAT_KEY_TYPE);
-
-		    if(bytes != null)
-			enqueueMessage
-			    (Messages.bytesToMessageString(bytes));
-		}
+		    final String id = sipHashId;
 
-		return 1;
-	    }
-
-	    byte pk[] = null;
+		    KeyDerivationService.getInstance().submit(new Runnable()
+		    {
+			@Override
+			public void run()
+			{
+			    byte bytes[] = KeyDerivationService.getInstance().
+				sipHashStream(s_cryptography, id);
 
-	    if(s_cryptography.chatEncryptionPublicKeyAlgorithm().
-	       equals("McEliece-CCA2"))
-	    {
-		for(int i = 0; i < 2; i++)
-		{
-		    if(i == 0)
-			pk = s_cryptography.pkiDecrypt
-			    (Arrays.copyOfRange(bytes,
-						0,
-						MCELIECE_OUTPUT_SIZE_CHAT));
-		    else
-			pk = s_cryptography.pkiDecrypt
-			    (Arrays.copyOfRange(bytes,
-						0,
-						MCELIECE_OUTPUT_SIZE_CALL_A));
+			    if(bytes != null)
+				bytes = Messages.epksMessage
+				    (s_cryptography,
+				     id,
+				     bytes,
+				     Messages.CHAT_KEY_TYPE);
 
-		    if(pk != null)
-			break;
+			    if(bytes != null)
+				enqueueMessage
+				    (Messages.bytesToMessageString(bytes));
+			}
+		    });
 		}
-	    }
-	    else
-		pk = s_cryptography.pkiDecrypt
-		    (Arrays.
-		     copyOfRange(bytes,
-				 0,
-				 Settings.PKI_ENCRYPTION_KEY_SIZES[0] / 8));
 
-	    if(pk == null)
 		return 1;
+	    }
 
 	    if(pk.length == 64)
 	    {
@@ -1387,9 +1587,8 @@ public class Kernel
 
 		    String sipHashId = array[1];
 
-		    if(s_databaseHelper.readParticipantOptions(s_cryptography,
-							       sipHashId).
-		       contains("optional_signatures = false"))
+		    if(s_databaseHelper.participantSignaturesRequired
+		       (s_cryptography, sipHashId))
 		    {
 			PublicKey signatureKey = s_databaseHelper.
 			    signatureKeyForDigest(s_cryptography, pk);
@@ -1495,9 +1694,8 @@ public class Kernel
 			String sipHashId = array[1];
 
 			if(s_databaseHelper.
-			   readParticipantOptions(s_cryptography,
-						  sipHashId).
-			   contains("optional_signatures = false"))
+			   participantSignaturesRequired
+			   (s_cryptography, sipHashId))
 			{
 			    publicKeySignature = Base64.decode
 				(string.getBytes(), Base64.NO_WRAP);
@@ -1541,20 +1739,25 @@ public class Kernel
 		value = s_congestionSipHash.hmac
 		    (("chat" + message + strings[1] + timestamp).getBytes());
 
-		if(s_databaseHelper.writeCongestionDigest(value))
+		if(!s_congestionFilter.add(value))
 		    return 1;
 
 		boolean purple =
 		    Math.abs(System.currentTimeMillis() - timestamp) >
 		    Chat.CHAT_WINDOW;
 
-		s_databaseHelper.writeParticipantMessage
-		    (s_cryptography,
-		     ourMessageViaChatTemporaryIdentity ? "true" : "false",
-		     message,
-		     strings[1],
-		     null,
-		     timestamp);
+		/*
+		** The message must be readable once it has been announced.
+		*/
+
+		DatabaseWriter.await
+		    (s_databaseHelper.writeParticipantMessage
+		     (s_cryptography,
+		      ourMessageViaChatTemporaryIdentity ? "true" : "false",
+		      message,
+		      strings[1],
+		      null,
+		      timestamp));
 
 		Intent intent = new Intent
 		    ("org.purple.smoke.chat_message");
@@ -1872,14 +2075,12 @@ public class Kernel
 
     public static void writeCongestionDigest(String message)
     {
-	s_databaseHelper.writeCongestionDigest
-	    (s_congestionSipHash.hmac(message.getBytes()));
+	s_congestionFilter.add(s_congestionSipHash.hmac(message.getBytes()));
     }
 
     public static void writeCongestionDigest(byte data[])
     {
-	s_databaseHelper.writeCongestionDigest
-	    (s_congestionSipHash.hmac(data));
+	s_congestionFilter.add(s_congestionSipHash.hmac(data));
     }
 
     public void clearNeighborQueues()
@@ -1977,19 +2178,7 @@ public class Kernel
 
     public void enqueueFireMessage(String message, String id, String name)
     {
-	byte keystream[] = null;
-
-	m_fireStreamsMutex.readLock().lock();
-
-	try
-	{
-	    if(m_fireStreams.containsKey(name))
-		keystream = m_fireStreams.get(name);
-	}
-	finally
-	{
-	    m_fireStreamsMutex.readLock().unlock();
-	}
+	byte keystream[] = m_fireMatcher.keyStream(name);
 
 	if(keystream == null)
 	    return;
@@ -2014,19 +2203,7 @@ public class Kernel
 
     public void enqueueFireStatus(String id, String name)
     {
-	byte keystream[] = null;
-
-	m_fireStreamsMutex.readLock().lock();
-
-	try
-	{
-	    if(m_fireStreams.containsKey(name))
-		keystream = m_fireStreams.get(name);
-	}
-	finally
-	{
-	    m_fireStreamsMutex.readLock().unlock();
-	}
+	byte keystream[] = m_fireMatcher.keyStream(name);
 
 	if(keystream == null)
 	    return;
@@ -2051,16 +2228,7 @@ public class Kernel
 
     public void extinguishFire(String name)
     {
-	m_fireStreamsMutex.writeLock().lock();
-
-	try
-	{
-	    m_fireStreams.remove(name);
-	}
-	finally
-	{
-	    m_fireStreamsMutex.writeLock().unlock();
-	}
+	m_fireMatcher.extinguish(name);
     }
 
     public void retrieveChatMessages()
@@ -0,0 +1,212 @@
+/*
+** Copyright (c) Alexis Megas.
+** All rights reserved.
+**
+** Redistribution and use in source and binary forms, with or without
+** modification, are permitted provided that the following conditions
+** are met:
+** 1. Redistributions of source code must retain the above copyright
+**    notice, this list of conditions and the following disclaimer.
+** 2. Redistributions in binary form must reproduce the above copyright
+**    notice, this list of conditions and the following disclaimer in the
+**    documentation and/or other materials provided with the distribution.
+** 3. The name of the author may not be used to endorse or promote products
+**    derived from Smoke without specific prior written permission.
+**
+** SMOKE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+** IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+** OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+** IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+** INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+** NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+** DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+** THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+** (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+** SMOKE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package org.purple.smoke;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class KeyDerivationService
+{
+    /*
+    ** PBKDF2 derivations. Results are cached in the derived_keys
+    ** table under a keyed digest of the inputs. Asynchronous requests
+    ** are executed by a bounded executor. If the executor's queue is
+    ** full, the caller executes the request.
+    */
+
+    private ThreadPoolExecutor m_executor = null;
+    private final static int QUEUE_CAPACITY = 32;
+    private static KeyDerivationService s_instance = null;
+
+    private KeyDerivationService()
+    {
+	int threads = Math.max
+	    (1, Math.min(2, Runtime.getRuntime().availableProcessors() / 2));
+
+	m_executor = new ThreadPoolExecutor
+	    (threads,
+	     threads,
+	     60,
+	     TimeUnit.SECONDS,
+	     new ArrayBlockingQueue<Runnable> (QUEUE_CAPACITY),
+	     new ThreadFactory()
+	     {
+		 @Override
+		 public Thread newThread(Runnable runnable)
+		 {
+		     Thread thread = new Thread(runnable);
+
+		     thread.setDaemon(true);
+		     return thread;
+		 }
+	     },
+	     new ThreadPoolExecutor.CallerRunsPolicy());
+	m_executor.allowCoreThreadTimeOut(true);
+    }
+
+    private static byte[] digest(Cryptography cryptography,
+				 byte salt[],
+				 char password[],
+				 int iterations,
+				 int length)
+    {
+	/*
+	** The digest is keyed by the MAC key. It does not reveal
+	** the inputs.
+	*/
+
+	try
+	{
+	    return cryptography.hmac
+		(Miscellaneous.
+		 joinByteArrays(Miscellaneous.intToByteArray(iterations),
+				Miscellaneous.intToByteArray(length),
+				Miscellaneous.intToByteArray(salt.length),
+				salt,
+				new String(password).getBytes("UTF-8")));
+	}
+	catch(Exception exception)
+	{
+	    return null;
+	}
+    }
+
+    public <T> Future<T> submit(Callable<T> callable)
+    {
+	return m_executor.submit(callable);
+    }
+
+    public Future<?> submit(Runnable runnable)
+    {
+	return m_executor.submit(runnable);
+    }
+
+    public Future<byte[]> deriveAsync(final Cryptography cryptography,
+				      final byte salt[],
+				      final char password[],
+				      final int iterations,
+				      final int length)
+    {
+	final char array[] = Arrays.copyOf(password, password.length);
+
+	return m_executor.submit(new Callable<byte[]> ()
+	{
+	    @Override
+	    public byte[] call()
+	    {
+		try
+		{
+		    return derive
+			(cryptography, salt, array, iterations, length);
+		}
+		finally
+		{
+		    Arrays.fill(array, (char) 0);
+		}
+	    }
+	});
+    }
+
+    public byte[] derive(Cryptography cryptography,
+			 byte salt[],
+			 char password[],
+			 int iterations,
+			 int length)
+    {
+	/*
+	** Equivalent to Cryptography.pbkdf2().
+	*/
+
+	if(password == null || salt == null)
+	    return null;
+
+	Database database = Database.getInstance();
+	byte digest[] = null;
+
+	if(cryptography != null && database != null)
+	{
+	    digest = digest(cryptography, salt, password, iterations, length);
+
+	    byte bytes[] = database.readDerivedKey(cryptography, digest);
+
+	    if(bytes != null && bytes.length == length / 8)
+		return bytes;
+	}
+
+	byte bytes[] = Cryptography.pbkdf2
+	    (salt, password, iterations, length);
+
+	if(bytes != null && digest != null)
+	    database.writeDerivedKey(cryptography, digest, bytes);
+
+	return bytes;
+    }
+
+    public byte[] sipHashStream(Cryptography cryptography, String sipHashId)
+    {
+	/*
+	** The key stream of a SipHash identity,
+	** 8 * (32 + 64) bits.
+	*/
+
+	try
+	{
+	    byte salt[] = Cryptography.sha512
+		(sipHashId.trim().getBytes("UTF-8"));
+	    byte temporary[] = derive
+		(cryptography,
+		 salt,
+		 sipHashId.toCharArray(),
+		 Database.SIPHASH_STREAM_CREATION_ITERATION_COUNT,
+		 160); // SHA-1
+
+	    if(temporary != null)
+		return Cryptography.pbkdf2
+		    (salt, new String(temporary).toCharArray(), 1, 768);
+	}
+	catch(Exception exception)
+	{
+	}
+
+	return null;
+    }
+
+    public static synchronized KeyDerivationService getInstance()
+    {
+	if(s_instance == null)
+	    s_instance = new KeyDerivationService();
+
+	return s_instance;
+    }
+}
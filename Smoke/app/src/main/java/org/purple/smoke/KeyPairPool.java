@@ -0,0 +1,311 @@
+/*
+** Copyright (c) Alexis Megas.
+** All rights reserved.
+**
+** Redistribution and use in source and binary forms, with or without
+** modification, are permitted provided that the following conditions
+** are met:
+** 1. Redistributions of source code must retain the above copyright
+**    notice, this list of conditions and the following disclaimer.
+** 2. Redistributions in binary form must reproduce the above copyright
+**    notice, this list of conditions and the following disclaimer in the
+**    documentation and/or other materials provided with the distribution.
+** 3. The name of the author may not be used to endorse or promote products
+**    derived from Smoke without specific prior written permission.
+**
+** SMOKE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+** IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+** OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+** IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+** INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+** NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+** DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+** THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+** (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+** SMOKE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package org.purple.smoke;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+import android.os.Process;
+import java.security.KeyPair;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class KeyPairPool
+{
+    /*
+    ** A pool of pre-generated key pairs. A low-priority thread
+    ** refills the pool whenever it drops to the low-water mark. The
+    ** thread pauses while the device is in power-save mode, while
+    ** the battery is low and discharging, or while the battery is
+    ** hot.
+    */
+
+    private ArrayDeque<KeyPair> m_keyPairs = null;
+    private AtomicLong m_generated = null;
+    private AtomicLong m_hits = null;
+    private AtomicLong m_misses = null;
+    private String m_algorithm = "";
+    private Thread m_thread = null;
+    private final Object m_mutex = new Object();
+    private final static int BATTERY_MINIMUM_PERCENT = 15;
+    private final static int BATTERY_MAXIMUM_TEMPERATURE = 420; /*
+								 ** Tenths of
+								 ** a degree.
+								 */
+    private final static long FAILURE_BACKOFF = 1000; // 1 Second
+    private final static long MAXIMUM_FAILURE_BACKOFF =
+	300000; // 5 Minutes
+    private final static long PRESSURE_INTERVAL = 60000; // 60 Seconds
+    private int m_depth = 0;
+    private int m_keySize = 0;
+    private int m_lowWaterMark = 0;
+
+    private boolean underPressure()
+    {
+	try
+	{
+	    Context context = Smoke.getApplication().getApplicationContext();
+
+	    if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+	    {
+		PowerManager powerManager = (PowerManager)
+		    context.getSystemService(Context.POWER_SERVICE);
+
+		if(powerManager != null && powerManager.isPowerSaveMode())
+		    return true;
+	    }
+
+	    Intent intent = context.registerReceiver
+		(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+
+	    if(intent == null)
+		return false;
+
+	    int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+	    int plugged = intent.getIntExtra
+		(BatteryManager.EXTRA_PLUGGED, 0);
+	    int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+	    int temperature = intent.getIntExtra
+		(BatteryManager.EXTRA_TEMPERATURE, 0);
+
+	    if(temperature >= BATTERY_MAXIMUM_TEMPERATURE)
+		return true;
+
+	    if(level >= 0 && plugged == 0 && scale > 0)
+		return 100 * level / scale < BATTERY_MINIMUM_PERCENT;
+	}
+	catch(Exception exception)
+	{
+	}
+
+	return false;
+    }
+
+    private void loop()
+    {
+	try
+	{
+	    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+	}
+	catch(Exception exception)
+	{
+	}
+
+	boolean refill = false;
+	int failures = 0;
+
+	while(true)
+	{
+	    synchronized(m_mutex)
+	    {
+		try
+		{
+		    if(m_keyPairs.size() >= m_depth)
+			refill = false;
+		    else if(m_keyPairs.size() <= m_lowWaterMark)
+			refill = true;
+
+		    if(!refill)
+			m_mutex.wait();
+		}
+		catch(Exception exception)
+		{
+		}
+
+		if(!refill)
+		    continue;
+	    }
+
+	    if(underPressure())
+	    {
+		try
+		{
+		    synchronized(m_mutex)
+		    {
+			m_mutex.wait(PRESSURE_INTERVAL);
+		    }
+		}
+		catch(Exception exception)
+		{
+		}
+
+		continue;
+	    }
+
+	    KeyPair keyPair = generate();
+
+	    if(keyPair == null)
+	    {
+		/*
+		** Back off exponentially while generation fails.
+		*/
+
+		long backoff = Math.min
+		    (FAILURE_BACKOFF << Math.min(failures, 16),
+		     MAXIMUM_FAILURE_BACKOFF);
+
+		failures += 1;
+
+		try
+		{
+		    synchronized(m_mutex)
+		    {
+			m_mutex.wait(backoff);
+		    }
+		}
+		catch(Exception exception)
+		{
+		}
+
+		continue;
+	    }
+
+	    failures = 0;
+	    m_generated.getAndIncrement();
+
+	    synchronized(m_mutex)
+	    {
+		if(m_keyPairs.size() < m_depth)
+		    m_keyPairs.add(keyPair);
+	    }
+	}
+    }
+
+    private KeyPair generate()
+    {
+	try
+	{
+	    return Cryptography.generatePrivatePublicKeyPair
+		(m_algorithm, m_keySize);
+	}
+	catch(Exception exception)
+	{
+	    return null;
+	}
+    }
+
+    public KeyPairPool(String algorithm,
+		       int keySize,
+		       int depth,
+		       int lowWaterMark)
+    {
+	m_algorithm = algorithm;
+	m_generated = new AtomicLong(0);
+	m_hits = new AtomicLong(0);
+	m_keyPairs = new ArrayDeque<> ();
+	m_keySize = keySize;
+	m_misses = new AtomicLong(0);
+	setDepth(depth, lowWaterMark);
+	m_thread = new Thread(new Runnable()
+	{
+	    @Override
+	    public void run()
+	    {
+		loop();
+	    }
+	});
+	m_thread.setDaemon(true);
+	m_thread.setPriority(Thread.MIN_PRIORITY);
+	m_thread.start();
+    }
+
+    public KeyPair take()
+    {
+	/*
+	** Returns a pooled key pair if one is available. Otherwise,
+	** a key pair is generated by the calling thread.
+	*/
+
+	KeyPair keyPair = null;
+
+	synchronized(m_mutex)
+	{
+	    keyPair = m_keyPairs.poll();
+	    m_mutex.notifyAll();
+	}
+
+	if(keyPair != null)
+	{
+	    m_hits.getAndIncrement();
+	    return keyPair;
+	}
+
+	m_misses.getAndIncrement();
+	return generate();
+    }
+
+    public String statistics()
+    {
+	return m_algorithm + "-" + m_keySize +
+	    " pooled: " + size() +
+	    ", hits: " + hits() +
+	    ", misses: " + misses() +
+	    ", generated: " + m_generated.get();
+    }
+
+    public int size()
+    {
+	synchronized(m_mutex)
+	{
+	    return m_keyPairs.size();
+	}
+    }
+
+    public long hits()
+    {
+	return m_hits.get();
+    }
+
+    public long misses()
+    {
+	return m_misses.get();
+    }
+
+    public void setDepth(int depth, int lowWaterMark)
+    {
+	/*
+	** The pool is refilled to depth once it holds no more than
+	** lowWaterMark key pairs. A depth of zero disables the pool.
+	*/
+
+	synchronized(m_mutex)
+	{
+	    m_depth = Math.max(0, depth);
+	    m_lowWaterMark = Math.max(0, Math.min(lowWaterMark, m_depth - 1));
+
+	    while(m_keyPairs.size() > m_depth)
+		m_keyPairs.removeLast();
+
+	    m_mutex.notifyAll();
+	}
+    }
+}
@@ -0,0 +1,429 @@
+/*
+** Copyright (c) Alexis Megas.
+** All rights reserved.
+**
+** Redistribution and use in source and binary forms, with or without
+** modification, are permitted provided that the following conditions
+** are met:
+** 1. Redistributions of source code must retain the above copyright
+**    notice, this list of conditions and the following disclaimer.
+** 2. Redistributions in binary form must reproduce the above copyright
+**    notice, this list of conditions and the following disclaimer in the
+**    documentation and/or other materials provided with the distribution.
+** 3. The name of the author may not be used to endorse or promote products
+**    derived from Smoke without specific prior written permission.
+**
+** SMOKE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+** IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+** OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+** IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+** INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+** NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+** DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+** THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+** (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+** SMOKE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package org.purple.smoke;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.crypto.Mac;
+
+public class KeyStreamRing
+{
+    /*
+    ** The recent keystreams of participants, oldest to newest, keyed
+    ** by the digests of the participants' encryption keys. Each
+    ** keystream carries a Mac which has been keyed with the
+    ** keystream's authentication half. Database fills the rings from
+    ** participants_keys and evicts keystreams which have expired.
+    */
+
+    private static class Element
+    {
+	private Mac m_mac = null;
+	private byte m_keyStream[] = null;
+	private long m_timestamp = 0;
+
+	private Element(byte keyStream[], long timestamp)
+	{
+	    m_keyStream = Arrays.copyOf(keyStream, keyStream.length);
+	    m_mac = Cryptography.chatMac
+		(Arrays.copyOfRange(keyStream, 32, keyStream.length));
+	    m_timestamp = timestamp;
+	}
+
+	private synchronized byte[] match(byte data[],
+					  int offset,
+					  int length,
+					  byte expected[])
+	{
+	    if(m_keyStream == null || m_mac == null)
+		return null;
+
+	    try
+	    {
+		m_mac.update(data, offset, length);
+
+		if(Cryptography.memcmp(expected, m_mac.doFinal()))
+		    return Arrays.copyOf(m_keyStream, m_keyStream.length);
+	    }
+	    catch(Exception exception)
+	    {
+		m_mac.reset();
+	    }
+
+	    return null;
+	}
+
+	private synchronized void wipe()
+	{
+	    if(m_keyStream != null)
+		Arrays.fill(m_keyStream, (byte) 0);
+
+	    m_keyStream = null;
+	    m_mac = null;
+	}
+    }
+
+    private static class Ring
+    {
+	private Element m_elements[] = new Element[CAPACITY];
+	private boolean m_truncated = false;
+	private int m_head = 0; // The next position.
+	private int m_size = 0;
+
+	private Element element(int i)
+	{
+	    /*
+	    ** Zero is the newest element.
+	    */
+
+	    return m_elements[(m_head - 1 - i + 2 * CAPACITY) % CAPACITY];
+	}
+
+	private boolean contains(byte keyStream[])
+	{
+	    for(int i = 0; i < m_size; i++)
+	    {
+		Element element = element(i);
+
+		synchronized(element)
+		{
+		    if(Arrays.equals(element.m_keyStream, keyStream))
+			return true;
+		}
+	    }
+
+	    return false;
+	}
+
+	private void add(Element element)
+	{
+	    if(m_size == CAPACITY)
+	    {
+		/*
+		** Older keystreams remain in the database.
+		*/
+
+		element(m_size - 1).wipe();
+		m_size -= 1;
+		m_truncated = true;
+	    }
+
+	    m_elements[m_head] = element;
+	    m_head = (m_head + 1) % CAPACITY;
+	    m_size += 1;
+	}
+
+	private void evict(long cutoff)
+	{
+	    while(m_size > 0)
+	    {
+		Element element = element(m_size - 1);
+
+		if(element.m_timestamp >= cutoff)
+		    break;
+
+		element.wipe();
+		m_elements[(m_head - m_size + CAPACITY) % CAPACITY] = null;
+		m_size -= 1;
+	    }
+	}
+
+	private void wipe()
+	{
+	    for(int i = 0; i < m_size; i++)
+		element(i).wipe();
+
+	    Arrays.fill(m_elements, null);
+	    m_size = 0;
+	}
+    }
+
+    private AtomicBoolean m_loading = null;
+    private HashMap<ByteBuffer, Ring> m_rings = null;
+    private final ReentrantReadWriteLock m_mutex =
+	new ReentrantReadWriteLock();
+    private final static int CAPACITY = 32;
+    private static KeyStreamRing s_instance = null;
+    private boolean m_loaded = false;
+    private long m_generation = 0;
+
+    private KeyStreamRing()
+    {
+	m_loading = new AtomicBoolean(false);
+	m_rings = new HashMap<> ();
+    }
+
+    private void insert(byte digest[], byte keyStream[], long timestamp)
+    {
+	/*
+	** m_mutex must be write-locked.
+	*/
+
+	Ring ring = m_rings.get(ByteBuffer.wrap(digest));
+
+	if(ring == null)
+	{
+	    ring = new Ring();
+	    m_rings.put
+		(ByteBuffer.wrap(Arrays.copyOf(digest, digest.length)),
+		 ring);
+	}
+
+	if(keyStream == null || keyStream.length <= 32)
+	    ring.m_truncated = true;
+	else if(!ring.contains(keyStream))
+	    ring.add(new Element(keyStream, timestamp));
+    }
+
+    private void wipe()
+    {
+	/*
+	** m_mutex must be write-locked.
+	*/
+
+	for(Ring ring : m_rings.values())
+	    ring.wipe();
+
+	m_rings.clear();
+    }
+
+    public boolean beginLoad()
+    {
+	return m_loading.compareAndSet(false, true);
+    }
+
+    public boolean isComplete(byte digest[])
+    {
+	/*
+	** A complete ring contains every keystream of the
+	** participant. Misses are then authoritative.
+	*/
+
+	if(digest == null)
+	    return false;
+
+	m_mutex.readLock().lock();
+
+	try
+	{
+	    if(!m_loaded)
+		return false;
+
+	    Ring ring = m_rings.get(ByteBuffer.wrap(digest));
+
+	    return ring == null || !ring.m_truncated;
+	}
+	finally
+	{
+	    m_mutex.readLock().unlock();
+	}
+    }
+
+    public boolean isLoaded()
+    {
+	m_mutex.readLock().lock();
+
+	try
+	{
+	    return m_loaded;
+	}
+	finally
+	{
+	    m_mutex.readLock().unlock();
+	}
+    }
+
+    public byte[] match(byte digest[],
+			byte data[],
+			int offset,
+			int length,
+			byte expected[])
+    {
+	/*
+	** Returns the newest keystream whose digest of
+	** data[offset, offset + length) equals expected.
+	*/
+
+	if(data == null ||
+	   digest == null ||
+	   expected == null ||
+	   length < 0 ||
+	   offset < 0 ||
+	   offset + length > data.length)
+	    return null;
+
+	Element elements[] = null;
+
+	m_mutex.readLock().lock();
+
+	try
+	{
+	    Ring ring = m_rings.get(ByteBuffer.wrap(digest));
+
+	    if(ring == null || ring.m_size == 0)
+		return null;
+
+	    elements = new Element[ring.m_size];
+
+	    for(int i = 0; i < elements.length; i++)
+		elements[i] = ring.element(i);
+	}
+	finally
+	{
+	    m_mutex.readLock().unlock();
+	}
+
+	for(Element element : elements)
+	{
+	    byte keyStream[] = element.match(data, offset, length, expected);
+
+	    if(keyStream != null)
+		return keyStream;
+	}
+
+	return null;
+    }
+
+    public long generation()
+    {
+	m_mutex.readLock().lock();
+
+	try
+	{
+	    return m_generation;
+	}
+	finally
+	{
+	    m_mutex.readLock().unlock();
+	}
+    }
+
+    public static synchronized KeyStreamRing getInstance()
+    {
+	if(s_instance == null)
+	    s_instance = new KeyStreamRing();
+
+	return s_instance;
+    }
+
+    public void add(byte digest[], byte keyStream[], long timestamp)
+    {
+	if(digest == null)
+	    return;
+
+	m_mutex.writeLock().lock();
+
+	try
+	{
+	    m_generation += 1;
+
+	    if(m_loaded)
+		insert(digest, keyStream, timestamp);
+	}
+	finally
+	{
+	    m_mutex.writeLock().unlock();
+	}
+    }
+
+    public void endLoad(byte digests[][],
+			byte keyStreams[][],
+			long timestamps[],
+			long generation)
+    {
+	/*
+	** The keystreams must be ordered from oldest to newest.
+	** A null keystream marks a row which could not be read.
+	*/
+
+	m_mutex.writeLock().lock();
+
+	try
+	{
+	    if(digests != null && generation == m_generation)
+	    {
+		wipe();
+
+		for(int i = 0; i < digests.length; i++)
+		    if(digests[i] != null)
+			insert(digests[i], keyStreams[i], timestamps[i]);
+
+		m_loaded = true;
+	    }
+	}
+	finally
+	{
+	    m_loading.set(false);
+	    m_mutex.writeLock().unlock();
+	}
+
+	if(keyStreams != null)
+	    for(byte keyStream[] : keyStreams)
+		if(keyStream != null)
+		    Arrays.fill(keyStream, (byte) 0);
+    }
+
+    public void evict(long cutoff)
+    {
+	/*
+	** Remove the keystreams which are older than cutoff.
+	*/
+
+	m_mutex.writeLock().lock();
+
+	try
+	{
+	    for(Ring ring : m_rings.values())
+		ring.evict(cutoff);
+	}
+	finally
+	{
+	    m_mutex.writeLock().unlock();
+	}
+    }
+
+    public void invalidate()
+    {
+	m_mutex.writeLock().lock();
+
+	try
+	{
+	    m_generation += 1;
+	    m_loaded = false;
+	    wipe();
+	}
+	finally
+	{
+	    m_mutex.writeLock().unlock();
+	}
+    }
+}
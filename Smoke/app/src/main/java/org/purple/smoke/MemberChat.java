@@ -54,8 +54,6 @@ import android.widget.ImageView;
 import android.widget.TextView;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 public class MemberChat extends AppCompatActivity
@@ -83,7 +81,7 @@ public class MemberChat extends AppCompatActivity
 		   intent.getStringExtra("org.purple.smoke.sipHashId").
 		   equals(m_sipHashId))
 		{
-		    m_adapter.notifyItemInserted(m_adapter.getItemCount() - 1);
+		    m_adapter.messageInserted();
 
 		    if(local)
 		    {
@@ -171,11 +169,12 @@ public class MemberChat extends AppCompatActivity
     }
 
     private Database m_databaseHelper = Database.getInstance();
+    private Repository m_repository = Repository.getInstance();
     private MemberChatBroadcastReceiver m_receiver = null;
     private RecyclerView m_recyclerView = null;
-    private RecyclerView.Adapter m_adapter = null;
-    private ScheduledExecutorService m_connectionStatusScheduler = null;
-    private ScheduledExecutorService m_statusScheduler = null;
+    private MemberChatAdapter m_adapter = null;
+    private TimingWheel.Task m_connectionStatusScheduler = null;
+    private TimingWheel.Task m_statusScheduler = null;
     private SmokeLinearLayoutManager m_layoutManager = null;
     private String m_name = "00:00:00:00:00:00:00:00";
     private String m_mySipHashId = "";
@@ -220,14 +219,27 @@ public class MemberChat extends AppCompatActivity
 		    str += new String(a);
 		}
 
-		byte keyStream[] = m_databaseHelper.participantKeyStream
-		    (s_cryptography, m_sipHashId);
-
-		if(keyStream == null || keyStream.length != 96)
-		    return;
-
-		Kernel.getInstance().enqueueChatMessage
-		    (str, m_sipHashId, keyStream);
+		final String message = str;
+
+		/*
+		** Key streams are decrypted by the repository.
+		*/
+
+		m_repository.participantKeyStream
+		    (null,
+		     m_sipHashId,
+		     new Repository.Callback<byte[]> ()
+		     {
+			 @Override
+			 public void onResult(byte keyStream[])
+			 {
+			     if(keyStream == null || keyStream.length != 96)
+				 return;
+
+			     Kernel.getInstance().enqueueChatMessage
+				 (message, m_sipHashId, keyStream);
+			 }
+		     });
 		textView1.post(new Runnable()
 		{
 		    @Override
@@ -245,9 +257,8 @@ public class MemberChat extends AppCompatActivity
     {
 	if(m_connectionStatusScheduler == null)
 	{
-	    m_connectionStatusScheduler = Executors.
-		newSingleThreadScheduledExecutor();
-	    m_connectionStatusScheduler.scheduleAtFixedRate(new Runnable()
+	    m_connectionStatusScheduler = TimingWheel.getInstance().
+		scheduleAtFixedRate(new Runnable()
 	    {
 		@Override
 		public void run()
@@ -288,58 +299,59 @@ public class MemberChat extends AppCompatActivity
 
 	if(m_statusScheduler == null)
 	{
-	    m_statusScheduler = Executors.newSingleThreadScheduledExecutor();
-	    m_statusScheduler.scheduleAtFixedRate(new Runnable()
+	    m_statusScheduler = TimingWheel.getInstance().
+		scheduleAtFixedRate(new Runnable()
 	    {
 		@Override
 		public void run()
 		{
-		    ArrayList<ParticipantElement> arrayList =
-			m_databaseHelper.readParticipants
-			(s_cryptography, m_sipHashId);
-
-		    if(arrayList == null || arrayList.isEmpty())
-			return;
-
-		    final ParticipantElement participantElement =
-			arrayList.get(0);
-
-		    try
-		    {
-			MemberChat.this.runOnUiThread(new Runnable()
-			{
-			    @Override
-			    public void run()
-			    {
-				ImageView imageView = (ImageView)
-				    findViewById(R.id.status);
-
-				if(participantElement.m_keyStream == null ||
-				   participantElement.m_keyStream.length != 96)
-				    imageView.setImageResource
-					(R.drawable.chat_faulty_session);
-				else if(Math.abs(System.currentTimeMillis() -
-						 participantElement.
-						 m_lastStatusTimestamp) >
-					Chat.STATUS_WINDOW)
-				    imageView.setImageResource
-					(R.drawable.chat_status_offline);
-				else
-				    imageView.setImageResource
-					(R.drawable.chat_status_online);
-			    }
-			});
-		    }
-		    catch(Exception exception)
-		    {
-		    }
-
-		    arrayList.clear();
+		    refreshStatus();
 		}
 	    }, 1500, STATUS_INTERVAL, TimeUnit.MILLISECONDS);
 	}
     }
 
+    private void refreshStatus()
+    {
+	/*
+	** The participant is read by the repository.
+	*/
+
+	m_repository.readParticipants
+	    (MemberChat.this,
+	     m_sipHashId,
+	     new Repository.Callback<ArrayList<ParticipantElement>> ()
+	     {
+		 @Override
+		 public void onResult(ArrayList<ParticipantElement> arrayList)
+		 {
+		     if(arrayList == null || arrayList.isEmpty())
+			 return;
+
+		     refreshStatus(arrayList.get(0));
+		     arrayList.clear();
+		 }
+	     });
+    }
+
+    private void refreshStatus(ParticipantElement participantElement)
+    {
+	if(participantElement == null)
+	    return;
+
+	ImageView imageView = (ImageView) findViewById(R.id.status);
+
+	if(participantElement.m_keyStream == null ||
+	   participantElement.m_keyStream.length != 96)
+	    imageView.setImageResource(R.drawable.chat_faulty_session);
+	else if(Math.abs(System.currentTimeMillis() -
+			 participantElement.m_lastStatusTimestamp) >
+		Chat.STATUS_WINDOW)
+	    imageView.setImageResource(R.drawable.chat_status_offline);
+	else
+	    imageView.setImageResource(R.drawable.chat_status_online);
+    }
+
     private void saveState()
     {
 	TextView textView1 = (TextView) findViewById(R.id.chat_message);
@@ -441,12 +453,7 @@ public class MemberChat extends AppCompatActivity
 			(m_recyclerView, null, positionStart - itemCount);
 		}
 	    });
-	m_name = m_databaseHelper.nameFromSipHashId
-	    (s_cryptography, m_sipHashId);
-
-	if(m_name.isEmpty())
-	    m_name = m_sipHashId;
-
+	m_name = m_sipHashId;
 	m_recyclerView.setAdapter(m_adapter);
 	m_recyclerView.setLayoutManager(m_layoutManager);
 
@@ -457,7 +464,30 @@ public class MemberChat extends AppCompatActivity
 	if(string.isEmpty())
 	    textView1.setText("Error!");
 	else
+	{
 	    textView1.setText(m_name + "@" + string);
+	    m_repository.nameFromSipHashId
+		(MemberChat.this,
+		 m_sipHashId,
+		 new Repository.Callback<String> ()
+		 {
+		     @Override
+		     public void onResult(String name)
+		     {
+			 if(name == null || name.isEmpty())
+			     return;
+
+			 TextView textView1 = (TextView) findViewById
+			     (R.id.banner);
+
+			 m_name = name;
+			 textView1.setText
+			     (m_name + "@" + Miscellaneous.delimitString
+			      (m_sipHashId.replace(":", ""), '-', 4).
+			      toUpperCase());
+		     }
+		 });
+	}
 
 	/*
 	** Prepare listeners.
@@ -519,15 +549,35 @@ public class MemberChat extends AppCompatActivity
 			    if(State.getInstance().getString("dialog_accepted").
 			       equals("true"))
 			    {
-				m_databaseHelper.deleteParticipantMessage
-				    (s_cryptography, m_sipHashId, itemId);
-				m_adapter.notifyDataSetChanged();
+				m_repository.deleteParticipantMessage
+				    (MemberChat.this,
+				     m_sipHashId,
+				     itemId,
+				     new Repository.Callback<Void> ()
+				     {
+					 @Override
+					 public void onResult(Void result)
+					 {
+					     m_adapter.messageDeleted();
+					 }
+				     });
 			    }
 			}
 			else if(State.getInstance().
 				getString("dialog_accepted").equals("true"))
-			    m_databaseHelper.deleteParticipantMessages
-				(s_cryptography, m_sipHashId);
+			{
+			    m_repository.deleteParticipantMessages
+				(MemberChat.this,
+				 m_sipHashId,
+				 new Repository.Callback<Void> ()
+				 {
+				     @Override
+				     public void onResult(Void result)
+				     {
+					 m_adapter.reload();
+				     }
+				 });
+			}
 
 			break;
 		    }
@@ -614,19 +664,19 @@ public class MemberChat extends AppCompatActivity
 	    {
 	    case R.id.action_chat:
 	    {
-		m_databaseHelper.writeSetting(null, "lastActivity", "Chat");
+		m_repository.writeSetting(null, "lastActivity", "Chat");
 		showChatActivity();
 		return true;
 	    }
 	    case R.id.action_fire:
 	    {
-		m_databaseHelper.writeSetting(null, "lastActivity", "Fire");
+		m_repository.writeSetting(null, "lastActivity", "Fire");
 		showFireActivity();
 		return true;
 	    }
 	    case R.id.action_settings:
 	    {
-		m_databaseHelper.writeSetting(null, "lastActivity", "Settings");
+		m_repository.writeSetting(null, "lastActivity", "Settings");
 		showSettingsActivity();
 		return true;
 	    }
@@ -646,11 +696,11 @@ public class MemberChat extends AppCompatActivity
 		("member_chat_oid", String.valueOf(itemId));
 	    State.getInstance().setString
 		("member_chat_siphash_id", sipHashId);
-	    m_databaseHelper.writeSetting
+	    m_repository.writeSetting
 		(null, "lastActivity", "MemberChat");
-	    m_databaseHelper.writeSetting
+	    m_repository.writeSetting
 		(s_cryptography, "member_chat_oid", String.valueOf(itemId));
-	    m_databaseHelper.writeSetting
+	    m_repository.writeSetting
 		(s_cryptography, "member_chat_siphash_id", sipHashId);
 	    showMemberChatActivity();
 	}
@@ -671,10 +721,19 @@ public class MemberChat extends AppCompatActivity
 	menuItem = menu.add(1, -1, 0, "Retrieve Messages");
 	menuItem.setEnabled
 	    (Kernel.getInstance().isConnected() &&
-	     !m_databaseHelper.readSetting(s_cryptography, "ozone_address").
+	     !m_repository.readSetting(s_cryptography, "ozone_address").
 	     isEmpty());
     }
 
+    @Override
+    public void onDestroy()
+    {
+	super.onDestroy();
+
+	if(m_adapter != null)
+	    m_adapter.close();
+    }
+
     @Override
     public void onPause()
     {
@@ -695,7 +754,7 @@ public class MemberChat extends AppCompatActivity
     {
 	boolean isAuthenticated = State.getInstance().isAuthenticated();
 
-	if(!m_databaseHelper.accountPrepared())
+	if(!m_repository.accountPrepared())
 	    /*
 	    ** The database may have been modified or removed.
 	    */
@@ -37,10 +37,8 @@ import android.view.ViewGroup;
 public class MemberChatAdapter extends RecyclerView.Adapter
 				       <MemberChatAdapter.ViewHolder>
 {
+    private MemberChatWindow m_window = null;
     private String m_sipHashId = "";
-    private final static Cryptography s_cryptography =
-	Cryptography.getInstance();
-    private final static Database s_database = Database.getInstance();
 
     public static class ViewHolder extends RecyclerView.ViewHolder
 	implements OnCreateContextMenuListener
@@ -72,6 +70,20 @@ public class MemberChatAdapter extends RecyclerView.Adapter
 	    menu.add(3, m_position, 0, "Copy Text");
 	}
 
+	public void clear(int position)
+	{
+	    /*
+	    ** The element has not been loaded.
+	    */
+
+	    if(m_chatBubble == null)
+		return;
+
+	    m_chatBubble.setOid(-1);
+	    m_chatBubble.setText("", ChatBubble.LEFT);
+	    m_position = position;
+	}
+
 	public void setData(MemberChatElement memberChatElement, int position)
 	{
 	    if(m_chatBubble == null || memberChatElement == null)
@@ -104,6 +116,21 @@ public class MemberChatAdapter extends RecyclerView.Adapter
     public MemberChatAdapter(String sipHashId)
     {
 	m_sipHashId = sipHashId;
+	m_window = new MemberChatWindow
+	    (sipHashId, new MemberChatWindow.Listener()
+	    {
+		@Override
+		public void countChanged()
+		{
+		    notifyDataSetChanged();
+		}
+
+		@Override
+		public void pageLoaded(int position, int count)
+		{
+		    notifyItemRangeChanged(position, count);
+		}
+	    });
     }
 
     @Override
@@ -117,7 +144,7 @@ public class MemberChatAdapter extends RecyclerView.Adapter
     @Override
     public int getItemCount()
     {
-	return (int) s_database.countOfMessages(s_cryptography, m_sipHashId);
+	return m_window.count();
     }
 
     @Override
@@ -126,12 +153,40 @@ public class MemberChatAdapter extends RecyclerView.Adapter
 	if(viewHolder == null)
 	    return;
 
-	MemberChatElement memberChatElement =
-	    (s_database.readMemberChat(s_cryptography, m_sipHashId, position));
+	MemberChatElement memberChatElement = m_window.get(position);
 
 	if(memberChatElement == null)
-	    return;
+	    viewHolder.clear(position);
+	else
+	    viewHolder.setData(memberChatElement, position);
+    }
+
+    public void close()
+    {
+	m_window.close();
+    }
+
+    public void messageDeleted()
+    {
+	m_window.deleted();
+	notifyDataSetChanged();
+    }
+
+    public void messageInserted()
+    {
+	if(m_window.inserted())
+	    notifyItemInserted(m_window.count() - 1);
+	else
+	    /*
+	    ** The count which is being read may not include the new
+	    ** message. Count the messages again.
+	    */
 
-	viewHolder.setData(memberChatElement, position);
+	    m_window.reload();
+    }
+
+    public void reload()
+    {
+	m_window.reload();
     }
 }
@@ -0,0 +1,316 @@
+/*
+** Copyright (c) Alexis Megas.
+** All rights reserved.
+**
+** Redistribution and use in source and binary forms, with or without
+** modification, are permitted provided that the following conditions
+** are met:
+** 1. Redistributions of source code must retain the above copyright
+**    notice, this list of conditions and the following disclaimer.
+** 2. Redistributions in binary form must reproduce the above copyright
+**    notice, this list of conditions and the following disclaimer in the
+**    documentation and/or other materials provided with the distribution.
+** 3. The name of the author may not be used to endorse or promote products
+**    derived from Smoke without specific prior written permission.
+**
+** SMOKE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+** IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+** OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+** IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+** INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+** NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+** DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+** THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+** (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+** SMOKE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package org.purple.smoke;
+
+import android.os.Handler;
+import android.os.Looper;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class MemberChatWindow
+{
+    /*
+    ** A window of decrypted conversation pages. Pages are read by
+    ** (timestamp, oid) on the repository's thread and are evicted in
+    ** least-recently-used order. The count of messages is maintained
+    ** as messages are inserted and deleted. Except for the loaders,
+    ** every method must be called on the main thread.
+    */
+
+    public interface Listener
+    {
+	void countChanged();
+	void pageLoaded(int position, int count);
+    }
+
+    private class Page
+    {
+	public ArrayList<MemberChatElement> m_elements = null;
+	public long m_generation = 0;
+
+	public Page(ArrayList<MemberChatElement> elements, long generation)
+	{
+	    m_elements = elements;
+	    m_generation = generation;
+	}
+    }
+
+    private HashSet<Integer> m_pending = null;
+    private Handler m_handler = null;
+    private LinkedHashMap<Integer, Page> m_pages = null;
+    private Listener m_listener = null;
+    private String m_sipHashId = "";
+    private boolean m_closed = false;
+    private final static Cryptography s_cryptography =
+	Cryptography.getInstance();
+    private final static Database s_database = Database.getInstance();
+    private final static int MAXIMUM_PAGES = 8;
+    private final static int PREFETCH_DISTANCE = 15;
+    private int m_count = -1;
+    private int m_lastPosition = 0;
+    private long m_generation = 0;
+    private long m_reload = 0;
+    public final static int PAGE_SIZE = 50;
+
+    public MemberChatWindow(String sipHashId, Listener listener)
+    {
+	m_handler = new Handler(Looper.getMainLooper());
+	m_listener = listener;
+	m_pages = new LinkedHashMap<Integer, Page> (MAXIMUM_PAGES, 0.75f, true)
+	{
+	    @Override
+	    protected boolean removeEldestEntry(Map.Entry<Integer, Page> entry)
+	    {
+		return size() > MAXIMUM_PAGES;
+	    }
+	};
+	m_pending = new HashSet<> ();
+	m_sipHashId = sipHashId;
+	reload();
+    }
+
+    private boolean isFresh(Page page)
+    {
+	return page != null && page.m_generation == m_generation;
+    }
+
+    private void load(final int index)
+    {
+	if(index < 0 || index * PAGE_SIZE >= m_count)
+	    return;
+	else if(isFresh(m_pages.get(index)) || !m_pending.add(index))
+	    return;
+
+	/*
+	** Seek from a neighboring page if one is available.
+	*/
+
+	MemberChatElement key = null;
+	Page page = m_pages.get(index - 1);
+	boolean after = true;
+
+	if(isFresh(page) && page.m_elements.size() == PAGE_SIZE)
+	    key = page.m_elements.get(PAGE_SIZE - 1);
+	else
+	{
+	    page = m_pages.get(index + 1);
+
+	    if(isFresh(page) && !page.m_elements.isEmpty())
+	    {
+		after = false;
+		key = page.m_elements.get(0);
+	    }
+	}
+
+	final MemberChatElement k = key;
+	final boolean a = after;
+	final long generation = m_generation;
+
+	Repository.getInstance().execute(new Runnable()
+	{
+	    @Override
+	    public void run()
+	    {
+		final ArrayList<MemberChatElement> arrayList = s_database.
+		    readMemberChats(s_cryptography,
+				    m_sipHashId,
+				    k,
+				    a,
+				    index * PAGE_SIZE,
+				    PAGE_SIZE);
+
+		m_handler.post(new Runnable()
+		{
+		    @Override
+		    public void run()
+		    {
+			loaded(index, generation, k == null || a, arrayList);
+		    }
+		});
+	    }
+	});
+    }
+
+    private void loaded(int index,
+			long generation,
+			boolean forward,
+			ArrayList<MemberChatElement> arrayList)
+    {
+	m_pending.remove(index);
+
+	if(arrayList == null || m_closed)
+	    return;
+
+	if(generation != m_generation)
+	{
+	    /*
+	    ** The window was invalidated while the page was read.
+	    ** Display the page until it has been read again.
+	    */
+
+	    if(!m_pages.containsKey(index))
+		m_pages.put(index, new Page(arrayList, generation));
+
+	    load(index);
+	    return;
+	}
+
+	m_pages.put(index, new Page(arrayList, generation));
+
+	if(forward && arrayList.size() < PAGE_SIZE)
+	{
+	    /*
+	    ** The end of the conversation was reached. Correct the count
+	    ** if it has drifted.
+	    */
+
+	    int count = index * PAGE_SIZE + arrayList.size();
+
+	    if(count != m_count)
+	    {
+		m_count = count;
+		m_generation += 1;
+		m_listener.countChanged();
+		return;
+	    }
+	}
+
+	if(!arrayList.isEmpty())
+	    m_listener.pageLoaded(index * PAGE_SIZE, arrayList.size());
+    }
+
+    public MemberChatElement get(int position)
+    {
+	/*
+	** Returns null if the position has not been loaded.
+	*/
+
+	if(position < 0 || position >= m_count)
+	    return null;
+
+	Page page = m_pages.get(position / PAGE_SIZE);
+	boolean forward = position >= m_lastPosition;
+	int index = position / PAGE_SIZE;
+	int offset = position % PAGE_SIZE;
+
+	m_lastPosition = position;
+	load(index);
+
+	/*
+	** Prefetch in the direction of the scroll.
+	*/
+
+	if(forward && offset >= PAGE_SIZE - PREFETCH_DISTANCE)
+	    load(index + 1);
+	else if(!forward && offset < PREFETCH_DISTANCE)
+	    load(index - 1);
+
+	if(page != null && offset < page.m_elements.size())
+	    return page.m_elements.get(offset);
+	else
+	    return null;
+    }
+
+    public boolean inserted()
+    {
+	/*
+	** Returns false if the messages have not been counted.
+	*/
+
+	m_generation += 1;
+
+	if(m_count < 0)
+	    return false;
+
+	m_count += 1;
+	return true;
+    }
+
+    public int count()
+    {
+	return Math.max(0, m_count);
+    }
+
+    public void close()
+    {
+	/*
+	** The activity was destroyed. Discard the pages and every read
+	** which is in flight.
+	*/
+
+	m_closed = true;
+	m_pages.clear();
+	m_pending.clear();
+    }
+
+    public void deleted()
+    {
+	if(m_count > 0)
+	    m_count -= 1;
+
+	m_generation += 1;
+    }
+
+    public void reload()
+    {
+	/*
+	** Discard the pages and count the messages again.
+	*/
+
+	final long reload = m_reload += 1;
+
+	m_generation += 1;
+	m_pages.clear();
+	Repository.getInstance().execute(new Runnable()
+	{
+	    @Override
+	    public void run()
+	    {
+		final long count = s_database.countOfMessages
+		    (s_cryptography, m_sipHashId);
+
+		m_handler.post(new Runnable()
+		{
+		    @Override
+		    public void run()
+		    {
+			if(count < 0 || m_closed || reload != m_reload)
+			    return;
+
+			m_count = (int) count;
+			m_generation += 1;
+			m_listener.countChanged();
+		    }
+		});
+	    }
+	});
+    }
+}
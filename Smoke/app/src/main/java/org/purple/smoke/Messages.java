@@ -29,15 +29,10 @@ package org.purple.smoke;
 
 import android.util.Base64;
 import java.security.PublicKey;
-import java.text.SimpleDateFormat;
 import java.util.Arrays;
-import java.util.Date;
-import java.util.TimeZone;
 
 public class Messages
 {
-    private final static SimpleDateFormat s_fireSimpleDateFormat = new
-	SimpleDateFormat("MMddyyyyHHmmss");
     public final static String EOM = "\r\n\r\n\r\n";
     public final static String FIRE_CHAT_MESSAGE_TYPE = "0040b";
     public final static String FIRE_STATUS_MESSAGE_TYPE = "0040a";
@@ -57,103 +52,32 @@ public class Messages
 
     public static String bytesToMessageString(byte bytes[])
     {
-	if(bytes == null || bytes.length <= 0)
-	    return "";
+	byte frame[] = bytesToMessageFrame(bytes);
 
-	try
-	{
-	    StringBuilder results = new StringBuilder();
-
-	    results.append("POST HTTP/1.1\r\n");
-	    results.append
-		("Content-Type: application/x-www-form-urlencoded\r\n");
-	    results.append("Content-Length: %1\r\n");
-	    results.append("\r\n");
-	    results.append("content=%2\r\n");
-	    results.append("\r\n\r\n");
-
-	    String base64 = Base64.encodeToString(bytes, Base64.NO_WRAP);
-	    int indexOf = results.indexOf("%1");
-	    int length = base64.length() + "content=\r\n\r\n\r\n".length();
-
-	    results = results.replace
-		(indexOf, indexOf + 2, String.valueOf(length));
-	    indexOf = results.indexOf("%2");
-	    results = results.replace(indexOf, indexOf + 2, base64);
-	    return results.toString();
-	}
-	catch(Exception exception)
-	{
-	}
+	if(frame == null)
+	    return "";
 
-	return "";
+	return new String(frame);
     }
 
     public static String bytesToMessageStringNonBase64(byte bytes[])
     {
-	if(bytes == null || bytes.length <= 0)
-	    return "";
+	byte frame[] = FrameEncoder.CONTENT_NON_BASE64.encode(bytes);
 
-	try
-	{
-	    StringBuilder results = new StringBuilder();
-
-	    results.append("POST HTTP/1.1\r\n");
-	    results.append
-		("Content-Type: application/x-www-form-urlencoded\r\n");
-	    results.append("Content-Length: %1\r\n");
-	    results.append("\r\n");
-	    results.append("content=%2\r\n");
-	    results.append("\r\n\r\n");
-
-	    int indexOf = results.indexOf("%1");
-	    int length = bytes.length + "content=\r\n\r\n\r\n".length();
-
-	    results = results.replace
-		(indexOf, indexOf + 2, String.valueOf(length));
-	    indexOf = results.indexOf("%2");
-	    results = results.replace(indexOf, indexOf + 2, new String(bytes));
-	    return results.toString();
-	}
-	catch(Exception exception)
-	{
-	}
+	if(frame == null)
+	    return "";
 
-	return "";
+	return new String(frame);
     }
 
     public static String identityMessage(byte bytes[])
     {
-	if(bytes == null || bytes.length <= 0)
-	    return "";
+	byte frame[] = identityFrame(bytes);
 
-	try
-	{
-	    StringBuilder results = new StringBuilder();
-
-	    results.append("POST HTTP/1.1\r\n");
-	    results.append
-		("Content-Type: application/x-www-form-urlencoded\r\n");
-	    results.append("Content-Length: %1\r\n");
-	    results.append("\r\n");
-	    results.append("type=0095a&content=%2;sha-512\r\n\r\n\r\n");
-
-	    String base64 = Base64.encodeToString(bytes, Base64.NO_WRAP);
-	    int indexOf = results.indexOf("%1");
-	    int length = base64.length() +
-		"type=0095a&content=;sha-512\r\n\r\n\r\n".length();
-
-	    results = results.replace
-		(indexOf, indexOf + 2, String.valueOf(length));
-	    indexOf = results.indexOf("%2");
-	    results = results.replace(indexOf, indexOf + 2, base64);
-	    return results.toString();
-	}
-	catch(Exception exception)
-	{
-	}
+	if(frame == null)
+	    return "";
 
-	return "";
+	return new String(frame);
     }
 
     public static String stripMessage(String message)
@@ -170,6 +94,19 @@ public class Messages
 	return message.trim();
     }
 
+    public static byte[] bytesToMessageFrame(byte bytes[])
+    {
+	try
+	{
+	    return FrameEncoder.CONTENT.encode(bytes);
+	}
+	catch(Exception exception)
+	{
+	}
+
+	return null;
+    }
+
     public static byte[] callMessage(Cryptography cryptography,
 				     String sipHashId,
 				     byte keyStream[],
@@ -361,9 +298,8 @@ public class Messages
 
 	    byte signature[] = null;
 
-	    if(Database.getInstance().readParticipantOptions(cryptography,
-							     sipHashId).
-	       contains("optional_signatures = false"))
+	    if(Database.getInstance().participantSignaturesRequired
+	       (cryptography, sipHashId))
 		signature = cryptography.signViaChatSignature
 		    (Miscellaneous.
 		     joinByteArrays(cryptography.
@@ -567,9 +503,8 @@ public class Messages
 
 	    byte signature[] = null;
 
-	    if(Database.getInstance().readParticipantOptions(cryptography,
-							     sipHashId).
-	       contains("optional_signatures = false"))
+	    if(Database.getInstance().participantSignaturesRequired
+	       (cryptography, sipHashId))
 		signature = cryptography.signViaChatSignature
 		    (Miscellaneous.
 		     joinByteArrays(cryptography.
@@ -909,14 +844,10 @@ public class Messages
 				       Base64.NO_WRAP));
 	    stringBuilder.append("\n");
 
-	    TimeZone utc = TimeZone.getTimeZone("UTC");
-
-	    s_fireSimpleDateFormat.setTimeZone(utc);
 	    stringBuilder.append
-		(Base64.
-		 encodeToString(s_fireSimpleDateFormat.
-				format(new Date(System.currentTimeMillis())).
-				getBytes("ISO-8859-1"), Base64.NO_WRAP));
+		(Base64.encodeToString(FireTimestamp.
+				       encode(System.currentTimeMillis()),
+				       Base64.NO_WRAP));
 
 	    byte aes256[] = Cryptography.encryptFire
 		(stringBuilder.toString().getBytes("ISO-8859-1"),
@@ -1003,14 +934,10 @@ public class Messages
 				       Base64.NO_WRAP));
 	    stringBuilder.append("\n");
 
-	    TimeZone utc = TimeZone.getTimeZone("UTC");
-
-	    s_fireSimpleDateFormat.setTimeZone(utc);
 	    stringBuilder.append
-		(Base64.
-		 encodeToString(s_fireSimpleDateFormat.
-				format(new Date(System.currentTimeMillis())).
-				getBytes("ISO-8859-1"), Base64.NO_WRAP));
+		(Base64.encodeToString(FireTimestamp.
+				       encode(System.currentTimeMillis()),
+				       Base64.NO_WRAP));
 
 	    byte aes256[] = Cryptography.encryptFire
 		(stringBuilder.toString().getBytes("ISO-8859-1"),
@@ -1057,6 +984,19 @@ public class Messages
 	return null;
     }
 
+    public static byte[] identityFrame(byte bytes[])
+    {
+	try
+	{
+	    return FrameEncoder.IDENTITY.encode(bytes);
+	}
+	catch(Exception exception)
+	{
+	}
+
+	return null;
+    }
+
     public static byte[] pkpRequestMessage(Cryptography cryptography,
 					   String requestedSipHashId)
     {
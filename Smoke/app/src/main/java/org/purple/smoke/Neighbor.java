@@ -31,12 +31,15 @@ import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.util.Base64;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.UUID;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -44,19 +47,34 @@ public abstract class Neighbor
 {
     private ArrayList<String> m_echoQueue = null;
     private ArrayList<String> m_queue = null;
-    private ScheduledExecutorService m_parsingScheduler = null;
-    private ScheduledExecutorService m_scheduler = null;
-    private ScheduledExecutorService m_sendOutboundScheduler = null;
+    private AtomicBoolean m_readingPaused = null;
+    private AtomicLong m_bytesPerSecond = null;
+    private AtomicLong m_bytesSent = null;
+    private AtomicLong m_framesPerSecond = null;
+    private AtomicLong m_framesSent = null;
+    private ByteBuffer m_datagrams = null;
+    private FrameDecoder m_frameDecoder = null;
+    private InboundPipeline.Lane m_inboundLane = null;
+    private SocketAddress m_datagramsAddress = null;
     private String m_scopeId = "";
+    private TimingWheel.Task m_parsingTask = null;
+    private TimingWheel.Task m_scheduler = null;
+    private TimingWheel.Task m_sendOutboundTask = null;
     private UUID m_uuid = null;
+    private boolean m_datagramsInterest = false;
+    private final Object m_datagramsMutex = new Object();
     private final String m_echoMode = "full";
     private final static Object m_echoQueueMutex = new Object();
     private final static Object m_queueMutex = new Object();
+    private final static int DRAIN_BYTE_BUDGET = 512 * 1024; // 512 KiB
+    private final static int DRAIN_LOG_BATCH = 64;
     private final static int LANE_WIDTH = 8 * 1024 * 1024; // 8 MiB
-    private final static int PARSING_INTERVAL = 100; // Milliseconds
     private final static int SEND_OUTBOUND_TIMER_INTERVAL = 200; // Milliseconds
     private final static int TIMER_INTERVAL = 2500; // 2.5 Seconds
     private final static long SILENCE = 90000; // 90 Seconds
+    private int m_datagramsSize = DATAGRAM_SIZE;
+    private long m_capabilitiesTime = 0;
+    private long m_statisticsTime = 0;
     protected AtomicInteger m_oid = null;
     protected AtomicLong m_bytesRead = null;
     protected AtomicLong m_bytesWritten = null;
@@ -64,19 +82,194 @@ public abstract class Neighbor
     protected AtomicLong m_startTime = null;
     protected Cryptography m_cryptography = null;
     protected Database m_databaseHelper = null;
-    protected ScheduledExecutorService m_readSocketScheduler = null;
+    protected OutboundLog m_outboundLog = null;
     protected String m_ipAddress = "";
     protected String m_ipPort = "";
     protected String m_version = "";
     protected byte m_bytes[] = null;
-    protected final StringBuffer m_stringBuffer = new StringBuffer();
     protected final StringBuilder m_error = new StringBuilder();
     protected final static Object m_errorMutex = new Object();
+    protected final static int DATAGRAM_SIZE = 576;
     protected final static int MAXIMUM_BYTES = LANE_WIDTH;
-    protected final static int READ_SOCKET_INTERVAL = 100; // 100 Milliseconds
+    protected final static int MAXIMUM_DATAGRAM_SIZE = 65507;
     protected final static int SO_TIMEOUT = 2500; // 2.5 Seconds
     public final static int MAXIMUM_QUEUED_ECHO_PACKETS = 256;
 
+    private String outboundMessage(String message)
+    {
+	/*
+	** Prepare Ozone messages. The outbound log entry has
+	** been decrypted by the log.
+	*/
+
+	if(message == null || message.isEmpty())
+	    return "";
+
+	if(message.startsWith("OZONE-"))
+	{
+	    byte bytes[] = Base64.decode
+		(message.substring(6), Base64.NO_WRAP);
+
+	    if(bytes != null)
+	    {
+		byte timestamp[] = Miscellaneous.longToByteArray
+		    (TimeUnit.MILLISECONDS.
+		     toMinutes(System.currentTimeMillis()));
+
+		bytes = Miscellaneous.joinByteArrays
+		    /*
+		    ** Remove the embedded SipHash.
+		    */
+
+		    (Arrays.copyOfRange(bytes, 0, bytes.length - 23),
+		     Cryptography.
+		     hmac(Miscellaneous.joinByteArrays(bytes, timestamp),
+			  m_cryptography.ozoneMacKey()));
+	    }
+
+	    if(bytes != null)
+		message = Messages.bytesToMessageString(bytes);
+	    else
+		message = "";
+	}
+
+	return message;
+    }
+
+    private int transmit(ArrayList<String> messages)
+    {
+	if(messages.isEmpty())
+	    return 0;
+
+	int count = sendBatch(messages);
+	long bytes = 0;
+
+	for(int i = 0; i < count; i++)
+	    bytes += messages.get(i).length();
+
+	m_bytesSent.getAndAdd(bytes);
+	m_framesSent.getAndAdd(count);
+	return count;
+    }
+
+    private void drain()
+    {
+	try
+	{
+	    if(!connected())
+		return;
+
+	    if(System.nanoTime() - m_capabilitiesTime >= 10000000000L)
+	    {
+		m_capabilitiesTime = System.nanoTime();
+		send(getCapabilities());
+		send(getIdentities());
+	    }
+
+	    /*
+	    ** Drain all of the queues. A pass is limited by a byte
+	    ** budget and by the transport's capacity rather than by
+	    ** a count of messages.
+	    */
+
+	    ArrayList<String> messages = new ArrayList<> ();
+	    int budget = Math.min(DRAIN_BYTE_BUDGET, outboundCapacity());
+	    int bytes = 0;
+
+	    /*
+	    ** Outbound log messages. The neighbor's offset is advanced
+	    ** past the messages which the transport has accepted.
+	    */
+
+	    while(bytes < budget)
+	    {
+		ArrayList<String[]> arrayList = m_outboundLog.read
+		    (m_cryptography, m_oid.get(), DRAIN_LOG_BATCH);
+
+		if(arrayList == null || arrayList.isEmpty())
+		    break;
+
+		ArrayList<Long> positions = new ArrayList<> ();
+		long position = -1;
+
+		messages.clear();
+
+		for(String array[] : arrayList)
+		{
+		    if(bytes >= budget)
+			break;
+
+		    String message = outboundMessage(array[0]);
+
+		    if(!message.isEmpty())
+		    {
+			/*
+			** The position which precedes the message.
+			*/
+
+			bytes += message.length();
+			messages.add(message);
+			positions.add(position);
+		    }
+
+		    position = Long.parseLong(array[1]);
+		}
+
+		int count = transmit(messages);
+
+		if(count < messages.size())
+		    position = positions.get(count);
+
+		m_outboundLog.acknowledge(m_oid.get(), position);
+
+		if(count < messages.size())
+		    /*
+		    ** The transport is full. The next writable event
+		    ** will resume the process.
+		    */
+
+		    return;
+		else if(arrayList.size() < DRAIN_LOG_BATCH)
+		    break;
+	    }
+
+	    /*
+	    ** Echo and real-time packets. Do not hold the queue
+	    ** mutexes while sending as the network layer may
+	    ** disconnect the neighbor.
+	    */
+
+	    messages.clear();
+
+	    synchronized(m_echoQueueMutex)
+	    {
+		int i = 0;
+
+		for(; i < m_echoQueue.size() && bytes < budget; i++)
+		    bytes += m_echoQueue.get(i).length();
+
+		messages.addAll(m_echoQueue.subList(0, i));
+		m_echoQueue.subList(0, i).clear();
+	    }
+
+	    synchronized(m_queueMutex)
+	    {
+		int i = 0;
+
+		for(; i < m_queue.size() && bytes < budget; i++)
+		    bytes += m_queue.get(i).length();
+
+		messages.addAll(m_queue.subList(0, i));
+		m_queue.subList(0, i).clear();
+	    }
+
+	    transmit(messages); // Ignore the results.
+	}
+	catch(Exception exception)
+	{
+	}
+    }
+
     private void saveStatistics()
     {
 	String echoQueueSize = "";
@@ -87,6 +280,22 @@ public abstract class Neighbor
 	boolean connected = connected();
 	long uptime = System.nanoTime() - m_startTime.get();
 
+	/*
+	** Achieved throughput since the previous sample.
+	*/
+
+	long elapsed = System.nanoTime() - m_statisticsTime;
+
+	if(elapsed > 0)
+	{
+	    m_bytesPerSecond.set
+		((long) (m_bytesSent.getAndSet(0) * 1000000000.0 / elapsed));
+	    m_framesPerSecond.set
+		((long) (m_framesSent.getAndSet(0) * 1000000000.0 / elapsed));
+	}
+
+	m_statisticsTime = System.nanoTime();
+
 	synchronized(m_echoQueueMutex)
 	{
 	    echoQueueSize = String.valueOf(m_echoQueue.size());
@@ -113,8 +322,40 @@ public abstract class Neighbor
 	     String.valueOf(m_oid.get()));
     }
 
+    private void parse()
+    {
+	try
+	{
+	    InboundPipeline inboundPipeline = InboundPipeline.getInstance();
+	    byte bytes[] = null;
+
+	    /*
+	    ** The pipeline performs the echo decision. Frames which
+	    ** the pipeline cannot accept remain in the decoder.
+	    */
+
+	    while(inboundPipeline.accepts(m_inboundLane) &&
+		  (bytes = m_frameDecoder.next()) != null)
+		inboundPipeline.submit
+		    (m_inboundLane, new String(bytes), bytes);
+
+	    if(readable() && m_readingPaused.getAndSet(false))
+		resumeReading();
+	}
+	catch(Exception exception)
+	{
+	}
+    }
+
     private void terminateOnSilence()
     {
+	if(m_readingPaused.get())
+	    /*
+	    ** The silence is ours.
+	    */
+
+	    m_lastTimeRead.set(System.nanoTime());
+
 	if((System.nanoTime() - m_lastTimeRead.get()) / 1000000 > SILENCE)
 	    disconnect();
     }
@@ -127,21 +368,28 @@ public abstract class Neighbor
 		       int oid)
     {
 	m_bytes = new byte[1024 * 1024];
+	m_bytesPerSecond = new AtomicLong(0);
 	m_bytesRead = new AtomicLong(0);
+	m_bytesSent = new AtomicLong(0);
 	m_bytesWritten = new AtomicLong(0);
+	m_capabilitiesTime = System.nanoTime();
 	m_cryptography = Cryptography.getInstance();
 	m_databaseHelper = Database.getInstance();
 	m_echoQueue = new ArrayList<> ();
+	m_frameDecoder = new FrameDecoder(MAXIMUM_BYTES, MAXIMUM_BYTES);
+	m_framesPerSecond = new AtomicLong(0);
+	m_framesSent = new AtomicLong(0);
+	m_inboundLane = new InboundPipeline.Lane(this);
 	m_ipAddress = ipAddress;
 	m_ipPort = ipPort;
 	m_lastTimeRead = new AtomicLong(System.nanoTime());
 	m_oid = new AtomicInteger(oid);
-	m_parsingScheduler = Executors.newSingleThreadScheduledExecutor();
+	m_outboundLog = OutboundLog.getInstance();
 	m_queue = new ArrayList<> ();
-	m_scheduler = Executors.newSingleThreadScheduledExecutor();
+	m_readingPaused = new AtomicBoolean(false);
 	m_scopeId = scopeId;
-	m_sendOutboundScheduler = Executors.newSingleThreadScheduledExecutor();
 	m_startTime = new AtomicLong(System.nanoTime());
+	m_statisticsTime = System.nanoTime();
 	m_uuid = UUID.randomUUID();
 	m_version = version;
 
@@ -149,45 +397,17 @@ public abstract class Neighbor
 	** Start the schedules.
 	*/
 
-	m_parsingScheduler.scheduleAtFixedRate(new Runnable()
+	TimingWheel timingWheel = TimingWheel.getInstance();
+
+	m_parsingTask = timingWheel.task(new Runnable()
 	{
 	    @Override
-
 	    public void run()
 	    {
-		try
-		{
-		    /*
-		    ** Detect our end-of-message delimiter.
-		    */
-
-		    int indexOf = m_stringBuffer.indexOf(Messages.EOM);
-
-		    while(indexOf >= 0)
-		    {
-			String buffer = m_stringBuffer.
-			    substring(0, indexOf + Messages.EOM.length());
-
-			m_stringBuffer.delete(0, buffer.length());
-			indexOf = m_stringBuffer.indexOf(Messages.EOM);
-
-			int rc = Kernel.getInstance().ourMessage(buffer);
-
-			if(rc == 0)
-			    echo(buffer);
-			else if(rc == 2)
-			    echoForce(buffer);
-		    }
-
-		    if(m_stringBuffer.length() > MAXIMUM_BYTES)
-			m_stringBuffer.setLength(MAXIMUM_BYTES);
-		}
-		catch(Exception exception)
-		{
-		}
+		parse();
 	    }
-	}, 0, PARSING_INTERVAL, TimeUnit.MILLISECONDS);
-	m_scheduler.scheduleAtFixedRate(new Runnable()
+	});
+	m_scheduler = timingWheel.scheduleAtFixedRate(new Runnable()
 	{
 	    @Override
 	    public void run()
@@ -217,122 +437,177 @@ public abstract class Neighbor
 
 		    saveStatistics();
 		    terminateOnSilence();
+
+		    /*
+		    ** Resume parsing if the persistence stage had been
+		    ** full.
+		    */
+
+		    m_parsingTask.trigger();
 		}
 		catch(Exception exception)
 		{
 		}
 	    }
 	}, 0, TIMER_INTERVAL, TimeUnit.MILLISECONDS);
-	m_sendOutboundScheduler.scheduleAtFixedRate(new Runnable()
+	m_sendOutboundTask = timingWheel.scheduleAtFixedRate(new Runnable()
 	{
-	    private long m_accumulatedTime = System.nanoTime();
-
 	    @Override
 	    public void run()
 	    {
-		try
-		{
-		    if(!connected())
-			return;
-
-		    if(System.nanoTime() - m_accumulatedTime >= 10000000000L)
-		    {
-			m_accumulatedTime = System.nanoTime();
-			send(getCapabilities());
-			send(getIdentities());
-		    }
+		drain();
+	    }
+	}, 0, SEND_OUTBOUND_TIMER_INTERVAL, TimeUnit.MILLISECONDS);
+    }
 
-		    /*
-		    ** Retrieve a database message.
-		    */
+    protected String getSessionCipher()
+    {
+	return "";
+    }
 
-		    String array[] = m_databaseHelper.readOutboundMessage
-			(m_oid.get());
+    protected abstract String getLocalIp();
+    protected abstract boolean connected();
+    protected abstract boolean send(String message);
 
-		    /*
-		    ** If the message is sent successfully, remove it
-		    ** from the database.
-		    */
+    protected boolean flushDatagrams(DatagramChannel channel)
+	throws Exception
+    {
+	/*
+	** Send the remainder of a partially sent frame. Returns true
+	** if nothing remains. Never blocks.
+	*/
 
-		    if(array != null && array.length == 2)
-		    {
-			byte bytes[] = m_cryptography.mtd
-			    (Base64.decode(array[0], Base64.DEFAULT));
-
-			if(bytes != null)
-			    array[0] = new String(bytes);
-			else
-			    array[0] = "";
-
-			if(array[0].startsWith("OZONE-"))
-			{
-			    bytes = Base64.decode
-				(array[0].substring(6), Base64.NO_WRAP);
-
-			    if(bytes != null)
-			    {
-				byte timestamp[] = Miscellaneous.longToByteArray
-				    (TimeUnit.MILLISECONDS.
-				     toMinutes(System.currentTimeMillis()));
-
-				bytes = Miscellaneous.joinByteArrays
-				    /*
-				    ** Remove the embedded SipHash.
-				    */
-
-				    (Arrays.copyOfRange(bytes,
-							0,
-							bytes.length - 23),
-				     Cryptography.
-				     hmac(Miscellaneous.
-					  joinByteArrays(bytes, timestamp),
-					  m_cryptography.ozoneMacKey()));
-			    }
-			    else
-				array[0] = "";
-
-			    if(bytes != null)
-				array[0] = Messages.bytesToMessageString(bytes);
-			    else
-				array[0] = "";
-			}
-
-			if(array[0].isEmpty())
-			    m_databaseHelper.deleteEntry
-				(array[1], "outbound_queue");
-			else if(send(array[0]))
-			    m_databaseHelper.deleteEntry
-				(array[1], "outbound_queue");
-		    }
+	synchronized(m_datagramsMutex)
+	{
+	    if(m_datagrams == null)
+		return true;
 
-		    /*
-		    ** Echo packets.
-		    */
+	    while(m_datagrams.hasRemaining())
+	    {
+		int position = m_datagrams.position();
 
-		    synchronized(m_echoQueueMutex)
-		    {
-			if(!m_echoQueue.isEmpty())
-			    send(m_echoQueue.remove(0)); // Ignore the results.
-		    }
+		m_datagrams.limit
+		    (Math.min(m_datagrams.capacity(),
+			      position + m_datagramsSize));
 
+		if((m_datagramsAddress == null ?
+		    channel.write(m_datagrams) :
+		    channel.send(m_datagrams, m_datagramsAddress)) <= 0)
+		{
 		    /*
-		    ** Transfer real-time packets.
+		    ** The socket's buffer is full. The reactor reports
+		    ** when the socket may be written again.
 		    */
 
-		    synchronized(m_queueMutex)
-		    {
-			if(!m_queue.isEmpty())
-			    send(m_queue.remove(0)); // Ignore the results.
-		    }
-		}
-		catch(Exception exception)
-		{
+		    m_datagrams.position(position);
+		    m_datagramsInterest = true;
+		    Reactor.getInstance().interestOps
+			(channel,
+			 SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		    return false;
 		}
+
+		m_datagrams.position(m_datagrams.limit());
+		m_datagrams.limit(m_datagrams.capacity());
 	    }
-	}, 0, SEND_OUTBOUND_TIMER_INTERVAL, TimeUnit.MILLISECONDS);
+
+	    m_datagrams = null;
+	    m_datagramsAddress = null;
+
+	    if(m_datagramsInterest)
+	    {
+		m_datagramsInterest = false;
+		Reactor.getInstance().interestOps
+		    (channel, SelectionKey.OP_READ);
+	    }
+
+	    return true;
+	}
+    }
+
+    protected boolean writeDatagrams(DatagramChannel channel,
+				     SocketAddress address,
+				     byte frame[],
+				     int datagramSize) throws Exception
+    {
+	/*
+	** Fragment the frame into views of the original array. The
+	** address of a connected channel is null. Returns false if
+	** none of the frame was sent. Once a fragment has been sent,
+	** the remaining fragments must be sent as well. A
+	** retransmission of the entire frame would garble the frame.
+	** The remainder is therefore retained and is sent by
+	** flushDatagrams() once the socket is writable.
+	*/
+
+	synchronized(m_datagramsMutex)
+	{
+	    if(!flushDatagrams(channel))
+		return false;
+
+	    m_datagrams = ByteBuffer.wrap(frame);
+	    m_datagramsAddress = address;
+	    m_datagramsSize = datagramSize;
+
+	    /*
+	    ** The first fragment determines whether the frame is sent.
+	    */
+
+	    m_datagrams.limit(Math.min(frame.length, datagramSize));
+
+	    if((address == null ?
+		channel.write(m_datagrams) :
+		channel.send(m_datagrams, address)) <= 0)
+	    {
+		m_datagrams = null;
+		m_datagramsAddress = null;
+		return false; // The socket's buffer is full.
+	    }
+
+	    m_datagrams.limit(frame.length);
+	    flushDatagrams(channel);
+	    return true;
+	}
     }
 
-    protected String getCapabilities()
+    protected int datagramSize()
+    {
+	/*
+	** The maximum size of a datagram's payload. Links which
+	** support large datagrams may exceed the default.
+	*/
+
+	int datagramSize = m_databaseHelper.readSettingInt
+	    (null, "udp_datagram_size", DATAGRAM_SIZE);
+
+	return Math.max
+	    (DATAGRAM_SIZE, Math.min(datagramSize, MAXIMUM_DATAGRAM_SIZE));
+    }
+
+    protected boolean readable()
+    {
+	/*
+	** Returns false if the network layer should stop reading
+	** because inbound frames are not being consumed.
+	*/
+
+	if(InboundPipeline.getInstance().accepts(m_inboundLane) &&
+	   m_frameDecoder.available() >= MAXIMUM_BYTES / 2)
+	    return true;
+
+	m_readingPaused.set(true);
+	return false;
+    }
+
+    protected boolean send(byte frame[])
+    {
+	if(frame == null || frame.length <= 0)
+	    return false;
+
+	return send(new String(frame));
+    }
+
+    protected byte[] getCapabilities()
     {
 	try
 	{
@@ -343,64 +618,59 @@ public abstract class Neighbor
 	    message.append(String.valueOf(LANE_WIDTH));
 	    message.append("\n");
 	    message.append(m_echoMode);
-
-	    StringBuilder results = new StringBuilder();
-
-	    results.append("POST HTTP/1.1\r\n");
-	    results.append
-		("Content-Type: application/x-www-form-urlencoded\r\n");
-	    results.append("Content-Length: %1\r\n");
-	    results.append("\r\n");
-	    results.append("type=0014&content=%2\r\n");
-	    results.append("\r\n\r\n");
-
-	    String base64 = Base64.encodeToString
-		(message.toString().getBytes(), Base64.DEFAULT);
-	    int indexOf = results.indexOf("%1");
-	    int length = base64.length() +
-		"type=0014&content=\r\n\r\n\r\n".length();
-
-	    results = results.replace
-		(indexOf, indexOf + 2, String.valueOf(length));
-	    indexOf = results.indexOf("%2");
-	    results = results.replace(indexOf, indexOf + 2, base64);
-	    return results.toString();
+	    return FrameEncoder.CAPABILITIES.encode
+		(message.toString().getBytes());
 	}
 	catch(Exception exception)
 	{
-	    return "";
+	    return null;
 	}
     }
 
-    protected String getIdentities()
+    protected byte[] getIdentities()
     {
 	try
 	{
-	    StringBuilder stringBuilder = new StringBuilder();
-
-	    stringBuilder.append(Kernel.getInstance().fireIdentities());
-	    stringBuilder.append
-		(Messages.identityMessage(Cryptography.
-					  sha512(m_cryptography.sipHashId().
-						 getBytes("UTF-8"))));
-	    return stringBuilder.toString();
+	    return Miscellaneous.joinByteArrays
+		(Kernel.getInstance().fireIdentities().getBytes(),
+		 Messages.identityFrame(Cryptography.
+					sha512(m_cryptography.sipHashId().
+					       getBytes("UTF-8"))));
 	}
 	catch(Exception exception)
 	{
-	    return "";
+	    return null;
 	}
     }
+    protected abstract int getLocalPort();
+    protected abstract void connect();
 
-    protected String getSessionCipher()
+    protected int outboundCapacity()
     {
-	return "";
+	/*
+	** The number of bytes which the transport may accept.
+	*/
+
+	return MAXIMUM_BYTES;
     }
 
-    protected abstract String getLocalIp();
-    protected abstract boolean connected();
-    protected abstract boolean send(String message);
-    protected abstract int getLocalPort();
-    protected abstract void connect();
+    protected int sendBatch(ArrayList<String> messages)
+    {
+	/*
+	** Returns the number of leading messages which were accepted.
+	** Transports may coalesce the messages into fewer writes.
+	*/
+
+	int count = 0;
+
+	for(String message : messages)
+	    if(send(message))
+		count += 1;
+	    else
+		break;
+
+	return count;
+    }
 
     protected boolean isNetworkConnected()
     {
@@ -424,39 +694,20 @@ public abstract class Neighbor
 
     protected synchronized void abort()
     {
-	m_parsingScheduler.shutdown();
-
-	try
-	{
-	    m_parsingScheduler.awaitTermination(60, TimeUnit.SECONDS);
-	}
-	catch(Exception exception)
-	{
-	}
-
-	m_scheduler.shutdown();
-
-	try
-	{
-	    m_scheduler.awaitTermination(60, TimeUnit.SECONDS);
-	}
-	catch(Exception exception)
-	{
-	}
-
-	m_sendOutboundScheduler.shutdown();
-
-	try
-	{
-	    m_sendOutboundScheduler.awaitTermination(60, TimeUnit.SECONDS);
-	}
-	catch(Exception exception)
-	{
-	}
+	m_parsingTask.cancel();
+	m_scheduler.cancel();
+	m_sendOutboundTask.cancel();
     }
 
     protected void disconnect()
     {
+	synchronized(m_datagramsMutex)
+	{
+	    m_datagrams = null;
+	    m_datagramsAddress = null;
+	    m_datagramsInterest = false;
+	}
+
 	synchronized(m_echoQueueMutex)
 	{
 	    m_echoQueue.clear();
@@ -467,7 +718,23 @@ public abstract class Neighbor
 	    m_queue.clear();
 	}
 
-	m_stringBuffer.setLength(0);
+	m_frameDecoder.clear();
+    }
+
+    protected void dataReceived(byte bytes[], int offset, int length)
+    {
+	/*
+	** Called by the network layer as soon as data arrives.
+	*/
+
+	if(bytes == null || length <= 0)
+	    return;
+
+	m_bytesRead.getAndAdd(length);
+	m_lastTimeRead.set(System.nanoTime());
+	m_frameDecoder.write(bytes, offset, length);
+
+	m_parsingTask.trigger();
     }
 
     protected void echo(String message)
@@ -480,6 +747,54 @@ public abstract class Neighbor
 	Kernel.getInstance().echoForce(message, m_oid.get());
     }
 
+    /*
+    ** Reactor callbacks. Subclasses which register channels
+    ** with the Reactor must not block within these methods.
+    */
+
+    protected void onConnectable()
+    {
+    }
+
+    protected void onReactorError(Exception exception)
+    {
+	if(exception != null)
+	    setError("A reactor error (" +
+		     exception.getMessage() +
+		     ") occurred.");
+
+	disconnect();
+    }
+
+    protected void onReadable()
+    {
+    }
+
+    protected void onWritable()
+    {
+    }
+
+    protected void requestDrain()
+    {
+	/*
+	** Drain the queues as soon as possible. Requests are coalesced.
+	*/
+
+	m_sendOutboundTask.trigger();
+    }
+
+    protected void resumeParsing()
+    {
+	m_parsingTask.trigger();
+    }
+
+    protected void resumeReading()
+    {
+	/*
+	** Subclasses which stop reading resume here.
+	*/
+    }
+
     protected void setError(String error)
     {
 	synchronized(m_errorMutex)
@@ -494,6 +809,26 @@ public abstract class Neighbor
 	return m_oid.get();
     }
 
+    public long bytesPerSecond()
+    {
+	return m_bytesPerSecond.get();
+    }
+
+    public long framesPerSecond()
+    {
+	return m_framesPerSecond.get();
+    }
+
+    public long oversizeFrames()
+    {
+	return m_frameDecoder.oversizeFrames();
+    }
+
+    public long truncatedFrames()
+    {
+	return m_frameDecoder.truncatedFrames();
+    }
+
     public void clearEchoQueue()
     {
 	synchronized(m_echoQueueMutex)
@@ -520,6 +855,8 @@ public abstract class Neighbor
 	    if(m_echoQueue.size() < MAXIMUM_QUEUED_ECHO_PACKETS)
 		m_echoQueue.add(message);
 	}
+
+	requestDrain();
     }
 
     public void scheduleSend(String message)
@@ -531,5 +868,7 @@ public abstract class Neighbor
 	{
 	    m_queue.add(message);
 	}
+
+	requestDrain();
     }
 }
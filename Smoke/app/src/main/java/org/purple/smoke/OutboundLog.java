@@ -0,0 +1,800 @@
+/*
+** Copyright (c) Alexis Megas.
+** All rights reserved.
+**
+** Redistribution and use in source and binary forms, with or without
+** modification, are permitted provided that the following conditions
+** are met:
+** 1. Redistributions of source code must retain the above copyright
+**    notice, this list of conditions and the following disclaimer.
+** 2. Redistributions in binary form must reproduce the above copyright
+**    notice, this list of conditions and the following disclaimer in the
+**    documentation and/or other materials provided with the distribution.
+** 3. The name of the author may not be used to endorse or promote products
+**    derived from Smoke without specific prior written permission.
+**
+** SMOKE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+** IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+** OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+** IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+** INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+** NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+** DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+** THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+** (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+** SMOKE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package org.purple.smoke;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+public class OutboundLog
+{
+    /*
+    ** An append-only log of encrypted outbound messages. The log is
+    ** a sequence of memory-mapped segments which are addressed by
+    ** continuous positions. A record lists the neighbors which are
+    ** to send its message and each neighbor owns a read offset into
+    ** the log. The offsets are checkpointed periodically. A segment
+    ** is deleted once every checkpointed offset has passed it. An
+    ** offset which falls further than MAXIMUM_BACKLOG behind the end
+    ** of the log is advanced and the skipped messages are lost.
+    **
+    ** A record is
+    **
+    ** length (4) | crc32 (4) | count (4) | oids (4 * count) | message
+    **
+    ** where the length and the checksum cover the fields which follow
+    ** the checksum. A zero length terminates a segment.
+    */
+
+    private class Segment
+    {
+	public File m_file = null;
+	public MappedByteBuffer m_buffer = null;
+	public long m_base = 0;
+
+	public Segment(File file, long base, int capacity) throws Exception
+	{
+	    RandomAccessFile randomAccessFile = new RandomAccessFile
+		(file, "rw");
+
+	    try
+	    {
+		if(randomAccessFile.length() != capacity)
+		    randomAccessFile.setLength(capacity);
+
+		m_buffer = randomAccessFile.getChannel().map
+		    (FileChannel.MapMode.READ_WRITE, 0, capacity);
+	    }
+	    finally
+	    {
+		randomAccessFile.close();
+	    }
+
+	    m_base = base;
+	    m_file = file;
+	}
+
+	public long end()
+	{
+	    return m_base + m_buffer.capacity();
+	}
+    }
+
+    private CRC32 m_crc32 = null;
+    private File m_directory = null;
+    private HashMap<Integer, Integer> m_pending = null;
+    private HashMap<Integer, Long> m_offsets = null;
+    private Segment m_active = null;
+    private TimingWheel.Task m_checkpointTask = null;
+    private TreeMap<Long, Segment> m_segments = null;
+    private boolean m_dirty = false;
+    private final Object m_checkpointMutex = new Object();
+    private final Object m_mutex = new Object();
+    private final static String CHECKPOINT_NAME = "offsets";
+    private final static String DIRECTORY_NAME = "outbound_log";
+    private final static int CHECKPOINT_INTERVAL = 1000; // 1 Second
+    private final static int HEADER_SIZE = 8;
+    private final static int MAXIMUM_BACKLOG = 16 * 1024 * 1024; // 16 MiB
+    private final static int SEGMENT_SIZE = 1024 * 1024; // 1 MiB
+    private int m_position = 0;
+    private long m_generation = 0;
+    private static OutboundLog s_instance = null;
+
+    private OutboundLog()
+    {
+	m_crc32 = new CRC32();
+	m_offsets = new HashMap<> ();
+	m_pending = new HashMap<> ();
+	m_segments = new TreeMap<> ();
+
+	try
+	{
+	    m_directory = new File
+		(Smoke.getApplication().getFilesDir(), DIRECTORY_NAME);
+
+	    if(!m_directory.isDirectory())
+		m_directory.mkdirs();
+
+	    open();
+	}
+	catch(Exception exception)
+	{
+	    m_active = null;
+	    m_segments.clear();
+	}
+
+	m_checkpointTask = TimingWheel.getInstance().scheduleAtFixedRate
+	    (new Runnable()
+	    {
+		@Override
+		public void run()
+		{
+		    checkpoint();
+		}
+	    },
+	    CHECKPOINT_INTERVAL,
+	    CHECKPOINT_INTERVAL,
+	    TimeUnit.MILLISECONDS);
+    }
+
+    private Segment segment(long base, int capacity) throws Exception
+    {
+	Segment segment = new Segment
+	    (new File(m_directory, String.format("%016x", base)),
+	     base,
+	     capacity);
+
+	m_segments.put(base, segment);
+	return segment;
+    }
+
+    private int count(long position, int oid)
+    {
+	/*
+	** Count the neighbor's records at or after the position.
+	*/
+
+	int count = 0;
+
+	for(position = normalize(position);
+	    position < end();
+	    position = normalize(next(position)))
+	    if(targets(position, oid))
+		count += 1;
+
+	return count;
+    }
+
+    private boolean targets(long position, int oid)
+    {
+	Segment segment = m_segments.floorEntry(position).getValue();
+	int offset = (int) (position - segment.m_base) + HEADER_SIZE;
+	int count = segment.m_buffer.getInt(offset);
+
+	for(int i = 0; i < count; i++)
+	    if(segment.m_buffer.getInt(offset + 4 * (i + 1)) == oid)
+		return true;
+
+	return false;
+    }
+
+    private byte[] message(long position)
+    {
+	Segment segment = m_segments.floorEntry(position).getValue();
+	int offset = (int) (position - segment.m_base);
+	int length = segment.m_buffer.getInt(offset);
+	int count = segment.m_buffer.getInt(offset + HEADER_SIZE);
+	byte bytes[] = new byte[length - 4 * (count + 1)];
+
+	segment.m_buffer.position(offset + HEADER_SIZE + 4 * (count + 1));
+	segment.m_buffer.get(bytes);
+	return bytes;
+    }
+
+    private int recover(Segment segment)
+    {
+	/*
+	** Locate the end of the records of the last segment. A torn
+	** record and whatever follows it are erased.
+	*/
+
+	MappedByteBuffer buffer = segment.m_buffer;
+	int offset = 0;
+
+	while(offset + HEADER_SIZE <= buffer.capacity())
+	{
+	    int length = buffer.getInt(offset);
+
+	    if(length == 0)
+		return offset;
+
+	    if(length < 4 ||
+	       length > buffer.capacity() - offset - HEADER_SIZE)
+		break;
+
+	    int count = buffer.getInt(offset + HEADER_SIZE);
+
+	    if(count < 0 || count > (length - 4) / 4)
+		break;
+
+	    byte bytes[] = new byte[length];
+
+	    buffer.position(offset + HEADER_SIZE);
+	    buffer.get(bytes);
+	    m_crc32.reset();
+	    m_crc32.update(bytes);
+
+	    if((int) m_crc32.getValue() != buffer.getInt(offset + 4))
+		break;
+
+	    offset += HEADER_SIZE + length;
+	}
+
+	for(int i = offset; i < buffer.capacity(); i++)
+	    buffer.put(i, (byte) 0);
+
+	return offset;
+    }
+
+    private long end()
+    {
+	return m_active.m_base + m_position;
+    }
+
+    private long next(long position)
+    {
+	/*
+	** Return the position of the record which follows the
+	** specified position.
+	*/
+
+	Segment segment = m_segments.floorEntry(position).getValue();
+
+	return position + HEADER_SIZE +
+	    segment.m_buffer.getInt((int) (position - segment.m_base));
+    }
+
+    private long normalize(long position)
+    {
+	/*
+	** Advance the position to the first record at or after it.
+	** The end of the log is returned if there are no records.
+	*/
+
+	while(true)
+	{
+	    Map.Entry<Long, Segment> entry = m_segments.floorEntry(position);
+
+	    if(entry == null)
+	    {
+		position = m_segments.firstKey();
+		continue;
+	    }
+
+	    Segment segment = entry.getValue();
+	    int offset = (int) Math.min
+		(Integer.MAX_VALUE, position - segment.m_base);
+
+	    if(segment == m_active)
+		return Math.min(position, end());
+
+	    if(offset + HEADER_SIZE <= segment.m_buffer.capacity())
+	    {
+		int length = segment.m_buffer.getInt(offset);
+
+		if(length > 0 && length <= segment.m_buffer.capacity() -
+		   offset - HEADER_SIZE)
+		    return position;
+	    }
+
+	    position = m_segments.higherKey(segment.m_base);
+	}
+    }
+
+    private void expire()
+    {
+	/*
+	** Advance the offsets of neighbors which have fallen too far
+	** behind. Their segments would otherwise be retained forever.
+	** m_mutex must be locked.
+	*/
+
+	long bound = end() - MAXIMUM_BACKLOG;
+
+	if(bound <= m_segments.firstKey())
+	    return;
+
+	Long base = m_segments.ceilingKey(bound);
+	long position = normalize(base != null ? base : m_active.m_base);
+
+	for(Map.Entry<Integer, Long> entry : m_offsets.entrySet())
+	    if(entry.getValue() < bound)
+	    {
+		entry.setValue(position);
+		m_dirty = true;
+		m_pending.put(entry.getKey(), count(position, entry.getKey()));
+	    }
+    }
+
+    private void checkpoint()
+    {
+	/*
+	** Record the offsets and the end of the log. The segments
+	** which precede every recorded offset are then deleted.
+	*/
+
+	synchronized(m_checkpointMutex)
+	{
+	    HashMap<Integer, Long> offsets = null;
+	    long end = 0;
+	    long generation = 0;
+
+	    synchronized(m_mutex)
+	    {
+		if(m_active == null)
+		    return;
+
+		expire();
+
+		if(!m_dirty)
+		    return;
+
+		end = end();
+		generation = m_generation;
+		m_active.m_buffer.force();
+		m_dirty = false;
+		offsets = new HashMap<> (m_offsets);
+	    }
+
+	    File file = new File(m_directory, CHECKPOINT_NAME + ".tmp");
+	    FileOutputStream fileOutputStream = null;
+
+	    try
+	    {
+		DataOutputStream dataOutputStream = null;
+
+		fileOutputStream = new FileOutputStream(file);
+		dataOutputStream = new DataOutputStream(fileOutputStream);
+		dataOutputStream.writeLong(end);
+		dataOutputStream.writeInt(offsets.size());
+
+		for(Map.Entry<Integer, Long> entry : offsets.entrySet())
+		{
+		    dataOutputStream.writeInt(entry.getKey());
+		    dataOutputStream.writeLong(entry.getValue());
+		}
+
+		dataOutputStream.flush();
+		fileOutputStream.getFD().sync();
+		fileOutputStream.close();
+		fileOutputStream = null;
+
+		if(!file.renameTo(new File(m_directory, CHECKPOINT_NAME)))
+		    throw new Exception("renameTo() failure");
+	    }
+	    catch(Exception exception)
+	    {
+		synchronized(m_mutex)
+		{
+		    m_dirty = true;
+		}
+
+		return;
+	    }
+	    finally
+	    {
+		try
+		{
+		    if(fileOutputStream != null)
+			fileOutputStream.close();
+		}
+		catch(Exception exception)
+		{
+		}
+	    }
+
+	    long minimum = end;
+
+	    for(long offset : offsets.values())
+		minimum = Math.min(minimum, offset);
+
+	    synchronized(m_mutex)
+	    {
+		if(generation != m_generation)
+		    return;
+
+		Iterator<Map.Entry<Long, Segment>> iterator =
+		    m_segments.entrySet().iterator();
+
+		while(iterator.hasNext())
+		{
+		    Segment segment = iterator.next().getValue();
+
+		    if(segment == m_active || segment.end() > minimum)
+			break;
+
+		    segment.m_file.delete();
+		    iterator.remove();
+		}
+	    }
+	}
+    }
+
+    private void open() throws Exception
+    {
+	File files[] = m_directory.listFiles();
+
+	if(files != null)
+	    for(File file : files)
+		if(file.getName().length() == 16)
+		    try
+		    {
+			long base = Long.parseLong(file.getName(), 16);
+
+			if(file.length() >= HEADER_SIZE &&
+			   file.length() <= Integer.MAX_VALUE)
+			    segment(base, (int) file.length());
+			else
+			    file.delete();
+		    }
+		    catch(Exception exception)
+		    {
+		    }
+
+	if(m_segments.isEmpty())
+	    m_active = segment(0, SEGMENT_SIZE);
+	else
+	    m_active = m_segments.lastEntry().getValue();
+
+	m_position = recover(m_active);
+
+	/*
+	** Read the checkpoint. Neighbors which were assigned records
+	** after the checkpoint are discovered by the scan below.
+	*/
+
+	File file = new File(m_directory, CHECKPOINT_NAME);
+	long checkpoint = m_segments.firstKey();
+
+	if(file.exists())
+	{
+	    DataInputStream dataInputStream = null;
+
+	    try
+	    {
+		dataInputStream = new DataInputStream
+		    (new FileInputStream(file));
+		checkpoint = dataInputStream.readLong();
+
+		for(int i = dataInputStream.readInt(); i > 0; i--)
+		{
+		    int oid = dataInputStream.readInt();
+		    long offset = dataInputStream.readLong();
+
+		    offset = Math.min(end(), offset);
+		    offset = Math.max(m_segments.firstKey(), offset);
+		    m_offsets.put(oid, offset);
+		}
+	    }
+	    catch(Exception exception)
+	    {
+	    }
+	    finally
+	    {
+		try
+		{
+		    if(dataInputStream != null)
+			dataInputStream.close();
+		}
+		catch(Exception exception)
+		{
+		}
+	    }
+	}
+
+	checkpoint = Math.max(m_segments.firstKey(), checkpoint);
+
+	long position = checkpoint;
+
+	for(long offset : m_offsets.values())
+	    position = Math.min(position, offset);
+
+	for(position = normalize(position);
+	    position < end();
+	    position = normalize(next(position)))
+	{
+	    Segment segment = m_segments.floorEntry(position).getValue();
+	    int offset = (int) (position - segment.m_base) + HEADER_SIZE;
+
+	    for(int i = segment.m_buffer.getInt(offset); i > 0; i--)
+	    {
+		int oid = segment.m_buffer.getInt(offset + 4 * i);
+
+		if(!m_offsets.containsKey(oid) && position >= checkpoint)
+		    m_offsets.put(oid, position);
+
+		if(m_offsets.containsKey(oid) &&
+		   m_offsets.get(oid) <= position)
+		    m_pending.put(oid, pending(oid) + 1);
+	    }
+	}
+    }
+
+    public ArrayList<String[]> read(Cryptography cryptography,
+				    int oid,
+				    int limit)
+    {
+	/*
+	** Read at most limit of the neighbor's messages. The second
+	** element of an entry is the position which follows the
+	** message. An undecryptable message is returned as an empty
+	** string.
+	*/
+
+	if(cryptography == null || limit <= 0)
+	    return null;
+
+	ArrayList<byte[]> messages = new ArrayList<> ();
+	ArrayList<Long> positions = new ArrayList<> ();
+
+	synchronized(m_mutex)
+	{
+	    if(m_active == null || !m_offsets.containsKey(oid))
+		return null;
+
+	    long position = normalize(m_offsets.get(oid));
+
+	    while(position < end() && messages.size() < limit)
+	    {
+		long next = next(position);
+
+		if(targets(position, oid))
+		{
+		    messages.add(message(position));
+		    positions.add(next);
+		}
+		else if(messages.isEmpty())
+		    /*
+		    ** Skip the records of other neighbors.
+		    */
+
+		    m_offsets.put(oid, next);
+
+		position = normalize(next);
+	    }
+	}
+
+	ArrayList<String[]> arrayList = new ArrayList<> ();
+
+	for(int i = 0; i < messages.size(); i++)
+	{
+	    String array[] = new String[2];
+	    byte bytes[] = cryptography.mtd(messages.get(i));
+
+	    array[0] = bytes != null ? new String(bytes) : "";
+	    array[1] = String.valueOf(positions.get(i));
+	    arrayList.add(array);
+	}
+
+	return arrayList;
+    }
+
+    public static synchronized OutboundLog getInstance()
+    {
+	if(s_instance == null)
+	    s_instance = new OutboundLog();
+
+	return s_instance;
+    }
+
+    public int pending(int oid)
+    {
+	synchronized(m_mutex)
+	{
+	    Integer pending = m_pending.get(oid);
+
+	    return pending != null ? pending : 0;
+	}
+    }
+
+    public void acknowledge(int oid, long position)
+    {
+	/*
+	** The neighbor has sent the messages which precede the
+	** position.
+	*/
+
+	synchronized(m_mutex)
+	{
+	    if(m_active == null || !m_offsets.containsKey(oid))
+		return;
+
+	    long offset = normalize(m_offsets.get(oid));
+
+	    position = Math.min(end(), position);
+
+	    if(position <= offset)
+		return;
+
+	    int pending = pending(oid);
+
+	    for(; offset < position; offset = normalize(next(offset)))
+		if(targets(offset, oid))
+		    pending -= 1;
+
+	    m_dirty = true;
+	    m_offsets.put(oid, position);
+	    m_pending.put(oid, Math.max(0, pending));
+	}
+    }
+
+    public boolean append(Cryptography cryptography,
+			  String message,
+			  ArrayList<Integer> oids)
+    {
+	if(cryptography == null || message.trim().isEmpty())
+	    return false;
+
+	return append(cryptography.etm(message.getBytes()), oids);
+    }
+
+    public boolean append(byte bytes[], ArrayList<Integer> oids)
+    {
+	/*
+	** The message has been encrypted. Returns false if the message
+	** could not be recorded.
+	*/
+
+	if(bytes == null)
+	    return false;
+	else if(oids == null || oids.isEmpty())
+	    return true;
+
+	ByteBuffer record = ByteBuffer.allocate
+	    (HEADER_SIZE + 4 * (oids.size() + 1) + bytes.length);
+
+	record.putInt(record.capacity() - HEADER_SIZE);
+	record.putInt(0);
+	record.putInt(oids.size());
+
+	for(int oid : oids)
+	    record.putInt(oid);
+
+	record.put(bytes);
+
+	synchronized(m_mutex)
+	{
+	    if(m_active == null)
+		return false;
+
+	    m_crc32.reset();
+	    m_crc32.update
+		(record.array(), HEADER_SIZE, record.capacity() - HEADER_SIZE);
+	    record.putInt(4, (int) m_crc32.getValue());
+
+	    try
+	    {
+		if(m_position + record.capacity() >
+		   m_active.m_buffer.capacity())
+		{
+		    /*
+		    ** Seal the active segment. A segment holds at least
+		    ** one record.
+		    */
+
+		    m_active.m_buffer.force();
+		    m_active = segment
+			(m_active.end(),
+			 Math.max(SEGMENT_SIZE, record.capacity()));
+		    m_position = 0;
+		}
+	    }
+	    catch(Exception exception)
+	    {
+		return false;
+	    }
+
+	    long position = end();
+
+	    m_active.m_buffer.position(m_position);
+	    m_active.m_buffer.put(record.array());
+	    m_dirty = true;
+	    m_position += record.capacity();
+
+	    for(int oid : oids)
+	    {
+		if(!m_offsets.containsKey(oid))
+		    m_offsets.put(oid, position);
+
+		m_pending.put(oid, pending(oid) + 1);
+	    }
+	}
+
+	return true;
+    }
+
+    public void clear()
+    {
+	synchronized(m_checkpointMutex)
+	{
+	    synchronized(m_mutex)
+	    {
+		if(m_active == null)
+		    return;
+
+		for(Segment segment : m_segments.values())
+		    segment.m_file.delete();
+
+		new File(m_directory, CHECKPOINT_NAME).delete();
+		m_active = null;
+		m_dirty = false;
+		m_generation += 1;
+		m_offsets.clear();
+		m_pending.clear();
+		m_position = 0;
+		m_segments.clear();
+
+		try
+		{
+		    m_active = segment(0, SEGMENT_SIZE);
+		}
+		catch(Exception exception)
+		{
+		    m_active = null;
+		}
+	    }
+	}
+    }
+
+    public void remove(int oid)
+    {
+	/*
+	** The neighbor will not send its messages.
+	*/
+
+	synchronized(m_mutex)
+	{
+	    if(m_offsets.remove(oid) != null)
+		m_dirty = true;
+
+	    m_pending.remove(oid);
+	}
+    }
+
+    public void retain(ArrayList<Integer> oids)
+    {
+	/*
+	** Remove the offsets of neighbors which do not exist.
+	*/
+
+	if(oids == null)
+	    return;
+
+	synchronized(m_mutex)
+	{
+	    if(m_offsets.keySet().retainAll(oids))
+		m_dirty = true;
+
+	    m_pending.keySet().retainAll(oids);
+	}
+    }
+}
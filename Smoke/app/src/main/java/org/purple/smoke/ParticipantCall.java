@@ -43,12 +43,15 @@ public class ParticipantCall
 	m_startTime = System.nanoTime();
     }
 
-    public void preparePrivatePublicKey()
+    public void preparePrivatePublicKey(KeyPairPool keyPairPool)
     {
+	/*
+	** The pool generates a key pair if it is empty.
+	*/
+
 	try
 	{
-	    m_keyPair = Cryptography.generatePrivatePublicKeyPair
-		("RSA", 2048);
+	    m_keyPair = keyPairPool.take();
 	}
 	catch(Exception exception)
 	{
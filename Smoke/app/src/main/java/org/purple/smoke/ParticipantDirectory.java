@@ -0,0 +1,714 @@
+/*
+** Copyright (c) Alexis Megas.
+** All rights reserved.
+**
+** Redistribution and use in source and binary forms, with or without
+** modification, are permitted provided that the following conditions
+** are met:
+** 1. Redistributions of source code must retain the above copyright
+**    notice, this list of conditions and the following disclaimer.
+** 2. Redistributions in binary form must reproduce the above copyright
+**    notice, this list of conditions and the following disclaimer in the
+**    documentation and/or other materials provided with the distribution.
+** 3. The name of the author may not be used to endorse or promote products
+**    derived from Smoke without specific prior written permission.
+**
+** SMOKE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+** IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+** OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+** IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+** INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+** NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+** DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+** THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+** (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+** SMOKE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package org.purple.smoke;
+
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class ParticipantDirectory
+{
+    /*
+    ** A decrypted copy of the participants table. Database writes
+    ** through the directory and consults it before querying. Lookups
+    ** return copies. A directory which is not loaded answers nothing.
+    */
+
+    public static class Entry
+    {
+	public PublicKey m_encryptionKey = null;
+	public PublicKey m_signatureKey = null;
+	public String m_name = null; // Null if siphash_ids lacks the entry.
+	public String m_options = "";
+	public String m_sipHashId = "";
+	public boolean m_signaturesRequired = false;
+	public byte m_encryptionKeyDigest[] = null;
+	public byte m_keyStream[] = null;
+	public byte m_signatureKeyDigest[] = null;
+	public int m_oid = -1;
+	public long m_lastStatusTimestamp = 0;
+
+	public Entry()
+	{
+	}
+
+	private Entry copy()
+	{
+	    Entry entry = new Entry();
+
+	    entry.m_encryptionKey = m_encryptionKey;
+	    entry.m_encryptionKeyDigest = m_encryptionKeyDigest;
+	    entry.m_keyStream = duplicate(m_keyStream);
+	    entry.m_lastStatusTimestamp = m_lastStatusTimestamp;
+	    entry.m_name = m_name;
+	    entry.m_oid = m_oid;
+	    entry.m_options = m_options;
+	    entry.m_signatureKey = m_signatureKey;
+	    entry.m_signatureKeyDigest = m_signatureKeyDigest;
+	    entry.m_signaturesRequired = m_signaturesRequired;
+	    entry.m_sipHashId = m_sipHashId;
+	    return entry;
+	}
+
+	private void wipe()
+	{
+	    if(m_keyStream != null)
+		Arrays.fill(m_keyStream, (byte) 0);
+
+	    m_keyStream = null;
+	}
+    }
+
+    private abstract static class Update
+    {
+	/*
+	** A modification of an entry's fields. Updates which arrive
+	** while a load is in flight are replayed onto the loaded
+	** entries.
+	*/
+
+	public abstract void apply();
+
+	public void discard()
+	{
+	}
+    }
+
+    private final static long LOAD_BACKOFF = 1000L; // 1 second.
+    private final static long MAXIMUM_LOAD_BACKOFF = 60000L; // 1 minute.
+    private AtomicBoolean m_loading = null;
+    private AtomicLong m_nextLoad = null;
+    private ArrayList<Update> m_updates = null;
+    private HashMap<ByteBuffer, Entry> m_byEncryptionKeyDigest = null;
+    private HashMap<ByteBuffer, Entry> m_bySignatureKeyDigest = null;
+    private HashMap<String, Entry> m_bySipHashId = null;
+    private final ReentrantReadWriteLock m_mutex =
+	new ReentrantReadWriteLock();
+    private static ParticipantDirectory s_instance = null;
+    private boolean m_complete = false;
+    private boolean m_loaded = false;
+    private int m_failures = 0;
+    private long m_generation = 0;
+
+    private ParticipantDirectory()
+    {
+	m_byEncryptionKeyDigest = new HashMap<> ();
+	m_bySignatureKeyDigest = new HashMap<> ();
+	m_bySipHashId = new HashMap<> ();
+	m_loading = new AtomicBoolean(false);
+	m_nextLoad = new AtomicLong(0);
+	m_updates = new ArrayList<> ();
+    }
+
+    private static ByteBuffer digestKey(byte digest[])
+    {
+	return ByteBuffer.wrap(duplicate(digest));
+    }
+
+    private static byte[] duplicate(byte bytes[])
+    {
+	/*
+	** Unlike Miscellaneous.deepCopy(), empty arrays are preserved.
+	*/
+
+	if(bytes == null)
+	    return null;
+
+	return Arrays.copyOf(bytes, bytes.length);
+    }
+
+    private static String sipHashIdKey(String sipHashId)
+    {
+	return sipHashId.toLowerCase().trim();
+    }
+
+    private void changed()
+    {
+	/*
+	** m_mutex must be write-locked. A load which began before
+	** a structural modification must not be installed.
+	*/
+
+	m_generation += 1;
+    }
+
+    private void discardUpdates()
+    {
+	/*
+	** m_mutex must be write-locked.
+	*/
+
+	for(Update update : m_updates)
+	    update.discard();
+
+	m_updates.clear();
+    }
+
+    private void insert(Entry entry)
+    {
+	/*
+	** m_mutex must be write-locked. The participants table
+	** replaces rows which share a unique value.
+	*/
+
+	remove(m_bySipHashId.get(sipHashIdKey(entry.m_sipHashId)));
+
+	if(entry.m_encryptionKeyDigest != null)
+	    remove(m_byEncryptionKeyDigest.
+		   get(ByteBuffer.wrap(entry.m_encryptionKeyDigest)));
+
+	if(entry.m_signatureKeyDigest != null)
+	    remove(m_bySignatureKeyDigest.
+		   get(ByteBuffer.wrap(entry.m_signatureKeyDigest)));
+
+	m_bySipHashId.put(sipHashIdKey(entry.m_sipHashId), entry);
+
+	if(entry.m_encryptionKeyDigest != null)
+	    m_byEncryptionKeyDigest.put
+		(digestKey(entry.m_encryptionKeyDigest), entry);
+
+	if(entry.m_signatureKeyDigest != null)
+	    m_bySignatureKeyDigest.put
+		(digestKey(entry.m_signatureKeyDigest), entry);
+    }
+
+    private void record(Update update)
+    {
+	/*
+	** m_mutex must be write-locked.
+	*/
+
+	update.apply();
+
+	if(m_loading.get())
+	    m_updates.add(update);
+	else
+	    update.discard();
+    }
+
+    private void remove(Entry entry)
+    {
+	/*
+	** m_mutex must be write-locked.
+	*/
+
+	if(entry == null)
+	    return;
+
+	m_bySipHashId.remove(sipHashIdKey(entry.m_sipHashId));
+
+	if(entry.m_encryptionKeyDigest != null)
+	    m_byEncryptionKeyDigest.remove
+		(ByteBuffer.wrap(entry.m_encryptionKeyDigest));
+
+	if(entry.m_signatureKeyDigest != null)
+	    m_bySignatureKeyDigest.remove
+		(ByteBuffer.wrap(entry.m_signatureKeyDigest));
+
+	entry.wipe();
+    }
+
+    public ArrayList<Entry> entries()
+    {
+	m_mutex.readLock().lock();
+
+	try
+	{
+	    ArrayList<Entry> arrayList = new ArrayList<> ();
+
+	    for(Entry entry : m_bySipHashId.values())
+		arrayList.add(entry.copy());
+
+	    return arrayList;
+	}
+	finally
+	{
+	    m_mutex.readLock().unlock();
+	}
+    }
+
+    public Entry findByEncryptionKeyDigest(byte digest[])
+    {
+	if(digest == null)
+	    return null;
+
+	m_mutex.readLock().lock();
+
+	try
+	{
+	    Entry entry = m_byEncryptionKeyDigest.get
+		(ByteBuffer.wrap(digest));
+
+	    return entry != null ? entry.copy() : null;
+	}
+	finally
+	{
+	    m_mutex.readLock().unlock();
+	}
+    }
+
+    public Entry findBySignatureKeyDigest(byte digest[])
+    {
+	if(digest == null)
+	    return null;
+
+	m_mutex.readLock().lock();
+
+	try
+	{
+	    Entry entry = m_bySignatureKeyDigest.get(ByteBuffer.wrap(digest));
+
+	    return entry != null ? entry.copy() : null;
+	}
+	finally
+	{
+	    m_mutex.readLock().unlock();
+	}
+    }
+
+    public Entry findBySipHashId(String sipHashId)
+    {
+	if(sipHashId == null)
+	    return null;
+
+	m_mutex.readLock().lock();
+
+	try
+	{
+	    Entry entry = m_bySipHashId.get(sipHashIdKey(sipHashId));
+
+	    return entry != null ? entry.copy() : null;
+	}
+	finally
+	{
+	    m_mutex.readLock().unlock();
+	}
+    }
+
+    public boolean beginLoad()
+    {
+	/*
+	** Only one load may proceed at a time. Failed loads are
+	** retried after an increasing delay.
+	*/
+
+	if(System.currentTimeMillis() < m_nextLoad.get())
+	    return false;
+
+	return m_loading.compareAndSet(false, true);
+    }
+
+    public boolean isComplete()
+    {
+	/*
+	** A complete directory contains every participant. Misses
+	** are then authoritative.
+	*/
+
+	m_mutex.readLock().lock();
+
+	try
+	{
+	    return m_complete && m_loaded;
+	}
+	finally
+	{
+	    m_mutex.readLock().unlock();
+	}
+    }
+
+    public boolean isLoaded()
+    {
+	m_mutex.readLock().lock();
+
+	try
+	{
+	    return m_loaded;
+	}
+	finally
+	{
+	    m_mutex.readLock().unlock();
+	}
+    }
+
+    public long generation()
+    {
+	m_mutex.readLock().lock();
+
+	try
+	{
+	    return m_generation;
+	}
+	finally
+	{
+	    m_mutex.readLock().unlock();
+	}
+    }
+
+    public static synchronized ParticipantDirectory getInstance()
+    {
+	if(s_instance == null)
+	    s_instance = new ParticipantDirectory();
+
+	return s_instance;
+    }
+
+    public void endLoad(ArrayList<Entry> entries,
+			boolean complete,
+			long generation)
+    {
+	/*
+	** Install the entries unless the directory was structurally
+	** modified after generation() was sampled. Field updates
+	** recorded during the load are replayed.
+	*/
+
+	m_mutex.writeLock().lock();
+
+	try
+	{
+	    if(entries != null && generation == m_generation)
+	    {
+		for(Entry entry : m_bySipHashId.values())
+		    entry.wipe();
+
+		m_byEncryptionKeyDigest.clear();
+		m_bySignatureKeyDigest.clear();
+		m_bySipHashId.clear();
+
+		for(Entry entry : entries)
+		    insert(entry);
+
+		for(Update update : m_updates)
+		    update.apply();
+
+		m_complete = complete;
+		m_loaded = true;
+	    }
+
+	    if(entries == null)
+	    {
+		m_failures = Math.min(m_failures + 1, 16);
+		m_nextLoad.set
+		    (System.currentTimeMillis() +
+		     Math.min(LOAD_BACKOFF << (m_failures - 1),
+			      MAXIMUM_LOAD_BACKOFF));
+	    }
+	    else
+	    {
+		m_failures = 0;
+		m_nextLoad.set(0);
+	    }
+	}
+	finally
+	{
+	    discardUpdates();
+	    m_loading.set(false);
+	    m_mutex.writeLock().unlock();
+	}
+    }
+
+    public void invalidate()
+    {
+	/*
+	** Wipe the directory. The next lookup reloads it.
+	*/
+
+	m_mutex.writeLock().lock();
+
+	try
+	{
+	    changed();
+
+	    for(Entry entry : m_bySipHashId.values())
+		entry.wipe();
+
+	    m_byEncryptionKeyDigest.clear();
+	    m_bySignatureKeyDigest.clear();
+	    m_bySipHashId.clear();
+	    m_complete = false;
+	    m_loaded = false;
+	}
+	finally
+	{
+	    m_mutex.writeLock().unlock();
+	}
+    }
+
+    public void put(Entry entry)
+    {
+	if(entry == null || entry.m_sipHashId == null)
+	    return;
+
+	m_mutex.writeLock().lock();
+
+	try
+	{
+	    changed();
+
+	    if(m_loaded)
+		insert(entry.copy());
+	}
+	finally
+	{
+	    m_mutex.writeLock().unlock();
+	}
+    }
+
+    public void removeOid(int oid)
+    {
+	m_mutex.writeLock().lock();
+
+	try
+	{
+	    changed();
+
+	    Iterator<Entry> iterator = m_bySipHashId.values().iterator();
+
+	    while(iterator.hasNext())
+	    {
+		Entry entry = iterator.next();
+
+		if(entry.m_oid == oid)
+		{
+		    remove(entry);
+		    break;
+		}
+	    }
+	}
+	finally
+	{
+	    m_mutex.writeLock().unlock();
+	}
+    }
+
+    public void setKeyStream(final int oid, byte keyStream[])
+    {
+	final byte bytes[] =
+	    keyStream == null ? new byte[0] : duplicate(keyStream);
+
+	m_mutex.writeLock().lock();
+
+	try
+	{
+	    record(new Update()
+	    {
+		@Override
+		public void apply()
+		{
+		    for(Entry entry : m_bySipHashId.values())
+			if(entry.m_oid == oid)
+			{
+			    entry.wipe();
+			    entry.m_keyStream = duplicate(bytes);
+			    break;
+			}
+		}
+
+		@Override
+		public void discard()
+		{
+		    Arrays.fill(bytes, (byte) 0);
+		}
+	    });
+	}
+	finally
+	{
+	    m_mutex.writeLock().unlock();
+	}
+    }
+
+    public void setKeyStream(final String sipHashId,
+			     byte keyStream[],
+			     final long timestamp)
+    {
+	if(keyStream == null || sipHashId == null)
+	    return;
+
+	final byte bytes[] = duplicate(keyStream);
+
+	m_mutex.writeLock().lock();
+
+	try
+	{
+	    record(new Update()
+	    {
+		@Override
+		public void apply()
+		{
+		    Entry entry = m_bySipHashId.get(sipHashIdKey(sipHashId));
+
+		    if(entry != null)
+		    {
+			entry.wipe();
+			entry.m_keyStream = duplicate(bytes);
+			entry.m_lastStatusTimestamp = timestamp;
+		    }
+		}
+
+		@Override
+		public void discard()
+		{
+		    Arrays.fill(bytes, (byte) 0);
+		}
+	    });
+	}
+	finally
+	{
+	    m_mutex.writeLock().unlock();
+	}
+    }
+
+    public void setLastStatusTimestamp(byte digest[], final long timestamp)
+    {
+	if(digest == null)
+	    return;
+
+	final ByteBuffer key = digestKey(digest);
+
+	m_mutex.writeLock().lock();
+
+	try
+	{
+	    record(new Update()
+	    {
+		@Override
+		public void apply()
+		{
+		    Entry entry = m_byEncryptionKeyDigest.get(key);
+
+		    if(entry != null)
+			entry.m_lastStatusTimestamp = timestamp;
+		}
+	    });
+	}
+	finally
+	{
+	    m_mutex.writeLock().unlock();
+	}
+    }
+
+    public void setLastStatusTimestamp(final String sipHashId,
+				       final long timestamp)
+    {
+	if(sipHashId == null)
+	    return;
+
+	m_mutex.writeLock().lock();
+
+	try
+	{
+	    record(new Update()
+	    {
+		@Override
+		public void apply()
+		{
+		    Entry entry = m_bySipHashId.get(sipHashIdKey(sipHashId));
+
+		    if(entry != null)
+			entry.m_lastStatusTimestamp = timestamp;
+		}
+	    });
+	}
+	finally
+	{
+	    m_mutex.writeLock().unlock();
+	}
+    }
+
+    public void setName(final String sipHashId, final String name)
+    {
+	if(sipHashId == null)
+	    return;
+
+	m_mutex.writeLock().lock();
+
+	try
+	{
+	    record(new Update()
+	    {
+		@Override
+		public void apply()
+		{
+		    Entry entry = m_bySipHashId.get(sipHashIdKey(sipHashId));
+
+		    if(entry != null)
+			entry.m_name = name;
+		}
+	    });
+	}
+	finally
+	{
+	    m_mutex.writeLock().unlock();
+	}
+    }
+
+    public void setOptions(final String sipHashId, final String options)
+    {
+	if(options == null || sipHashId == null)
+	    return;
+
+	m_mutex.writeLock().lock();
+
+	try
+	{
+	    record(new Update()
+	    {
+		@Override
+		public void apply()
+		{
+		    Entry entry = m_bySipHashId.get(sipHashIdKey(sipHashId));
+
+		    if(entry != null)
+		    {
+			entry.m_options = options;
+			entry.m_signaturesRequired =
+			    signaturesRequired(options);
+		    }
+		}
+	    });
+	}
+	finally
+	{
+	    m_mutex.writeLock().unlock();
+	}
+    }
+
+    public static boolean signaturesRequired(String options)
+    {
+	return options != null &&
+	    options.contains("optional_signatures = false");
+    }
+}
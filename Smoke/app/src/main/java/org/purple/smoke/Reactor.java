@@ -0,0 +1,271 @@
+/*
+** Copyright (c) Alexis Megas.
+** All rights reserved.
+**
+** Redistribution and use in source and binary forms, with or without
+** modification, are permitted provided that the following conditions
+** are met:
+** 1. Redistributions of source code must retain the above copyright
+**    notice, this list of conditions and the following disclaimer.
+** 2. Redistributions in binary form must reproduce the above copyright
+**    notice, this list of conditions and the following disclaimer in the
+**    documentation and/or other materials provided with the distribution.
+** 3. The name of the author may not be used to endorse or promote products
+**    derived from Smoke without specific prior written permission.
+**
+** SMOKE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+** IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+** OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+** IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+** INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+** NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+** DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+** THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+** (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+** SMOKE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package org.purple.smoke;
+
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+public class Reactor
+{
+    private ArrayList<Runnable> m_tasks = null;
+    private ExecutorService m_delegates = null;
+    private Selector m_selector = null;
+    private Thread m_thread = null;
+    private final Object m_tasksMutex = new Object();
+    private static Reactor s_instance = null;
+
+    private Reactor()
+    {
+	m_delegates = Executors.newCachedThreadPool(new ThreadFactory()
+	{
+	    @Override
+	    public Thread newThread(Runnable runnable)
+	    {
+		Thread thread = new Thread(runnable, "Reactor Delegate");
+
+		thread.setDaemon(true);
+		return thread;
+	    }
+	});
+	m_tasks = new ArrayList<> ();
+
+	try
+	{
+	    m_selector = Selector.open();
+	}
+	catch(Exception exception)
+	{
+	    m_selector = null;
+	}
+
+	m_thread = new Thread(new Runnable()
+	{
+	    @Override
+	    public void run()
+	    {
+		loop();
+	    }
+	});
+	m_thread.setDaemon(true);
+	m_thread.start();
+    }
+
+    private void loop()
+    {
+	if(m_selector == null)
+	    return;
+
+	while(true)
+	{
+	    try
+	    {
+		runTasks();
+		m_selector.select();
+
+		Iterator<SelectionKey> it = m_selector.selectedKeys().
+		    iterator();
+
+		while(it.hasNext())
+		{
+		    SelectionKey key = it.next();
+
+		    it.remove();
+		    dispatch(key);
+		}
+	    }
+	    catch(Exception exception)
+	    {
+	    }
+	}
+    }
+
+    private void dispatch(SelectionKey key)
+    {
+	Neighbor neighbor = (Neighbor) key.attachment();
+
+	if(neighbor == null || !key.isValid())
+	    return;
+
+	/*
+	** A neighbor must never stall the reactor. All of the
+	** callbacks are non-blocking.
+	*/
+
+	try
+	{
+	    if(key.isConnectable())
+		neighbor.onConnectable();
+
+	    if(key.isValid() && key.isReadable())
+		neighbor.onReadable();
+
+	    if(key.isValid() && key.isWritable())
+		neighbor.onWritable();
+	}
+	catch(Exception exception)
+	{
+	}
+    }
+
+    private void execute(Runnable runnable)
+    {
+	if(Thread.currentThread() == m_thread)
+	{
+	    runnable.run();
+	    return;
+	}
+
+	synchronized(m_tasksMutex)
+	{
+	    m_tasks.add(runnable);
+	}
+
+	if(m_selector != null)
+	    m_selector.wakeup();
+    }
+
+    private void runTasks()
+    {
+	ArrayList<Runnable> tasks = null;
+
+	synchronized(m_tasksMutex)
+	{
+	    if(m_tasks.isEmpty())
+		return;
+
+	    tasks = m_tasks;
+	    m_tasks = new ArrayList<> ();
+	}
+
+	for(Runnable runnable : tasks)
+	    try
+	    {
+		runnable.run();
+	    }
+	    catch(Exception exception)
+	    {
+	    }
+    }
+
+    public boolean isReactorThread()
+    {
+	return Thread.currentThread() == m_thread;
+    }
+
+    public static synchronized Reactor getInstance()
+    {
+	if(s_instance == null)
+	    s_instance = new Reactor();
+
+	return s_instance;
+    }
+
+    public void delegate(final Runnable runnable, final Runnable completion)
+    {
+	/*
+	** Execute a lengthy task, such as an SSLEngine delegated task,
+	** on behalf of a neighbor. The completion is executed by the
+	** reactor's thread.
+	*/
+
+	if(completion == null || runnable == null)
+	    return;
+
+	m_delegates.execute(new Runnable()
+	{
+	    @Override
+	    public void run()
+	    {
+		try
+		{
+		    runnable.run();
+		}
+		catch(Exception exception)
+		{
+		}
+
+		execute(completion);
+	    }
+	});
+    }
+
+    public void interestOps(final SelectableChannel channel, final int ops)
+    {
+	if(channel == null)
+	    return;
+
+	execute(new Runnable()
+	{
+	    @Override
+	    public void run()
+	    {
+		SelectionKey key = channel.keyFor(m_selector);
+
+		if(key != null && key.isValid() && key.interestOps() != ops)
+		    key.interestOps(ops);
+	    }
+	});
+    }
+
+    public void register(final SelectableChannel channel,
+			 final int ops,
+			 final Neighbor neighbor)
+    {
+	if(channel == null || neighbor == null)
+	    return;
+
+	/*
+	** Registrations must be performed by the reactor's thread
+	** as Selector.select() holds the key set.
+	*/
+
+	execute(new Runnable()
+	{
+	    @Override
+	    public void run()
+	    {
+		try
+		{
+		    if(channel.isOpen())
+			channel.register(m_selector, ops, neighbor);
+		}
+		catch(Exception exception)
+		{
+		    neighbor.onReactorError(exception);
+		}
+	    }
+	});
+    }
+}
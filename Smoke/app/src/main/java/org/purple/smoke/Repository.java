@@ -0,0 +1,738 @@
+/*
+** Copyright (c) Alexis Megas.
+** All rights reserved.
+**
+** Redistribution and use in source and binary forms, with or without
+** modification, are permitted provided that the following conditions
+** are met:
+** 1. Redistributions of source code must retain the above copyright
+**    notice, this list of conditions and the following disclaimer.
+** 2. Redistributions in binary form must reproduce the above copyright
+**    notice, this list of conditions and the following disclaimer in the
+**    documentation and/or other materials provided with the distribution.
+** 3. The name of the author may not be used to endorse or promote products
+**    derived from Smoke without specific prior written permission.
+**
+** SMOKE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+** IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+** OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+** IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+** INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+** NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+** DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+** THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+** (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+** SMOKE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package org.purple.smoke;
+
+import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+public class Repository
+{
+    /*
+    ** Database access on behalf of the user interface. Requests are
+    ** executed in order by a dedicated thread and results are
+    ** delivered to callbacks on the main thread. A result is discarded if the
+    ** activity which requested it has finished. A read which is
+    ** requested while an identical read is waiting is merged with
+    ** the waiting read. A read which is requested while an identical
+    ** read is executing is executed again afterward. Settings which
+    ** are being written are read from memory.
+    */
+
+    public interface Callback<T>
+    {
+	void onResult(T result);
+    }
+
+    private static class Delivery<T>
+    {
+	public Callback<T> m_callback = null;
+	public WeakReference<Activity> m_activity = null;
+
+	public Delivery(Activity activity, Callback<T> callback)
+	{
+	    if(activity != null)
+		m_activity = new WeakReference<> (activity);
+
+	    m_callback = callback;
+	}
+
+	public void deliver(T result)
+	{
+	    if(m_activity != null)
+	    {
+		Activity activity = m_activity.get();
+
+		if(activity == null ||
+		   activity.isDestroyed() ||
+		   activity.isFinishing())
+		    return;
+	    }
+
+	    try
+	    {
+		m_callback.onResult(result);
+	    }
+	    catch(Exception exception)
+	    {
+	    }
+	}
+    }
+
+    private static class Pending
+    {
+	public String m_value = "";
+	public int m_writes = 0;
+    }
+
+    private class Request<T> implements Runnable
+    {
+	public ArrayList<Delivery<T>> m_deliveries = null;
+	public Callable<T> m_callable = null;
+	public String m_key = "";
+
+	public Request(String key, Callable<T> callable)
+	{
+	    m_callable = callable;
+	    m_deliveries = new ArrayList<> ();
+	    m_key = key;
+	}
+
+	@Override
+	public void run()
+	{
+	    final ArrayList<Delivery<T>> deliveries;
+
+	    synchronized(m_requests)
+	    {
+		if(m_key != null)
+		    m_requests.remove(m_key);
+
+		deliveries = new ArrayList<> (m_deliveries);
+	    }
+
+	    T result = null;
+
+	    try
+	    {
+		result = m_callable.call();
+	    }
+	    catch(Exception exception)
+	    {
+		result = null;
+	    }
+
+	    if(deliveries.isEmpty())
+		return;
+
+	    final T r = result;
+
+	    m_handler.post(new Runnable()
+	    {
+		@Override
+		public void run()
+		{
+		    for(Delivery<T> delivery : deliveries)
+			delivery.deliver(r);
+		}
+	    });
+	}
+    }
+
+    private ExecutorService m_executor = null;
+    private Handler m_handler = null;
+    private final HashMap<String, Pending> m_settings = new HashMap<> ();
+    private final HashMap<String, Request<?>> m_requests =
+	new HashMap<> ();
+    private final static Cryptography s_cryptography =
+	Cryptography.getInstance();
+    private final static Database s_database = Database.getInstance();
+    private static Repository s_instance = null;
+
+    private Repository()
+    {
+	m_executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+	{
+	    @Override
+	    public Thread newThread(Runnable runnable)
+	    {
+		Thread thread = new Thread(runnable, "Repository");
+
+		thread.setDaemon(true);
+		return thread;
+	    }
+	});
+	m_handler = new Handler(Looper.getMainLooper());
+    }
+
+    private static <T> void add(ArrayList<Delivery<T>> deliveries,
+				Delivery<T> delivery)
+    {
+	/*
+	** A callback replaces an earlier callback of the same class.
+	** Repeated refreshes of a view are performed once.
+	*/
+
+	for(int i = 0; i < deliveries.size(); i++)
+	    if(deliveries.get(i).m_callback.getClass() ==
+	       delivery.m_callback.getClass())
+	    {
+		deliveries.set(i, delivery);
+		return;
+	    }
+
+	deliveries.add(delivery);
+    }
+
+    private static String settingKey(Cryptography cryptography, String name)
+    {
+	return (cryptography != null ? "1:" : "0:") + name.trim();
+    }
+
+    public <T> Future<T> submit(Callable<T> callable)
+    {
+	return m_executor.submit(callable);
+    }
+
+    public <T> void execute(Activity activity,
+			    Callable<T> callable,
+			    Callback<T> callback)
+    {
+	/*
+	** Requests which are executed by execute() are not merged.
+	*/
+
+	Request<T> request = new Request<> (null, callable);
+
+	if(callback != null)
+	    request.m_deliveries.add(new Delivery<> (activity, callback));
+
+	m_executor.execute(request);
+    }
+
+    public <T> void request(String key,
+			    Activity activity,
+			    Callable<T> callable,
+			    Callback<T> callback)
+    {
+	Request<T> request = null;
+
+	synchronized(m_requests)
+	{
+	    @SuppressWarnings("unchecked")
+	    Request<T> waiting = (Request<T>) m_requests.get(key);
+
+	    if(waiting != null)
+	    {
+		if(callback != null)
+		    add(waiting.m_deliveries,
+			new Delivery<> (activity, callback));
+
+		return;
+	    }
+
+	    request = new Request<> (key, callable);
+
+	    if(callback != null)
+		request.m_deliveries.add(new Delivery<> (activity, callback));
+
+	    m_requests.put(key, request);
+	}
+
+	m_executor.execute(request);
+    }
+
+    public String readSetting(Cryptography cryptography, String name)
+    {
+	synchronized(m_settings)
+	{
+	    Pending pending = m_settings.get(settingKey(cryptography, name));
+
+	    if(pending != null)
+		return pending.m_value;
+	}
+
+	return s_database.readSetting(cryptography, name);
+    }
+
+    public boolean accountPrepared()
+    {
+	return !readSetting(null, "encryptionSalt").isEmpty() &&
+	    !readSetting(null, "macSalt").isEmpty() &&
+	    !readSetting(null, "saltedPassword").isEmpty();
+    }
+
+    public int readSettingInt(Cryptography cryptography,
+			      String name,
+			      int defaultValue)
+    {
+	try
+	{
+	    return Integer.parseInt(readSetting(cryptography, name));
+	}
+	catch(Exception exception)
+	{
+	    return defaultValue;
+	}
+    }
+
+    public static synchronized Repository getInstance()
+    {
+	if(s_instance == null)
+	    s_instance = new Repository();
+
+	return s_instance;
+    }
+
+    public void cleanDanglingOutboundQueued()
+    {
+	m_executor.execute(new Runnable()
+	{
+	    @Override
+	    public void run()
+	    {
+		s_database.cleanDanglingOutboundQueued();
+	    }
+	});
+    }
+
+    public void cleanDanglingParticipants()
+    {
+	m_executor.execute(new Runnable()
+	{
+	    @Override
+	    public void run()
+	    {
+		s_database.cleanDanglingParticipants();
+	    }
+	});
+    }
+
+    public void clearTable(final String table)
+    {
+	m_executor.execute(new Runnable()
+	{
+	    @Override
+	    public void run()
+	    {
+		s_database.clearTable(table);
+	    }
+	});
+    }
+
+    public void deleteEntry(Activity activity,
+			    final String oid,
+			    final String table,
+			    Callback<Boolean> callback)
+    {
+	execute(activity, new Callable<Boolean> ()
+	{
+	    @Override
+	    public Boolean call()
+	    {
+		return s_database.deleteEntry(oid, table);
+	    }
+	}, callback);
+    }
+
+    public void deleteParticipantMessage(Activity activity,
+					 final String sipHashId,
+					 final int oid,
+					 Callback<Void> callback)
+    {
+	execute(activity, new Callable<Void> ()
+	{
+	    @Override
+	    public Void call()
+	    {
+		s_database.deleteParticipantMessage
+		    (s_cryptography, sipHashId, oid);
+		return null;
+	    }
+	}, callback);
+    }
+
+    public void deleteParticipantMessages(Activity activity,
+					  final String sipHashId,
+					  Callback<Void> callback)
+    {
+	execute(activity, new Callable<Void> ()
+	{
+	    @Override
+	    public Void call()
+	    {
+		s_database.deleteParticipantMessages
+		    (s_cryptography, sipHashId);
+		return null;
+	    }
+	}, callback);
+    }
+
+    public void execute(Runnable runnable)
+    {
+	m_executor.execute(runnable);
+    }
+
+    public void nameFromSipHashId(Activity activity,
+				  final String sipHashId,
+				  Callback<String> callback)
+    {
+	execute(activity, new Callable<String> ()
+	{
+	    @Override
+	    public String call()
+	    {
+		return s_database.nameFromSipHashId(s_cryptography, sipHashId);
+	    }
+	}, callback);
+    }
+
+    public void neighborControlStatus(final String controlStatus,
+				      final String oid)
+    {
+	m_executor.execute(new Runnable()
+	{
+	    @Override
+	    public void run()
+	    {
+		s_database.neighborControlStatus
+		    (s_cryptography, controlStatus, oid);
+	    }
+	});
+    }
+
+    public void neighborRecordCertificate(final String oid,
+					  final byte certificate[])
+    {
+	m_executor.execute(new Runnable()
+	{
+	    @Override
+	    public void run()
+	    {
+		s_database.neighborRecordCertificate
+		    (s_cryptography, oid, certificate);
+	    }
+	});
+    }
+
+    public void participantKeyStream(Activity activity,
+				     final String sipHashId,
+				     Callback<byte[]> callback)
+    {
+	execute(activity, new Callable<byte[]> ()
+	{
+	    @Override
+	    public byte[] call()
+	    {
+		return s_database.participantKeyStream
+		    (s_cryptography, sipHashId);
+	    }
+	}, callback);
+    }
+
+    public void purgeNeighborQueue(final String oid)
+    {
+	m_executor.execute(new Runnable()
+	{
+	    @Override
+	    public void run()
+	    {
+		s_database.purgeNeighborQueue(oid);
+	    }
+	});
+    }
+
+    public void readFires(Activity activity,
+			  Callback<ArrayList<FireElement>> callback)
+    {
+	request("fires", activity, new Callable<ArrayList<FireElement>> ()
+	{
+	    @Override
+	    public ArrayList<FireElement> call()
+	    {
+		return s_database.readFires(s_cryptography);
+	    }
+	}, callback);
+    }
+
+    public void readNeighbors(Activity activity,
+			      Callback<ArrayList<NeighborElement>> callback)
+    {
+	request("neighbors",
+		activity,
+		new Callable<ArrayList<NeighborElement>> ()
+		{
+		    @Override
+		    public ArrayList<NeighborElement> call()
+		    {
+			return s_database.readNeighbors(s_cryptography);
+		    }
+		}, callback);
+    }
+
+    public void readParticipantOptions(Activity activity,
+				       final String sipHashId,
+				       Callback<String> callback)
+    {
+	execute(activity, new Callable<String> ()
+	{
+	    @Override
+	    public String call()
+	    {
+		return s_database.readParticipantOptions
+		    (s_cryptography, sipHashId);
+	    }
+	}, callback);
+    }
+
+    public void readParticipants
+	(Activity activity,
+	 final String sipHashId,
+	 Callback<ArrayList<ParticipantElement>> callback)
+    {
+	request("participants:" + sipHashId,
+		activity,
+		new Callable<ArrayList<ParticipantElement>> ()
+		{
+		    @Override
+		    public ArrayList<ParticipantElement> call()
+		    {
+			return s_database.readParticipants
+			    (s_cryptography, sipHashId);
+		    }
+		}, callback);
+    }
+
+    public void readSipHashId(Activity activity,
+			      final String oid,
+			      Callback<SipHashIdElement> callback)
+    {
+	execute(activity, new Callable<SipHashIdElement> ()
+	{
+	    @Override
+	    public SipHashIdElement call()
+	    {
+		return s_database.readSipHashId(s_cryptography, oid);
+	    }
+	}, callback);
+    }
+
+    public void readSipHashIdString(Activity activity,
+				    final String oid,
+				    Callback<String> callback)
+    {
+	execute(activity, new Callable<String> ()
+	{
+	    @Override
+	    public String call()
+	    {
+		return s_database.readSipHashIdString(s_cryptography, oid);
+	    }
+	}, callback);
+    }
+
+    public void readSipHashIds
+	(Activity activity,
+	 final String sipHashId,
+	 Callback<ArrayList<SipHashIdElement>> callback)
+    {
+	request("siphash_ids:" + sipHashId,
+		activity,
+		new Callable<ArrayList<SipHashIdElement>> ()
+		{
+		    @Override
+		    public ArrayList<SipHashIdElement> call()
+		    {
+			return s_database.readSipHashIds
+			    (sipHashId, s_cryptography);
+		    }
+		}, callback);
+    }
+
+    public void reset(Activity activity, Callback<Void> callback)
+    {
+	execute(activity, new Callable<Void> ()
+	{
+	    @Override
+	    public Void call()
+	    {
+		s_database.reset();
+		return null;
+	    }
+	}, callback);
+    }
+
+    public void resetAndDrop(Activity activity, Callback<Void> callback)
+    {
+	execute(activity, new Callable<Void> ()
+	{
+	    @Override
+	    public Void call()
+	    {
+		s_database.resetAndDrop();
+		return null;
+	    }
+	}, callback);
+    }
+
+    public void saveFireChannel(final String name,
+				final byte encryptionKey[],
+				final byte keyStream[])
+    {
+	m_executor.execute(new Runnable()
+	{
+	    @Override
+	    public void run()
+	    {
+		s_database.saveFireChannel
+		    (s_cryptography, name, encryptionKey, keyStream);
+	    }
+	});
+    }
+
+    public void setParticipantKeyStream(Activity activity,
+					final byte keyStream[],
+					final int oid,
+					Callback<Boolean> callback)
+    {
+	execute(activity, new Callable<Boolean> ()
+	{
+	    @Override
+	    public Boolean call()
+	    {
+		return s_database.setParticipantKeyStream
+		    (s_cryptography, keyStream, oid);
+	    }
+	}, callback);
+    }
+
+    public void writeNeighbor(Activity activity,
+			      final String proxyIpAddress,
+			      final String proxyPort,
+			      final String proxyType,
+			      final String remoteIpAddress,
+			      final String remoteIpPort,
+			      final String remoteIpScopeId,
+			      final String transport,
+			      final String version,
+			      Callback<Boolean> callback)
+    {
+	execute(activity, new Callable<Boolean> ()
+	{
+	    @Override
+	    public Boolean call()
+	    {
+		return s_database.writeNeighbor(s_cryptography,
+						proxyIpAddress,
+						proxyPort,
+						proxyType,
+						remoteIpAddress,
+						remoteIpPort,
+						remoteIpScopeId,
+						transport,
+						version);
+	    }
+	}, callback);
+    }
+
+    public void writeParticipantName(Activity activity,
+				     final String name,
+				     final int oid,
+				     Callback<Boolean> callback)
+    {
+	execute(activity, new Callable<Boolean> ()
+	{
+	    @Override
+	    public Boolean call()
+	    {
+		return s_database.writeParticipantName
+		    (s_cryptography, name, oid);
+	    }
+	}, callback);
+    }
+
+    public void writeParticipantOptions(final String options,
+					final String sipHashId)
+    {
+	m_executor.execute(new Runnable()
+	{
+	    @Override
+	    public void run()
+	    {
+		s_database.writeParticipantOptions
+		    (s_cryptography, options, sipHashId);
+	    }
+	});
+    }
+
+    public void writeSetting(final Cryptography cryptography,
+			     final String name,
+			     final String value)
+    {
+	/*
+	** The value is visible to readSetting() immediately.
+	*/
+
+	final String key = settingKey(cryptography, name);
+
+	synchronized(m_settings)
+	{
+	    Pending pending = m_settings.get(key);
+
+	    if(pending == null)
+	    {
+		pending = new Pending();
+		m_settings.put(key, pending);
+	    }
+
+	    pending.m_value = value;
+	    pending.m_writes += 1;
+	}
+
+	m_executor.execute(new Runnable()
+	{
+	    @Override
+	    public void run()
+	    {
+		s_database.writeSetting(cryptography, name, value);
+
+		synchronized(m_settings)
+		{
+		    Pending pending = m_settings.get(key);
+
+		    if(pending != null && --pending.m_writes <= 0)
+			m_settings.remove(key);
+		}
+	    }
+	});
+    }
+
+    public void writeSipHashParticipant(Activity activity,
+					final String name,
+					final String sipHashId,
+					Callback<Boolean> callback)
+    {
+	execute(activity, new Callable<Boolean> ()
+	{
+	    @Override
+	    public Boolean call()
+	    {
+		return s_database.writeSipHashParticipant
+		    (s_cryptography, name, sipHashId);
+	    }
+	}, callback);
+    }
+}
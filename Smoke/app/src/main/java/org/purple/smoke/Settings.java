@@ -67,29 +67,11 @@ import android.widget.TextView;
 import java.security.KeyPair;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import javax.crypto.SecretKey;
 
 public class Settings extends AppCompatActivity
 {
-    private class PopulateNeighbors implements Runnable
-    {
-	private ArrayList<NeighborElement> m_arrayList = null;
-
-	public PopulateNeighbors(ArrayList<NeighborElement> arrayList)
-	{
-	    m_arrayList = arrayList;
-	}
-
-	@Override
-	public void run()
-	{
-	    populateNeighbors(m_arrayList);
-	}
-    }
-
     private class SettingsBroadcastReceiver extends BroadcastReceiver
     {
 	public SettingsBroadcastReceiver()
@@ -112,7 +94,8 @@ public class Settings extends AppCompatActivity
     }
 
     private Database m_databaseHelper = null;
-    private ScheduledExecutorService m_scheduler = null;
+    private Repository m_repository = null;
+    private TimingWheel.Task m_scheduler = null;
     private SettingsBroadcastReceiver m_receiver = null;
     private boolean m_receiverRegistered = false;
     private final static Cryptography s_cryptography =
@@ -174,7 +157,8 @@ public class Settings extends AppCompatActivity
 
     private void addNeighbor()
     {
-	CheckBox checkBox1 = (CheckBox) findViewById(R.id.automatic_refresh);
+	final CheckBox checkBox1 = (CheckBox) findViewById
+	    (R.id.automatic_refresh);
 	RadioGroup radioGroup1 = (RadioGroup) findViewById
 	    (R.id.neighbors_ipv_radio_group);
 	Spinner spinner1 = (Spinner) findViewById(R.id.neighbors_transport);
@@ -195,23 +179,31 @@ public class Settings extends AppCompatActivity
 	if(textView1.getText().toString().trim().isEmpty())
 	    Miscellaneous.showErrorDialog
 		(Settings.this, "Please complete the IP Address field.");
-	else if(!m_databaseHelper.
-		writeNeighbor(s_cryptography,
-			      proxyIpAddress.getText().toString(),
-			      proxyPort.getText().toString(),
-			      spinner2.getSelectedItem().
-			      toString(),
-			      textView1.getText().toString(),
-			      textView2.getText().toString(),
-			      textView3.getText().toString(),
-			      spinner1.getSelectedItem().
-			      toString(),
-			      ipVersion))
-	    Miscellaneous.showErrorDialog
+	else
+	    m_repository.writeNeighbor
 		(Settings.this,
-		 "An error occurred while saving the neighbor information.");
-	else if(!checkBox1.isChecked())
-	    populateNeighbors(null);
+		 proxyIpAddress.getText().toString(),
+		 proxyPort.getText().toString(),
+		 spinner2.getSelectedItem().toString(),
+		 textView1.getText().toString(),
+		 textView2.getText().toString(),
+		 textView3.getText().toString(),
+		 spinner1.getSelectedItem().toString(),
+		 ipVersion,
+		 new Repository.Callback<Boolean> ()
+		 {
+		     @Override
+		     public void onResult(Boolean ok)
+		     {
+			 if(ok == null || !ok)
+			     Miscellaneous.showErrorDialog
+				 (Settings.this,
+				  "An error occurred while saving the " +
+				  "neighbor information.");
+			 else if(!checkBox1.isChecked())
+			     populateNeighbors(null);
+		     }
+		 });
     }
 
     private void addParticipant()
@@ -277,54 +269,31 @@ public class Settings extends AppCompatActivity
 	Miscellaneous.enableChildren
 	    (findViewById(R.id.linear_layout), false);
 
-	class SingleShot implements Runnable
-	{
-	    private String m_name = "";
-	    private String m_siphashId = "";
-	    private boolean m_error = false;
-
-	    SingleShot(String name, String sipHashId)
-	    {
-		m_name = name;
-		m_siphashId = sipHashId;
-	    }
-
-	    @Override
-	    public void run()
-	    {
-		if(!m_databaseHelper.writeSipHashParticipant(s_cryptography,
-							     m_name,
-							     m_siphashId))
-		    m_error = true;
-
-		Settings.this.runOnUiThread(new Runnable()
-		{
-		    @Override
-		    public void run()
-		    {
-			bar.setVisibility(ProgressBar.INVISIBLE);
-			getWindow().clearFlags
-			    (WindowManager.LayoutParams.FLAG_NOT_TOUCHABLE);
-			Miscellaneous.enableChildren
-			    (findViewById(R.id.linear_layout), true);
-
-			if(m_error)
-			    Miscellaneous.showErrorDialog
-				(Settings.this,
-				 "An error occurred while attempting " +
-				 "to save the specified SipHash ID.");
-			else
-			    populateParticipants();
-		    }
-		});
-	    }
-	}
-
-	Thread thread = new Thread
-	    (new SingleShot(((TextView) findViewById(R.id.participant_name)).
-			    getText().toString(), string));
-
-	thread.start();
+	m_repository.writeSipHashParticipant
+	    (Settings.this,
+	     ((TextView) findViewById(R.id.participant_name)).getText().
+	     toString(),
+	     string,
+	     new Repository.Callback<Boolean> ()
+	     {
+		 @Override
+		 public void onResult(Boolean ok)
+		 {
+		     bar.setVisibility(ProgressBar.INVISIBLE);
+		     getWindow().clearFlags
+			 (WindowManager.LayoutParams.FLAG_NOT_TOUCHABLE);
+		     Miscellaneous.enableChildren
+			 (findViewById(R.id.linear_layout), true);
+
+		     if(ok == null || !ok)
+			 Miscellaneous.showErrorDialog
+			     (Settings.this,
+			      "An error occurred while attempting " +
+			      "to save the specified SipHash ID.");
+		     else
+			 populateParticipants();
+		 }
+	     });
     }
 
     private void deleteNeighbor(String ipAndPort, int id)
@@ -340,28 +309,40 @@ public class Settings extends AppCompatActivity
 	    {
 		public void onCancel(DialogInterface dialog)
 		{
-		    if(State.getInstance().getString("dialog_accepted").
+		    if(!State.getInstance().getString("dialog_accepted").
 		       equals("true"))
-			if(m_databaseHelper.
-			   deleteEntry(String.valueOf(oid), "neighbors"))
-			{
-			    m_databaseHelper.cleanDanglingOutboundQueued();
-
-			    /*
-			    ** Prepare the kernel's neighbors container
-			    ** if a neighbor was deleted as the OID
-			    ** field may represent a recycled value.
-			    */
-
-			    Kernel.getInstance().purgeDeletedNeighbors();
-
-			    TableLayout tableLayout = (TableLayout)
-				findViewById(R.id.neighbors);
-			    TableRow row = (TableRow) findViewById(oid);
+			return;
 
-			    if(row != null)
-				tableLayout.removeView(row);
-			}
+		    m_repository.deleteEntry
+			(Settings.this,
+			 String.valueOf(oid),
+			 "neighbors",
+			 new Repository.Callback<Boolean> ()
+			 {
+			     @Override
+			     public void onResult(Boolean ok)
+			     {
+				 if(ok == null || !ok)
+				     return;
+
+				 m_repository.cleanDanglingOutboundQueued();
+
+				 /*
+				 ** Prepare the kernel's neighbors container
+				 ** if a neighbor was deleted as the OID
+				 ** field may represent a recycled value.
+				 */
+
+				 Kernel.getInstance().purgeDeletedNeighbors();
+
+				 TableLayout tableLayout = (TableLayout)
+				     findViewById(R.id.neighbors);
+				 TableRow row = (TableRow) findViewById(oid);
+
+				 if(row != null)
+				     tableLayout.removeView(row);
+			     }
+			 });
 	        }
 	    };
 
@@ -453,17 +434,18 @@ public class Settings extends AppCompatActivity
 
 	class SingleShot implements Runnable
 	{
+	    private ArrayList<SipHashIdElement> m_arrayList = null;
 	    private String m_error = "";
 
-	    SingleShot()
+	    SingleShot(ArrayList<SipHashIdElement> arrayList)
 	    {
+		m_arrayList = arrayList;
 	    }
 
 	    @Override
 	    public void run()
 	    {
-		ArrayList<SipHashIdElement> arrayList =
-		    m_databaseHelper.readSipHashIds(sipHashId, s_cryptography);
+		ArrayList<SipHashIdElement> arrayList = m_arrayList;
 
 		if(arrayList == null)
 		    arrayList = new ArrayList<> ();
@@ -516,6 +498,9 @@ public class Settings extends AppCompatActivity
 			@Override
 			public void run()
 			{
+			    if(Settings.this.isFinishing())
+				return;
+
 			    bar.setVisibility(ProgressBar.INVISIBLE);
 			    getWindow().clearFlags
 				(WindowManager.LayoutParams.
@@ -539,9 +524,36 @@ public class Settings extends AppCompatActivity
 	    }
 	}
 
-	Thread thread = new Thread(new SingleShot());
+	/*
+	** The participants are read by the repository. The messages
+	** are prepared by a separate thread.
+	*/
+
+	m_repository.readSipHashIds
+	    (Settings.this,
+	     sipHashId,
+	     new Repository.Callback<ArrayList<SipHashIdElement>> ()
+	     {
+		 @Override
+		 public void onResult(ArrayList<SipHashIdElement> arrayList)
+		 {
+		     Thread thread = new Thread(new SingleShot(arrayList));
+
+		     thread.start();
+		 }
+	     });
+    }
 
-	thread.start();
+    private void participantDeleted(int oid)
+    {
+	State.getInstance().removeChatCheckBoxOid(oid);
+	State.getInstance().setString("member_chat_oid", "");
+	State.getInstance().setString("member_chat_siphash_id", "");
+	m_repository.cleanDanglingParticipants();
+	m_repository.writeSetting(s_cryptography, "member_chat_oid", "");
+	m_repository.writeSetting
+	    (s_cryptography, "member_chat_siphash_id", "");
+	populateParticipants();
     }
 
     private void populateFancyKeyData()
@@ -608,7 +620,26 @@ public class Settings extends AppCompatActivity
     private void populateNeighbors(ArrayList<NeighborElement> arrayList)
     {
 	if(arrayList == null)
-	    arrayList = m_databaseHelper.readNeighbors(s_cryptography);
+	{
+	    /*
+	    ** Read the neighbors on the repository's thread.
+	    */
+
+	    m_repository.readNeighbors
+		(Settings.this,
+		 new Repository.Callback<ArrayList<NeighborElement>> ()
+		 {
+		     @Override
+		     public void onResult(ArrayList<NeighborElement> arrayList)
+		     {
+			 if(arrayList == null)
+			     arrayList = new ArrayList<> ();
+
+			 populateNeighbors(arrayList);
+		     }
+		 });
+	    return;
+	}
 
 	final TableLayout tableLayout = (TableLayout)
 	    findViewById(R.id.neighbors);
@@ -772,32 +803,28 @@ public class Settings extends AppCompatActivity
 			    switch(position)
 			    {
 			    case 1: // Connect
-				m_databaseHelper.neighborControlStatus
-				    (s_cryptography,
-				     "connect",
+				m_repository.neighborControlStatus
+				    ("connect",
 				     String.valueOf(parent.getId()));
 				break;
 			    case 2: // Delete
 				deleteNeighbor(ipAndPort, parent.getId());
 				break;
 			    case 3: // Disconnect
-				m_databaseHelper.neighborControlStatus
-				    (s_cryptography,
-				     "disconnect",
+				m_repository.neighborControlStatus
+				    ("disconnect",
 				     String.valueOf(parent.getId()));
 				break;
 			    case 4: // Purge Queue
-				m_databaseHelper.purgeNeighborQueue
+				m_repository.purgeNeighborQueue
 				    (String.valueOf(parent.getId()));
 				break;
 			    case 5: // Reset SSL/TLS Credentials
-				m_databaseHelper.neighborRecordCertificate
-				    (s_cryptography,
-				     String.valueOf(parent.getId()),
+				m_repository.neighborRecordCertificate
+				    (String.valueOf(parent.getId()),
 				     null);
-				m_databaseHelper.neighborControlStatus
-				    (s_cryptography,
-				     "disconnect",
+				m_repository.neighborControlStatus
+				    ("disconnect",
 				     String.valueOf(parent.getId()));
 				break;
 			    }
@@ -940,6 +967,36 @@ public class Settings extends AppCompatActivity
 	    stringBuilder.append("\n");
 	    stringBuilder.append("Outbound Queued: ");
 	    stringBuilder.append(neighborElement.m_outboundQueued);
+
+	    long throughput[] = Kernel.getInstance().
+		neighborThroughput(neighborElement.m_oid);
+
+	    if(throughput != null)
+	    {
+		stringBuilder.append("\n");
+		stringBuilder.append("Throughput: ");
+		stringBuilder.append(throughput[0]);
+		stringBuilder.append(" frames/s, ");
+		stringBuilder.append
+		    (Miscellaneous.
+		     formattedDigitalInformation
+		     (String.valueOf(throughput[1])));
+		stringBuilder.append("/s");
+	    }
+
+	    long discarded[] = Kernel.getInstance().
+		neighborDiscardedFrames(neighborElement.m_oid);
+
+	    if(discarded != null && (discarded[0] > 0 || discarded[1] > 0))
+	    {
+		stringBuilder.append("\n");
+		stringBuilder.append("Discarded Frames: ");
+		stringBuilder.append(discarded[0]);
+		stringBuilder.append(" oversize, ");
+		stringBuilder.append(discarded[1]);
+		stringBuilder.append(" truncated");
+	    }
+
 	    stringBuilder.append("\n");
 	    stringBuilder.append("Uptime: ");
 
@@ -984,8 +1041,21 @@ public class Settings extends AppCompatActivity
 
     private void populateParticipants()
     {
-	ArrayList<SipHashIdElement> arrayList =
-	    m_databaseHelper.readSipHashIds("", s_cryptography);
+	m_repository.readSipHashIds
+	    (Settings.this,
+	     "",
+	     new Repository.Callback<ArrayList<SipHashIdElement>> ()
+	     {
+		 @Override
+		 public void onResult(ArrayList<SipHashIdElement> arrayList)
+		 {
+		     populateParticipants(arrayList);
+		 }
+	     });
+    }
+
+    private void populateParticipants(ArrayList<SipHashIdElement> arrayList)
+    {
 	TableLayout tableLayout = (TableLayout) findViewById
 	    (R.id.participants);
 
@@ -1085,7 +1155,7 @@ public class Settings extends AppCompatActivity
 	{
 	    public void onClick(View view)
 	    {
-		m_databaseHelper.clearTable("log");
+		m_repository.clearTable("log");
 	    }
 	});
 
@@ -1157,13 +1227,21 @@ public class Settings extends AppCompatActivity
 		       equals("true"))
 		    {
 			State.getInstance().reset();
-			m_databaseHelper.resetAndDrop();
-			s_cryptography.reset();
-
-			Intent intent = getIntent();
-
-			startActivity(intent);
-			finish();
+			m_repository.resetAndDrop
+			    (Settings.this,
+			     new Repository.Callback<Void> ()
+			     {
+				 @Override
+				 public void onResult(Void result)
+				 {
+				     s_cryptography.reset();
+
+				     Intent intent = getIntent();
+
+				     startActivity(intent);
+				     finish();
+				 }
+			     });
 		    }
 		}
 	    };
@@ -1243,11 +1321,19 @@ public class Settings extends AppCompatActivity
 			    (R.id.ozone);
 
 			textView1.setText("");
-			m_databaseHelper.reset();
-			populateFancyKeyData();
-			populateNeighbors(null);
-			populateParticipants();
-			prepareCredentials();
+			m_repository.reset
+			    (Settings.this,
+			     new Repository.Callback<Void> ()
+			     {
+				 @Override
+				 public void onResult(Void result)
+				 {
+				     populateFancyKeyData();
+				     populateNeighbors(null);
+				     populateParticipants();
+				     prepareCredentials();
+				 }
+			     });
 		    }
 		}
 	    };
@@ -1288,12 +1374,12 @@ public class Settings extends AppCompatActivity
 
 		    if(bytes != null || string.isEmpty())
 		    {
-			m_databaseHelper.writeSetting
+			m_repository.writeSetting
 			    (s_cryptography, "ozone_address", string);
 
 			if(string.isEmpty())
 			{
-			    m_databaseHelper.writeSetting
+			    m_repository.writeSetting
 				(s_cryptography,
 				 "ozone_address_stream",
 				 "");
@@ -1303,7 +1389,7 @@ public class Settings extends AppCompatActivity
 			}
 			else if(bytes != null && bytes.length == 96)
 			{
-			    m_databaseHelper.writeSetting
+			    m_repository.writeSetting
 				(s_cryptography,
 				 "ozone_address_stream",
 				 Base64.encodeToString(bytes,
@@ -1431,13 +1517,13 @@ public class Settings extends AppCompatActivity
 		{
 		    if(isChecked)
 		    {
-			m_databaseHelper.writeSetting
+			m_repository.writeSetting
 			    (null, "automatic_neighbors_refresh", "true");
 			startTimers();
 		    }
 		    else
 		    {
-			m_databaseHelper.writeSetting
+			m_repository.writeSetting
 			    (null, "automatic_neighbors_refresh", "false");
 			stopTimers();
 		    }
@@ -1454,13 +1540,13 @@ public class Settings extends AppCompatActivity
 		{
 		    if(isChecked)
 		    {
-			m_databaseHelper.writeSetting
+			m_repository.writeSetting
 			    (null, "neighbors_echo", "true");
 			State.getInstance().setNeighborsEcho(true);
 		    }
 		    else
 		    {
-			m_databaseHelper.writeSetting
+			m_repository.writeSetting
 			    (null, "neighbors_echo", "false");
 			Kernel.getInstance().clearNeighborQueues();
 			State.getInstance().setNeighborsEcho(false);
@@ -1477,10 +1563,10 @@ public class Settings extends AppCompatActivity
 		    (CompoundButton buttonView, boolean isChecked)
 		{
 		    if(isChecked)
-			m_databaseHelper.writeSetting
+			m_repository.writeSetting
 			    (null, "neighbors_details", "true");
 		    else
-			m_databaseHelper.writeSetting
+			m_repository.writeSetting
 			    (null, "neighbors_details", "false");
 
 		    CheckBox checkBox1 = (CheckBox) findViewById
@@ -1515,7 +1601,7 @@ public class Settings extends AppCompatActivity
 		    (CompoundButton buttonView, boolean isChecked)
 		{
 		    Kernel.getInstance().setWakeLock(isChecked);
-		    m_databaseHelper.writeSetting
+		    m_repository.writeSetting
 			(null, "always_awake", isChecked ? "true" : "false");
 
 		    TextView textView1 = (TextView) findViewById(R.id.about);
@@ -1572,6 +1658,32 @@ public class Settings extends AppCompatActivity
 		    }
 		}
 
+		@Override
+		public void onNothingSelected(AdapterView<?> parent)
+		{
+		}
+	    });
+
+	spinner1 = (Spinner) findViewById(R.id.udp_datagram_size);
+	spinner1.setOnItemSelectedListener
+	    (new OnItemSelectedListener()
+	    {
+		@Override
+		public void onItemSelected(AdapterView<?> parent,
+					   View view,
+					   int position,
+					   long id)
+		{
+		    /*
+		    ** UDP neighbors apply the size as they connect.
+		    */
+
+		    m_repository.writeSetting
+			(null,
+			 "udp_datagram_size",
+			 parent.getItemAtPosition(position).toString());
+		}
+
 		@Override
 		public void onNothingSelected(AdapterView<?> parent)
 		{
@@ -1841,8 +1953,8 @@ public class Settings extends AppCompatActivity
 			    textView1.requestFocus();
 			    textView1.setText("");
 			    textView2.setText("");
-			    m_databaseHelper.writeNeighbor
-				(s_cryptography,
+			    m_repository.writeNeighbor
+				(Settings.this,
 				 "",
 				 "",
 				 "HTTP",
@@ -1850,12 +1962,13 @@ public class Settings extends AppCompatActivity
 				 BuildConfig.ROSEMARY_IPV4_PORT,
 				 "",
 				 "TCP",
-				 "IPv4");
+				 "IPv4",
+				 null);
 			    populateFancyKeyData();
 			    populateParticipants();
 			    startKernel();
 
-			    if(m_databaseHelper.
+			    if(m_repository.
 			       readSetting(null,
 					   "automatic_neighbors_refresh").
 			       equals("true"))
@@ -1898,18 +2011,19 @@ public class Settings extends AppCompatActivity
 	class SingleShot implements Runnable
 	{
 	    private String m_error = "";
+	    private String m_sipHashId = "";
 
-	    SingleShot()
+	    SingleShot(String sipHashId)
 	    {
+		m_sipHashId = sipHashId;
 	    }
 
 	    @Override
 	    public void run()
 	    {
-		String sipHashId = m_databaseHelper.readSipHashIdString
-		    (s_cryptography, oid);
+		String sipHashId = m_sipHashId;
 
-		if(sipHashId.isEmpty())
+		if(sipHashId == null || sipHashId.isEmpty())
 		    m_error = "readSipHashIdString() failure";
 		else
 		{
@@ -1929,6 +2043,9 @@ public class Settings extends AppCompatActivity
 		    @Override
 		    public void run()
 		    {
+			if(Settings.this.isFinishing())
+			    return;
+
 			bar.setVisibility(ProgressBar.INVISIBLE);
 			getWindow().clearFlags
 			    (WindowManager.LayoutParams.
@@ -1946,9 +2063,19 @@ public class Settings extends AppCompatActivity
 	    }
 	}
 
-	Thread thread = new Thread(new SingleShot());
-
-	thread.start();
+	m_repository.readSipHashIdString
+	    (Settings.this,
+	     oid,
+	     new Repository.Callback<String> ()
+	     {
+		 @Override
+		 public void onResult(String sipHashId)
+		 {
+		     Thread thread = new Thread(new SingleShot(sipHashId));
+
+		     thread.start();
+		 }
+	     });
     }
 
     private void shareKeysOf(final String oid)
@@ -1969,17 +2096,18 @@ public class Settings extends AppCompatActivity
 
 	class SingleShot implements Runnable
 	{
+	    private SipHashIdElement m_sipHashIdElement = null;
 	    private String m_error = "";
 
-	    SingleShot()
+	    SingleShot(SipHashIdElement sipHashIdElement)
 	    {
+		m_sipHashIdElement = sipHashIdElement;
 	    }
 
 	    @Override
 	    public void run()
 	    {
-		SipHashIdElement sipHashIdElement =
-		    m_databaseHelper.readSipHashId(s_cryptography, oid);
+		SipHashIdElement sipHashIdElement = m_sipHashIdElement;
 
 		if(sipHashIdElement == null)
 		    m_error = "readSipHashId() failure";
@@ -2005,6 +2133,9 @@ public class Settings extends AppCompatActivity
 		    @Override
 		    public void run()
 		    {
+			if(Settings.this.isFinishing())
+			    return;
+
 			bar.setVisibility(ProgressBar.INVISIBLE);
 			getWindow().clearFlags
 			    (WindowManager.LayoutParams.
@@ -2022,9 +2153,20 @@ public class Settings extends AppCompatActivity
 	    }
 	}
 
-	Thread thread = new Thread(new SingleShot());
-
-	thread.start();
+	m_repository.readSipHashId
+	    (Settings.this,
+	     oid,
+	     new Repository.Callback<SipHashIdElement> ()
+	     {
+		 @Override
+		 public void onResult(SipHashIdElement sipHashIdElement)
+		 {
+		     Thread thread = new Thread
+			 (new SingleShot(sipHashIdElement));
+
+		     thread.start();
+		 }
+	     });
     }
 
     private void showAuthenticateActivity()
@@ -2085,15 +2227,17 @@ public class Settings extends AppCompatActivity
     {
 	if(m_scheduler == null)
 	{
-	    m_scheduler = Executors.newSingleThreadScheduledExecutor();
-	    m_scheduler.scheduleAtFixedRate(new Runnable()
+	    m_scheduler = TimingWheel.getInstance().
+		scheduleAtFixedRate(new Runnable()
 	    {
 		@Override
 		public void run()
 		{
-		    Settings.this.runOnUiThread
-			(new PopulateNeighbors(m_databaseHelper.
-					       readNeighbors(s_cryptography)));
+		    /*
+		    ** The neighbors are read by the repository.
+		    */
+
+		    populateNeighbors(null);
 		}
 	    }, 0, TIMER_INTERVAL, TimeUnit.MILLISECONDS);
         }
@@ -2103,19 +2247,8 @@ public class Settings extends AppCompatActivity
     {
 	if(m_scheduler != null)
 	{
-	    m_scheduler.shutdown();
-
-	    try
-	    {
-		m_scheduler.awaitTermination(60, TimeUnit.SECONDS);
-	    }
-	    catch(Exception exception)
-	    {
-	    }
-	    finally
-	    {
-		m_scheduler = null;
-	    }
+	    m_scheduler.cancel();
+	    m_scheduler = null;
 	}
     }
 
@@ -2124,6 +2257,7 @@ public class Settings extends AppCompatActivity
     {
 	super.onCreate(savedInstanceState);
 	m_databaseHelper = Database.getInstance(getApplicationContext());
+	m_repository = Repository.getInstance();
 	m_receiver = new SettingsBroadcastReceiver();
         setContentView(R.layout.activity_settings);
 
@@ -2158,14 +2292,14 @@ public class Settings extends AppCompatActivity
 
 	checkBox1 = (CheckBox) findViewById(R.id.automatic_refresh);
 
-	if(m_databaseHelper.readSetting(null, "automatic_neighbors_refresh").
+	if(m_repository.readSetting(null, "automatic_neighbors_refresh").
 	   isEmpty())
 	{
 	    checkBox1.setChecked(true);
-	    m_databaseHelper.writeSetting
+	    m_repository.writeSetting
 		(null, "automatic_neighbors_refresh", "true");
 	}
-	else if(m_databaseHelper.
+	else if(m_repository.
 	   readSetting(null, "automatic_neighbors_refresh").equals("true"))
 	    checkBox1.setChecked(true);
 	else
@@ -2173,14 +2307,14 @@ public class Settings extends AppCompatActivity
 
 	checkBox1 = (CheckBox) findViewById(R.id.echo);
 
-	if(m_databaseHelper.readSetting(null, "neighbors_echo").equals("true"))
+	if(m_repository.readSetting(null, "neighbors_echo").equals("true"))
 	    checkBox1.setChecked(true);
 	else
 	    checkBox1.setChecked(false);
 
 	checkBox1 = (CheckBox) findViewById(R.id.neighbor_details);
 
-	if(m_databaseHelper.
+	if(m_repository.
 	   readSetting(null, "neighbors_details").equals("true"))
 	    checkBox1.setChecked(true);
 	else
@@ -2188,12 +2322,12 @@ public class Settings extends AppCompatActivity
 
 	checkBox1 = (CheckBox) findViewById(R.id.sleepless);
 
-	if(m_databaseHelper.readSetting(null, "always_awake").isEmpty())
+	if(m_repository.readSetting(null, "always_awake").isEmpty())
 	{
 	    checkBox1.setChecked(true);
-	    m_databaseHelper.writeSetting(null, "always_awake", "true");
+	    m_repository.writeSetting(null, "always_awake", "true");
 	}
-	else if(m_databaseHelper.readSetting(null, "always_awake").
+	else if(m_repository.readSetting(null, "always_awake").
 		equals("true"))
 	    checkBox1.setChecked(true);
 	else
@@ -2228,6 +2362,19 @@ public class Settings extends AppCompatActivity
 	    (Settings.this, android.R.layout.simple_spinner_item, array);
         spinner1.setAdapter(arrayAdapter);
 	array = new String[]
+	{
+	    "576", "1472", "8192", "65507"
+	};
+	arrayAdapter = new ArrayAdapter<>
+	    (Settings.this, android.R.layout.simple_spinner_item, array);
+	spinner1 = (Spinner) findViewById(R.id.udp_datagram_size);
+	spinner1.setAdapter(arrayAdapter);
+	spinner1.setEnabled(isAuthenticated);
+	spinner1.setSelection
+	    (Math.max(0, arrayAdapter.
+		      getPosition(m_repository.
+				  readSetting(null, "udp_datagram_size"))));
+	array = new String[]
 	{
 	    "1000", "2500", "5000", "7500", "10000", "12500",
 	    "15000", "17500", "20000", "25000", "30000", "35000",
@@ -2238,7 +2385,7 @@ public class Settings extends AppCompatActivity
 	    (Settings.this, android.R.layout.simple_spinner_item, array);
 
 	int index = arrayAdapter.getPosition
-	    (m_databaseHelper.readSetting(null, "iterationCount"));
+	    (m_repository.readSetting(null, "iterationCount"));
 
 	spinner1 = (Spinner) findViewById(R.id.iteration_count);
 	spinner1.setAdapter(arrayAdapter);
@@ -2364,8 +2511,8 @@ public class Settings extends AppCompatActivity
 	if(spinner1.getAdapter().getCount() > 1)
 	    spinner1.setSelection(1); // RSA
 
-	m_databaseHelper.cleanDanglingOutboundQueued();
-	m_databaseHelper.cleanDanglingParticipants();
+	m_repository.cleanDanglingOutboundQueued();
+	m_repository.cleanDanglingParticipants();
 	populateFancyKeyData();
 
 	if(isAuthenticated)
@@ -2373,7 +2520,7 @@ public class Settings extends AppCompatActivity
 	    checkBox1 = (CheckBox) findViewById(R.id.automatic_refresh);
 	    textView1 = (TextView) findViewById(R.id.ozone);
 	    textView1.setText
-		(m_databaseHelper.readSetting(s_cryptography, "ozone_address"));
+		(m_repository.readSetting(s_cryptography, "ozone_address"));
 	    populateNeighbors(null);
 	    populateParticipants();
 	    startKernel();
@@ -2403,14 +2550,14 @@ public class Settings extends AppCompatActivity
 	}
 
 	Kernel.getInstance().setWakeLock
-	    (m_databaseHelper.readSetting(null, "always_awake").equals("true"));
+	    (m_repository.readSetting(null, "always_awake").equals("true"));
 
 	/*
 	** Show the Authenticate activity if an account is present.
 	*/
 
 	if(!State.getInstance().isAuthenticated())
-	    if(m_databaseHelper.accountPrepared())
+	    if(m_repository.accountPrepared())
 		showAuthenticateActivity();
     }
 
@@ -2447,26 +2594,19 @@ public class Settings extends AppCompatActivity
 			default:
 			    if(State.getInstance().
 			       getString("dialog_accepted").equals("true"))
-				if(m_databaseHelper.
-				   deleteEntry(String.valueOf(itemId),
-					       "siphash_ids"))
-				{
-				    State.getInstance().
-					removeChatCheckBoxOid(itemId);
-				    State.getInstance().setString
-					("member_chat_oid", "");
-				    State.getInstance().setString
-					("member_chat_siphash_id", "");
-				    m_databaseHelper.
-					cleanDanglingParticipants();
-				    m_databaseHelper.writeSetting
-					(s_cryptography,
-					 "member_chat_oid", "");
-				    m_databaseHelper.writeSetting
-					(s_cryptography,
-					 "member_chat_siphash_id", "");
-				    populateParticipants();
-				}
+				m_repository.deleteEntry
+				    (Settings.this,
+				     String.valueOf(itemId),
+				     "siphash_ids",
+				     new Repository.Callback<Boolean> ()
+				     {
+					 @Override
+					 public void onResult(Boolean ok)
+					 {
+					     if(ok != null && ok)
+						 participantDeleted(itemId);
+					 }
+				     });
 
 			    break;
 			}
@@ -2476,11 +2616,19 @@ public class Settings extends AppCompatActivity
 			String string = State.getInstance().
 			    getString("settings_participant_name_input");
 
-			if(m_databaseHelper.
-			   writeParticipantName(s_cryptography,
-						string,
-						itemId))
-			    populateParticipants();
+			m_repository.writeParticipantName
+			    (Settings.this,
+			     string,
+			     itemId,
+			     new Repository.Callback<Boolean> ()
+			     {
+				 @Override
+				 public void onResult(Boolean ok)
+				 {
+				     if(ok != null && ok)
+					 populateParticipants();
+				 }
+			     });
 
 			State.getInstance().removeKey
 			    ("settings_participant_name_input");
@@ -2542,13 +2690,13 @@ public class Settings extends AppCompatActivity
 	{
 	    if(itemId == R.id.action_chat)
 	    {
-		m_databaseHelper.writeSetting(null, "lastActivity", "Chat");
+		m_repository.writeSetting(null, "lastActivity", "Chat");
 		showChatActivity();
 		return true;
 	    }
 	    else if(itemId == R.id.action_fire)
 	    {
-		m_databaseHelper.writeSetting(null, "lastActivity", "Fire");
+		m_repository.writeSetting(null, "lastActivity", "Fire");
 		showFireActivity();
 		return true;
 	    }
@@ -2568,11 +2716,11 @@ public class Settings extends AppCompatActivity
 		("member_chat_oid", String.valueOf(itemId));
 	    State.getInstance().setString
 		("member_chat_siphash_id", sipHashId);
-	    m_databaseHelper.writeSetting
+	    m_repository.writeSetting
 		(null, "lastActivity", "MemberChat");
-	    m_databaseHelper.writeSetting
+	    m_repository.writeSetting
 		(s_cryptography, "member_chat_oid", String.valueOf(itemId));
-	    m_databaseHelper.writeSetting
+	    m_repository.writeSetting
 		(s_cryptography, "member_chat_siphash_id", sipHashId);
 	    showMemberChatActivity();
 	}
@@ -2585,7 +2733,7 @@ public class Settings extends AppCompatActivity
     {
 	boolean isAuthenticated = State.getInstance().isAuthenticated();
 
-	if(!m_databaseHelper.accountPrepared())
+	if(!m_repository.accountPrepared())
 	    /*
 	    ** The database may have been modified or removed.
 	    */
@@ -2671,7 +2819,7 @@ public class Settings extends AppCompatActivity
 	** Resume the last activity, if necessary.
 	*/
 
-	String str = m_databaseHelper.readSetting(null, "lastActivity");
+	String str = m_repository.readSetting(null, "lastActivity");
 
 	switch(str)
 	{
@@ -0,0 +1,245 @@
+/*
+** Copyright (c) Alexis Megas.
+** All rights reserved.
+**
+** Redistribution and use in source and binary forms, with or without
+** modification, are permitted provided that the following conditions
+** are met:
+** 1. Redistributions of source code must retain the above copyright
+**    notice, this list of conditions and the following disclaimer.
+** 2. Redistributions in binary form must reproduce the above copyright
+**    notice, this list of conditions and the following disclaimer in the
+**    documentation and/or other materials provided with the distribution.
+** 3. The name of the author may not be used to endorse or promote products
+**    derived from Smoke without specific prior written permission.
+**
+** SMOKE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+** IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+** OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+** IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+** INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+** NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+** DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+** THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+** (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+** SMOKE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package org.purple.smoke;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class SettingsCache
+{
+    /*
+    ** The values of the settings table. Plaintext settings and
+    ** encrypted settings are kept apart as their names may coincide.
+    ** Encrypted settings are available once the keys have been
+    ** prepared. Database writes through the cache.
+    */
+
+    private AtomicBoolean m_loading = null;
+    private HashMap<String, String> m_encrypted = null;
+    private HashMap<String, String> m_plaintext = null;
+    private final ReentrantReadWriteLock m_mutex =
+	new ReentrantReadWriteLock();
+    private static SettingsCache s_instance = null;
+    private boolean m_encryptedComplete = false;
+    private boolean m_encryptedLoaded = false;
+    private boolean m_plaintextLoaded = false;
+    private long m_generation = 0;
+
+    private SettingsCache()
+    {
+	m_encrypted = new HashMap<> ();
+	m_loading = new AtomicBoolean(false);
+	m_plaintext = new HashMap<> ();
+    }
+
+    public String value(boolean encrypted, String name)
+    {
+	/*
+	** Returns null if the value is not known.
+	*/
+
+	if(name == null)
+	    return null;
+
+	m_mutex.readLock().lock();
+
+	try
+	{
+	    if(encrypted)
+		return m_encrypted.get(name.trim());
+	    else
+		return m_plaintext.get(name.trim());
+	}
+	finally
+	{
+	    m_mutex.readLock().unlock();
+	}
+    }
+
+    public boolean beginLoad()
+    {
+	return m_loading.compareAndSet(false, true);
+    }
+
+    public boolean isComplete(boolean encrypted)
+    {
+	/*
+	** Misses of a complete cache are authoritative.
+	*/
+
+	m_mutex.readLock().lock();
+
+	try
+	{
+	    if(encrypted)
+		return m_encryptedComplete && m_encryptedLoaded;
+	    else
+		return m_plaintextLoaded;
+	}
+	finally
+	{
+	    m_mutex.readLock().unlock();
+	}
+    }
+
+    public boolean isLoaded(boolean encrypted)
+    {
+	m_mutex.readLock().lock();
+
+	try
+	{
+	    return encrypted ? m_encryptedLoaded : m_plaintextLoaded;
+	}
+	finally
+	{
+	    m_mutex.readLock().unlock();
+	}
+    }
+
+    public long generation()
+    {
+	m_mutex.readLock().lock();
+
+	try
+	{
+	    return m_generation;
+	}
+	finally
+	{
+	    m_mutex.readLock().unlock();
+	}
+    }
+
+    public static synchronized SettingsCache getInstance()
+    {
+	if(s_instance == null)
+	    s_instance = new SettingsCache();
+
+	return s_instance;
+    }
+
+    public void endLoad(HashMap<String, String> plaintext,
+			HashMap<String, String> encrypted,
+			boolean encryptedComplete,
+			long generation)
+    {
+	/*
+	** A null encrypted map leaves the encrypted settings alone.
+	*/
+
+	m_mutex.writeLock().lock();
+
+	try
+	{
+	    if(generation == m_generation && plaintext != null)
+	    {
+		m_plaintext = plaintext;
+		m_plaintextLoaded = true;
+
+		if(encrypted != null)
+		{
+		    m_encrypted = encrypted;
+		    m_encryptedComplete = encryptedComplete;
+		    m_encryptedLoaded = true;
+		}
+	    }
+	}
+	finally
+	{
+	    m_loading.set(false);
+	    m_mutex.writeLock().unlock();
+	}
+    }
+
+    public void invalidate()
+    {
+	m_mutex.writeLock().lock();
+
+	try
+	{
+	    m_encrypted = new HashMap<> ();
+	    m_encryptedComplete = false;
+	    m_encryptedLoaded = false;
+	    m_generation += 1;
+	    m_plaintext = new HashMap<> ();
+	    m_plaintextLoaded = false;
+	}
+	finally
+	{
+	    m_mutex.writeLock().unlock();
+	}
+    }
+
+    public void invalidateEncrypted()
+    {
+	/*
+	** The keys have changed.
+	*/
+
+	m_mutex.writeLock().lock();
+
+	try
+	{
+	    m_encrypted = new HashMap<> ();
+	    m_encryptedComplete = false;
+	    m_encryptedLoaded = false;
+	    m_generation += 1;
+	}
+	finally
+	{
+	    m_mutex.writeLock().unlock();
+	}
+    }
+
+    public void put(boolean encrypted, String name, String value)
+    {
+	if(name == null || value == null)
+	    return;
+
+	m_mutex.writeLock().lock();
+
+	try
+	{
+	    m_generation += 1;
+
+	    if(encrypted)
+	    {
+		if(m_encryptedLoaded)
+		    m_encrypted.put(name.trim(), value);
+	    }
+	    else if(m_plaintextLoaded)
+		m_plaintext.put(name.trim(), value);
+	}
+	finally
+	{
+	    m_mutex.writeLock().unlock();
+	}
+    }
+}
@@ -25,195 +25,344 @@
 ** SMOKE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 */
 
+
 /*
 ** Implementation of https://131002.net/siphash.
+**
+** An instance only holds its key and round counts. The state of
+** a computation lives in local variables, so a single instance may be
+** shared by any number of threads.
+**
+** Trailing bytes are sign-extended as they have always been. SipHash
+** identities and congestion digests depend on it. Messages whose
+** trailing bytes are below 0x80 hash as in the reference.
 */
 
 package org.purple.smoke;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 public class SipHash
 {
-    private final static int C_ROUNDS[] = {2, 4};
-    private final static int D_ROUNDS[] = {4, 8};
-    private final static int LONG_BYTES = 8;
-    private final static long C0 = 0x736f6d6570736575L;
-    private final static long C1 = 0x646f72616e646f6dL;
-    private final static long C2 = 0x6c7967656e657261L;
-    private final static long C3 = 0x7465646279746573L;
-    private byte m_key[] = null;
-    private int m_c_rounds_index = 1;
-    private int m_d_rounds_index = 1;
-    private long m_v0 = 0;
-    private long m_v1 = 0;
-    private long m_v2 = 0;
-    private long m_v3 = 0;
-    public final static int KEY_LENGTH = 16;
-
-    private long byteArrayToLong(byte bytes[], int offset)
+    public class Stream
     {
-	if(bytes == null || (bytes.length - offset) < LONG_BYTES)
-	    return 0;
+	private byte m_tail[] = new byte[LONG_BYTES];
+	private long m_length = 0;
+	private long m_v0 = 0;
+	private long m_v1 = 0;
+	private long m_v2 = 0;
+	private long m_v3 = 0;
+
+	private Stream()
+	{
+	    reset();
+	}
 
-	long value = 0;
+	private void compress(long m)
+	{
+	    m_v3 ^= m;
 
-	for(int i = 0; i < LONG_BYTES; i++)
-	    value |= (((long) bytes[i + offset]) & 0xff) << (LONG_BYTES * i);
+	    for(int i = 0; i < m_cRounds; i++)
+		round();
 
-	return value;
-    }
+	    m_v0 ^= m;
+	}
 
-    private long rotl(long x, long b)
-    {
-	return (x << b) | (x >>> (64 - b));
-    }
+	private void round()
+	{
+	    m_v0 += m_v1;
+	    m_v1 = Long.rotateLeft(m_v1, 13);
+	    m_v1 ^= m_v0;
+	    m_v0 = Long.rotateLeft(m_v0, 32);
+	    m_v2 += m_v3;
+	    m_v3 = Long.rotateLeft(m_v3, 16);
+	    m_v3 ^= m_v2;
+	    m_v2 += m_v1;
+	    m_v1 = Long.rotateLeft(m_v1, 17);
+	    m_v1 ^= m_v2;
+	    m_v2 = Long.rotateLeft(m_v2, 32);
+	    m_v0 += m_v3;
+	    m_v3 = Long.rotateLeft(m_v3, 21);
+	    m_v3 ^= m_v0;
+	}
 
-    private void round()
-    {
-	m_v0 += m_v1;
-	m_v1 = rotl(m_v1, 13);
-	m_v1 ^= m_v0;
-	m_v0 = rotl(m_v0, 32);
-	m_v2 += m_v3;
-	m_v3 = rotl(m_v3, 16);
-	m_v3 ^= m_v2;
-	m_v2 += m_v1;
-	m_v1 = rotl(m_v1, 17);
-	m_v1 ^= m_v2;
-	m_v2 = rotl(m_v2, 32);
-	m_v0 += m_v3;
-	m_v3 = rotl(m_v3, 21);
-	m_v3 ^= m_v0;
-    }
+	public Stream update(byte data[], int offset, int length)
+	{
+	    if(data == null ||
+	       length < 0 ||
+	       offset < 0 ||
+	       offset > data.length - length)
+		return this;
 
-    public long hmac(byte data[])
-    {
-	return hmac(data, m_key);
-    }
+	    int end = offset + length;
+	    int pending = (int) (m_length % LONG_BYTES);
 
-    public long hmac(byte data[], byte key[])
-    {
-	if(data == null || key == null || key.length != KEY_LENGTH)
-	    return 0;
+	    m_length += length;
 
-	/*
-	** Initialization
-	*/
+	    if(pending > 0)
+	    {
+		while(pending < LONG_BYTES && offset < end)
+		    m_tail[pending++] = data[offset++];
 
-	long k0 = byteArrayToLong(key, 0);
-	long k1 = byteArrayToLong(key, LONG_BYTES);
+		if(pending < LONG_BYTES)
+		    return this;
 
-	m_v0 = k0 ^ C0;
-	m_v1 = k1 ^ C1;
-	m_v2 = k0 ^ C2;
-	m_v3 = k1 ^ C3;
+		compress(readLong(m_tail, 0));
+	    }
 
-	/*
-	** Compression
-	*/
+	    for(; end - offset >= LONG_BYTES; offset += LONG_BYTES)
+		compress(readLong(data, offset));
+
+	    for(int i = 0; offset < end; i++)
+		m_tail[i] = data[offset++];
+
+	    return this;
+	}
 
-	for(int i = 0; i < data.length / 8; i++)
+	public long finish()
 	{
-	    long m = byteArrayToLong(data, 8 * i);
+	    /*
+	    ** Completes the digest and resets the stream.
+	    */
 
-	    m_v3 ^= m;
+	    if(!m_keyed)
+		return 0;
+
+	    long b = m_length << 56;
+
+	    for(int i = 0; i < m_length % LONG_BYTES; i++)
+		b |= ((long) m_tail[i]) << (LONG_BYTES * i);
 
-	    for(int j = 0; j < C_ROUNDS[m_c_rounds_index]; j++)
+	    compress(b);
+	    m_v2 ^= 0xff;
+
+	    for(int i = 0; i < m_dRounds; i++)
 		round();
 
-	    m_v0 ^= m;
-	}
+	    long value = m_v0 ^ m_v1 ^ m_v2 ^ m_v3;
 
-	int offset = (data.length / 8) * 8;
-	long b = ((long) data.length) << 56;
+	    reset();
+	    return value;
+	}
 
-	switch(data.length % 8)
+	public void reset()
 	{
-	case 7:
-	    b |= ((long) data[offset + 6]) << 48;
-	case 6:
-	    b |= ((long) data[offset + 5]) << 40;
-	case 5:
-	    b |= ((long) data[offset + 4]) << 32;
-	case 4:
-	    b |= ((long) data[offset + 3]) << 24;
-	case 3:
-	    b |= ((long) data[offset + 2]) << 16;
-	case 2:
-	    b |= ((long) data[offset + 1]) << 8;
-	case 1:
-	    b |= ((long) data[offset]);
-	    break;
-	case 0:
-	    break;
+	    m_length = 0;
+	    m_v0 = m_k0 ^ C0;
+	    m_v1 = m_k1 ^ C1;
+	    m_v2 = m_k0 ^ C2;
+	    m_v3 = m_k1 ^ C3;
 	}
+    }
 
-	m_v3 ^= b;
+    private final static int C_ROUNDS[] = {2, 4};
+    private final static int D_ROUNDS[] = {4, 8};
+    private final static int LONG_BYTES = 8;
+    private final static long C0 = 0x736f6d6570736575L;
+    private final static long C1 = 0x646f72616e646f6dL;
+    private final static long C2 = 0x6c7967656e657261L;
+    private final static long C3 = 0x7465646279746573L;
+    private final boolean m_keyed;
+    private final int m_cRounds;
+    private final int m_dRounds;
+    private final long m_k0;
+    private final long m_k1;
+    public final static int KEY_LENGTH = 16;
+
+    private static long hash(byte array[],
+			     ByteBuffer buffer,
+			     int offset,
+			     int length,
+			     long k0,
+			     long k1,
+			     int cRounds,
+			     int dRounds)
+    {
+	/*
+	** Exactly one of array and buffer is supplied.
+	*/
+
+	long v0 = k0 ^ C0;
+	long v1 = k1 ^ C1;
+	long v2 = k0 ^ C2;
+	long v3 = k1 ^ C3;
+
+	/*
+	** Compression. The final block carries the length and the
+	** trailing bytes.
+	*/
 
-	for(int i = 0; i < C_ROUNDS[m_c_rounds_index]; i++)
-	    round();
+	int blocks = length / LONG_BYTES;
+	int tail = offset + LONG_BYTES * blocks;
+	long b = ((long) length) << 56;
 
-	m_v0 ^= b;
+	for(int i = 0; i < length % LONG_BYTES; i++)
+	    b |= ((long) (array != null ?
+			  array[tail + i] :
+			  buffer.get(tail + i))) << (LONG_BYTES * i);
+
+	for(int i = 0; i <= blocks; i++)
+	{
+	    long m = b;
+
+	    if(i < blocks)
+		m = array != null ?
+		    readLong(array, offset + LONG_BYTES * i) :
+		    readLong(buffer, offset + LONG_BYTES * i);
+
+	    v3 ^= m;
+
+	    for(int j = 0; j < cRounds; j++)
+	    {
+		v0 += v1;
+		v1 = Long.rotateLeft(v1, 13);
+		v1 ^= v0;
+		v0 = Long.rotateLeft(v0, 32);
+		v2 += v3;
+		v3 = Long.rotateLeft(v3, 16);
+		v3 ^= v2;
+		v2 += v1;
+		v1 = Long.rotateLeft(v1, 17);
+		v1 ^= v2;
+		v2 = Long.rotateLeft(v2, 32);
+		v0 += v3;
+		v3 = Long.rotateLeft(v3, 21);
+		v3 ^= v0;
+	    }
+
+	    v0 ^= m;
+	}
 
 	/*
 	** Finalization
 	*/
 
-	m_v2 ^= 0xff;
+	v2 ^= 0xff;
 
-	for(int i = 0; i < D_ROUNDS[m_d_rounds_index]; i++)
-	    round();
+	for(int i = 0; i < dRounds; i++)
+	{
+	    v0 += v1;
+	    v1 = Long.rotateLeft(v1, 13);
+	    v1 ^= v0;
+	    v0 = Long.rotateLeft(v0, 32);
+	    v2 += v3;
+	    v3 = Long.rotateLeft(v3, 16);
+	    v3 ^= v2;
+	    v2 += v1;
+	    v1 = Long.rotateLeft(v1, 17);
+	    v1 ^= v2;
+	    v2 = Long.rotateLeft(v2, 32);
+	    v0 += v3;
+	    v3 = Long.rotateLeft(v3, 21);
+	    v3 ^= v0;
+	}
 
-	return m_v0 ^ m_v1 ^ m_v2 ^ m_v3;
+	return v0 ^ v1 ^ v2 ^ v3;
+    }
+
+    private static long readLong(ByteBuffer buffer, int index)
+    {
+	if(buffer.order() == ByteOrder.LITTLE_ENDIAN)
+	    return buffer.getLong(index);
+	else
+	    return Long.reverseBytes(buffer.getLong(index));
+    }
+
+    private static long readLong(byte bytes[], int offset)
+    {
+	return (((long) bytes[offset]) & 0xff) |
+	    ((((long) bytes[offset + 1]) & 0xff) << 8) |
+	    ((((long) bytes[offset + 2]) & 0xff) << 16) |
+	    ((((long) bytes[offset + 3]) & 0xff) << 24) |
+	    ((((long) bytes[offset + 4]) & 0xff) << 32) |
+	    ((((long) bytes[offset + 5]) & 0xff) << 40) |
+	    ((((long) bytes[offset + 6]) & 0xff) << 48) |
+	    ((((long) bytes[offset + 7]) & 0xff) << 56);
+    }
+
+    public Stream stream()
+    {
+	return new Stream();
     }
 
     public SipHash()
     {
+	this(null, 1, 1);
     }
 
     public SipHash(byte key[])
     {
-	if(key == null || key.length != KEY_LENGTH)
-	    return;
-
-	m_key = Miscellaneous.deepCopy(key);
+	this(key, 1, 1);
     }
 
     public SipHash(byte key[], int c_rounds_index, int d_rounds_index)
     {
-	if(key == null || key.length != KEY_LENGTH)
-	    return;
+	if(c_rounds_index < 0 || c_rounds_index >= C_ROUNDS.length)
+	    c_rounds_index = 1;
 
-	if(c_rounds_index >= 0 && c_rounds_index < C_ROUNDS.length)
-	    m_c_rounds_index = c_rounds_index;
+	if(d_rounds_index < 0 || d_rounds_index >= D_ROUNDS.length)
+	    d_rounds_index = 1;
 
-	if(d_rounds_index >= 0 && d_rounds_index < D_ROUNDS.length)
-	    m_d_rounds_index = d_rounds_index;
-
-	m_key = Miscellaneous.deepCopy(key);
+	m_cRounds = C_ROUNDS[c_rounds_index];
+	m_dRounds = D_ROUNDS[d_rounds_index];
+	m_keyed = key != null && key.length == KEY_LENGTH;
+	m_k0 = m_keyed ? readLong(key, 0) : 0;
+	m_k1 = m_keyed ? readLong(key, LONG_BYTES) : 0;
     }
 
-    static public boolean test1()
+    public long hash(ByteBuffer buffer)
     {
 	/*
-	** Please read the Test Values section of
-	** https://131002.net/siphash/siphash.pdf.
+	** Hashes the remaining bytes. The position is not altered.
 	*/
 
-	SipHash s = new SipHash
-	    (new byte[] {(byte) 0x00, (byte) 0x01, (byte) 0x02, (byte) 0x03,
-			 (byte) 0x04, (byte) 0x05, (byte) 0x06, (byte) 0x07,
-			 (byte) 0x08, (byte) 0x09, (byte) 0x0a, (byte) 0x0b,
-			 (byte) 0x0c, (byte) 0x0d, (byte) 0x0e, (byte) 0x0f},
-	     0, 0);
-	long result = Miscellaneous.byteArrayToLong
-	    (new byte[] {(byte) 0xa1, (byte) 0x29, (byte) 0xca, (byte) 0x61,
-			 (byte) 0x49, (byte) 0xbe, (byte) 0x45, (byte) 0xe5});
-	long value = s.hmac
-	    (new byte[] {(byte) 0x00, (byte) 0x01, (byte) 0x02, (byte) 0x03,
-			 (byte) 0x04, (byte) 0x05, (byte) 0x06, (byte) 0x07,
-			 (byte) 0x08, (byte) 0x09, (byte) 0x0a, (byte) 0x0b,
-			 (byte) 0x0c, (byte) 0x0d, (byte) 0x0e});
-
-	return result == value;
+	if(buffer == null || !m_keyed)
+	    return 0;
+
+	return hash(null,
+		    buffer,
+		    buffer.position(),
+		    buffer.remaining(),
+		    m_k0,
+		    m_k1,
+		    m_cRounds,
+		    m_dRounds);
+    }
+
+    public long hash(byte data[], int offset, int length)
+    {
+	if(data == null ||
+	   length < 0 ||
+	   offset < 0 ||
+	   offset > data.length - length ||
+	   !m_keyed)
+	    return 0;
+
+	return hash
+	    (data, null, offset, length, m_k0, m_k1, m_cRounds, m_dRounds);
+    }
+
+    public long hmac(byte data[])
+    {
+	if(data == null)
+	    return 0;
+
+	return hash(data, 0, data.length);
+    }
+
+    public long hmac(byte data[], byte key[])
+    {
+	if(data == null || key == null || key.length != KEY_LENGTH)
+	    return 0;
+
+	return hash(data,
+		    null,
+		    0,
+		    data.length,
+		    readLong(key, 0),
+		    readLong(key, LONG_BYTES),
+		    m_cRounds,
+		    m_dRounds);
     }
 }
@@ -25,127 +25,631 @@
 ** SMOKE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 */
 
+
 package org.purple.smoke;
 
 import android.os.Build;
-import java.io.OutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.Proxy;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
 public class TcpNeighbor extends Neighbor
 {
+    private ArrayDeque<ByteBuffer> m_outbound = null;
     private AtomicBoolean m_isValidCertificate = null;
+    private ByteBuffer m_applicationInput = null;
+    private ByteBuffer m_networkInput = null;
+    private ByteBuffer m_networkOutput = null;
+    private InetSocketAddress m_inetSocketAddress = null;
     private InetSocketAddress m_proxyInetSocketAddress = null;
-    private SSLSocket m_socket = null;
+    private SSLEngine m_engine = null;
+    private SocketChannel m_channel = null;
     private String m_protocols[] = null;
     private String m_proxyIpAddress = "";
     private String m_proxyType = "";
     private TrustManager m_trustManagers[] = null;
+    private boolean m_delegating = false;
+    private final Object m_channelMutex = new Object();
+    private final static ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
     private final static int CONNECTION_TIMEOUT = 10000; // 10 Seconds
     private final static int HANDSHAKE_TIMEOUT = 10000; // 10 Seconds
+    private final static int PROXY_BUFFER_SIZE = 4096;
+    private final static int STATE_CONNECTING = 0;
+    private final static int STATE_ESTABLISHED = 3;
+    private final static int STATE_HANDSHAKING = 2;
+    private final static int STATE_PROXY = 1;
+    private int m_outboundBytes = 0;
     private int m_proxyPort = -1;
+    private int m_proxyStep = 0;
+    private int m_state = STATE_CONNECTING;
+    private long m_stateTime = 0;
 
-    protected String getLocalIp()
+    private boolean flush() throws IOException
     {
+	/*
+	** The network output buffer is always in write mode.
+	*/
+
+	m_networkOutput.flip();
+
 	try
 	{
-	    if(m_socket != null && m_socket.getLocalAddress() != null)
-		return m_socket.getLocalAddress().getHostAddress();
+	    while(m_networkOutput.hasRemaining())
+		if(m_channel.write(m_networkOutput) <= 0)
+		    break;
+
+	    return !m_networkOutput.hasRemaining();
 	}
-	catch(Exception exception)
+	finally
 	{
+	    m_networkOutput.compact();
 	}
+    }
 
-	if(m_version.equals("IPv4"))
-	    return "0.0.0.0";
-	else
-	    return "::";
+    private int fill() throws IOException
+    {
+	int i = m_channel.read(m_networkInput);
+
+	if(i < 0)
+	    throw new IOException("end of stream");
+
+	return i;
     }
 
-    protected String getSessionCipher()
+    private int proxyResponse()
     {
+	/*
+	** Returns -1 on error, 0 if more data is required, and 1
+	** if the current proxy step has completed.
+	*/
+
+	m_networkInput.flip();
+
+	int consumed = 0;
+	int remaining = m_networkInput.remaining();
+
 	try
 	{
-	    if(m_socket != null &&
-	       m_socket.getSession() != null &&
-	       m_socket.getSession().isValid())
-		return m_socket.getSession().getCipherSuite();
+	    if(m_proxyType.equals("HTTP"))
+	    {
+		byte bytes[] = new byte[remaining];
+
+		m_networkInput.get(bytes);
+
+		String string = new String(bytes);
+		int indexOf = string.indexOf("\r\n\r\n");
+
+		if(indexOf < 0)
+		    return remaining >= PROXY_BUFFER_SIZE ? -1 : 0;
+
+		if(!(string.startsWith("HTTP/1.") &&
+		     string.length() >= 12 &&
+		     string.substring(9, 12).equals("200")))
+		    return -1;
+
+		consumed = indexOf + 4;
+		return 1;
+	    }
+
+	    if(remaining < 2)
+		return 0;
+
+	    byte version = m_networkInput.get(0);
+	    byte reply = m_networkInput.get(1);
+
+	    if(version != 0x05 || reply != 0x00)
+		return -1;
+
+	    if(m_proxyStep == 0)
+	    {
+		/*
+		** Method selection, no authentication.
+		*/
+
+		consumed = 2;
+		return 1;
+	    }
+
+	    if(remaining < 5)
+		return 0;
+
+	    int length = 0;
+
+	    switch(m_networkInput.get(3))
+	    {
+	    case 0x01:
+		length = 4;
+		break;
+	    case 0x03:
+		length = 1 + (m_networkInput.get(4) & 0xff);
+		break;
+	    case 0x04:
+		length = 16;
+		break;
+	    default:
+		return -1;
+	    }
+
+	    if(remaining < 4 + length + 2)
+		return 0;
+
+	    consumed = 4 + length + 2;
+	    return 1;
 	}
-	catch(Exception exception)
+	finally
 	{
+	    m_networkInput.position(consumed);
+	    m_networkInput.compact();
 	}
+    }
 
-	return "";
+    private void deliver()
+    {
+	m_applicationInput.flip();
+
+	if(m_applicationInput.hasRemaining())
+	    dataReceived(m_applicationInput.array(),
+			 m_applicationInput.arrayOffset() +
+			 m_applicationInput.position(),
+			 m_applicationInput.remaining());
+
+	m_applicationInput.clear();
     }
 
-    protected boolean connected()
+    private void delegateTasks()
     {
-	try
+	/*
+	** The delegated tasks include the certificate verification,
+	** which reads and writes the database. The tasks are executed
+	** away from the reactor and the channel is idle until they
+	** have completed.
+	*/
+
+	final ArrayList<Runnable> tasks = new ArrayList<> ();
+	final SSLEngine engine = m_engine;
+	Runnable runnable = null;
+
+	while((runnable = m_engine.getDelegatedTask()) != null)
+	    tasks.add(runnable);
+
+	m_delegating = true;
+	Reactor.getInstance().delegate(new Runnable()
 	{
-	    return isNetworkConnected() &&
-		m_isValidCertificate.get() &&
-		m_socket != null &&
-		!m_socket.isClosed() &&
-		m_socket.getSession() != null &&
-		m_socket.getSession().isValid();
+	    @Override
+	    public void run()
+	    {
+		for(Runnable task : tasks)
+		    task.run();
+	    }
+	}, new Runnable()
+	{
+	    @Override
+	    public void run()
+	    {
+		resumeHandshake(engine);
+	    }
+	});
+    }
+
+    private void handshake() throws IOException
+    {
+	while(!m_delegating)
+	{
+	    SSLEngineResult result = null;
+
+	    switch(m_engine.getHandshakeStatus())
+	    {
+	    case NEED_TASK:
+		delegateTasks();
+		return;
+	    case NEED_UNWRAP:
+		m_networkInput.flip();
+		result = m_engine.unwrap(m_networkInput, m_applicationInput);
+		m_networkInput.compact();
+		deliver();
+
+		switch(result.getStatus())
+		{
+		case BUFFER_OVERFLOW:
+		    m_applicationInput = ByteBuffer.allocate
+			(m_engine.getSession().getApplicationBufferSize() +
+			 m_applicationInput.capacity());
+		    break;
+		case BUFFER_UNDERFLOW:
+		    if(fill() == 0)
+			return;
+
+		    break;
+		case CLOSED:
+		    throw new IOException("closed");
+		default:
+		    break;
+		}
+
+		break;
+	    case NEED_WRAP:
+		result = m_engine.wrap(EMPTY_BUFFER, m_networkOutput);
+
+		if(result.getStatus() == SSLEngineResult.Status.CLOSED)
+		    throw new IOException("closed");
+
+		if(!flush())
+		    return;
+
+		break;
+	    default:
+		/*
+		** FINISHED or NOT_HANDSHAKING.
+		*/
+
+		m_state = STATE_ESTABLISHED;
+		m_stateTime = System.nanoTime();
+		unwrap(); // Data may accompany the final handshake record.
+		return;
+	    }
 	}
-	catch(Exception exception)
+    }
+
+    private void prepareProxyRequest()
+    {
+	/*
+	** HTTP CONNECT or SOCKS5 without authentication.
+	*/
+
+	if(m_proxyType.equals("HTTP"))
 	{
+	    String host = m_ipAddress;
+
+	    if(host.contains(":"))
+		host = "[" + host + "]";
+
+	    host += ":" + m_inetSocketAddress.getPort();
+	    m_networkOutput.put(("CONNECT " + host + " HTTP/1.1\r\n" +
+				 "Host: " + host + "\r\n\r\n").getBytes());
 	}
+	else if(m_proxyStep == 0)
+	    m_networkOutput.put(new byte[] {0x05, 0x01, 0x00});
+	else
+	{
+	    InetAddress inetAddress = m_inetSocketAddress.getAddress();
+
+	    m_networkOutput.put(new byte[] {0x05, 0x01, 0x00});
+
+	    if(inetAddress == null)
+	    {
+		byte bytes[] = m_ipAddress.getBytes();
+
+		m_networkOutput.put((byte) 0x03);
+		m_networkOutput.put((byte) bytes.length);
+		m_networkOutput.put(bytes);
+	    }
+	    else
+	    {
+		byte bytes[] = inetAddress.getAddress();
+
+		m_networkOutput.put((byte) (bytes.length == 4 ? 0x01 : 0x04));
+		m_networkOutput.put(bytes);
+	    }
 
-	return false;
+	    m_networkOutput.putShort((short) m_inetSocketAddress.getPort());
+	}
     }
 
-    protected boolean send(String message)
+    private void resumeHandshake(SSLEngine engine)
     {
-	if(!connected())
-	    return false;
+	String error = "";
 
-	try
+	synchronized(m_channelMutex)
 	{
-	    if(m_socket == null || m_socket.getOutputStream() == null)
-		return false;
+	    try
+	    {
+		if(m_channel == null || m_engine != engine)
+		    return;
 
-	    Kernel.writeCongestionDigest(message);
+		m_delegating = false;
+		handshake();
+		updateInterest();
+	    }
+	    catch(Exception exception)
+	    {
+		error = "An error (" +
+		    exception.getMessage() +
+		    ") occurred during the SSL/TLS handshake (" +
+		    System.nanoTime() + ").";
+	    }
+	}
 
-	    OutputStream outputStream = m_socket.getOutputStream();
+	if(!error.isEmpty())
+	{
+	    disconnect();
+	    setError(error);
+	}
+    }
+
+    private void startHandshake() throws IOException
+    {
+	m_state = STATE_HANDSHAKING;
+	m_stateTime = System.nanoTime();
+	m_engine.beginHandshake();
+	handshake();
+    }
+
+    private void unwrap() throws IOException
+    {
+	while(m_networkInput.position() > 0)
+	{
+	    m_networkInput.flip();
+
+	    SSLEngineResult result = m_engine.unwrap
+		(m_networkInput, m_applicationInput);
+
+	    m_networkInput.compact();
+	    deliver();
+
+	    switch(result.getStatus())
+	    {
+	    case BUFFER_OVERFLOW:
+		m_applicationInput = ByteBuffer.allocate
+		    (m_engine.getSession().getApplicationBufferSize() +
+		     m_applicationInput.capacity());
+		break;
+	    case BUFFER_UNDERFLOW:
+		return;
+	    case CLOSED:
+		throw new IOException("closed");
+	    default:
+		switch(result.getHandshakeStatus())
+		{
+		case NEED_TASK:
+		case NEED_UNWRAP:
+		case NEED_WRAP:
+		    /*
+		    ** Renegotiation.
+		    */
 
-	    outputStream.write(message.getBytes());
-	    outputStream.flush();
-	    m_bytesWritten.getAndAdd(message.length());
+		    m_state = STATE_HANDSHAKING;
+		    handshake();
+		    return;
+		default:
+		    break;
+		}
+
+		break;
+	    }
 	}
-	catch(Exception exception)
+    }
+
+    private void updateInterest()
+    {
+	if(m_channel == null)
+	    return;
+
+	int ops = readable() ? SelectionKey.OP_READ : 0;
+
+	if(m_delegating)
+	    ops = 0;
+	else if(m_networkOutput.position() > 0 ||
+		(m_state == STATE_ESTABLISHED && !m_outbound.isEmpty()))
+	    ops |= SelectionKey.OP_WRITE;
+
+	Reactor.getInstance().interestOps(m_channel, ops);
+    }
+
+    private void wrap() throws IOException
+    {
+	if(!flush())
+	    return;
+
+	while(!m_outbound.isEmpty())
 	{
-	    setError("A socket error occurred on send().");
-	    disconnect();
+	    /*
+	    ** Gather the queued frames into as few records as possible.
+	    */
+
+	    SSLEngineResult result = m_engine.wrap
+		(m_outbound.toArray(new ByteBuffer[m_outbound.size()]),
+		 m_networkOutput);
+	    int consumed = result.bytesConsumed();
+
+	    m_bytesWritten.getAndAdd(consumed);
+	    m_outboundBytes -= consumed;
+
+	    while(!m_outbound.isEmpty() &&
+		  !m_outbound.peekFirst().hasRemaining())
+		m_outbound.pollFirst();
+
+	    switch(result.getStatus())
+	    {
+	    case BUFFER_OVERFLOW:
+		if(!flush())
+		    return;
+
+		break;
+	    case CLOSED:
+		throw new IOException("closed");
+	    default:
+		break;
+	    }
+	}
+
+	if(flush())
+	    /*
+	    ** The link is writable and idle.
+	    */
+
+	    requestDrain();
+    }
+
+    protected String getLocalIp()
+    {
+	synchronized(m_channelMutex)
+	{
+	    try
+	    {
+		if(m_channel != null &&
+		   m_channel.socket().getLocalAddress() != null)
+		    return m_channel.socket().getLocalAddress().
+			getHostAddress();
+	    }
+	    catch(Exception exception)
+	    {
+	    }
+	}
+
+	if(m_version.equals("IPv4"))
+	    return "0.0.0.0";
+	else
+	    return "::";
+    }
+
+    protected String getSessionCipher()
+    {
+	synchronized(m_channelMutex)
+	{
+	    try
+	    {
+		if(m_engine != null &&
+		   m_state == STATE_ESTABLISHED &&
+		   m_engine.getSession() != null &&
+		   m_engine.getSession().isValid())
+		    return m_engine.getSession().getCipherSuite();
+	    }
+	    catch(Exception exception)
+	    {
+	    }
+	}
+
+	return "";
+    }
+
+    protected boolean connected()
+    {
+	if(!isNetworkConnected() || !m_isValidCertificate.get())
+	    return false;
+
+	synchronized(m_channelMutex)
+	{
+	    return m_channel != null &&
+		m_channel.isOpen() &&
+		m_state == STATE_ESTABLISHED;
+	}
+    }
+
+    protected boolean send(String message)
+    {
+	return send(message.getBytes());
+    }
+
+    protected boolean send(byte frame[])
+    {
+	if(!connected() || frame == null || frame.length <= 0)
 	    return false;
+
+	/*
+	** The frame is queued as is.
+	*/
+
+	synchronized(m_channelMutex)
+	{
+	    if(m_channel == null ||
+	       m_outboundBytes + frame.length > MAXIMUM_BYTES)
+		return false;
+
+	    m_outbound.add(ByteBuffer.wrap(frame));
+	    m_outboundBytes += frame.length;
+	    updateInterest();
 	}
 
+	Kernel.writeCongestionDigest(frame);
 	return true;
     }
 
     protected int getLocalPort()
     {
-	try
+	synchronized(m_channelMutex)
 	{
-	    if(m_socket != null && !m_socket.isClosed())
-		return m_socket.getLocalPort();
+	    try
+	    {
+		if(m_channel != null && m_channel.isOpen())
+		    return m_channel.socket().getLocalPort();
+	    }
+	    catch(Exception exception)
+	    {
+	    }
 	}
-	catch(Exception exception)
+
+	return 0;
+    }
+
+    protected int outboundCapacity()
+    {
+	synchronized(m_channelMutex)
 	{
+	    return Math.max(0, MAXIMUM_BYTES - m_outboundBytes);
 	}
+    }
 
-	return 0;
+    protected int sendBatch(ArrayList<String> messages)
+    {
+	if(!connected() || messages.isEmpty())
+	    return 0;
+
+	/*
+	** Coalesce the messages into a single buffer.
+	*/
+
+	ArrayList<byte[]> arrayList = new ArrayList<> ();
+	int count = 0;
+	int length = 0;
+
+	for(String message : messages)
+	    arrayList.add(message.getBytes());
+
+	synchronized(m_channelMutex)
+	{
+	    if(m_channel == null)
+		return 0;
+
+	    for(byte bytes[] : arrayList)
+		if(m_outboundBytes + length + bytes.length > MAXIMUM_BYTES)
+		    break;
+		else
+		{
+		    count += 1;
+		    length += bytes.length;
+		}
+
+	    if(count == 0)
+		return 0;
+
+	    ByteBuffer byteBuffer = ByteBuffer.allocate(length);
+
+	    for(int i = 0; i < count; i++)
+		byteBuffer.put(arrayList.get(i));
+
+	    byteBuffer.flip();
+	    m_outbound.add(byteBuffer);
+	    m_outboundBytes += length;
+	    updateInterest();
+	}
+
+	for(int i = 0; i < count; i++)
+	    Kernel.writeCongestionDigest(messages.get(i));
+
+	return count;
     }
 
     protected void abort()
@@ -153,27 +657,56 @@ public class TcpNeighbor extends Neighbor
 	disconnect();
 	super.abort();
 	m_isValidCertificate.set(false);
-	m_readSocketScheduler.shutdown();
-
-	try
-	{
-	    m_readSocketScheduler.awaitTermination(60, TimeUnit.SECONDS);
-	}
-	catch(Exception exception)
-	{
-	}
     }
 
     protected void connect()
     {
+	boolean timeout = false;
+
+	synchronized(m_channelMutex)
+	{
+	    if(m_channel != null)
+	    {
+		long elapsed = (System.nanoTime() - m_stateTime) / 1000000;
+
+		switch(m_state)
+		{
+		case STATE_CONNECTING:
+		case STATE_PROXY:
+		    if(elapsed < CONNECTION_TIMEOUT)
+			return;
+
+		    timeout = true;
+		    break;
+		case STATE_HANDSHAKING:
+		    if(elapsed < HANDSHAKE_TIMEOUT)
+			return;
+
+		    timeout = true;
+		    break;
+		default:
+		    break;
+		}
+	    }
+	}
+
 	if(connected())
 	    return;
+	else if(timeout)
+	{
+	    disconnect();
+	    setError("A timeout occurred while attempting a connection (" +
+		     System.nanoTime() + ").");
+	    return;
+	}
 	else if(!isNetworkConnected())
 	{
 	    setError("A network is not available.");
 	    return;
 	}
 
+	disconnect();
+
 	try
 	{
 	    m_bytesRead.set(0);
@@ -192,31 +725,48 @@ public class TcpNeighbor extends Neighbor
 	    sslContext.init
 		(null, m_trustManagers, SecureRandom.getInstance("SHA1PRNG"));
 
-	    if(m_proxyInetSocketAddress == null)
-	    {
-		m_socket = (SSLSocket) sslContext.getSocketFactory().
-		    createSocket();
-		m_socket.connect(inetSocketAddress, CONNECTION_TIMEOUT);
-	    }
-	    else
-	    {
-		Socket socket = null;
+	    SSLEngine engine = sslContext.createSSLEngine
+		(m_ipAddress, inetSocketAddress.getPort());
 
-		if(m_proxyType.equals("HTTP"))
-		    socket = new Socket
-			(new Proxy(Proxy.Type.HTTP, m_proxyInetSocketAddress));
-		else
-		    socket = new Socket
-			(new Proxy(Proxy.Type.SOCKS, m_proxyInetSocketAddress));
+	    engine.setEnabledProtocols(m_protocols);
+	    engine.setUseClientMode(true);
+
+	    SocketChannel channel = SocketChannel.open();
 
-		socket.connect(inetSocketAddress, CONNECTION_TIMEOUT);
-		m_socket = (SSLSocket) sslContext.getSocketFactory().
-		    createSocket(socket, m_proxyIpAddress, m_proxyPort, true);
+	    channel.configureBlocking(false);
+	    channel.socket().setTcpNoDelay(false);
+
+	    boolean connected = channel.connect
+		(m_proxyInetSocketAddress == null ?
+		 inetSocketAddress : m_proxyInetSocketAddress);
+
+	    synchronized(m_channelMutex)
+	    {
+		m_applicationInput = ByteBuffer.allocate
+		    (engine.getSession().getApplicationBufferSize());
+		m_channel = channel;
+		m_engine = engine;
+		m_inetSocketAddress = inetSocketAddress;
+		m_networkInput = ByteBuffer.allocate
+		    (Math.max(PROXY_BUFFER_SIZE,
+			      engine.getSession().getPacketBufferSize()));
+		m_networkOutput = ByteBuffer.allocate
+		    (Math.max(PROXY_BUFFER_SIZE,
+			      engine.getSession().getPacketBufferSize()));
+		m_proxyStep = 0;
+		m_state = STATE_CONNECTING;
+		m_stateTime = System.nanoTime();
 	    }
 
-	    m_socket.setEnabledProtocols(m_protocols);
-	    m_socket.setSoTimeout(HANDSHAKE_TIMEOUT); // SSL/TLS process.
-	    m_socket.setTcpNoDelay(false);
+	    /*
+	    ** The reactor completes the connection, the proxy
+	    ** negotiation, and the SSL/TLS process.
+	    */
+
+	    Reactor.getInstance().register
+		(channel,
+		 connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT,
+		 this);
 	    m_startTime.set(System.nanoTime());
 	    setError("");
 	}
@@ -234,21 +784,197 @@ public class TcpNeighbor extends Neighbor
     {
 	super.disconnect();
 
-	try
+	synchronized(m_channelMutex)
 	{
-	    if(m_socket != null)
-		m_socket.close();
+	    try
+	    {
+		if(m_channel != null)
+		    m_channel.close();
+	    }
+	    catch(Exception exception)
+	    {
+	    }
+	    finally
+	    {
+		m_applicationInput = null;
+		m_bytesRead.set(0);
+		m_bytesWritten.set(0);
+		m_channel = null;
+		m_delegating = false;
+		m_engine = null;
+		m_isValidCertificate.set(false);
+		m_networkInput = null;
+		m_networkOutput = null;
+		m_outbound.clear();
+		m_outboundBytes = 0;
+		m_startTime.set(System.nanoTime());
+		m_state = STATE_CONNECTING;
+	    }
 	}
-	catch(Exception exception)
+    }
+
+    protected void onConnectable()
+    {
+	String error = "";
+
+	synchronized(m_channelMutex)
 	{
+	    try
+	    {
+		if(m_channel == null || m_state != STATE_CONNECTING)
+		    return;
+		else if(!m_channel.finishConnect())
+		    return;
+
+		m_stateTime = System.nanoTime();
+
+		if(m_proxyInetSocketAddress != null)
+		{
+		    m_state = STATE_PROXY;
+		    prepareProxyRequest();
+		    flush();
+		}
+		else
+		    startHandshake();
+
+		updateInterest();
+	    }
+	    catch(Exception exception)
+	    {
+		error = "An error (" +
+		    exception.getMessage() +
+		    ") occurred while attempting a connection (" +
+		    System.nanoTime() + ").";
+	    }
 	}
-	finally
+
+	if(!error.isEmpty())
 	{
-	    m_bytesRead.set(0);
-	    m_bytesWritten.set(0);
-	    m_isValidCertificate.set(false);
-	    m_socket = null;
-	    m_startTime.set(System.nanoTime());
+	    disconnect();
+	    setError(error);
+	}
+    }
+
+    protected void onReadable()
+    {
+	String error = "";
+
+	synchronized(m_channelMutex)
+	{
+	    try
+	    {
+		if(m_channel == null)
+		    return;
+
+		while(true)
+		{
+		    int i = fill();
+
+		    switch(m_state)
+		    {
+		    case STATE_PROXY:
+			switch(proxyResponse())
+			{
+			case -1:
+			    throw new IOException("proxy failure");
+			case 1:
+			    if(!m_proxyType.equals("HTTP") &&
+			       m_proxyStep == 0)
+			    {
+				m_proxyStep = 1;
+				prepareProxyRequest();
+				flush();
+			    }
+			    else
+				startHandshake();
+
+			    break;
+			default:
+			    break;
+			}
+
+			break;
+		    case STATE_HANDSHAKING:
+			handshake();
+			break;
+		    case STATE_ESTABLISHED:
+			unwrap();
+			break;
+		    default:
+			break;
+		    }
+
+		    if(i == 0 || m_channel == null || !readable())
+			break;
+		}
+
+		updateInterest();
+	    }
+	    catch(Exception exception)
+	    {
+		error = "A socket read() error occurred.";
+	    }
+	}
+
+	if(!error.isEmpty())
+	{
+	    disconnect();
+	    setError(error);
+	}
+    }
+
+    protected void onWritable()
+    {
+	String error = "";
+
+	synchronized(m_channelMutex)
+	{
+	    try
+	    {
+		if(m_channel == null)
+		    return;
+
+		switch(m_state)
+		{
+		case STATE_CONNECTING:
+		    break;
+		case STATE_HANDSHAKING:
+		    if(flush())
+			handshake();
+
+		    break;
+		case STATE_ESTABLISHED:
+		    wrap();
+		    break;
+		default:
+		    flush();
+		    break;
+		}
+
+		if(m_state != STATE_CONNECTING)
+		    updateInterest();
+	    }
+	    catch(Exception exception)
+	    {
+		error = "A socket error occurred on send().";
+	    }
+	}
+
+	if(m_state == STATE_CONNECTING && error.isEmpty())
+	    onConnectable();
+	else if(!error.isEmpty())
+	{
+	    disconnect();
+	    setError(error);
+	}
+    }
+
+    protected void resumeReading()
+    {
+	synchronized(m_channelMutex)
+	{
+	    if(m_channel != null && m_state != STATE_CONNECTING)
+		updateInterest();
 	}
     }
 
@@ -263,6 +989,7 @@ public class TcpNeighbor extends Neighbor
     {
 	super(ipAddress, ipPort, scopeId, "TCP", version, oid);
 	m_isValidCertificate = new AtomicBoolean(false);
+	m_outbound = new ArrayDeque<> ();
 
 	if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
 	    m_protocols = new String[] {"TLSv1", "TLSv1.1", "TLSv1.2"};
@@ -294,73 +1021,6 @@ public class TcpNeighbor extends Neighbor
 		m_proxyInetSocketAddress = null;
 	    }
 
-	m_readSocketScheduler = Executors.newSingleThreadScheduledExecutor();
-	m_readSocketScheduler.scheduleAtFixedRate(new Runnable()
-	{
-	    @Override
-	    public void run()
-	    {
-		try
-		{
-		    if(!connected())
-			return;
-		    else if(m_socket == null ||
-			    m_socket.getInputStream() == null)
-			return;
-		    else if(m_socket.getSoTimeout() == HANDSHAKE_TIMEOUT)
-			/*
-			** Reset SO_TIMEOUT from HANDSHAKE_TIMEOUT.
-			*/
-
-			m_socket.setSoTimeout(SO_TIMEOUT);
-
-		    int i = 0;
-
-		    try
-		    {
-			i = m_socket.getInputStream().read(m_bytes);
-		    }
-		    catch(java.net.SocketTimeoutException exception)
-		    {
-		    }
-		    catch(Exception exception)
-		    {
-			i = -1;
-		    }
-
-		    long bytesRead = 0;
-
-		    if(i < 0)
-			bytesRead = -1;
-		    else if(i > 0)
-			bytesRead += i;
-
-		    if(bytesRead < 0)
-		    {
-			setError("A socket read() error occurred.");
-			disconnect();
-			return;
-		    }
-		    else if(bytesRead == 0)
-			return;
-
-		    m_bytesRead.getAndAdd(bytesRead);
-		    m_lastTimeRead.set(System.nanoTime());
-
-		    if(bytesRead > 0)
-			m_stringBuffer.
-			    append(new String(m_bytes, 0, (int) bytesRead));
-		}
-		catch(java.net.SocketException exception)
-		{
-		    setError("A socket error occurred while reading data.");
-		    disconnect();
-		}
-		catch(Exception exception)
-		{
-		}
-	    }
-	}, 0, READ_SOCKET_INTERVAL, TimeUnit.MILLISECONDS);
 	m_trustManagers = new TrustManager[]
 	{
 	    new X509TrustManager()
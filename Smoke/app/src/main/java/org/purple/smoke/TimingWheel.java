@@ -0,0 +1,446 @@
+/*
+** Copyright (c) Alexis Megas.
+** All rights reserved.
+**
+** Redistribution and use in source and binary forms, with or without
+** modification, are permitted provided that the following conditions
+** are met:
+** 1. Redistributions of source code must retain the above copyright
+**    notice, this list of conditions and the following disclaimer.
+** 2. Redistributions in binary form must reproduce the above copyright
+**    notice, this list of conditions and the following disclaimer in the
+**    documentation and/or other materials provided with the distribution.
+** 3. The name of the author may not be used to endorse or promote products
+**    derived from Smoke without specific prior written permission.
+**
+** SMOKE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+** IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+** OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+** IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+** INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+** NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+** DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+** THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+** (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+** SMOKE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package org.purple.smoke;
+
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TimingWheel
+{
+    /*
+    ** A hashed timing wheel. A single thread advances the wheel and
+    ** a small pool of workers executes the tasks which have expired.
+    ** A task never executes concurrently with itself.
+    */
+
+    public class Task
+    {
+	private AtomicBoolean m_cancelled = null;
+	private AtomicBoolean m_pending = null;
+	private AtomicBoolean m_queued = null;
+	private AtomicBoolean m_running = null;
+	private AtomicLong m_maximumRuntime = null;
+	private AtomicLong m_overruns = null;
+	private AtomicLong m_runs = null;
+	private AtomicLong m_runtime = null;
+	private Runnable m_runnable = null;
+	private Runnable m_runner = null;
+	private volatile Thread m_thread = null;
+	private long m_deadline = 0; // Guarded by m_wheelMutex.
+	private long m_period = 0;
+	private long m_rounds = 0; // Guarded by m_wheelMutex.
+
+	private Task(Runnable runnable, long period)
+	{
+	    m_cancelled = new AtomicBoolean(false);
+	    m_maximumRuntime = new AtomicLong(0);
+	    m_overruns = new AtomicLong(0);
+	    m_pending = new AtomicBoolean(false);
+	    m_period = period;
+	    m_queued = new AtomicBoolean(false);
+	    m_runnable = runnable;
+	    m_runner = new Runnable()
+	    {
+		@Override
+		public void run()
+		{
+		    execute();
+		}
+	    };
+	    m_running = new AtomicBoolean(false);
+	    m_runs = new AtomicLong(0);
+	    m_runtime = new AtomicLong(0);
+	}
+
+	private void execute()
+	{
+	    /*
+	    ** m_queued is set from submission until completion.
+	    ** m_running is set only while a worker executes the task.
+	    */
+
+	    m_running.set(true);
+	    m_thread = Thread.currentThread();
+
+	    while(m_pending.getAndSet(false) && !m_cancelled.get())
+	    {
+		long start = System.nanoTime();
+
+		try
+		{
+		    m_runnable.run();
+		}
+		catch(Exception exception)
+		{
+		}
+
+		long runtime = System.nanoTime() - start;
+
+		if(runtime > m_maximumRuntime.get())
+		    m_maximumRuntime.set(runtime);
+
+		m_runs.getAndIncrement();
+		m_runtime.getAndAdd(runtime);
+	    }
+
+	    m_thread = null;
+	    m_running.set(false);
+	    m_queued.set(false);
+
+	    synchronized(this)
+	    {
+		notifyAll();
+	    }
+
+	    /*
+	    ** A request may have arrived after the final iteration.
+	    */
+
+	    if(m_pending.get() && !m_cancelled.get())
+		submit();
+	}
+
+	private void submit()
+	{
+	    if(m_queued.compareAndSet(false, true))
+		try
+		{
+		    m_executor.execute(m_runner);
+		}
+		catch(Exception exception)
+		{
+		    m_queued.set(false);
+		}
+	}
+
+	public boolean isCancelled()
+	{
+	    return m_cancelled.get();
+	}
+
+	public long averageRuntime()
+	{
+	    long runs = m_runs.get();
+
+	    return runs > 0 ? m_runtime.get() / runs : 0;
+	}
+
+	public long maximumRuntime()
+	{
+	    return m_maximumRuntime.get();
+	}
+
+	public long overruns()
+	{
+	    return m_overruns.get();
+	}
+
+	public long runs()
+	{
+	    return m_runs.get();
+	}
+
+	public void cancel()
+	{
+	    /*
+	    ** Wait for an active execution to complete unless the
+	    ** task is cancelling itself. A task which is only queued
+	    ** will not execute its runnable and is not awaited.
+	    */
+
+	    m_cancelled.set(true);
+
+	    synchronized(m_tasks)
+	    {
+		m_tasks.remove(this);
+	    }
+
+	    if(m_thread == Thread.currentThread())
+		return;
+
+	    long deadline = System.nanoTime() + CANCELLATION_TIMEOUT;
+
+	    synchronized(this)
+	    {
+		while(m_running.get())
+		{
+		    long remaining = (deadline - System.nanoTime()) / 1000000;
+
+		    if(remaining <= 0)
+			break;
+
+		    try
+		    {
+			wait(remaining);
+		    }
+		    catch(Exception exception)
+		    {
+			break;
+		    }
+		}
+	    }
+	}
+
+	public void trigger()
+	{
+	    /*
+	    ** Execute as soon as possible. Requests which arrive
+	    ** while the task is executing are coalesced.
+	    */
+
+	    if(m_cancelled.get())
+		return;
+
+	    m_pending.set(true);
+	    submit();
+	}
+
+	@Override
+	public String toString()
+	{
+	    return m_runnable.getClass().getName() +
+		" runs: " + runs() +
+		", average: " + averageRuntime() / 1000 + " us" +
+		", maximum: " + maximumRuntime() / 1000 + " us" +
+		", overruns: " + overruns();
+	}
+    }
+
+    private ArrayList<Task> m_tasks = null;
+    private ArrayList<Task> m_wheel[] = null;
+    private Thread m_thread = null;
+    private ThreadPoolExecutor m_executor = null;
+    private final Object m_wheelMutex = new Object();
+    private final static int WHEEL_SIZE = 512;
+    private final static long CANCELLATION_TIMEOUT = 60000000000L; /*
+								  ** 60
+								  ** Seconds
+								  */
+    private final static long TICK = 10000000L; // 10 Milliseconds
+    private static TimingWheel s_instance = null;
+    private long m_tick = 0;
+    private long m_time = 0;
+
+    @SuppressWarnings("unchecked")
+    private TimingWheel()
+    {
+	int workers = Math.max
+	    (2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	m_executor = new ThreadPoolExecutor
+	    (workers,
+	     workers,
+	     60,
+	     TimeUnit.SECONDS,
+	     new LinkedBlockingQueue<Runnable> (),
+	     new ThreadFactory()
+	     {
+		 @Override
+		 public Thread newThread(Runnable runnable)
+		 {
+		     Thread thread = new Thread(runnable);
+
+		     thread.setDaemon(true);
+		     return thread;
+		 }
+	     });
+	m_executor.allowCoreThreadTimeOut(true);
+	m_tasks = new ArrayList<> ();
+	m_wheel = new ArrayList[WHEEL_SIZE];
+
+	for(int i = 0; i < m_wheel.length; i++)
+	    m_wheel[i] = new ArrayList<> ();
+
+	m_time = System.nanoTime();
+	m_thread = new Thread(new Runnable()
+	{
+	    @Override
+	    public void run()
+	    {
+		loop();
+	    }
+	});
+	m_thread.setDaemon(true);
+	m_thread.start();
+    }
+
+    private void insert(Task task)
+    {
+	/*
+	** m_wheelMutex must be held.
+	*/
+
+	long ticks = Math.max
+	    (1, (task.m_deadline - m_time + TICK - 1) / TICK);
+
+	task.m_rounds = (ticks - 1) / WHEEL_SIZE;
+	m_wheel[(int) ((m_tick + ticks) % WHEEL_SIZE)].add(task);
+    }
+
+    private void loop()
+    {
+	while(true)
+	{
+	    try
+	    {
+		long sleep = (m_time + TICK - System.nanoTime()) / 1000000;
+
+		if(sleep > 0)
+		    Thread.sleep(sleep);
+	    }
+	    catch(Exception exception)
+	    {
+	    }
+
+	    ArrayList<Task> expired = new ArrayList<> ();
+
+	    synchronized(m_wheelMutex)
+	    {
+		/*
+		** Process every tick which has elapsed.
+		*/
+
+		while(System.nanoTime() - m_time >= TICK)
+		{
+		    m_tick += 1;
+		    m_time += TICK;
+
+		    ArrayList<Task> bucket = m_wheel
+			[(int) (m_tick % WHEEL_SIZE)];
+
+		    for(int i = bucket.size() - 1; i >= 0; i--)
+		    {
+			Task task = bucket.get(i);
+
+			if(task.m_cancelled.get())
+			    bucket.remove(i);
+			else if(task.m_rounds > 0)
+			    task.m_rounds -= 1;
+			else
+			{
+			    bucket.remove(i);
+			    expired.add(task);
+
+			    if(task.m_period > 0)
+			    {
+				task.m_deadline += task.m_period;
+
+				if(task.m_deadline - m_time <= 0)
+				    task.m_deadline = m_time + task.m_period;
+
+				insert(task);
+			    }
+			}
+		    }
+		}
+	    }
+
+	    for(Task task : expired)
+	    {
+		if(task.m_queued.get())
+		    /*
+		    ** The previous execution has not completed.
+		    */
+
+		    task.m_overruns.getAndIncrement();
+
+		task.trigger();
+	    }
+	}
+    }
+
+    public ArrayList<String> statistics()
+    {
+	ArrayList<String> arrayList = new ArrayList<> ();
+
+	synchronized(m_tasks)
+	{
+	    for(Task task : m_tasks)
+		arrayList.add(task.toString());
+	}
+
+	return arrayList;
+    }
+
+    public Task scheduleAtFixedRate(Runnable runnable,
+				    long initialDelay,
+				    long period,
+				    TimeUnit unit)
+    {
+	Task task = new Task(runnable, unit.toNanos(Math.max(0, period)));
+
+	synchronized(m_tasks)
+	{
+	    m_tasks.add(task);
+	}
+
+	if(initialDelay <= 0)
+	    task.trigger();
+
+	if(initialDelay > 0 || period > 0)
+	    synchronized(m_wheelMutex)
+	    {
+		task.m_deadline = System.nanoTime() +
+		    unit.toNanos(Math.max(initialDelay, 0)) +
+		    (initialDelay <= 0 ? task.m_period : 0);
+		insert(task);
+	    }
+
+	return task;
+    }
+
+    public Task task(Runnable runnable)
+    {
+	/*
+	** A task which executes only when triggered.
+	*/
+
+	Task task = new Task(runnable, 0);
+
+	synchronized(m_tasks)
+	{
+	    m_tasks.add(task);
+	}
+
+	return task;
+    }
+
+    public static synchronized TimingWheel getInstance()
+    {
+	if(s_instance == null)
+	    s_instance = new TimingWheel();
+
+	return s_instance;
+    }
+}
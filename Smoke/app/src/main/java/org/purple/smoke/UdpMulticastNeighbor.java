@@ -25,19 +25,98 @@
 ** SMOKE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 */
 
+
 package org.purple.smoke;
 
-import java.io.ByteArrayOutputStream;
+import android.os.Build;
 import java.net.DatagramPacket;
+import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.util.Enumeration;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 public class UdpMulticastNeighbor extends Neighbor
 {
+    private DatagramChannel m_channel = null;
+    private InetSocketAddress m_group = null;
+    private MembershipKey m_membershipKey = null;
     private MulticastSocket m_socket = null;
+    private ScheduledExecutorService m_readSocketScheduler = null;
+    private final Object m_channelMutex = new Object();
+    private final static int READ_SOCKET_INTERVAL = 1; // 1 Millisecond
     private final static int TTL = 255;
+    private int m_datagramSize = DATAGRAM_SIZE;
+
+    private static NetworkInterface multicastInterface() throws Exception
+    {
+	Enumeration<NetworkInterface> enumeration =
+	    NetworkInterface.getNetworkInterfaces();
+
+	while(enumeration != null && enumeration.hasMoreElements())
+	{
+	    NetworkInterface networkInterface = enumeration.nextElement();
+
+	    if(networkInterface.isUp() &&
+	       !networkInterface.isLoopback() &&
+	       networkInterface.supportsMulticast())
+		return networkInterface;
+	}
+
+	return null;
+    }
+
+    private void prepareReadSocketScheduler()
+    {
+	/*
+	** Devices which do not support DatagramChannel.join()
+	** read the multicast socket via a blocking receive().
+	*/
+
+	m_readSocketScheduler = Executors.newSingleThreadScheduledExecutor();
+	m_readSocketScheduler.scheduleWithFixedDelay(new Runnable()
+	{
+	    @Override
+	    public void run()
+	    {
+		try
+		{
+		    MulticastSocket socket = null;
+
+		    synchronized(m_channelMutex)
+		    {
+			socket = m_socket;
+		    }
+
+		    if(!connected() || socket == null)
+			return;
+
+		    DatagramPacket datagramPacket = new DatagramPacket
+			(m_bytes, m_bytes.length);
+
+		    socket.receive(datagramPacket);
+
+		    if(datagramPacket.getLength() > 0)
+			dataReceived(datagramPacket.getData(),
+				     0,
+				     datagramPacket.getLength());
+		}
+		catch(Exception exception)
+		{
+		}
+	    }
+	}, 0, READ_SOCKET_INTERVAL, TimeUnit.MILLISECONDS);
+    }
 
     protected String getLocalIp()
     {
@@ -46,15 +125,13 @@ public class UdpMulticastNeighbor extends Neighbor
 
     protected boolean connected()
     {
-	try
-	{
-	    return isNetworkConnected() &&
-		m_socket != null &&
-		!m_socket.isClosed();
-	}
-	catch(Exception exception)
-	{
+	if(!isNetworkConnected())
 	    return false;
+
+	synchronized(m_channelMutex)
+	{
+	    return (m_channel != null && m_channel.isOpen()) ||
+		(m_socket != null && !m_socket.isClosed());
 	}
     }
 
@@ -65,22 +142,31 @@ public class UdpMulticastNeighbor extends Neighbor
 
 	try
 	{
-	    if(m_socket == null)
-		return false;
+	    synchronized(m_channelMutex)
+	    {
+		if(m_channel == null && m_socket == null)
+		    return false;
 
-	    StringBuffer stringBuffer = new StringBuffer(message);
+		byte bytes[] = message.getBytes();
 
-	    while(stringBuffer.length() > 0)
-	    {
-		byte bytes[] = stringBuffer.substring
-		    (0, Math.min(576, stringBuffer.length())).getBytes();
-
-		m_socket.send
-		    (new DatagramPacket(bytes,
-					bytes.length,
-					InetAddress.getByName(m_ipAddress),
-					Integer.parseInt(m_ipPort)));
-		stringBuffer.delete(0, bytes.length);
+		if(m_channel != null)
+		{
+		    if(!writeDatagrams(m_channel,
+				       m_group,
+				       bytes,
+				       m_datagramSize))
+			return false;
+		}
+		else
+		    for(int offset = 0;
+			offset < bytes.length;
+			offset += m_datagramSize)
+			m_socket.send
+			    (new DatagramPacket
+			     (bytes,
+			      offset,
+			      Math.min(m_datagramSize, bytes.length - offset),
+			      m_group));
 	    }
 
 	    Kernel.writeCongestionDigest(message);
@@ -99,13 +185,18 @@ public class UdpMulticastNeighbor extends Neighbor
 
     protected int getLocalPort()
     {
-	try
-	{
-	    if(m_socket != null && !m_socket.isClosed())
-		return m_socket.getLocalPort();
-	}
-	catch(Exception exception)
+	synchronized(m_channelMutex)
 	{
+	    try
+	    {
+		if(m_channel != null && m_channel.isOpen())
+		    return m_channel.socket().getLocalPort();
+		else if(m_socket != null && !m_socket.isClosed())
+		    return m_socket.getLocalPort();
+	    }
+	    catch(Exception exception)
+	    {
+	    }
 	}
 
 	return 0;
@@ -115,14 +206,18 @@ public class UdpMulticastNeighbor extends Neighbor
     {
 	disconnect();
 	super.abort();
-	m_readSocketScheduler.shutdown();
 
-	try
-	{
-	    m_readSocketScheduler.awaitTermination(60, TimeUnit.SECONDS);
-	}
-	catch(Exception exception)
+	if(m_readSocketScheduler != null)
 	{
+	    m_readSocketScheduler.shutdown();
+
+	    try
+	    {
+		m_readSocketScheduler.awaitTermination(60, TimeUnit.SECONDS);
+	    }
+	    catch(Exception exception)
+	    {
+	    }
 	}
     }
 
@@ -141,11 +236,67 @@ public class UdpMulticastNeighbor extends Neighbor
 	    m_bytesRead.set(0);
 	    m_bytesWritten.set(0);
 	    m_lastTimeRead.set(System.nanoTime());
-	    m_socket = new MulticastSocket(Integer.parseInt(m_ipPort));
-	    m_socket.joinGroup(InetAddress.getByName(m_ipAddress));
-	    m_socket.setLoopbackMode(true);
-	    m_socket.setSoTimeout(SO_TIMEOUT);
-	    m_socket.setTimeToLive(TTL);
+
+	    InetAddress inetAddress = InetAddress.getByName(m_ipAddress);
+
+	    m_datagramSize = datagramSize();
+
+	    m_group = new InetSocketAddress
+		(inetAddress, Integer.parseInt(m_ipPort));
+
+	    if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)
+	    {
+		DatagramChannel channel = DatagramChannel.open
+		    (inetAddress instanceof Inet6Address ?
+		     StandardProtocolFamily.INET6 :
+		     StandardProtocolFamily.INET);
+		NetworkInterface networkInterface = multicastInterface();
+
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		channel.bind
+		    (new InetSocketAddress(Integer.parseInt(m_ipPort)));
+		channel.setOption
+		    (StandardSocketOptions.IP_MULTICAST_LOOP, false);
+		channel.setOption
+		    (StandardSocketOptions.IP_MULTICAST_TTL, TTL);
+
+		if(networkInterface != null)
+		    channel.setOption
+			(StandardSocketOptions.IP_MULTICAST_IF,
+			 networkInterface);
+
+		MembershipKey membershipKey = channel.join
+		    (inetAddress, networkInterface);
+
+		synchronized(m_channelMutex)
+		{
+		    m_channel = channel;
+		    m_membershipKey = membershipKey;
+		}
+
+		Reactor.getInstance().register
+		    (channel, SelectionKey.OP_READ, this);
+	    }
+	    else
+	    {
+		MulticastSocket socket = new MulticastSocket
+		    (Integer.parseInt(m_ipPort));
+
+		socket.joinGroup(inetAddress);
+		socket.setLoopbackMode(true);
+		socket.setSoTimeout(SO_TIMEOUT);
+		socket.setTimeToLive(TTL);
+
+		synchronized(m_channelMutex)
+		{
+		    m_socket = socket;
+
+		    if(m_readSocketScheduler == null)
+			prepareReadSocketScheduler();
+		}
+	    }
+
 	    m_startTime.set(System.nanoTime());
 	    setError("");
 	}
@@ -160,81 +311,97 @@ public class UdpMulticastNeighbor extends Neighbor
     {
 	super.disconnect();
 
-	try
+	synchronized(m_channelMutex)
 	{
-	    if(m_socket != null)
+	    try
 	    {
-		m_socket.leaveGroup(InetAddress.getByName(m_ipAddress));
-		m_socket.close();
+		if(m_membershipKey != null)
+		    m_membershipKey.drop();
+
+		if(m_channel != null)
+		    m_channel.close();
+
+		if(m_socket != null)
+		{
+		    m_socket.leaveGroup(InetAddress.getByName(m_ipAddress));
+		    m_socket.close();
+		}
+	    }
+	    catch(Exception exception)
+	    {
+	    }
+	    finally
+	    {
+		m_bytesRead.set(0);
+		m_bytesWritten.set(0);
+		m_channel = null;
+		m_membershipKey = null;
+		m_socket = null;
+		m_startTime.set(System.nanoTime());
 	    }
-	}
-	catch(Exception exception)
-	{
-	}
-	finally
-	{
-	    m_bytesRead.set(0);
-	    m_bytesWritten.set(0);
-	    m_socket = null;
-	    m_startTime.set(System.nanoTime());
 	}
     }
 
-    public UdpMulticastNeighbor(String ipAddress,
-				String ipPort,
-				String scopeId,
-				String version,
-				int oid)
+    protected void onReadable()
     {
-	super(ipAddress, ipPort, scopeId, "UDP", version, oid);
+	ByteBuffer byteBuffer = ByteBuffer.wrap(m_bytes);
 
-	m_readSocketScheduler = Executors.newSingleThreadScheduledExecutor();
-	m_readSocketScheduler.scheduleAtFixedRate(new Runnable()
+	while(true)
 	{
-	    @Override
-	    public void run()
+	    try
 	    {
-		try
+		synchronized(m_channelMutex)
 		{
-		    if(!connected())
-			return;
-		    else if(m_socket == null)
+		    if(m_channel == null)
 			return;
 
-		    ByteArrayOutputStream byteArrayOutputStream =
-			new ByteArrayOutputStream();
-		    DatagramPacket datagramPacket = null;
+		    byteBuffer.clear();
 
-		    datagramPacket = new DatagramPacket
-			(m_bytes, m_bytes.length);
-		    m_socket.receive(datagramPacket);
+		    if(m_channel.receive(byteBuffer) == null)
+			return;
+		}
+	    }
+	    catch(Exception exception)
+	    {
+		setError("A socket receive() error occurred.");
+		disconnect();
+		return;
+	    }
 
-		    if(datagramPacket.getLength() > 0)
-			byteArrayOutputStream.write
-			    (datagramPacket.getData(),
-			     0,
-			     datagramPacket.getLength());
+	    if(byteBuffer.position() > 0)
+		dataReceived(m_bytes, 0, byteBuffer.position());
+	}
+    }
 
-		    int bytesRead = datagramPacket.getLength();
+    protected void onWritable()
+    {
+	/*
+	** Complete a partially sent frame.
+	*/
 
-		    if(bytesRead < 0)
-		    {
-			setError("A socket receive() error occurred.");
-			disconnect();
-			return;
-		    }
-		    else if(bytesRead == 0)
-			return;
+	try
+	{
+	    synchronized(m_channelMutex)
+	    {
+		if(m_channel == null)
+		    return;
 
-		    m_bytesRead.getAndAdd(bytesRead);
-		    m_lastTimeRead.set(System.nanoTime());
-		    m_stringBuffer.append
-			(new String(byteArrayOutputStream.toByteArray()));
-		}
-		catch(Exception exception)
-		{
-		}
+		flushDatagrams(m_channel);
 	    }
-	}, 0, READ_SOCKET_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+	catch(Exception exception)
+	{
+	    setError("A socket error occurred on send().");
+	    disconnect();
+	}
+    }
+
+    public UdpMulticastNeighbor(String ipAddress,
+				String ipPort,
+				String scopeId,
+				String version,
+				int oid)
+    {
+	super(ipAddress, ipPort, scopeId, "UDP", version, oid);
     }
 }
@@ -25,28 +25,45 @@
 ** SMOKE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 */
 
+
 package org.purple.smoke;
 
-import java.io.ByteArrayOutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
 
 public class UdpNeighbor extends Neighbor
 {
-    private DatagramSocket m_socket = null;
+    private DatagramChannel m_channel = null;
+    private final Object m_channelMutex = new Object();
+    private int m_datagramSize = DATAGRAM_SIZE;
+
+    private boolean write(byte frame[]) throws Exception
+    {
+	/*
+	** The address of the connected channel is fixed.
+	*/
+
+	return writeDatagrams(m_channel, null, frame, m_datagramSize);
+    }
 
     protected String getLocalIp()
     {
-	try
-	{
-	    if(m_socket != null && m_socket.getLocalAddress() != null)
-		return m_socket.getLocalAddress().getHostAddress();
-	}
-	catch(Exception exception)
+	synchronized(m_channelMutex)
 	{
+	    try
+	    {
+		if(m_channel != null &&
+		   m_channel.socket().getLocalAddress() != null)
+		    return m_channel.socket().getLocalAddress().
+			getHostAddress();
+	    }
+	    catch(Exception exception)
+	    {
+	    }
 	}
 
 	if(m_version.equals("IPv4"))
@@ -57,45 +74,35 @@ public class UdpNeighbor extends Neighbor
 
     protected boolean connected()
     {
-	try
-	{
-	    return isNetworkConnected() &&
-		m_socket != null &&
-		!m_socket.isClosed();
-	}
-	catch(Exception exception)
-	{
+	if(!isNetworkConnected())
 	    return false;
+
+	synchronized(m_channelMutex)
+	{
+	    return m_channel != null && m_channel.isOpen();
 	}
     }
 
     protected boolean send(String message)
     {
-	if(!connected())
+	return send(message.getBytes());
+    }
+
+    protected boolean send(byte frame[])
+    {
+	if(!connected() || frame == null || frame.length <= 0)
 	    return false;
 
 	try
 	{
-	    if(m_socket == null)
-		return false;
-
-	    StringBuffer stringBuffer = new StringBuffer(message);
-
-	    while(stringBuffer.length() > 0)
+	    synchronized(m_channelMutex)
 	    {
-		byte bytes[] = stringBuffer.substring
-		    (0, Math.min(576, stringBuffer.length())).getBytes();
-
-		m_socket.send
-		    (new DatagramPacket(bytes,
-					bytes.length,
-					InetAddress.getByName(m_ipAddress),
-					Integer.parseInt(m_ipPort)));
-		stringBuffer.delete(0, bytes.length);
+		if(m_channel == null || !write(frame))
+		    return false;
 	    }
 
-	    Kernel.writeCongestionDigest(message);
-	    m_bytesWritten.getAndAdd(message.length());
+	    Kernel.writeCongestionDigest(frame);
+	    m_bytesWritten.getAndAdd(frame.length);
 	    setError("");
 	}
 	catch(Exception exception)
@@ -105,36 +112,74 @@ public class UdpNeighbor extends Neighbor
 	    return false;
 	}
 
-	return false;
+	return true;
     }
 
     protected int getLocalPort()
     {
-	try
-	{
-	    if(m_socket != null && !m_socket.isClosed())
-		return m_socket.getLocalPort();
-	}
-	catch(Exception exception)
+	synchronized(m_channelMutex)
 	{
+	    try
+	    {
+		if(m_channel != null && m_channel.isOpen())
+		    return m_channel.socket().getLocalPort();
+	    }
+	    catch(Exception exception)
+	    {
+	    }
 	}
 
 	return 0;
     }
 
-    protected void abort()
+    protected int sendBatch(ArrayList<String> messages)
     {
-	disconnect();
-	super.abort();
-	m_readSocketScheduler.shutdown();
+	if(!connected() || messages.isEmpty())
+	    return 0;
+
+	ArrayList<byte[]> arrayList = new ArrayList<> ();
+	int count = 0;
+
+	for(String message : messages)
+	    arrayList.add(message.getBytes());
 
 	try
 	{
-	    m_readSocketScheduler.awaitTermination(60, TimeUnit.SECONDS);
+	    /*
+	    ** Transmit the batch while holding the mutex once.
+	    */
+
+	    synchronized(m_channelMutex)
+	    {
+		if(m_channel == null)
+		    return 0;
+
+		for(byte frame[] : arrayList)
+		    if(write(frame))
+			count += 1;
+		    else
+			break;
+	    }
 	}
 	catch(Exception exception)
 	{
+	    setError("A socket error occurred on send().");
+	    disconnect();
 	}
+
+	for(int i = 0; i < count; i++)
+	{
+	    Kernel.writeCongestionDigest(arrayList.get(i));
+	    m_bytesWritten.getAndAdd(arrayList.get(i).length);
+	}
+
+	return count;
+    }
+
+    protected void abort()
+    {
+	disconnect();
+	super.abort();
     }
 
     protected void connect()
@@ -152,10 +197,23 @@ public class UdpNeighbor extends Neighbor
 	    m_bytesRead.set(0);
 	    m_bytesWritten.set(0);
 	    m_lastTimeRead.set(System.nanoTime());
-	    m_socket = new DatagramSocket();
-	    m_socket.connect(InetAddress.getByName(m_ipAddress),
-			     Integer.parseInt(m_ipPort));
-	    m_socket.setSoTimeout(SO_TIMEOUT);
+
+	    DatagramChannel channel = DatagramChannel.open();
+	    int datagramSize = datagramSize();
+
+	    channel.configureBlocking(false);
+	    channel.connect
+		(new InetSocketAddress(m_ipAddress,
+				       Integer.parseInt(m_ipPort)));
+
+	    synchronized(m_channelMutex)
+	    {
+		m_channel = channel;
+		m_datagramSize = datagramSize;
+	    }
+
+	    Reactor.getInstance().register
+		(channel, SelectionKey.OP_READ, this);
 	    m_startTime.set(System.nanoTime());
 	    setError("");
 	}
@@ -170,78 +228,96 @@ public class UdpNeighbor extends Neighbor
     {
 	super.disconnect();
 
-	try
-	{
-	    if(m_socket != null)
-		m_socket.close();
-	}
-	catch(Exception exception)
-	{
-	}
-	finally
+	synchronized(m_channelMutex)
 	{
-	    m_bytesRead.set(0);
-	    m_bytesWritten.set(0);
-	    m_socket = null;
-	    m_startTime.set(System.nanoTime());
+	    try
+	    {
+		if(m_channel != null)
+		    m_channel.close();
+	    }
+	    catch(Exception exception)
+	    {
+	    }
+	    finally
+	    {
+		m_bytesRead.set(0);
+		m_bytesWritten.set(0);
+		m_channel = null;
+		m_startTime.set(System.nanoTime());
+	    }
 	}
     }
 
-    public UdpNeighbor(String ipAddress,
-		       String ipPort,
-		       String scopeId,
-		       String version,
-		       int oid)
+    protected void onReadable()
     {
-	super(ipAddress, ipPort, scopeId, "UDP", version, oid);
+	ByteBuffer byteBuffer = ByteBuffer.wrap(m_bytes);
 
-	m_readSocketScheduler = Executors.newSingleThreadScheduledExecutor();
-	m_readSocketScheduler.scheduleAtFixedRate(new Runnable()
+	while(true)
 	{
-	    @Override
-	    public void run()
+	    int bytesRead = 0;
+
+	    try
 	    {
-		try
+		synchronized(m_channelMutex)
 		{
-		    if(!connected())
-			return;
-		    else if(m_socket == null)
+		    if(m_channel == null)
 			return;
 
-		    ByteArrayOutputStream byteArrayOutputStream =
-			new ByteArrayOutputStream();
-		    DatagramPacket datagramPacket = null;
+		    byteBuffer.clear();
+		    bytesRead = m_channel.read(byteBuffer);
+		}
+	    }
+	    catch(PortUnreachableException exception)
+	    {
+		/*
+		** The peer is not yet listening.
+		*/
+
+		return;
+	    }
+	    catch(Exception exception)
+	    {
+		setError("A socket receive() error occurred.");
+		disconnect();
+		return;
+	    }
 
-		    datagramPacket = new DatagramPacket
-			(m_bytes, m_bytes.length);
-		    m_socket.receive(datagramPacket);
+	    if(bytesRead <= 0)
+		return;
 
-		    if(datagramPacket.getLength() > 0)
-			byteArrayOutputStream.write
-			    (datagramPacket.getData(),
-			     0,
-			     datagramPacket.getLength());
+	    dataReceived(m_bytes, 0, bytesRead);
+	}
+    }
 
-		    int bytesRead = datagramPacket.getLength();
+    protected void onWritable()
+    {
+	/*
+	** Complete a partially sent frame.
+	*/
 
-		    if(bytesRead < 0)
-		    {
-			setError("A socket receive() error occurred.");
-			disconnect();
-			return;
-		    }
-		    else if(bytesRead == 0)
-			return;
+	try
+	{
+	    synchronized(m_channelMutex)
+	    {
+		if(m_channel == null)
+		    return;
 
-		    m_bytesRead.getAndAdd(bytesRead);
-		    m_lastTimeRead.set(System.nanoTime());
-		    m_stringBuffer.append
-			(new String(byteArrayOutputStream.toByteArray()));
-		}
-		catch(Exception exception)
-		{
-		}
+		flushDatagrams(m_channel);
 	    }
-	}, 0, READ_SOCKET_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+	catch(Exception exception)
+	{
+	    setError("A socket error occurred on send().");
+	    disconnect();
+	}
+    }
+
+    public UdpNeighbor(String ipAddress,
+		       String ipPort,
+		       String scopeId,
+		       String version,
+		       int oid)
+    {
+	super(ipAddress, ipPort, scopeId, "UDP", version, oid);
     }
 }
@@ -0,0 +1,138 @@
+/*
+** Copyright (c) Alexis Megas.
+** All rights reserved.
+**
+** Redistribution and use in source and binary forms, with or without
+** modification, are permitted provided that the following conditions
+** are met:
+** 1. Redistributions of source code must retain the above copyright
+**    notice, this list of conditions and the following disclaimer.
+** 2. Redistributions in binary form must reproduce the above copyright
+**    notice, this list of conditions and the following disclaimer in the
+**    documentation and/or other materials provided with the distribution.
+** 3. The name of the author may not be used to endorse or promote products
+**    derived from Smoke without specific prior written permission.
+**
+** SMOKE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+** IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+** OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+** IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+** INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+** NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+** DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+** THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+** (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+** SMOKE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package org.purple.smoke;
+
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FrameDecoderTest
+{
+    private static byte[] frame(int i)
+    {
+	return ("frame " + i + Messages.EOM).getBytes();
+    }
+
+    @Test
+    public void decodesFrames()
+    {
+	FrameDecoder frameDecoder = new FrameDecoder(1024, 1024);
+	byte bytes[] = frame(1);
+
+	frameDecoder.write(bytes, 0, 3);
+	assertNull(frameDecoder.next());
+	frameDecoder.write(bytes, 3, bytes.length - 3);
+	assertArrayEquals(bytes, frameDecoder.next());
+	assertNull(frameDecoder.next());
+    }
+
+    @Test
+    public void resynchronizesAfterFullBuffer()
+    {
+	/*
+	** A stream without a delimiter fills the buffer. The decoder
+	** must discard the bytes and resume after the next delimiter.
+	*/
+
+	FrameDecoder frameDecoder = new FrameDecoder(1024, 1024);
+	byte junk[] = new byte[1400];
+
+	Arrays.fill(junk, (byte) 'x');
+	frameDecoder.write(junk, 0, junk.length);
+	assertNull(frameDecoder.next());
+	assertEquals(1, frameDecoder.oversizeFrames());
+
+	int frames = 0;
+
+	for(int i = 0; i < 5; i++)
+	{
+	    byte bytes[] = frame(i);
+
+	    frameDecoder.write(bytes, 0, bytes.length);
+
+	    byte next[] = frameDecoder.next();
+
+	    if(next != null)
+	    {
+		assertArrayEquals(bytes, next);
+		frames += 1;
+	    }
+	}
+
+	/*
+	** The first delimiter terminates the discarded frame.
+	*/
+
+	assertEquals(4, frames);
+    }
+
+    @Test
+    public void resynchronizesAfterSmallWrites()
+    {
+	FrameDecoder frameDecoder = new FrameDecoder(1024, 1024);
+	byte junk[] = new byte[100];
+
+	Arrays.fill(junk, (byte) 'x');
+
+	for(int i = 0; i < 20; i++)
+	{
+	    frameDecoder.write(junk, 0, junk.length);
+	    assertNull(frameDecoder.next());
+	}
+
+	assertTrue(frameDecoder.oversizeFrames() > 0);
+
+	byte bytes[] = frame(1);
+
+	frameDecoder.write(bytes, 0, bytes.length);
+	frameDecoder.next();
+	frameDecoder.write(bytes, 0, bytes.length);
+	assertArrayEquals(bytes, frameDecoder.next());
+    }
+
+    @Test
+    public void discardsOversizedFrames()
+    {
+	FrameDecoder frameDecoder = new FrameDecoder(4096, 64);
+	byte junk[] = new byte[128];
+
+	Arrays.fill(junk, (byte) 'x');
+	frameDecoder.write(junk, 0, junk.length);
+	frameDecoder.write(Messages.EOM.getBytes(), 0, Messages.EOM.length());
+
+	byte bytes[] = frame(2);
+
+	frameDecoder.write(bytes, 0, bytes.length);
+	assertArrayEquals(bytes, frameDecoder.next());
+	assertEquals(1, frameDecoder.oversizeFrames());
+    }
+}
@@ -0,0 +1,172 @@
+/*
+** Copyright (c) Alexis Megas.
+** All rights reserved.
+**
+** Redistribution and use in source and binary forms, with or without
+** modification, are permitted provided that the following conditions
+** are met:
+** 1. Redistributions of source code must retain the above copyright
+**    notice, this list of conditions and the following disclaimer.
+** 2. Redistributions in binary form must reproduce the above copyright
+**    notice, this list of conditions and the following disclaimer in the
+**    documentation and/or other materials provided with the distribution.
+** 3. The name of the author may not be used to endorse or promote products
+**    derived from Smoke without specific prior written permission.
+**
+** SMOKE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+** IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+** OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+** IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+** INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+** NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+** DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+** THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+** (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+** SMOKE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+
+package org.purple.smoke;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+public class SipHashTest
+{
+    /*
+    ** The key is 00 01 ... 0f and the i-th message is 00 01 ... i - 1.
+    ** VECTORS_2_4 are the vectors_sip64 values of the reference
+    ** implementation's vectors.h, read as little-endian longs.
+    ** VECTORS_4_8 were produced by the original implementation of
+    ** SipHash and guard the SipHash-4-8 digests which are stored.
+    */
+
+    private final static long VECTORS_2_4[] = {
+	0x726fdb47dd0e0e31L, 0x74f839c593dc67fdL, 0x0d6c8009d9a94f5aL,
+	0x85676696d7fb7e2dL, 0xcf2794e0277187b7L, 0x18765564cd99a68dL,
+	0xcbc9466e58fee3ceL, 0xab0200f58b01d137L, 0x93f5f5799a932462L,
+	0x9e0082df0ba9e4b0L, 0x7a5dbbc594ddb9f3L, 0xf4b32f46226bada7L,
+	0x751e8fbc860ee5fbL, 0x14ea5627c0843d90L, 0xf723ca908e7af2eeL,
+	0xa129ca6149be45e5L, 0x3f2acc7f57c29bdbL, 0x699ae9f52cbe4794L,
+	0x4bc1b3f0968dd39cL, 0xbb6dc91da77961bdL, 0xbed65cf21aa2ee98L,
+	0xd0f2cbb02e3b67c7L, 0x93536795e3a33e88L, 0xa80c038ccd5ccec8L,
+	0xb8ad50c6f649af94L, 0xbce192de8a85b8eaL, 0x17d835b85bbb15f3L,
+	0x2f2e6163076bcfadL, 0xde4daaaca71dc9a5L, 0xa6a2506687956571L,
+	0xad87a3535c49ef28L, 0x32d892fad841c342L, 0x7127512f72f27cceL,
+	0xa7f32346f95978e3L, 0x12e0b01abb051238L, 0x15e034d40fa197aeL,
+	0x314dffbe0815a3b4L, 0x027990f029623981L, 0xcadcd4e59ef40c4dL,
+	0x9abfd8766a33735cL, 0x0e3ea96b5304a7d0L, 0xad0c42d6fc585992L,
+	0x187306c89bc215a9L, 0xd4a60abcf3792b95L, 0xf935451de4f21df2L,
+	0xa9538f0419755787L, 0xdb9acddff56ca510L, 0xd06c98cd5c0975ebL,
+	0xe612a3cb9ecba951L, 0xc766e62cfcadaf96L, 0xee64435a9752fe72L,
+	0xa192d576b245165aL, 0x0a8787bf8ecb74b2L, 0x81b3e73d20b49b6fL,
+	0x7fa8220ba3b2eceaL, 0x245731c13ca42499L, 0xb78dbfaf3a8d83bdL,
+	0xea1ad565322a1a0bL, 0x60e61c23a3795013L, 0x6606d7e446282b93L,
+	0x6ca4ecb15c5f91e1L, 0x9f626da15c9625f3L, 0xe51b38608ef25f57L,
+	0x958a324ceb064572L};
+    private final static long VECTORS_4_8[] = {
+	0xc879052b9938da41L, 0xc85914f95295b851L, 0x33c3ddbef0163792L,
+	0x05c147657dd4466aL, 0x48fac14a2b5938c2L, 0xe14752cfd9d7c2f6L,
+	0x8e5535c834bcb66bL, 0x4efdbe5a713fd747L, 0x50db2f079c8bb520L,
+	0x5312e15ef39a3136L, 0x8f848d0adbd0a948L, 0x810a0436603969ccL,
+	0x6197a77a53686d4bL, 0x6950c9f2e9963729L, 0x689a62a7ea1b4388L,
+	0x83d389d57da9a6e0L, 0x70acb28053f59c55L, 0x4e79e37a11c5b7d5L,
+	0x2b10ad3446453c5aL, 0xbc3d5aa3af80a4c0L, 0xc84b28e50927c278L,
+	0x9dd6eb0d467026efL, 0xd884d0a986ef76d9L, 0xe8d0ea191881d9e3L,
+	0x16ecea3eb53c3389L, 0xc64973645f6c1531L, 0xa432763535ce4ca5L,
+	0xfed2a7c025895d06L, 0x8b3a1a2282aabb2bL, 0x707b0964cefb0b87L,
+	0x8bee9564f9e0d840L, 0x12dffa0bf4a7fc79L, 0xd29e762ff2fb0b00L,
+	0xfa22e5f891556840L, 0x0d9d14d874fee62bL, 0xed60750b0e2f7ebaL,
+	0x97e1a7ed84e3e902L, 0xb6632795620ae8c4L, 0xd36d5c5dc6ed2783L,
+	0xc02fa464d164fc79L, 0x4e61fccb11754a15L, 0x6fe6a0ec7c8d148bL,
+	0xfa03c454b669eedfL, 0xc9b77b69a6368fc5L, 0x2131c6059cbec5a6L,
+	0x3189cdfb59878ab5L, 0x25c4cc04673a68d7L, 0x8d44a2e5e1e66acbL,
+	0x73513a3a5b69266eL, 0x4aac339fcf077178L, 0x84747bd9da907516L,
+	0x06f36bf01e686b00L, 0xa6cfef6602309b1cL, 0x4bb3b0d1882f8d28L,
+	0xfe6bf5acbd0611e0L, 0x28036e5b0e1f10c0L, 0x0a1c1b5b4591a7c3L,
+	0x0f3a0b9ee1af0757L, 0x4f5953fe29725ae6L, 0x4caf1aabb99d2f00L,
+	0x0606c14450cb2859L, 0x2173857b960138d5L, 0xcc99091a4f36db05L,
+	0x23de0355bc8477e6L};
+
+    private static byte[] key()
+    {
+	byte key[] = new byte[SipHash.KEY_LENGTH];
+
+	for(int i = 0; i < key.length; i++)
+	    key[i] = (byte) i;
+
+	return key;
+    }
+
+    private static byte[] message(int length)
+    {
+	byte message[] = new byte[length];
+
+	for(int i = 0; i < length; i++)
+	    message[i] = (byte) i;
+
+	return message;
+    }
+
+    private static void verify(SipHash sipHash, long vectors[])
+    {
+	/*
+	** Every entry point must agree. The message is placed at
+	** offset 3 so that slices are exercised.
+	*/
+
+	for(int i = 0; i < vectors.length; i++)
+	{
+	    byte message[] = new byte[i + 3];
+
+	    System.arraycopy(message(i), 0, message, 3, i);
+
+	    ByteBuffer buffer = ByteBuffer.wrap(message, 3, i);
+	    SipHash.Stream stream = sipHash.stream();
+
+	    for(int j = 0; j < i; j += j % 3 + 1)
+		stream.update(message, j + 3, Math.min(j % 3 + 1, i - j));
+
+	    assertEquals(vectors[i], sipHash.hash(message, 3, i));
+	    assertEquals(vectors[i], sipHash.hash(buffer));
+	    assertEquals
+		(vectors[i],
+		 sipHash.hash(buffer.order(ByteOrder.LITTLE_ENDIAN)));
+	    assertEquals
+		(vectors[i],
+		 sipHash.hmac(Arrays.copyOfRange(message, 3, 3 + i), key()));
+	    assertEquals(vectors[i], stream.finish());
+	}
+    }
+
+    @Test
+    public void matchesPaperTestValue()
+    {
+	/*
+	** The Test Values section of
+	** https://131002.net/siphash/siphash.pdf.
+	*/
+
+	assertEquals(0xa129ca6149be45e5L,
+		     new SipHash(key(), 0, 0).hmac(message(15)));
+    }
+
+    @Test
+    public void matchesReferenceVectors()
+    {
+	SipHash sipHash = new SipHash(key(), 0, 0);
+
+	for(int i = 0; i < VECTORS_2_4.length; i++)
+	    assertEquals(VECTORS_2_4[i], sipHash.hmac(message(i)));
+    }
+
+    @Test
+    public void entryPointsAgree()
+    {
+	verify(new SipHash(key(), 0, 0), VECTORS_2_4);
+	verify(new SipHash(key(), 1, 1), VECTORS_4_8);
+    }
+}